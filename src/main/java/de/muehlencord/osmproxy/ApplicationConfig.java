@@ -40,7 +40,9 @@ public class ApplicationConfig extends Application {
      * If required, comment out calling this method in getClasses().
      */
     private void addRestResourceClasses(Set<Class<?>> resources) {
+        resources.add(de.muehlencord.osmproxy.business.metrics.boundary.MetricsResource.class);
         resources.add(de.muehlencord.osmproxy.business.proxy.boundary.ProxyResource.class);
+        resources.add(de.muehlencord.osmproxy.business.seed.boundary.SeedResource.class);
     }
     
 }
@@ -16,28 +16,52 @@
 package de.muehlencord.osmproxy;
 
 import de.muehlencord.osmproxy.business.config.boundary.ConfigurationBuilder;
-import de.muehlencord.osmproxy.business.config.entity.Cache;
-import de.muehlencord.osmproxy.business.config.entity.Configuration;
+import de.muehlencord.osmproxy.business.config.entity.CacheType;
 import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
-import de.muehlencord.osmproxy.business.config.entity.Layer;
-import de.muehlencord.osmproxy.business.config.entity.Server;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationSnapshot;
+import de.muehlencord.osmproxy.business.config.entity.Expiry;
+import de.muehlencord.osmproxy.business.config.entity.LayerSnapshot;
+import de.muehlencord.osmproxy.business.config.entity.MemoryCache;
+import de.muehlencord.osmproxy.business.config.entity.PeerRing;
+import de.muehlencord.osmproxy.business.config.entity.Prefetch;
+import de.muehlencord.osmproxy.business.config.entity.Seed;
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.config.entity.UpstreamServer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
 import javax.ejb.Singleton;
+import javax.ejb.Startup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Provides the configuration of the proxy. The configuration is published as
+ * immutable snapshot, so it can be read by all request threads without
+ * locking. Changes of the configuration file are detected and applied
+ * without a redeploy.
  *
  * @author joern.muehlencord
  */
 @Singleton
+@Startup
+@Lock(LockType.READ)
 public class ConfigurationBean {
 
     /**
@@ -45,6 +69,12 @@ public class ConfigurationBean {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(ConfigurationBean.class);
 
+    /**
+     * time to wait for further changes of the configuration file before it is
+     * reloaded - editors often write a file in several steps
+     */
+    private static final long RELOAD_DELAY = 500;
+
     /**
      * the version of the application - updated by maven build system
      * automatically
@@ -56,12 +86,48 @@ public class ConfigurationBean {
     private String buildDate;
 
     /**
-     * the configuration to be used - loaded from $home/.osmproxy/osmproxy.conf
+     * the configuration file - $home/.osmproxy/osmproxy.cfg
+     */
+    private final Path configFile;
+
+    /**
+     * the configuration to be used - loaded from the configuration file
+     */
+    private volatile ConfigurationSnapshot snapshot;
+
+    /**
+     * makes sure the configuration file is loaded by one thread only
      */
-    private Configuration configuration;
+    private final ReentrantLock loadLock = new ReentrantLock();
+
+    private WatchService watchService;
+
+    public ConfigurationBean() {
+        this(Paths.get(System.getProperty("user.home"), ".osmproxy", "osmproxy.cfg"));
+    }
+
+    ConfigurationBean(Path configFile) {
+        this.configFile = configFile;
+    }
 
     @PostConstruct
     public void init() {
+        readBuildInfo();
+        startWatcher();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                LOGGER.error("Cannot stop watching configuration file. Reason: {}", ex.toString());
+            }
+        }
+    }
+
+    private void readBuildInfo() {
         InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream("buildInfo.properties");
         if (in == null) {
             return;
@@ -83,47 +149,123 @@ public class ConfigurationBean {
             version = "??";
             buildDate = "??";
         }
+    }
+
+    /**
+     * watches the directory of the configuration file and reloads the
+     * configuration if the file changes.
+     */
+    private void startWatcher() {
+        Path directory = configFile.toAbsolutePath().getParent();
+        if (!directory.toFile().isDirectory()) {
+            LOGGER.warn("Configuration directory {} not found, configuration changes are not detected", directory.toString());
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot watch configuration file, configuration changes are not detected. Reason: {}", ex.toString());
+            return;
+        }
+        Thread watcher = new Thread(this::watch, "osmproxy-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = isConfigFileChanged(key);
+                // wait until the file is written completely, collecting further events
+                WatchKey next = watchService.poll(RELOAD_DELAY, TimeUnit.MILLISECONDS);
+                while (next != null) {
+                    changed |= isConfigFileChanged(next);
+                    next = watchService.poll(RELOAD_DELAY, TimeUnit.MILLISECONDS);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            LOGGER.debug("Stopped watching configuration file");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isConfigFileChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (configFile.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * reloads the configuration file. If the file is not valid, the current
+     * configuration is kept.
+     *
+     * @return true, if the configuration was reloaded, false otherwise.
+     */
+    public boolean reload() {
+        loadLock.lock();
+        try {
+            snapshot = load();
+            LOGGER.info("Reloaded configuration from {}", configFile.toString());
+            return true;
+        } catch (ConfigurationException ex) {
+            LOGGER.error("Cannot reload configuration, keeping current one. Reason: " + ex.toString(), ex);
+            return false;
+        } finally {
+            loadLock.unlock();
+        }
+    }
 
+    private ConfigurationSnapshot load() throws ConfigurationException {
+        URL url = ConfigurationBean.class.getResource("osmproxy.cfg");
+        if (url != null) {
+            throw new ConfigurationException("Search for configuration in classpath not yet supported, please store in " + configFile.toString());
+        }
+        if (!configFile.toFile().exists()) {
+            throw new ConfigurationException("Configuration not found");
+        }
+        return ConfigurationSnapshot.of(ConfigurationBuilder.fromFile(configFile));
     }
 
     /**
-     * return the configuration object. If not yet loaded, it is loaded from
+     * return the configuration snapshot. If not yet loaded, it is loaded from
      * disk.
      *
-     * @return the configuration object.
+     * @return the configuration snapshot.
      * @throws ConfigurationException if the configuration cannot be loaded from
      * disk.
      */
-    protected Configuration getConfiguration() throws ConfigurationException {
-        if (configuration == null) {
-            URL url = ConfigurationBean.class.getResource("osmproxy.cfg");
-
-            if (url == null) {
-                // try to find file in user.home
-                Path path = Paths.get(System.getProperty("user.home"), ".osmproxy", "osmproxy.cfg");
-                if (path.toFile().exists()) {
-                    try {
-                        configuration = ConfigurationBuilder.fromFile(path);
-                        LOGGER.info("Loaded configuration from {}", path.toString());
-                    } catch (ConfigurationException ex) {
-                        LOGGER.error("Cannot load configuration from file. Reason: " + ex.toString(), ex);
-                        configuration = null;
-                    }
-                } else {
-                    LOGGER.error("Configuration not found");
-                    configuration = null;
-                }
-            } else {
-                LOGGER.error("Search for configuration in classpath not yet supported, please store in " + System.getProperty("user.home") + "/.osmproxy/osmproxy.config");
-                configuration = null;
-            }
+    protected ConfigurationSnapshot getSnapshot() throws ConfigurationException {
+        ConfigurationSnapshot current = snapshot;
+        if (current != null) {
+            return current;
         }
 
-        if (configuration == null) {
-            throw new ConfigurationException("Invalid configuration, see log for details");
+        loadLock.lock();
+        try {
+            if (snapshot == null) {
+                try {
+                    snapshot = load();
+                    LOGGER.info("Loaded configuration from {}", configFile.toString());
+                } catch (ConfigurationException ex) {
+                    LOGGER.error("Cannot load configuration from file. Reason: " + ex.toString(), ex);
+                    throw new ConfigurationException("Invalid configuration, see log for details", ex);
+                }
+            }
+            return snapshot;
+        } finally {
+            loadLock.unlock();
         }
-
-        return configuration;
     }
 
     /**
@@ -133,24 +275,10 @@ public class ConfigurationBean {
      * tiles.
      * @return the directory where to store the tiles to.
      * @throws ConfigurationException if the configuration is not loaded or the
-     * cache directory is not defined.
+     * layer is not defined.
      */
     public Path getCacheDirectory(String layerName) throws ConfigurationException {
-        Cache cache = getConfiguration().getCache();
-        if (cache == null) {
-            throw new ConfigurationException("no cache defined");
-        }
-
-        Layer layer = getConfiguration().getLayer(layerName);
-        if (layer == null) {
-            throw new ConfigurationException("layer " + layerName + " is not defined");
-        }
-
-        Path path = Paths.get(cache.getPath(), layer.getCacheFolder());
-        if (path == null) {
-            throw new ConfigurationException("unable to resolve path from cache and layer");
-        }
-        return path;
+        return getLayer(layerName).getCacheDirectory();
     }
 
     /**
@@ -162,29 +290,181 @@ public class ConfigurationBean {
      * @throws ConfigurationException if the configuration is not loaded or does
      * not contain any upstream server definition.
      */
-    public List<Server> getUpstreamServer(String layerName) throws ConfigurationException {
-        Layer layer = getConfiguration().getLayer(layerName);
+    public List<UpstreamServer> getUpstreamServer(String layerName) throws ConfigurationException {
+        return getLayer(layerName).getUpstream();
+    }
+
+    /**
+     * returns whether hedged requests are sent for the given layer.
+     *
+     * @param layerName the name of the layer - e.g. tiles.
+     * @return true, if a second upstream server is asked if the first one does
+     * not answer in time.
+     * @throws ConfigurationException if the configuration is not loaded or
+     * does not contain the layer.
+     */
+    public boolean isHedging(String layerName) throws ConfigurationException {
+        return getLayer(layerName).isHedging();
+    }
+
+    /**
+     * returns the prefetch settings of the given layer.
+     *
+     * @param layerName the name of the layer - e.g. tiles.
+     * @return the prefetch settings or null, if prefetching is disabled for
+     * the layer.
+     * @throws ConfigurationException if the configuration is not loaded or
+     * does not contain the layer.
+     */
+    public Prefetch getPrefetch(String layerName) throws ConfigurationException {
+        return getLayer(layerName).getPrefetch();
+    }
+
+    /**
+     * returns the maximum size of the given layer.
+     *
+     * @param layerName the name of the layer - e.g. tiles.
+     * @return the maximum size in bytes, 0 if the size is not limited.
+     * @throws ConfigurationException if the configuration is not loaded or
+     * does not contain the layer.
+     */
+    public long getMaxLayerSize(String layerName) throws ConfigurationException {
+        return getLayer(layerName).getMaxSize();
+    }
+
+    private LayerSnapshot getLayer(String layerName) throws ConfigurationException {
+        LayerSnapshot layer = getSnapshot().getLayer(layerName);
         if (layer == null) {
             throw new ConfigurationException("layer " + layerName + " is not defined");
         }
-        return layer.getUpstream();
+        return layer;
     }
 
     public int getRetentionTime() throws ConfigurationException {
-        Cache cache = getConfiguration().getCache();
-        if (cache == null) {
-            throw new ConfigurationException("no cache defined");
-        }
-        Integer retentionTime = cache.getRetentionTime();
-        if (retentionTime == null) {
-            throw new ConfigurationException("retentionTime is not defined");
-        } else {
-            return retentionTime;
-        }
+        return getSnapshot().getRetentionTime();
+    }
+
+    /**
+     * returns the number of days after the retention time an outdated tile is
+     * served while it is refreshed in the background.
+     *
+     * @return the stale while revalidate window in days, 0 if disabled.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public int getStaleWhileRevalidate() throws ConfigurationException {
+        return getSnapshot().getStaleWhileRevalidate();
+    }
+
+    /**
+     * returns the number of days after the retention time an outdated tile is
+     * served if the upstream server is not available.
+     *
+     * @return the stale if error window in days, 0 if disabled.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public int getStaleIfError() throws ConfigurationException {
+        return getSnapshot().getStaleIfError();
+    }
+
+    /**
+     * returns the number of seconds a tile reported as missing by the
+     * upstream server is not requested again.
+     *
+     * @return the time to live of missing tiles in seconds, 0 if disabled.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public int getMissingTileTtl() throws ConfigurationException {
+        return getSnapshot().getMissingTileTtl();
+    }
+
+    /**
+     * returns how the tiles of the cache are stored.
+     *
+     * @return the types of the cache stores, the store to consult first
+     * comes first. Defaults to disk.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public List<CacheType> getCacheTypes() throws ConfigurationException {
+        return getSnapshot().getCacheTypes();
+    }
+
+    /**
+     * returns the configuration of the memory cache.
+
+     *
+     * @return the memory cache configuration or null, if no memory cache is
+     * configured.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public MemoryCache getMemoryCache() throws ConfigurationException {
+        return getSnapshot().getMemoryCache();
+    }
+
+    /**
+     * returns the policy whether tiles written to disk are synced to the
+     * storage device.
+     *
+     * @return the sync policy, defaults to none.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public SyncPolicy getSyncPolicy() throws ConfigurationException {
+        return getSnapshot().getSyncPolicy();
+    }
+
+    /**
+     * returns the maximum size of all layers of the cache.
+     *
+     * @return the maximum size in bytes, 0 if the size is not limited.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public long getMaxCacheSize() throws ConfigurationException {
+        return getSnapshot().getMaxCacheSize();
+    }
+
+    /**
+     * returns the highest zoom level whose tiles are never evicted to keep
+     * the cache below its maximum size.
+     *
+     * @return the protected zoom level, defaults to 6.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public int getProtectedZoom() throws ConfigurationException {
+        return getSnapshot().getProtectedZoom();
+    }
+
+    /**
+     * returns the settings of the background expiry of outdated tiles.
+     *
+     * @return the expiry settings or null, if the background expiry is
+     * disabled.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public Expiry getExpiry() throws ConfigurationException {
+        return getSnapshot().getExpiry();
+    }
+
+    /**
+     * returns the ring of the peers sharing their tiles.
+     *
+     * @return the ring or null, if this instance works on its own.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public PeerRing getPeerRing() throws ConfigurationException {
+        return getSnapshot().getPeerRing();
+    }
+
+    /**
+     * returns the settings of the seed jobs.
+     *
+     * @return the settings or null, if seeding is disabled.
+     * @throws ConfigurationException if the configuration is not loaded.
+     */
+    public Seed getSeed() throws ConfigurationException {
+        return getSnapshot().getSeed();
     }
 
     public List<String> getAllLayers() throws ConfigurationException {
-        return getConfiguration().getAllLayers();
+        return getSnapshot().getAllLayers();
     }
 
     public String getVersion() {
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.cluster.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.Cluster;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.PeerRing;
+import de.muehlencord.osmproxy.business.proxy.control.UpstreamHealth;
+import de.muehlencord.osmproxy.business.proxy.control.WTinyLfuCache;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches tiles owned by other peers of the cluster. Tiles fetched from a
+ * peer are not stored, but kept in a small hot cache in memory, so popular
+ * tiles do not need to be fetched for each request. Each peer has a circuit
+ * breaker, so peers which fail repeatedly are skipped for a while instead of
+ * delaying every request by the timeout.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class PeerClient implements Serializable {
+
+    private static final long serialVersionUID = -6330412849187375112L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerClient.class);
+
+    /**
+     * header marking requests of other peers, they are answered by this
+     * instance and never forwarded again
+     */
+    public static final String PEER_HEADER = "X-OSMProxy-Peer";
+
+    /**
+     * maximum number of connections to each peer
+     */
+    private static final int MAX_CONNECTIONS_PER_PEER = 20;
+
+    /**
+     * average size of an OpenStreetMap tile, used to size the frequency sketch
+     */
+    private static final int AVERAGE_TILE_SIZE = 16 * 1024;
+
+    /**
+     * number of threads handling fetched tiles
+     */
+    private static final int CALLBACK_THREADS = 4;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    private transient CloseableHttpAsyncClient httpClient;
+
+    /**
+     * handles fetched tiles, so neither the I/O threads of the client nor the
+     * common pool are blocked if a tile needs to be read from the local store
+     */
+    private transient ExecutorService callbackExecutor;
+
+    /**
+     * the hot cache - replaced if its configured size changes
+     */
+    private transient volatile HotCache hotCache;
+
+    /**
+     * the health of the peers by url
+     */
+    private final transient Map<String, UpstreamHealth> peerHealth = new ConcurrentHashMap<>();
+
+    /**
+     * the connect timeout in seconds of the last fetch, used for new
+     * connections
+     */
+    private transient volatile int connectTimeout = new Cluster().getTimeout();
+
+    private final transient LongAdder fetchedTiles = new LongAdder();
+    private final transient LongAdder missingTiles = new LongAdder();
+    private final transient LongAdder failedFetches = new LongAdder();
+    private final transient LongAdder hotCacheHits = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setMaxConnPerRoute(MAX_CONNECTIONS_PER_PEER)
+                        .setMaxConnTotal(4 * MAX_CONNECTIONS_PER_PEER)
+                        // resolved per connection, so a changed timeout is used without replacing the client
+                        .setConnectionConfigResolver(route -> ConnectionConfig.custom()
+                                .setConnectTimeout(connectTimeout, TimeUnit.SECONDS)
+                                .build())
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(60))
+                .build();
+        httpClient.start();
+        AtomicInteger threadCount = new AtomicInteger();
+        callbackExecutor = Executors.newFixedThreadPool(CALLBACK_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-peer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        httpClient.close(CloseMode.GRACEFUL);
+        callbackExecutor.shutdown();
+        hotCache = null;
+    }
+
+    /**
+     * returns the executor to handle fetched tiles with, e.g. to read the
+     * tile from the local store if the owner cannot be reached.
+     *
+     * @return the executor.
+     */
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * returns the ring of the cluster.
+     *
+     * @return the ring or null, if this instance works on its own.
+     */
+    public PeerRing getPeerRing() {
+        try {
+            return configurationBean.getPeerRing();
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * checks whether tiles can be fetched from the given peer. Peers are
+     * skipped for a while after repeated failures.
+     *
+     * @param owner the url of the peer.
+     * @return true, if the peer is not skipped.
+     */
+    public boolean isAvailable(String owner) {
+        return getHealth(owner).isAvailable(System.currentTimeMillis());
+    }
+
+    /**
+     * returns a tile fetched from its owner before.
+     *
+     * @param tileKey the tile to search for.
+     * @return the tile or null, if it is not in the hot cache.
+     */
+    public CachedTile getHotTile(TileKey tileKey) {
+        HotCache currentHotCache = hotCache;
+        CachedTile tile = currentHotCache == null ? null : currentHotCache.cache.get(tileKey);
+        if (tile != null) {
+            hotCacheHits.increment();
+        }
+        return tile;
+    }
+
+    /**
+     * removes the tile from the hot cache, e.g. because it is outdated.
+     *
+     * @param tileKey the tile to remove.
+     */
+    public void invalidate(TileKey tileKey) {
+        HotCache currentHotCache = hotCache;
+        if (currentHotCache != null) {
+            currentHotCache.cache.invalidate(tileKey);
+        }
+    }
+
+    /**
+     * fetches the tile from its owner. The owner answers from its cache or
+     * downloads the tile from the upstream server. The request is executed
+     * asynchronously, the calling thread is not blocked.
+     *
+     * @param peerRing the ring of the cluster.
+     * @param owner the url of the owner.
+     * @param tileKey the tile to fetch.
+     * @param userAgent the user agent of the client.
+     * @return a future completed with the tile, with null if the tile is not
+     * available upstream or with an IOException if the owner cannot deliver
+     * the tile or is skipped after repeated failures.
+     */
+    public CompletableFuture<CachedTile> fetch(PeerRing peerRing, String owner, TileKey tileKey, String userAgent) {
+        CompletableFuture<CachedTile> result = new CompletableFuture<>();
+        UpstreamHealth health = getHealth(owner);
+        UpstreamHealth.Permit permit = health.tryAcquire(System.currentTimeMillis());
+        if (!permit.isGranted()) {
+            result.completeExceptionally(new IOException("peer " + owner + " is skipped after repeated failures"));
+            return result;
+        }
+        Cluster cluster = peerRing.getCluster();
+        connectTimeout = cluster.getTimeout();
+        SimpleRequestBuilder requestBuilder = SimpleRequestBuilder.get(URI.create(owner + "/rest/" + tileKey))
+                .setHeader(HttpHeaders.USER_AGENT, userAgent)
+                .setHeader(PEER_HEADER, peerRing.getSelf())
+                .setRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(cluster.getTimeout(), TimeUnit.SECONDS)
+                        .setResponseTimeout(cluster.getTimeout(), TimeUnit.SECONDS)
+                        .build());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Fetching tile {} from peer {}", tileKey, owner);
+        }
+
+        long start = System.nanoTime();
+        httpClient.execute(requestBuilder.build(), new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                try {
+                    CachedTile tile = toTile(owner, tileKey, response, cluster);
+                    health.recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    result.complete(tile);
+                } catch (IOException ex) {
+                    failedFetches.increment();
+                    health.recordFailure(System.currentTimeMillis(), permit);
+                    result.completeExceptionally(ex);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                failedFetches.increment();
+                health.recordFailure(System.currentTimeMillis(), permit);
+                result.completeExceptionally(new IOException("cannot fetch tile " + tileKey + " from peer " + owner, ex));
+            }
+
+            @Override
+            public void cancelled() {
+                failedFetches.increment();
+                health.release(permit);
+                result.completeExceptionally(new IOException("fetching tile " + tileKey + " from peer " + owner + " cancelled"));
+            }
+        });
+        return result;
+    }
+
+    private CachedTile toTile(String owner, TileKey tileKey, SimpleHttpResponse response, Cluster cluster) throws IOException {
+        int status = response.getCode();
+        if (status == HttpStatus.SC_NOT_FOUND) {
+            missingTiles.increment();
+            return null;
+        }
+        byte[] body = response.getBodyBytes();
+        if (status != HttpStatus.SC_OK || body == null || body.length == 0) {
+            throw new IOException("peer " + owner + " returned status " + status + " for tile " + tileKey);
+        }
+        fetchedTiles.increment();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+        buffer.put(body);
+        buffer.flip();
+        CachedTile tile = new CachedTile(buffer, getLastModified(response));
+        HotCache currentHotCache = getHotCache(cluster.getHotCacheSize());
+        if (currentHotCache != null) {
+            currentHotCache.cache.put(tileKey, tile);
+        }
+        return tile;
+    }
+
+    private UpstreamHealth getHealth(String owner) {
+        return peerHealth.computeIfAbsent(owner, UpstreamHealth::new);
+    }
+
+    /**
+     * the tile is as old as the copy of the owner, so all peers expire it at
+     * the same time
+     */
+    private long getLastModified(SimpleHttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        Instant lastModified = header == null ? null : DateUtils.parseStandardDate(header.getValue());
+        return lastModified == null ? System.currentTimeMillis() : lastModified.toEpochMilli();
+    }
+
+    /**
+     * returns the hot cache, it is created on first use and replaced if the
+     * configured size changes.
+     *
+     * @param sizeInMegabytes the configured size.
+     * @return the hot cache or null, if the hot cache is disabled.
+     */
+    private HotCache getHotCache(int sizeInMegabytes) {
+        HotCache currentHotCache = hotCache;
+        if (currentHotCache != null && currentHotCache.sizeInMegabytes == sizeInMegabytes) {
+            return currentHotCache;
+        }
+        synchronized (this) {
+            if (hotCache == null || hotCache.sizeInMegabytes != sizeInMegabytes) {
+                hotCache = sizeInMegabytes <= 0 ? null : new HotCache(sizeInMegabytes);
+                LOGGER.info("Peer hot cache size set to {} MB", sizeInMegabytes);
+            }
+            return hotCache;
+        }
+    }
+
+    public long getFetchedTiles() {
+        return fetchedTiles.sum();
+    }
+
+    public long getMissingTiles() {
+        return missingTiles.sum();
+    }
+
+    public long getFailedFetches() {
+        return failedFetches.sum();
+    }
+
+    public long getHotCacheHits() {
+        return hotCacheHits.sum();
+    }
+
+    public long getHotCacheSize() {
+        HotCache currentHotCache = hotCache;
+        return currentHotCache == null ? 0 : currentHotCache.cache.getWeight();
+    }
+
+    public Collection<UpstreamHealth> getAllPeerHealth() {
+        return Collections.unmodifiableCollection(peerHealth.values());
+    }
+
+    /**
+     * in memory cache of the tiles fetched from other peers
+     */
+    private static class HotCache {
+
+        private final int sizeInMegabytes;
+        private final WTinyLfuCache<TileKey, CachedTile> cache;
+
+        HotCache(int sizeInMegabytes) {
+            this.sizeInMegabytes = sizeInMegabytes;
+            long maxSize = sizeInMegabytes * 1024L * 1024L;
+            this.cache = new WTinyLfuCache<>(maxSize, (int) Math.min(Integer.MAX_VALUE, maxSize / AVERAGE_TILE_SIZE), CachedTile::getSize);
+        }
+    }
+}
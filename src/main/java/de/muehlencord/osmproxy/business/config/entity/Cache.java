@@ -34,6 +34,52 @@ public class Cache {
     @Expose
     private Integer retentionTime;
 
+    /**
+     * days after the retention time an outdated tile is still served while it
+     * is refreshed in the background
+     */
+    @Expose
+    private Integer staleWhileRevalidate;
+
+    /**
+     * days after the retention time an outdated tile is still served if it
+     * cannot be refreshed from the upstream server
+     */
+    @Expose
+    private Integer staleIfError;
+
+    /**
+     * seconds a tile reported as missing by the upstream server is not
+     * requested again
+     */
+    @Expose
+    private Integer missingTileTtl;
+
+    @Expose
+    private MemoryCache memory;
+
+    @Expose
+    private SyncPolicy sync;
+
+    /**
+     * maximum size of all layers in MB, the least valuable tiles are evicted
+     * if it is exceeded
+     */
+    @Expose
+    private Integer maxSize;
+
+    /**
+     * tiles up to this zoom level are never evicted
+     */
+    @Expose
+    private Integer protectedZoom;
+
+    /**
+     * background expiry of outdated tiles, null if disabled
+     */
+    @Expose
+    private Expiry expiry;
+
     public Cache() {
         this.name = null;
         this.path = null;
@@ -88,12 +134,88 @@ public class Cache {
         this.retentionTime = retentionTime;
     }
 
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate == null ? 0 : staleWhileRevalidate;
+    }
+
+    public Cache setStaleWhileRevalidate(Integer staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        return this;
+    }
+
+    public int getStaleIfError() {
+        return staleIfError == null ? 0 : staleIfError;
+    }
+
+    public Cache setStaleIfError(Integer staleIfError) {
+        this.staleIfError = staleIfError;
+        return this;
+    }
+
+    public int getMissingTileTtl() {
+        return missingTileTtl == null ? 300 : missingTileTtl;
+    }
+
+    public Cache setMissingTileTtl(Integer missingTileTtl) {
+        this.missingTileTtl = missingTileTtl;
+        return this;
+    }
+
+    public MemoryCache getMemory() {
+        return memory;
+    }
+
+    public Cache setMemory(MemoryCache memory) {
+        this.memory = memory;
+        return this;
+    }
+
+    public SyncPolicy getSync() {
+        if (sync == null) {
+            return SyncPolicy.NONE;
+        }
+        return sync;
+    }
+
+    public Cache setSync(SyncPolicy sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    public int getMaxSize() {
+        return maxSize == null ? 0 : maxSize;
+    }
+
+    public Cache setMaxSize(Integer maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public int getProtectedZoom() {
+        return protectedZoom == null ? 6 : protectedZoom;
+    }
+
+    public Cache setProtectedZoom(Integer protectedZoom) {
+        this.protectedZoom = protectedZoom;
+        return this;
+    }
+
+    public Expiry getExpiry() {
+        return expiry;
+    }
+
+    public Cache setExpiry(Expiry expiry) {
+        this.expiry = expiry;
+        return this;
+    }
+
     /* equals / hashCode */
     @Override
     public int hashCode() {
         int hash = 7;
         hash = 79 * hash + Objects.hashCode(this.name);
         hash = 79 * hash + Objects.hashCode(this.path);
+        hash = 79 * hash + Objects.hashCode(this.memory);
         return hash;
     }
 
@@ -115,7 +237,7 @@ public class Cache {
         if (!Objects.equals(this.path, other.path)) {
             return false;
         }
-        return true;
+        return Objects.equals(this.memory, other.memory);
     }
 
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import java.util.Locale;
+
+/**
+ * Defines how the tiles of the cache are stored, selected by the name of the
+ * cache. Several types can be layered by joining their names with "+", e.g.
+ * "memory+disk".
+ *
+ * @author joern.muehlencord
+ */
+public enum CacheType {
+
+    /**
+     * one file per tile in a z/x/y directory structure
+     */
+    DISK("disk"),
+    /**
+     * up to 128x128 tiles of a zoom level packed into one bundle file, read
+     * through memory mapped files
+     */
+    BUNDLE("bundle"),
+    /**
+     * in memory only, the tiles are lost on restart
+     */
+    MEMORY("memory");
+
+    private final String name;
+
+    private CacheType(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * returns the type of the cache with the given name.
+     *
+     * @param name the name of the cache, null for the default disk cache.
+     * @return the type of the cache.
+     * @throws ConfigurationException if the name does not define a known
+     * cache type.
+     */
+    public static CacheType of(String name) throws ConfigurationException {
+        if (name == null) {
+            return DISK;
+        }
+        for (CacheType type : values()) {
+            if (type.name.equals(name.toLowerCase(Locale.US))) {
+                return type;
+            }
+        }
+        throw new ConfigurationException("cache " + name + " is not supported");
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.Expose;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Configuration of several proxy instances sharing their tiles. Each tile is
+ * owned by one of the peers, the other peers fetch it from the owner instead
+ * of downloading and storing it themselves.
+ *
+ * @author joern.muehlencord
+ */
+public class Cluster {
+
+    /**
+     * the url of this instance as listed in the peers - e.g.
+     * http://node1:8080/osmproxy
+     */
+    @Expose
+    private String self;
+
+    /**
+     * the urls of all instances, including this one
+     */
+    @Expose
+    private List<String> peers;
+
+    /**
+     * maximum size in MB of the tiles fetched from other peers kept in memory
+     */
+    @Expose
+    private Integer hotCacheSize;
+
+    /**
+     * seconds to wait for the answer of a peer before the tile is downloaded
+     * from the upstream server
+     */
+    @Expose
+    private Integer timeout;
+
+    /* *** getter / setter *** */
+    public String getSelf() {
+        return self;
+    }
+
+    public Cluster setSelf(String self) {
+        this.self = self;
+        return this;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public Cluster setPeers(List<String> peers) {
+        this.peers = peers;
+        return this;
+    }
+
+    public Cluster addPeer(String peer) {
+        if (this.peers == null) {
+            this.peers = new ArrayList<>();
+        }
+        this.peers.add(peer);
+        return this;
+    }
+
+    public int getHotCacheSize() {
+        return hotCacheSize == null ? 64 : hotCacheSize;
+    }
+
+    public Cluster setHotCacheSize(Integer hotCacheSize) {
+        this.hotCacheSize = hotCacheSize;
+        return this;
+    }
+
+    public int getTimeout() {
+        return timeout == null ? 5 : timeout;
+    }
+
+    public Cluster setTimeout(Integer timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 29 * hash + Objects.hashCode(this.self);
+        hash = 29 * hash + Objects.hashCode(this.peers);
+        hash = 29 * hash + getHotCacheSize();
+        hash = 29 * hash + getTimeout();
+        return hash;
+    }
+
+    /**
+     * settings are equal if the effective values are equal, so a missing
+     * value equals its default
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Cluster other = (Cluster) obj;
+        return Objects.equals(this.self, other.self)
+                && Objects.equals(this.peers, other.peers)
+                && getHotCacheSize() == other.getHotCacheSize()
+                && getTimeout() == other.getTimeout();
+    }
+}
@@ -34,6 +34,18 @@ public class Configuration {
     @Expose
     private Map<String, Layer> layerMap;
 
+    /**
+     * the peers sharing their tiles, null if this instance works on its own
+     */
+    @Expose
+    private Cluster cluster;
+
+    /**
+     * the settings of the seed jobs, null if seeding is disabled
+     */
+    @Expose
+    private Seed seed;
+
     /* *** getter / setter *** */
 
 
@@ -45,7 +57,7 @@ public class Configuration {
     }
 
     public Layer getLayer(String layerName) {
-        if (layerMap.containsKey(layerName)) {
+        if ((layerMap != null) && layerMap.containsKey(layerName)) {
             return layerMap.get(layerName);
         } else {
             return null;
@@ -54,7 +66,9 @@ public class Configuration {
     
     public List<String> getAllLayers() {
         List<String> resultList = new ArrayList<>();
-        resultList.addAll (layerMap.keySet());        
+        if (layerMap != null) {
+            resultList.addAll (layerMap.keySet());
+        }        
         return resultList;        
     }
 
@@ -65,6 +79,22 @@ public class Configuration {
     public void setCache(Cache cache) {
         this.cache = cache;
     }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    public Seed getSeed() {
+        return seed;
+    }
+
+    public void setSeed(Seed seed) {
+        this.seed = seed;
+    }
     
     
     /* equals / hashCode */
@@ -74,6 +104,8 @@ public class Configuration {
         int hash = 5;
         hash = 23 * hash + Objects.hashCode(this.cache);
         hash = 23 * hash + Objects.hashCode(this.layerMap);
+        hash = 23 * hash + Objects.hashCode(this.cluster);
+        hash = 23 * hash + Objects.hashCode(this.seed);
         return hash;
     }
 
@@ -92,7 +124,13 @@ public class Configuration {
         if (!Objects.equals(this.cache, other.cache)) {
             return false;
         }
-        return Objects.equals(this.layerMap, other.layerMap);
+        if (!Objects.equals(this.layerMap, other.layerMap)) {
+            return false;
+        }
+        if (!Objects.equals(this.cluster, other.cluster)) {
+            return false;
+        }
+        return Objects.equals(this.seed, other.seed);
     }
 
 
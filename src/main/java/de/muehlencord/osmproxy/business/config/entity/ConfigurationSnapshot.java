@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, validated view of a {@link Configuration}. All values needed to
+ * serve a tile are resolved once when the configuration is loaded - including
+ * the compiled upstream url templates - so they can be read by all request
+ * threads without locking.
+ *
+ * @author joern.muehlencord
+ */
+public final class ConfigurationSnapshot {
+
+    private final int retentionTime;
+    private final int staleWhileRevalidate;
+    private final int staleIfError;
+    private final int missingTileTtl;
+    private final List<CacheType> cacheTypes;
+    private final MemoryCache memoryCache;
+    private final SyncPolicy syncPolicy;
+    private final long maxCacheSize;
+    private final int protectedZoom;
+    private final Expiry expiry;
+    private final PeerRing peerRing;
+    private final Seed seed;
+    private final Map<String, LayerSnapshot> layers;
+
+    private ConfigurationSnapshot(Cache cache, List<CacheType> cacheTypes, PeerRing peerRing, Seed seed, Map<String, LayerSnapshot> layers) {
+        this.retentionTime = cache.getRetentionTime();
+        this.staleWhileRevalidate = cache.getStaleWhileRevalidate();
+        this.staleIfError = cache.getStaleIfError();
+        this.missingTileTtl = cache.getMissingTileTtl();
+        this.cacheTypes = Collections.unmodifiableList(cacheTypes);
+        this.memoryCache = cache.getMemory();
+        this.syncPolicy = cache.getSync();
+        this.maxCacheSize = cache.getMaxSize() * 1024L * 1024L;
+        this.protectedZoom = cache.getProtectedZoom();
+        this.expiry = cache.getExpiry();
+        this.peerRing = peerRing;
+        this.seed = seed;
+        this.layers = Collections.unmodifiableMap(layers);
+    }
+
+    /**
+     * validates the given configuration and creates a snapshot of it.
+     *
+     * @param configuration the configuration to create the snapshot of.
+     * @return the snapshot.
+     * @throws ConfigurationException if the configuration is not valid.
+     */
+    public static ConfigurationSnapshot of(Configuration configuration) throws ConfigurationException {
+        if (configuration == null) {
+            throw new ConfigurationException("no configuration defined");
+        }
+        Cache cache = configuration.getCache();
+        if (cache == null) {
+            throw new ConfigurationException("no cache defined");
+        }
+        if (cache.getRetentionTime() == null) {
+            throw new ConfigurationException("retentionTime is not defined");
+        }
+        List<CacheType> cacheTypes = new ArrayList<>();
+        for (String name : (cache.getName() == null ? CacheType.DISK.getName() : cache.getName()).split("\\+")) {
+            CacheType cacheType = CacheType.of(name.trim());
+            if (cacheTypes.contains(cacheType)) {
+                throw new ConfigurationException("cache " + cacheType.getName() + " is used twice");
+            }
+            cacheTypes.add(cacheType);
+        }
+        if (cache.getMaxSize() < 0) {
+            throw new ConfigurationException("maxSize of cache must not be negative");
+        }
+        Expiry expiry = cache.getExpiry();
+        if (expiry != null && (expiry.getInterval() <= 0 || expiry.getThreads() <= 0 || expiry.getTilesPerSecond() <= 0)) {
+            throw new ConfigurationException("expiry of cache is not valid");
+        }
+
+        PeerRing peerRing = configuration.getCluster() == null ? null : PeerRing.of(configuration.getCluster());
+        Seed seed = configuration.getSeed();
+        if (seed != null && seed.getMaxTiles() <= 0) {
+            throw new ConfigurationException("maxTiles of seed must be positive");
+        }
+
+        Map<String, LayerSnapshot> layers = new HashMap<>();
+        for (String layerName : configuration.getAllLayers()) {
+            Layer layer = configuration.getLayer(layerName);
+            if (layer.getCacheFolder() == null) {
+                throw new ConfigurationException("cacheFolder of layer " + layerName + " is not defined");
+            }
+            Path cacheDirectory = Paths.get(cache.getPath(), layer.getCacheFolder());
+            List<UpstreamServer> upstream = new ArrayList<>();
+            if (layer.getUpstream() != null) {
+                for (Server server : layer.getUpstream()) {
+                    upstream.add(UpstreamServer.of(server));
+                }
+            }
+            Prefetch prefetch = layer.getPrefetch();
+            if (prefetch != null && (prefetch.getRing() < 0 || prefetch.getMaxZoom() < 0)) {
+                throw new ConfigurationException("prefetch of layer " + layerName + " is not valid");
+            }
+            if (layer.getMaxSize() < 0) {
+                throw new ConfigurationException("maxSize of layer " + layerName + " must not be negative");
+            }
+            layers.put(layerName, new LayerSnapshot(layerName, cacheDirectory, upstream, layer.isHedging(), prefetch, layer.getMaxSize() * 1024L * 1024L));
+        }
+        return new ConfigurationSnapshot(cache, cacheTypes, peerRing, seed, layers);
+    }
+
+    /**
+     * returns the layer with the given name.
+     *
+     * @param layerName the name of the layer - e.g. tiles.
+     * @return the layer or null, if the layer is not defined.
+     */
+    public LayerSnapshot getLayer(String layerName) {
+        return layers.get(layerName);
+    }
+
+    public List<String> getAllLayers() {
+        return new ArrayList<>(layers.keySet());
+    }
+
+    public int getRetentionTime() {
+        return retentionTime;
+    }
+
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public int getStaleIfError() {
+        return staleIfError;
+    }
+
+    public int getMissingTileTtl() {
+        return missingTileTtl;
+    }
+
+    /**
+     * returns the stores of the cache, the store to consult first comes
+     * first.
+     *
+     * @return the types of the cache stores.
+     */
+    public List<CacheType> getCacheTypes() {
+        return cacheTypes;
+    }
+
+    public MemoryCache getMemoryCache() {
+
+        return memoryCache;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * @return the maximum size of all layers in bytes, 0 if not limited.
+     */
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public int getProtectedZoom() {
+        return protectedZoom;
+    }
+
+    /**
+     * @return the expiry settings or null, if the background expiry is
+     * disabled.
+     */
+    public Expiry getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * @return the ring of the peers sharing their tiles or null, if this
+     * instance works on its own.
+     */
+    public PeerRing getPeerRing() {
+        return peerRing;
+    }
+
+    /**
+     * @return the settings of the seed jobs or null, if seeding is disabled.
+     */
+    public Seed getSeed() {
+        return seed;
+    }
+}
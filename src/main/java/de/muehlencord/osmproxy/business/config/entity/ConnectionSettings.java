@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.Expose;
+import java.util.Objects;
+
+/**
+ * Configuration of the connection pool and timeouts used to connect to an
+ * upstream server. All values are optional, missing values fall back to the
+ * defaults.
+ *
+ * @author joern.muehlencord
+ */
+public class ConnectionSettings {
+
+    /**
+     * maximum number of connections to the server over all hosts
+     */
+    @Expose
+    private Integer maxConnections;
+
+    /**
+     * maximum number of connections per host, the OpenStreetMap tile usage
+     * policy asks for 2 at most
+     */
+    @Expose
+    private Integer maxConnectionsPerRoute;
+
+    /**
+     * seconds to wait until a connection is established
+     */
+    @Expose
+    private Integer connectTimeout;
+
+    /**
+     * seconds to wait for the response of the server
+     */
+    @Expose
+    private Integer responseTimeout;
+
+    /**
+     * seconds to wait for a free connection of the pool
+     */
+    @Expose
+    private Integer connectionRequestTimeout;
+
+    /**
+     * seconds an idle connection is kept open if the server does not define
+     * a keep alive itself
+     */
+    @Expose
+    private Integer keepAlive;
+
+    /**
+     * true to use HTTP/2 for https servers supporting it
+     */
+    @Expose
+    private Boolean http2;
+
+    /**
+     * maximum size of a tile in KB, larger responses are aborted
+     */
+    @Expose
+    private Integer maxTileSize;
+
+    /* *** getter / setter *** */
+    public int getMaxConnections() {
+        return maxConnections == null ? 20 : maxConnections;
+    }
+
+    public ConnectionSettings setMaxConnections(Integer maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute == null ? 2 : maxConnectionsPerRoute;
+    }
+
+    public ConnectionSettings setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout == null ? 10 : connectTimeout;
+    }
+
+    public ConnectionSettings setConnectTimeout(Integer connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public int getResponseTimeout() {
+        return responseTimeout == null ? 20 : responseTimeout;
+    }
+
+    public ConnectionSettings setResponseTimeout(Integer responseTimeout) {
+        this.responseTimeout = responseTimeout;
+        return this;
+    }
+
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout == null ? 10 : connectionRequestTimeout;
+    }
+
+    public ConnectionSettings setConnectionRequestTimeout(Integer connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+        return this;
+    }
+
+    public int getKeepAlive() {
+        return keepAlive == null ? 60 : keepAlive;
+    }
+
+    public ConnectionSettings setKeepAlive(Integer keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public boolean isHttp2() {
+        return http2 == null ? false : http2;
+    }
+
+    public ConnectionSettings setHttp2(Boolean http2) {
+        this.http2 = http2;
+        return this;
+    }
+
+    public int getMaxTileSize() {
+        return maxTileSize == null ? 1024 : maxTileSize;
+    }
+
+    public ConnectionSettings setMaxTileSize(Integer maxTileSize) {
+        this.maxTileSize = maxTileSize;
+        return this;
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 37 * hash + getMaxConnections();
+        hash = 37 * hash + getMaxConnectionsPerRoute();
+        hash = 37 * hash + getConnectTimeout();
+        hash = 37 * hash + getResponseTimeout();
+        hash = 37 * hash + getConnectionRequestTimeout();
+        hash = 37 * hash + getKeepAlive();
+        hash = 37 * hash + Boolean.hashCode(isHttp2());
+        hash = 37 * hash + getMaxTileSize();
+        return hash;
+    }
+
+    /**
+     * settings are equal if the effective values are equal, so a missing
+     * value equals its default
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final ConnectionSettings other = (ConnectionSettings) obj;
+        return getMaxConnections() == other.getMaxConnections()
+                && getMaxConnectionsPerRoute() == other.getMaxConnectionsPerRoute()
+                && getConnectTimeout() == other.getConnectTimeout()
+                && getResponseTimeout() == other.getResponseTimeout()
+                && getConnectionRequestTimeout() == other.getConnectionRequestTimeout()
+                && getKeepAlive() == other.getKeepAlive()
+                && isHttp2() == other.isHttp2()
+                && getMaxTileSize() == other.getMaxTileSize();
+    }
+
+    @Override
+    public String toString() {
+        return "maxConnections=" + getMaxConnections()
+                + ", maxConnectionsPerRoute=" + getMaxConnectionsPerRoute()
+                + ", http2=" + isHttp2();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * Configuration of the background expiry of outdated tiles. The cache is
+ * walked periodically, outdated tiles are revalidated or deleted there
+ * instead of on the request of a client. All values are optional, missing
+ * values fall back to the defaults.
+ *
+ * @author joern.muehlencord
+ */
+public class Expiry {
+
+    /**
+     * hours between the start of two walks through the cache
+     */
+    @Expose
+    private Integer interval;
+
+    /**
+     * number of zoom levels walked in parallel
+     */
+    @Expose
+    private Integer threads;
+
+    /**
+     * maximum number of tiles checked per second by all threads together
+     */
+    @Expose
+    private Integer tilesPerSecond;
+
+    /**
+     * true to revalidate outdated tiles with the upstream server
+     */
+    @Expose
+    private Boolean revalidate;
+
+    /**
+     * true to delete tiles which are outdated beyond the stale windows
+     */
+    @Expose
+    private Boolean delete;
+
+    /* *** getter / setter *** */
+    public int getInterval() {
+        return interval == null ? 24 : interval;
+    }
+
+    public Expiry setInterval(Integer interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads == null ? 2 : threads;
+    }
+
+    public Expiry setThreads(Integer threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public int getTilesPerSecond() {
+        return tilesPerSecond == null ? 1000 : tilesPerSecond;
+    }
+
+    public Expiry setTilesPerSecond(Integer tilesPerSecond) {
+        this.tilesPerSecond = tilesPerSecond;
+        return this;
+    }
+
+    public boolean isRevalidate() {
+        return revalidate == null ? false : revalidate;
+    }
+
+    public Expiry setRevalidate(Boolean revalidate) {
+        this.revalidate = revalidate;
+        return this;
+    }
+
+    public boolean isDelete() {
+        return delete == null ? false : delete;
+    }
+
+    public Expiry setDelete(Boolean delete) {
+        this.delete = delete;
+        return this;
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 41 * hash + getInterval();
+        hash = 41 * hash + getThreads();
+        hash = 41 * hash + getTilesPerSecond();
+        hash = 41 * hash + Boolean.hashCode(isRevalidate());
+        hash = 41 * hash + Boolean.hashCode(isDelete());
+        return hash;
+    }
+
+    /**
+     * settings are equal if the effective values are equal, so a missing
+     * value equals its default
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Expiry other = (Expiry) obj;
+        return getInterval() == other.getInterval()
+                && getThreads() == other.getThreads()
+                && getTilesPerSecond() == other.getTilesPerSecond()
+                && isRevalidate() == other.isRevalidate()
+                && isDelete() == other.isDelete();
+    }
+}
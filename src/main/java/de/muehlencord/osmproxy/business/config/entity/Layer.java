@@ -35,6 +35,26 @@ public class Layer {
     @Expose
     private List<Server> upstream;
 
+    /**
+     * true to send a second request to the next upstream server if the first
+     * one does not answer in time
+     */
+    @Expose
+    private Boolean hedging;
+
+    /**
+     * prefetching of the tiles around a missing tile, null if disabled
+     */
+    @Expose
+    private Prefetch prefetch;
+
+    /**
+     * maximum size of the layer in MB, the least valuable tiles are evicted
+     * if it is exceeded
+     */
+    @Expose
+    private Integer maxSize;
+
     public Layer(String name) {
         this.name = name;
     }
@@ -65,6 +85,33 @@ public class Layer {
         return this;
     }
 
+    public boolean isHedging() {
+        return hedging == null ? false : hedging;
+    }
+
+    public Layer setHedging(Boolean hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    public Prefetch getPrefetch() {
+        return prefetch;
+    }
+
+    public Layer setPrefetch(Prefetch prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    public int getMaxSize() {
+        return maxSize == null ? 0 : maxSize;
+    }
+
+    public Layer setMaxSize(Integer maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
     public String getCacheFolder() {
         return cacheFolder;
     }
@@ -80,6 +127,9 @@ public class Layer {
         hash = 67 * hash + Objects.hashCode(this.name);
         hash = 67 * hash + Objects.hashCode(this.cacheFolder);
         hash = 67 * hash + Objects.hashCode(this.upstream);
+        hash = 67 * hash + Objects.hashCode(this.hedging);
+        hash = 67 * hash + Objects.hashCode(this.prefetch);
+        hash = 67 * hash + getMaxSize();
         return hash;
     }
 
@@ -104,6 +154,15 @@ public class Layer {
         if (!Objects.equals(this.upstream, other.upstream)) {
             return false;
         }
+        if (!Objects.equals(this.hedging, other.hedging)) {
+            return false;
+        }
+        if (!Objects.equals(this.prefetch, other.prefetch)) {
+            return false;
+        }
+        if (getMaxSize() != other.getMaxSize()) {
+            return false;
+        }
         return true;
     }
 
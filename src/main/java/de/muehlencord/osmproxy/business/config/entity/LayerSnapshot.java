@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, pre-resolved configuration of a layer.
+ *
+ * @author joern.muehlencord
+ */
+public final class LayerSnapshot {
+
+    private final String name;
+    private final Path cacheDirectory;
+    private final List<UpstreamServer> upstream;
+    private final boolean hedging;
+    private final Prefetch prefetch;
+    private final long maxSize;
+
+    public LayerSnapshot(String name, Path cacheDirectory, List<UpstreamServer> upstream, boolean hedging, Prefetch prefetch, long maxSize) {
+        this.name = name;
+        this.cacheDirectory = cacheDirectory;
+        this.hedging = hedging;
+        this.prefetch = prefetch;
+        this.maxSize = maxSize;
+        this.upstream = upstream == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(upstream));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public List<UpstreamServer> getUpstream() {
+        return upstream;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    /**
+     * @return the prefetch settings or null, if prefetching is disabled.
+     */
+    public Prefetch getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @return the maximum size of the layer in bytes, 0 if not limited.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.Expose;
+import java.util.Objects;
+
+/**
+ * Configuration of the in memory tile cache which is consulted before the disk
+ * cache.
+ *
+ * @author joern.muehlencord
+ */
+public class MemoryCache {
+
+    /**
+     * maximum size of the cache in megabytes, 0 disables the memory cache
+     */
+    @Expose
+    private Integer maxSize;
+
+    /**
+     * tiles larger than this size in kilobytes are not kept in memory
+     */
+    @Expose
+    private Integer maxTileSize;
+
+    public MemoryCache() {
+        this.maxSize = 0;
+        this.maxTileSize = 256;
+    }
+
+    public MemoryCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.maxTileSize = 256;
+    }
+
+    /* *** getter / setter *** */
+    public Integer getMaxSize() {
+        return maxSize;
+    }
+
+    public MemoryCache setMaxSize(Integer maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public Integer getMaxTileSize() {
+        return maxTileSize;
+    }
+
+    public MemoryCache setMaxTileSize(Integer maxTileSize) {
+        this.maxTileSize = maxTileSize;
+        return this;
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 41 * hash + Objects.hashCode(this.maxSize);
+        hash = 41 * hash + Objects.hashCode(this.maxTileSize);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final MemoryCache other = (MemoryCache) obj;
+        if (!Objects.equals(this.maxSize, other.maxSize)) {
+            return false;
+        }
+        return Objects.equals(this.maxTileSize, other.maxTileSize);
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Consistent hash ring of the peers of a {@link Cluster}. Each peer is placed
+ * on the ring several times, a tile is owned by the next peer on the ring
+ * after the hash of the tile. All peers compute the same owner without
+ * talking to each other, and adding or removing a peer moves only the tiles
+ * of that peer.
+ *
+ * @author joern.muehlencord
+ */
+public final class PeerRing {
+
+    /**
+     * number of places of each peer on the ring, spreads the tiles evenly
+     */
+    static final int VIRTUAL_NODES = 128;
+
+    private final Cluster cluster;
+    private final String self;
+    private final List<String> peers;
+    private final long[] positions;
+    private final String[] owners;
+
+    private PeerRing(Cluster cluster, String self, List<String> peers) {
+        this.cluster = cluster;
+        this.self = self;
+        this.peers = Collections.unmodifiableList(peers);
+
+        long[] hashes = new long[peers.size() * VIRTUAL_NODES];
+        for (int i = 0; i < peers.size(); i++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                hashes[i * VIRTUAL_NODES + node] = hash(peers.get(i) + "#" + node);
+            }
+        }
+        long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        this.positions = sorted;
+        this.owners = new String[sorted.length];
+        for (int i = 0; i < hashes.length; i++) {
+            owners[Arrays.binarySearch(sorted, hashes[i])] = peers.get(i / VIRTUAL_NODES);
+        }
+    }
+
+    /**
+     * validates the given cluster configuration and creates its ring.
+     *
+     * @param cluster the cluster configuration.
+     * @return the ring.
+     * @throws ConfigurationException if no peers or no valid url of this
+     * instance are defined.
+     */
+    public static PeerRing of(Cluster cluster) throws ConfigurationException {
+        if (cluster.getPeers() == null || cluster.getPeers().isEmpty()) {
+            throw new ConfigurationException("no peers defined for cluster");
+        }
+        if (cluster.getSelf() == null) {
+            throw new ConfigurationException("self is not defined for cluster");
+        }
+        List<String> peers = new ArrayList<>();
+        for (String peer : cluster.getPeers()) {
+            String normalizedPeer = normalize(peer);
+            if (peers.contains(normalizedPeer)) {
+                throw new ConfigurationException("peer " + peer + " is defined twice");
+            }
+            peers.add(normalizedPeer);
+        }
+        return new PeerRing(cluster, normalize(cluster.getSelf()), peers);
+    }
+
+    private static String normalize(String url) throws ConfigurationException {
+        String lowerCaseUrl = url == null ? "" : url.toLowerCase(Locale.US);
+        if (!lowerCaseUrl.startsWith("http://") && !lowerCaseUrl.startsWith("https://")) {
+            throw new ConfigurationException("peer url " + url + " is not a http(s) url");
+        }
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * returns the peer owning the given tile.
+     *
+     * @param tileName the name of the tile - layer/z/x/y.ending.
+     * @return the url of the owning peer.
+     */
+    public String getOwner(String tileName) {
+        int index = Arrays.binarySearch(positions, hash(tileName));
+        if (index < 0) {
+            // the next position on the ring, wrapping around at the end
+            index = -index - 1;
+        }
+        return owners[index == positions.length ? 0 : index];
+    }
+
+    /**
+     * checks whether the given peer is this instance.
+     *
+     * @param peer the url of the peer.
+     * @return true, if the peer is this instance.
+     */
+    public boolean isSelf(String peer) {
+        return self.equals(peer);
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * 64 bit FNV-1a hash with a final mix, so the ring does not depend on the
+     * JVM the peer runs on
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * Configuration of the prefetching of a layer. If a tile is not cached, the
+ * tiles a client is likely to ask for next are downloaded in the background.
+ * All values are optional, missing values fall back to the defaults.
+ *
+ * @author joern.muehlencord
+ */
+public class Prefetch {
+
+    /**
+     * number of rings of neighbour tiles around the requested tile, 0 to not
+     * prefetch neighbours
+     */
+    @Expose
+    private Integer ring;
+
+    /**
+     * true to prefetch the four tiles of the next zoom level
+     */
+    @Expose
+    private Boolean children;
+
+    /**
+     * tiles above this zoom level are not prefetched
+     */
+    @Expose
+    private Integer maxZoom;
+
+    /* *** getter / setter *** */
+    public int getRing() {
+        return ring == null ? 1 : ring;
+    }
+
+    public Prefetch setRing(Integer ring) {
+        this.ring = ring;
+        return this;
+    }
+
+    public boolean isChildren() {
+        return children == null ? true : children;
+    }
+
+    public Prefetch setChildren(Boolean children) {
+        this.children = children;
+        return this;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom == null ? 19 : maxZoom;
+    }
+
+    public Prefetch setMaxZoom(Integer maxZoom) {
+        this.maxZoom = maxZoom;
+        return this;
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 53 * hash + getRing();
+        hash = 53 * hash + Boolean.hashCode(isChildren());
+        hash = 53 * hash + getMaxZoom();
+        return hash;
+    }
+
+    /**
+     * settings are equal if the effective values are equal, so a missing
+     * value equals its default
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Prefetch other = (Prefetch) obj;
+        return getRing() == other.getRing()
+                && isChildren() == other.isChildren()
+                && getMaxZoom() == other.getMaxZoom();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * Limits the requests sent to an upstream server. Requests exceeding the
+ * limits wait in a bounded queue, if the queue is full the request is
+ * rejected. All values are optional, missing values fall back to the
+ * defaults.
+ *
+ * @author joern.muehlencord
+ */
+public class RateLimit {
+
+    /**
+     * maximum number of requests sent to the server in parallel, the
+     * OpenStreetMap tile usage policy asks for 2 at most
+     */
+    @Expose
+    private Integer maxConcurrentRequests;
+
+    /**
+     * maximum number of requests per second on average, 0 for no limit
+     */
+    @Expose
+    private Double requestsPerSecond;
+
+    /**
+     * number of requests which may be sent at once after an idle period,
+     * defaults to one second of requests
+     */
+    @Expose
+    private Integer burst;
+
+    /**
+     * maximum number of requests waiting for the limits, further requests
+     * are rejected
+     */
+    @Expose
+    private Integer maxQueuedRequests;
+
+    /* *** getter / setter *** */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests == null ? 2 : maxConcurrentRequests;
+    }
+
+    public RateLimit setMaxConcurrentRequests(Integer maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    public double getRequestsPerSecond() {
+        return requestsPerSecond == null ? 0 : requestsPerSecond;
+    }
+
+    public RateLimit setRequestsPerSecond(Double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+        return this;
+    }
+
+    public int getBurst() {
+        return burst == null ? Math.max(1, (int) Math.ceil(getRequestsPerSecond())) : burst;
+    }
+
+    public RateLimit setBurst(Integer burst) {
+        this.burst = burst;
+        return this;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests == null ? 100 : maxQueuedRequests;
+    }
+
+    public RateLimit setMaxQueuedRequests(Integer maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 41 * hash + getMaxConcurrentRequests();
+        hash = 41 * hash + Double.hashCode(getRequestsPerSecond());
+        hash = 41 * hash + getBurst();
+        hash = 41 * hash + getMaxQueuedRequests();
+        return hash;
+    }
+
+    /**
+     * limits are equal if the effective values are equal, so a missing value
+     * equals its default
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final RateLimit other = (RateLimit) obj;
+        return getMaxConcurrentRequests() == other.getMaxConcurrentRequests()
+                && Double.compare(getRequestsPerSecond(), other.getRequestsPerSecond()) == 0
+                && getBurst() == other.getBurst()
+                && getMaxQueuedRequests() == other.getMaxQueuedRequests();
+    }
+
+    @Override
+    public String toString() {
+        return "maxConcurrentRequests=" + getMaxConcurrentRequests()
+                + ", requestsPerSecond=" + getRequestsPerSecond()
+                + ", burst=" + getBurst()
+                + ", maxQueuedRequests=" + getMaxQueuedRequests();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.Expose;
+import java.util.Objects;
+
+/**
+ * Configuration of the seed jobs. Seeding downloads tiles in bulk from the
+ * upstream servers, so it is only available if this section is defined. All
+ * values are optional, missing values fall back to the defaults.
+ *
+ * @author joern.muehlencord
+ */
+public class Seed {
+
+    /**
+     * maximum number of tiles of a single job
+     */
+    @Expose
+    private Integer maxTiles;
+
+    /**
+     * the token a client has to send as bearer token to start or cancel a
+     * job, null to accept all clients
+     */
+    @Expose
+    private String token;
+
+    /* *** getter / setter *** */
+    public long getMaxTiles() {
+        return maxTiles == null ? 100000 : maxTiles;
+    }
+
+    public Seed setMaxTiles(Integer maxTiles) {
+        this.maxTiles = maxTiles;
+        return this;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public Seed setToken(String token) {
+        this.token = token;
+        return this;
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 67 * hash + Long.hashCode(getMaxTiles());
+        hash = 67 * hash + Objects.hashCode(this.token);
+        return hash;
+    }
+
+    /**
+     * settings are equal if the effective values are equal, so a missing
+     * value equals its default
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Seed other = (Seed) obj;
+        return getMaxTiles() == other.getMaxTiles()
+                && Objects.equals(this.token, other.token);
+    }
+}
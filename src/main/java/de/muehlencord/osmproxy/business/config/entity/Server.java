@@ -16,6 +16,7 @@
 package de.muehlencord.osmproxy.business.config.entity;
 
 import com.google.gson.annotations.Expose;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -33,6 +34,24 @@ public class Server {
     @Expose
     private String userAgent;
 
+    /**
+     * subdomains to replace {s} in the url with, defaults to a, b and c
+     */
+    @Expose
+    private List<String> subdomains;
+
+    /**
+     * connection pool and timeouts used for this server
+     */
+    @Expose
+    private ConnectionSettings connection;
+
+    /**
+     * rate and concurrency limit of the requests sent to this server
+     */
+    @Expose
+    private RateLimit rateLimit;
+
     public Server(String name, String url) {
         this.name = name;
         this.url = url;
@@ -64,12 +83,42 @@ public class Server {
         this.userAgent = userAgent;
     }
 
+    public List<String> getSubdomains() {
+        return subdomains;
+    }
+
+    public Server setSubdomains(List<String> subdomains) {
+        this.subdomains = subdomains;
+        return this;
+    }
+
+    public ConnectionSettings getConnection() {
+        return connection == null ? new ConnectionSettings() : connection;
+    }
+
+    public Server setConnection(ConnectionSettings connection) {
+        this.connection = connection;
+        return this;
+    }
+
+    public RateLimit getRateLimit() {
+        return rateLimit == null ? new RateLimit() : rateLimit;
+    }
+
+    public Server setRateLimit(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
         hash = 79 * hash + Objects.hashCode(this.name);
         hash = 79 * hash + Objects.hashCode(this.url);
         hash = 79 * hash + Objects.hashCode(this.userAgent);
+        hash = 79 * hash + Objects.hashCode(this.subdomains);
+        hash = 79 * hash + Objects.hashCode(this.connection);
+        hash = 79 * hash + Objects.hashCode(this.rateLimit);
         return hash;
     }
 
@@ -91,6 +140,15 @@ public class Server {
         if (!Objects.equals(this.url, other.url)) {
             return false;
         }
-        return Objects.equals(this.userAgent, other.userAgent);
+        if (!Objects.equals(this.userAgent, other.userAgent)) {
+            return false;
+        }
+        if (!Objects.equals(this.subdomains, other.subdomains)) {
+            return false;
+        }
+        if (!Objects.equals(this.connection, other.connection)) {
+            return false;
+        }
+        return Objects.equals(this.rateLimit, other.rateLimit);
     }                                   
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Defines whether tiles written to the disk cache are synced to the storage
+ * device before they become visible.
+ *
+ * @author joern.muehlencord
+ */
+public enum SyncPolicy {
+
+    /**
+     * leave it to the operating system when to write the data to disk
+     */
+    @SerializedName("none")
+    NONE,
+    /**
+     * sync the tile data before it is moved to its final location, so a tile
+     * is either complete or missing after a crash
+     */
+    @SerializedName("data")
+    DATA,
+    /**
+     * sync the tile data and the directory after the tile has been moved to
+     * its final location, so a stored tile survives a crash
+     */
+    @SerializedName("full")
+    FULL
+
+}
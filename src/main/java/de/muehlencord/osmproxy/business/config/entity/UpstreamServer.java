@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+/**
+ * An upstream server of a layer together with its compiled url template.
+ *
+ * @author joern.muehlencord
+ */
+public final class UpstreamServer {
+
+    private final Server server;
+    private final UrlTemplate urlTemplate;
+
+    public UpstreamServer(Server server, UrlTemplate urlTemplate) {
+        this.server = server;
+        this.urlTemplate = urlTemplate;
+    }
+
+    /**
+     * compiles the url template of the given server.
+     *
+     * @param server the server to compile.
+     * @return the compiled server.
+     * @throws ConfigurationException if the url or the rate limit of the
+     * server is not valid.
+     */
+    public static UpstreamServer of(Server server) throws ConfigurationException {
+        RateLimit rateLimit = server.getRateLimit();
+        if (rateLimit.getMaxConcurrentRequests() < 1 || rateLimit.getRequestsPerSecond() < 0
+                || rateLimit.getBurst() < 1 || rateLimit.getMaxQueuedRequests() < 0) {
+            throw new ConfigurationException("rateLimit of server " + server.getName() + " is not valid (" + rateLimit + ")");
+        }
+        return new UpstreamServer(server, UrlTemplate.compile(server.getUrl(), server.getSubdomains()));
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public String getName() {
+        return server.getName();
+    }
+
+    public UrlTemplate getUrlTemplate() {
+        return urlTemplate;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compiled upstream url template, e.g.
+ * <code>https://{s}.tile.openstreetmap.org/{z}/{x}/{y}.png</code>. The
+ * template is parsed once into literal and placeholder segments, so a tile
+ * url is rendered with a single pass.
+ *
+ * Supported placeholders are {layer}, {z}, {x}, {y}, {ending} and {s}. {s} is
+ * replaced by one of the subdomains of the server, chosen by the tile
+ * coordinates, so requests are spread across the upstream hosts while a tile
+ * is always requested from the same host.
+ *
+ * @author joern.muehlencord
+ */
+public final class UrlTemplate {
+
+    /**
+     * subdomains used for {s} if the server does not define its own
+     */
+    public static final List<String> DEFAULT_SUBDOMAINS = Arrays.asList("a", "b", "c");
+
+    private enum Placeholder {
+        LAYER, Z, X, Y, ENDING, SUBDOMAIN
+    }
+
+    private final String template;
+    /**
+     * either String for literal segments or Placeholder
+     */
+    private final Object[] segments;
+    private final String[] subdomains;
+    private final int lengthHint;
+
+    private UrlTemplate(String template, Object[] segments, String[] subdomains) {
+        this.template = template;
+        this.segments = segments;
+        this.subdomains = subdomains;
+        this.lengthHint = template.length() + 16;
+    }
+
+    /**
+     * compiles the given url template.
+     *
+     * @param template the template to compile.
+     * @param subdomains the subdomains to use for {s} - can be null to use
+     * a, b and c.
+     * @return the compiled template.
+     * @throws ConfigurationException if the template is not a http(s) url or
+     * contains unknown placeholders.
+     */
+    public static UrlTemplate compile(String template, List<String> subdomains) throws ConfigurationException {
+        if (template == null) {
+            throw new ConfigurationException("upstream server url is not defined");
+        }
+        String lowerCaseTemplate = template.toLowerCase(Locale.US);
+        if (!lowerCaseTemplate.startsWith("http://") && !lowerCaseTemplate.startsWith("https://")) {
+            throw new ConfigurationException("upstream server url " + template + " is not a http(s) url");
+        }
+
+        List<Object> segments = new ArrayList<>();
+        int pos = 0;
+        while (pos < template.length()) {
+            int start = template.indexOf('{', pos);
+            if (start < 0) {
+                segments.add(template.substring(pos));
+                break;
+            }
+            int end = template.indexOf('}', start);
+            if (end < 0) {
+                throw new ConfigurationException("unclosed placeholder in upstream server url " + template);
+            }
+            if (start > pos) {
+                segments.add(template.substring(pos, start));
+            }
+            segments.add(toPlaceholder(template, template.substring(start + 1, end)));
+            pos = end + 1;
+        }
+
+        List<String> effectiveSubdomains = (subdomains == null || subdomains.isEmpty()) ? DEFAULT_SUBDOMAINS : subdomains;
+        return new UrlTemplate(template, segments.toArray(), effectiveSubdomains.toArray(new String[0]));
+    }
+
+    private static Placeholder toPlaceholder(String template, String name) throws ConfigurationException {
+        switch (name) {
+            case "layer":
+                return Placeholder.LAYER;
+            case "z":
+                return Placeholder.Z;
+            case "x":
+                return Placeholder.X;
+            case "y":
+                return Placeholder.Y;
+            case "ending":
+                return Placeholder.ENDING;
+            case "s":
+                return Placeholder.SUBDOMAIN;
+            default:
+                throw new ConfigurationException("unknown placeholder {" + name + "} in upstream server url " + template);
+        }
+    }
+
+    /**
+     * renders the url of the given tile.
+     *
+     * @param layer the layer of the tile.
+     * @param z the zoom level of the tile.
+     * @param x the x coordinate of the tile.
+     * @param y the y coordinate of the tile.
+     * @param ending the file ending of the tile, e.g. png.
+     * @return the url of the tile.
+     */
+    public String render(String layer, long z, long x, long y, String ending) {
+        StringBuilder sb = new StringBuilder(lengthHint);
+        for (Object segment : segments) {
+            if (segment instanceof String) {
+                sb.append((String) segment);
+            } else {
+                switch ((Placeholder) segment) {
+                    case LAYER:
+                        sb.append(layer);
+                        break;
+                    case Z:
+                        sb.append(z);
+                        break;
+                    case X:
+                        sb.append(x);
+                        break;
+                    case Y:
+                        sb.append(y);
+                        break;
+                    case ENDING:
+                        sb.append(ending);
+                        break;
+                    case SUBDOMAIN:
+                        sb.append(subdomains[(int) Math.floorMod(x + y, (long) subdomains.length)]);
+                        break;
+                    default:
+                        throw new IllegalStateException("unsupported placeholder " + segment);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.boundary;
+
+import de.muehlencord.osmproxy.business.cluster.control.PeerClient;
+import de.muehlencord.osmproxy.business.metrics.control.LayerMetrics;
+import de.muehlencord.osmproxy.business.metrics.control.PrometheusWriter;
+import de.muehlencord.osmproxy.business.metrics.control.RequestMetrics;
+import de.muehlencord.osmproxy.business.metrics.control.UpstreamMetrics;
+import de.muehlencord.osmproxy.business.metrics.entity.RequestResult;
+import de.muehlencord.osmproxy.business.proxy.control.CacheEvictor;
+import de.muehlencord.osmproxy.business.proxy.control.ConnectionManager;
+import de.muehlencord.osmproxy.business.proxy.control.ExpirySweeper;
+import de.muehlencord.osmproxy.business.proxy.control.MissingTileCache;
+import de.muehlencord.osmproxy.business.proxy.control.Prefetcher;
+import de.muehlencord.osmproxy.business.proxy.control.TileDownloader;
+import de.muehlencord.osmproxy.business.proxy.control.TileMemoryCache;
+import de.muehlencord.osmproxy.business.proxy.control.UpstreamHealth;
+import de.muehlencord.osmproxy.business.proxy.control.UpstreamLimiter;
+import de.muehlencord.osmproxy.business.proxy.control.UpstreamSelector;
+import de.muehlencord.osmproxy.business.store.control.IndexedTileStore;
+import de.muehlencord.osmproxy.business.store.control.TieredTileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStoreManager;
+import de.muehlencord.osmproxy.business.store.control.WriteBehindTileStore;
+import java.io.Serializable;
+import java.util.Map;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import org.apache.hc.core5.pool.PoolStats;
+
+/**
+ * Reports the metrics of the proxy in the Prometheus text format, e.g. to be
+ * scraped by a Prometheus server from rest/metrics. All values are kept in
+ * memory and start at 0 on each deployment.
+ *
+ * @author joern.muehlencord
+ */
+@Stateless
+@javax.ws.rs.Path("metrics")
+public class MetricsResource implements Serializable {
+
+    private static final long serialVersionUID = -5197260471839154420L;
+
+    /**
+     * content type of the Prometheus text format
+     */
+    private static final String TEXT_FORMAT = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Inject
+    RequestMetrics requestMetrics;
+
+    @Inject
+    ConnectionManager connectionManager;
+
+    @Inject
+    UpstreamSelector upstreamSelector;
+
+    @Inject
+    TileStoreManager tileStoreManager;
+
+    @Inject
+    TileMemoryCache tileMemoryCache;
+
+    @Inject
+    MissingTileCache missingTileCache;
+
+    @Inject
+    TileDownloader tileDownloader;
+
+    @Inject
+    Prefetcher prefetcher;
+
+    @Inject
+    CacheEvictor cacheEvictor;
+
+    @Inject
+    ExpirySweeper expirySweeper;
+
+    @Inject
+    PeerClient peerClient;
+
+    @GET
+    @Produces(TEXT_FORMAT)
+    public Response getMetrics() {
+        PrometheusWriter writer = new PrometheusWriter();
+        writeRequestMetrics(writer);
+        writeUpstreamMetrics(writer);
+        writeStoreMetrics(writer);
+        writeCacheMetrics(writer);
+        writeClusterMetrics(writer);
+        return Response.ok(writer.toString(), TEXT_FORMAT).build();
+    }
+
+    private void writeRequestMetrics(PrometheusWriter writer) {
+        Map<String, LayerMetrics> layers = requestMetrics.getLayers();
+        layers.forEach((layer, metrics) -> {
+            for (RequestResult result : RequestResult.values()) {
+                writer.counter("osmproxy_tile_requests_total", "Tile requests by layer and result", metrics.getRequests(result),
+                        "layer", layer, "result", result.getLabel());
+            }
+        });
+        layers.forEach((layer, metrics) -> writer.histogram("osmproxy_tile_request_seconds", "Time to answer tile requests",
+                metrics.getLatency().getSnapshot(), "layer", layer));
+    }
+
+    private void writeUpstreamMetrics(PrometheusWriter writer) {
+        Map<String, UpstreamMetrics> upstreamMetrics = connectionManager.getUpstreamMetrics();
+        upstreamMetrics.forEach((server, metrics) -> writer.histogram("osmproxy_upstream_request_seconds", "Time to receive the response of upstream servers",
+                metrics.getLatency().getSnapshot(), "server", server));
+        upstreamMetrics.forEach((server, metrics) -> writer.counter("osmproxy_upstream_received_bytes_total", "Bytes received from upstream servers",
+                metrics.getReceivedBytes(), "server", server));
+        upstreamMetrics.forEach((server, metrics) -> metrics.getResponses().forEach((status, count)
+                -> writer.counter("osmproxy_upstream_responses_total", "Responses of upstream servers by status, none for failed requests",
+                        count, "server", server, "status", status)));
+
+        for (UpstreamHealth health : upstreamSelector.getAllHealth()) {
+            writer.gauge("osmproxy_upstream_available", "1 if the upstream server is asked, 0 while it is skipped after failures",
+                    health.getState() == UpstreamHealth.State.OPEN ? 0 : 1, "server", health.getName());
+        }
+        Map<String, UpstreamLimiter> limiters = connectionManager.getLimiters();
+        limiters.forEach((server, limiter) -> writer.gauge("osmproxy_upstream_running_requests", "Requests running within the rate limit",
+                limiter.getRunning(), "server", server));
+        limiters.forEach((server, limiter) -> writer.gauge("osmproxy_upstream_waiting_requests", "Requests waiting for the rate limit",
+                limiter.getWaiting(), "server", server));
+        limiters.forEach((server, limiter) -> writer.counter("osmproxy_upstream_rejected_requests_total", "Requests rejected as the rate limit queue was full",
+                limiter.getRejected(), "server", server));
+
+        Map<String, PoolStats> poolStats = connectionManager.getPoolStats();
+        poolStats.forEach((server, stats) -> {
+            writer.gauge("osmproxy_http_pool_connections", "Connections of the http pools by state", stats.getLeased(), "server", server, "state", "leased");
+            writer.gauge("osmproxy_http_pool_connections", "Connections of the http pools by state", stats.getAvailable(), "server", server, "state", "available");
+        });
+        poolStats.forEach((server, stats) -> writer.gauge("osmproxy_http_pool_pending_requests", "Requests waiting for a connection of the http pools",
+                stats.getPending(), "server", server));
+        poolStats.forEach((server, stats) -> writer.gauge("osmproxy_http_pool_max_connections", "Maximum connections of the http pools",
+                stats.getMax(), "server", server));
+    }
+
+    private void writeStoreMetrics(PrometheusWriter writer) {
+        Map<String, TileStore> stores = tileStoreManager.getStores();
+        stores.forEach((layer, store) -> {
+            if (store instanceof IndexedTileStore) {
+                writer.counter("osmproxy_index_skipped_lookups_total", "Lookups of missing tiles answered by the index",
+                        ((IndexedTileStore) store).getSkippedLookups(), "layer", layer);
+            }
+        });
+        stores.forEach((layer, store) -> {
+            WriteBehindTileStore writeBehindStore = getWriteBehindStore(store);
+            if (writeBehindStore != null) {
+                writer.gauge("osmproxy_pending_writes", "Downloaded tiles waiting to be written", writeBehindStore.getPendingTiles(), "layer", layer);
+            }
+        });
+        stores.forEach((layer, store) -> {
+            WriteBehindTileStore writeBehindStore = getWriteBehindStore(store);
+            if (writeBehindStore != null) {
+                writer.counter("osmproxy_failed_writes_total", "Downloaded tiles which could not be written", writeBehindStore.getFailedWrites(), "layer", layer);
+            }
+        });
+        stores.forEach((layer, store) -> {
+            IndexedTileStore indexedStore = getIndexedStore(store);
+            long size = indexedStore == null ? -1 : indexedStore.getSize();
+            // the size is not known while the index is built
+            if (size >= 0) {
+                writer.gauge("osmproxy_cache_size_bytes", "Size of the tiles stored per layer, as tracked by the tile index", size, "layer", layer);
+            }
+        });
+        writer.counter("osmproxy_evicted_tiles_total", "Tiles evicted to keep the size limits", cacheEvictor.getEvictedTiles());
+        writer.counter("osmproxy_evicted_bytes_total", "Bytes evicted to keep the size limits", cacheEvictor.getEvictedBytes());
+        writer.counter("osmproxy_expiry_checked_tiles_total", "Tiles checked by the expiry walk", expirySweeper.getCheckedTiles());
+        writer.counter("osmproxy_expiry_revalidated_tiles_total", "Outdated tiles revalidated by the expiry walk", expirySweeper.getRevalidatedTiles());
+        writer.counter("osmproxy_expiry_deleted_tiles_total", "Tiles deleted by the expiry walk", expirySweeper.getDeletedTiles());
+    }
+
+    private IndexedTileStore getIndexedStore(TileStore store) {
+        if (store instanceof IndexedTileStore) {
+            return (IndexedTileStore) store;
+        }
+        if (store instanceof TieredTileStore) {
+            return getIndexedStore(((TieredTileStore) store).getLower());
+        }
+        return null;
+    }
+
+    private WriteBehindTileStore getWriteBehindStore(TileStore store) {
+        if (store instanceof WriteBehindTileStore) {
+            return (WriteBehindTileStore) store;
+        }
+        if (store instanceof IndexedTileStore) {
+            return getWriteBehindStore(((IndexedTileStore) store).getStore());
+        }
+        if (store instanceof TieredTileStore) {
+            return getWriteBehindStore(((TieredTileStore) store).getLower());
+        }
+        return null;
+    }
+
+    private void writeCacheMetrics(PrometheusWriter writer) {
+        writer.gauge("osmproxy_memory_cache_size_bytes", "Size of the tiles in the memory cache", tileMemoryCache.getSize());
+        writer.counter("osmproxy_memory_cache_hits_total", "Tiles found in the memory cache", tileMemoryCache.getHitCount());
+        writer.counter("osmproxy_memory_cache_misses_total", "Tiles not found in the memory cache", tileMemoryCache.getMissCount());
+        writer.gauge("osmproxy_missing_tiles", "Tiles remembered as missing upstream", missingTileCache.size());
+        writer.gauge("osmproxy_refresh_queue_size", "Background refreshes of outdated tiles pending", tileDownloader.getRefreshQueueSize());
+        writer.counter("osmproxy_prefetched_tiles_total", "Tiles prefetched around requested tiles", prefetcher.getPrefetchCount());
+    }
+
+    private void writeClusterMetrics(PrometheusWriter writer) {
+        if (peerClient.getPeerRing() == null) {
+            return;
+        }
+        writer.counter("osmproxy_peer_fetched_tiles_total", "Tiles fetched from the owning peer", peerClient.getFetchedTiles());
+        writer.counter("osmproxy_peer_missing_tiles_total", "Tiles the owning peer reported as missing", peerClient.getMissingTiles());
+        writer.counter("osmproxy_peer_failed_fetches_total", "Tiles which could not be fetched from the owning peer", peerClient.getFailedFetches());
+        writer.counter("osmproxy_peer_hot_cache_hits_total", "Tiles of other peers served from the hot cache", peerClient.getHotCacheHits());
+        writer.gauge("osmproxy_peer_hot_cache_size_bytes", "Size of the tiles in the hot cache", peerClient.getHotCacheSize());
+        for (UpstreamHealth health : peerClient.getAllPeerHealth()) {
+            writer.gauge("osmproxy_peer_available", "1 if tiles are fetched from the peer, 0 while it is skipped after failures",
+                    health.getState() == UpstreamHealth.State.OPEN ? 0 : 1, "peer", health.getName());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.control;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram. Values are counted in
+ * buckets doubling in size, each split into 16 linear sub buckets, so a
+ * value is reported with an error of at most 1/16 regardless of its
+ * magnitude. Recording only increments a LongAdder, so the histogram can be
+ * updated by many threads at the same time without contention.
+ *
+ * @author joern.muehlencord
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * largest exponent counted exactly - values are recorded in microseconds,
+     * so up to 2^38 µs (about 3 days)
+     */
+    private static final int MAX_EXPONENT = 37;
+
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKET_COUNT];
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * records a latency.
+     *
+     * @param nanos the latency in nanoseconds, e.g. the difference of two
+     * calls of System.nanoTime().
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts[getIndex(micros)].increment();
+        sum.add(micros);
+    }
+
+    /**
+     * returns a consistent copy of the histogram to report.
+     *
+     * @return the snapshot.
+     */
+    public Snapshot getSnapshot() {
+        long[] snapshotCounts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshotCounts[i] = counts[i].sum();
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, count, sum.sum());
+    }
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * returns the largest value counted in the given bucket.
+     */
+    static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowestValue = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+
+    /**
+     * the state of a histogram at a point in time
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] counts, long count, long sum) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        /**
+         * returns the latency the given share of the recorded latencies does
+         * not exceed.
+         *
+         * @param quantile the quantile - e.g. 0.99.
+         * @return the latency in microseconds, 0 if nothing is recorded.
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return getHighestValue(i);
+                }
+            }
+            return getHighestValue(counts.length - 1);
+        }
+
+        /**
+         * returns the number of recorded latencies not exceeding the given
+         * value. Latencies counted in the bucket containing the value are
+         * only included if the whole bucket is below the value, so the
+         * result is exact up to the error of the buckets.
+         *
+         * @param micros the value in microseconds.
+         * @return the number of latencies.
+         */
+        public long getCountAtOrBelow(long micros) {
+            long seen = 0;
+            for (int i = 0; i < counts.length && getHighestValue(i) <= micros; i++) {
+                seen += counts[i];
+            }
+            return seen;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of all recorded latencies in microseconds.
+         */
+        public long getSum() {
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.control;
+
+import de.muehlencord.osmproxy.business.metrics.entity.RequestResult;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the tile requests of a layer by result and records their latency.
+ *
+ * @author joern.muehlencord
+ */
+public class LayerMetrics {
+
+    private final LongAdder[] requests = new LongAdder[RequestResult.values().length];
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public LayerMetrics() {
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * records an answered request.
+     *
+     * @param result how the request has been answered.
+     * @param nanos the time taken to answer the request in nanoseconds.
+     */
+    public void record(RequestResult result, long nanos) {
+        requests[result.ordinal()].increment();
+        latency.record(nanos);
+    }
+
+    public long getRequests(RequestResult result) {
+        return requests[result.ordinal()].sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+}
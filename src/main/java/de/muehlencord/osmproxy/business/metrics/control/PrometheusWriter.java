@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.control;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes metrics in the Prometheus text exposition format. The samples of a
+ * metric must be written one after another, the HELP and TYPE lines are
+ * written before the first sample of each metric.
+ *
+ * @author joern.muehlencord
+ */
+public class PrometheusWriter {
+
+    /**
+     * upper bounds in seconds of the buckets reported for latency
+     * histograms, the last bucket is +Inf
+     */
+    private static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final double MICROS_PER_SECOND = 1_000_000D;
+
+    private final StringBuilder out = new StringBuilder();
+    private final Set<String> describedMetrics = new HashSet<>();
+
+    /**
+     * writes a sample of a counter.
+     *
+     * @param name the name of the metric, should end with _total.
+     * @param help the description of the metric.
+     * @param value the value of the counter.
+     * @param labels the labels of the sample as name, value pairs.
+     * @return this writer.
+     */
+    public PrometheusWriter counter(String name, String help, double value, String... labels) {
+        describe(name, help, "counter");
+        return sample(name, value, labels);
+    }
+
+    /**
+     * writes a sample of a gauge.
+     *
+     * @param name the name of the metric.
+     * @param help the description of the metric.
+     * @param value the current value.
+     * @param labels the labels of the sample as name, value pairs.
+     * @return this writer.
+     */
+    public PrometheusWriter gauge(String name, String help, double value, String... labels) {
+        describe(name, help, "gauge");
+        return sample(name, value, labels);
+    }
+
+    /**
+     * writes a latency histogram as histogram in seconds. Unlike quantiles,
+     * the buckets of several instances can be summed up and aggregated over
+     * any time range by the Prometheus server.
+     *
+     * @param name the name of the metric, should end with _seconds.
+     * @param help the description of the metric.
+     * @param snapshot the recorded latencies.
+     * @param labels the labels of the samples as name, value pairs.
+     * @return this writer.
+     */
+    public PrometheusWriter histogram(String name, String help, LatencyHistogram.Snapshot snapshot, String... labels) {
+        describe(name, help, "histogram");
+        String[] bucketLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+        bucketLabels[labels.length] = "le";
+        for (double bucket : BUCKETS) {
+            bucketLabels[labels.length + 1] = Double.toString(bucket);
+            sample(name + "_bucket", snapshot.getCountAtOrBelow(Math.round(bucket * MICROS_PER_SECOND)), bucketLabels);
+        }
+        bucketLabels[labels.length + 1] = "+Inf";
+        sample(name + "_bucket", snapshot.getCount(), bucketLabels);
+        sample(name + "_sum", snapshot.getSum() / MICROS_PER_SECOND, labels);
+        return sample(name + "_count", snapshot.getCount(), labels);
+    }
+
+    private void describe(String name, String help, String type) {
+        if (describedMetrics.add(name)) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+
+    private PrometheusWriter sample(String name, double value, String... labels) {
+        out.append(name);
+        if (labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+        return this;
+    }
+
+    private String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
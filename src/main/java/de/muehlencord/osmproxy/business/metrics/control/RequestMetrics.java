@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.control;
+
+import de.muehlencord.osmproxy.business.metrics.entity.RequestResult;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+
+/**
+ * Collects the metrics of the tile requests by layer.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class RequestMetrics implements Serializable {
+
+    private static final long serialVersionUID = 3408167520918374261L;
+
+    /**
+     * the metrics by layer name - only layers defined in the configuration
+     * are recorded, so clients cannot create arbitrary entries
+     */
+    private final transient Map<String, LayerMetrics> layers = new ConcurrentHashMap<>();
+
+    /**
+     * records an answered tile request.
+     *
+     * @param layer the layer of the tile.
+     * @param result how the request has been answered.
+     * @param start the start of the request as returned by System.nanoTime().
+     */
+    public void record(String layer, RequestResult result, long start) {
+        layers.computeIfAbsent(layer, key -> new LayerMetrics()).record(result, System.nanoTime() - start);
+    }
+
+    /**
+     * returns the metrics of all layers requested so far.
+     *
+     * @return the metrics by layer name.
+     */
+    public Map<String, LayerMetrics> getLayers() {
+        return new TreeMap<>(layers);
+    }
+}
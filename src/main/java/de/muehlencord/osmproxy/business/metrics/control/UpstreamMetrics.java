@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.control;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the requests sent to an upstream server - their latency, the
+ * number of bytes received and the status codes returned.
+ *
+ * @author joern.muehlencord
+ */
+public class UpstreamMetrics {
+
+    /**
+     * status label of requests failed without a response, e.g. due to a
+     * timeout
+     */
+    public static final String NO_RESPONSE = "none";
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final Map<String, LongAdder> responses = new ConcurrentHashMap<>();
+
+    /**
+     * records a response of the server.
+     *
+     * @param nanos the time taken to receive the response in nanoseconds.
+     * @param status the http status code of the response.
+     * @param bytes the size of the body of the response.
+     */
+    public void recordResponse(long nanos, int status, long bytes) {
+        latency.record(nanos);
+        receivedBytes.add(bytes);
+        responses.computeIfAbsent(Integer.toString(status), key -> new LongAdder()).increment();
+    }
+
+    /**
+     * records a request failed without a response.
+     *
+     * @param nanos the time until the request failed in nanoseconds.
+     */
+    public void recordFailure(long nanos) {
+        latency.record(nanos);
+        responses.computeIfAbsent(NO_RESPONSE, key -> new LongAdder()).increment();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    /**
+     * returns the number of responses by status code.
+     *
+     * @return the number of responses by status code, {@link #NO_RESPONSE}
+     * for failed requests.
+     */
+    public Map<String, Long> getResponses() {
+        Map<String, Long> result = new TreeMap<>();
+        responses.forEach((status, count) -> result.put(status, count.sum()));
+        return result;
+    }
+}
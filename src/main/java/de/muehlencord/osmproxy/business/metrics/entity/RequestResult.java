@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.entity;
+
+import java.util.Locale;
+
+/**
+ * How a tile request has been answered.
+ *
+ * @author joern.muehlencord
+ */
+public enum RequestResult {
+
+    /**
+     * served from memory or the tile store
+     */
+    HIT,
+    /**
+     * an outdated tile has been served, it is refreshed in the background
+     */
+    STALE,
+    /**
+     * the tile has been downloaded or revalidated with the upstream server
+     */
+    MISS,
+    /**
+     * the tile has been fetched from the peer owning it
+     */
+    PEER,
+    /**
+     * the request failed
+     */
+    ERROR;
+
+    public String getLabel() {
+        return name().toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.boundary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Streams a tile held in memory to the client without copying it to the heap
+ * first.
+ *
+ * @author joern.muehlencord
+ */
+public class ByteBufferStreamingOutput implements StreamingOutput {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer the data to write, the buffer must not be shared with
+     * other threads as its position is changed.
+     */
+    public ByteBufferStreamingOutput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        WritableByteChannel out = Channels.newChannel(output);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        output.flush();
+    }
+}
@@ -16,32 +16,50 @@
 package de.muehlencord.osmproxy.business.proxy.boundary;
 
 import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.cluster.control.PeerClient;
 import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
-import de.muehlencord.osmproxy.business.config.entity.Server;
-import de.muehlencord.osmproxy.business.proxy.control.ConnectionManager;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import de.muehlencord.osmproxy.business.config.entity.PeerRing;
+import de.muehlencord.osmproxy.business.metrics.control.RequestMetrics;
+import de.muehlencord.osmproxy.business.metrics.entity.RequestResult;
+import de.muehlencord.osmproxy.business.proxy.control.CacheEvictor;
+import de.muehlencord.osmproxy.business.proxy.control.DownloadCoalescer;
+import de.muehlencord.osmproxy.business.proxy.control.ExpirySweeper;
+import de.muehlencord.osmproxy.business.proxy.control.MissingTileCache;
+import de.muehlencord.osmproxy.business.proxy.control.PngValidator;
+import de.muehlencord.osmproxy.business.proxy.control.Prefetcher;
+import de.muehlencord.osmproxy.business.proxy.control.TileDownloader;
+import de.muehlencord.osmproxy.business.proxy.control.TileMemoryCache;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.UpstreamBusyException;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStoreManager;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.HttpURLConnection;
-import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.ejb.Stateless;
-import javax.imageio.ImageIO;
 import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
-import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,55 +74,100 @@ public class ProxyResource implements Serializable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResource.class);
 
+    /**
+     * max-age in seconds sent to clients if the cache retention is disabled
+     */
+    private static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toSeconds(7);
+
     @Inject
     private ConfigurationBean configurationBean;
 
     @Inject
-    ConnectionManager connectionManager;
+    TileMemoryCache tileMemoryCache;
+
+    @Inject
+    TileDownloader tileDownloader;
+
+    @Inject
+    MissingTileCache missingTileCache;
+
+    @Inject
+    Prefetcher prefetcher;
+
+    @Inject
+    TileStoreManager tileStoreManager;
+
+    @Inject
+    CacheEvictor cacheEvictor;
+
+    @Inject
+    ExpirySweeper expirySweeper;
+
+    @Inject
+    PeerClient peerClient;
+
+    @Inject
+    RequestMetrics requestMetrics;
 
     @GET
     @Produces({"image/png", "text/plain"})
     @javax.ws.rs.Path("/{layer}/{z}/{x}/{y}.{ending}")
-    public Response getTile(
+    public void getTile(
+            final @Suspended AsyncResponse asyncResponse,
+            final @Context Request request,
             final @HeaderParam("user-agent") String userAgent,
+            final @HeaderParam(PeerClient.PEER_HEADER) String peer,
             final @PathParam("layer") String layer,
             final @PathParam("z") Long z,
             final @PathParam("x") Long x,
             final @PathParam("y") Long y,
             final @PathParam("ending") String ending) {
 
+        long start = System.nanoTime();
         if ((layer == null) || (x == null) || (y == null) || (z == null) || (ending == null)) {
-            return createErrorResponse("<layer>/<z>/<x>/<y>.<filetype> parameter is mandatory", HttpURLConnection.HTTP_BAD_REQUEST);
+            resume(asyncResponse, createErrorResponse("<layer>/<z>/<x>/<y>.<filetype> parameter is mandatory", HttpURLConnection.HTTP_BAD_REQUEST));
+            return;
         }
 
         if (z < 0 || (z > 19)) {
-            return createErrorResponse("parameter z must be between 0 and 19", HttpURLConnection.HTTP_BAD_REQUEST);
+            resume(asyncResponse, createErrorResponse("parameter z must be between 0 and 19", HttpURLConnection.HTTP_BAD_REQUEST));
+            return;
+        }
+
+        // zoom level z has 2^z tiles per axis - do not ask the upstream server for tiles which cannot exist
+        long tilesPerAxis = 1L << z;
+        if (x < 0 || x >= tilesPerAxis || y < 0 || y >= tilesPerAxis) {
+            resume(asyncResponse, createErrorResponse("parameter x and y must be between 0 and " + (tilesPerAxis - 1) + " for zoom level " + z, HttpURLConnection.HTTP_BAD_REQUEST));
+            return;
         }
 
         if (!ending.equals("png")) {
-            return createErrorResponse("png is currently supported only", HttpURLConnection.HTTP_BAD_REQUEST);
+            resume(asyncResponse, createErrorResponse("png is currently supported only", HttpURLConnection.HTTP_BAD_REQUEST));
+            return;
         }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Requesting tile {}/{}/{}/{}.{}", layer, z, x, y, ending);
         }
 
-        Path layerCacheFolder;
+        TileKey tileKey = new TileKey(layer, z, x, y, ending);
+        cacheEvictor.recordAccess(tileKey);
+        TileStore store;
         try {
-            layerCacheFolder = configurationBean.getCacheDirectory(layer);
+            store = tileStoreManager.getStore(layer);
         } catch (ConfigurationException ex) {
             LOGGER.error(ex.getMessage());
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Detailed stacktrace", new Object[]{ex});
             }
-            return createErrorResponse("cannot get cache folder from configuration", HttpURLConnection.HTTP_INTERNAL_ERROR, ex);
+            resume(asyncResponse, createErrorResponse("cannot get tile store from configuration", HttpURLConnection.HTTP_INTERNAL_ERROR, ex));
+            return;
         }
 
-        // calculate file to load from disk
-        Path tile = layerCacheFolder
-                .resolve(z.toString())
-                .resolve(x.toString())
-                .resolve(y.toString() + "." + ending);
-        
+        // requests waiting for a download are released after a bounded time
+        asyncResponse.setTimeout(DownloadCoalescer.WAIT_TIMEOUT, TimeUnit.SECONDS);
+        asyncResponse.setTimeoutHandler(response -> resume(response,
+                createErrorResponse("timeout while waiting for tile download", HttpURLConnection.HTTP_GATEWAY_TIMEOUT), tileKey, RequestResult.ERROR, start));
+
         // make sure a valid user header is set - this is a requirement of the OpenStreeMap fair use policy
         // see https://operations.osmfoundation.org/policies/tiles/
         String finalUserAgent;
@@ -114,124 +177,364 @@ public class ProxyResource implements Serializable {
             finalUserAgent = userAgent;
         }
 
-        Response response;
-        // check if the tile exist
+        // in a cluster tiles owned by another peer are fetched from the owner - requests of peers are always answered locally
+        if (peer == null) {
+            PeerRing peerRing = peerClient.getPeerRing();
+            String owner = peerRing == null ? null : peerRing.getOwner(tileKey.toString());
+            // peers skipped after repeated failures are not asked, the tile is served locally instead
+            if (owner != null && !peerRing.isSelf(owner) && peerClient.isAvailable(owner)) {
+                respondTileFromPeer(asyncResponse, request, finalUserAgent, store, tileKey, peerRing, owner, start);
+                return;
+            }
+        }
+        respondTile(asyncResponse, request, finalUserAgent, store, tileKey, start);
+    }
+
+    /**
+     * responds the tile from memory, the tile store or the upstream server.
+     */
+    private void respondTile(AsyncResponse asyncResponse, Request request, String finalUserAgent, TileStore store, TileKey tileKey, long start) {
+        // popular tiles are served from memory without touching the disk
+        // outdated tiles within the stale while revalidate window are served as well, they are refreshed in the background
+        CachedTile cachedTile = tileMemoryCache.get(tileKey);
+        if (cachedTile != null) {
+            if (isInRetentionTime(cachedTile.getLastModified())) {
+                LOGGER.debug("served tile {} from memory", tileKey);
+                resume(asyncResponse, respondTile(request, cachedTile), tileKey, RequestResult.HIT, start);
+                return;
+            } else if (isInStaleWhileRevalidateTime(cachedTile.getLastModified())) {
+                LOGGER.debug("served outdated tile {} from memory", tileKey);
+                tileDownloader.refresh(tileKey, finalUserAgent);
+                resume(asyncResponse, respondTile(request, cachedTile), tileKey, RequestResult.STALE, start);
+                return;
+            } else {
+                tileMemoryCache.invalidate(tileKey);
+            }
+        }
+
+        // check if the tile exist - the tile is opened once, its age and content are taken from the open tile
         // if yes and in retention time - serv it from disk
-        // if yes and no longer in retention time - delete it from cache and serv it from upstream
+        // if yes and in the stale while revalidate window - serv it from disk and refresh it in the background
+        // if yes and outdated - revalidate it with the upstream server and serv it
         // it not, serv it from upstream
-        if (tile.toFile().exists()) {
-            if (isInRetentionTime(tile)) {
-                response = respondTileFromDiskCache(tile, layer, z, x, y, ending);
+        // upstream requests are handled asynchronously, the request thread is released while waiting for the upstream server
+        CompletableFuture<Response> upstreamResponse;
+        TileRegion region = openTile(store, tileKey);
+        if (region != null) {
+            long lastModified = region.getLastModified();
+            if (isInRetentionTime(lastModified)) {
+                resume(asyncResponse, respondCachedTile(request, tileKey, region), tileKey, RequestResult.HIT, start);
+                return;
+            } else if (isInStaleWhileRevalidateTime(lastModified)) {
+                LOGGER.debug("serving outdated tile {}, refreshing it in background", tileKey);
+                tileDownloader.refresh(tileKey, finalUserAgent);
+                resume(asyncResponse, respondCachedTile(request, tileKey, region), tileKey, RequestResult.STALE, start);
+                return;
             } else {
-                deleteTile(tile, "delete outdated file {}");
-                response = respondTileFromUpstreamServer(finalUserAgent, tile, layer, z, x, y, ending);
+                closeQuietly(region);
+                upstreamResponse = respondTileFromUpstreamServer(finalUserAgent, store, tileKey, lastModified);
             }
         } else {
-            response = respondTileFromUpstreamServer(finalUserAgent, tile, layer, z, x, y, ending);
+            upstreamResponse = respondTileFromUpstreamServer(finalUserAgent, store, tileKey, -1);
+            // the client is likely to ask for the surrounding tiles next
+            prefetcher.prefetch(tileKey, finalUserAgent);
         }
+        upstreamResponse.whenComplete((response, th) -> {
+            if (th == null) {
+                resume(asyncResponse, response, tileKey, RequestResult.MISS, start);
+            } else {
+                resume(asyncResponse, createErrorResponse("error while downloading tile", HttpURLConnection.HTTP_INTERNAL_ERROR, unwrap(th)), tileKey, RequestResult.ERROR, start);
+            }
+        });
+    }
+
+    /**
+     * responds a tile owned by another peer. The tile is fetched from the
+     * owner and kept in the hot cache of the peer client, not in the tile
+     * store. If the owner cannot be reached, the tile is handled as if this
+     * instance owned it.
+     */
+    private void respondTileFromPeer(AsyncResponse asyncResponse, Request request, String finalUserAgent, TileStore store, TileKey tileKey, PeerRing peerRing, String owner, long start) {
+        CachedTile hotTile = peerClient.getHotTile(tileKey);
+        if (hotTile != null) {
+            if (isInRetentionTime(hotTile.getLastModified())) {
+                LOGGER.debug("served tile {} of peer {} from memory", tileKey, owner);
+                resume(asyncResponse, respondTile(request, hotTile), tileKey, RequestResult.PEER, start);
+                return;
+            }
+            peerClient.invalidate(tileKey);
+        }
+
+        // do not block the I/O threads of the peer client or the common pool if the tile needs to be read from the local store
+        peerClient.fetch(peerRing, owner, tileKey, finalUserAgent).whenCompleteAsync((tile, th) -> {
+            if (th != null) {
+                LOGGER.warn("cannot fetch tile {} from peer {}, serving it locally. Reason: {}", tileKey, owner, unwrap(th).toString());
+                respondTile(asyncResponse, request, finalUserAgent, store, tileKey, start);
+            } else if (tile == null) {
+                resume(asyncResponse, respondDownloadedTile(DownloadResult.NOT_AVAILABLE, store, tileKey), tileKey, RequestResult.PEER, start);
+            } else {
+                LOGGER.debug("served tile {} from peer {}", tileKey, owner);
+                resume(asyncResponse, respondTile(request, tile), tileKey, RequestResult.PEER, start);
+            }
+        }, peerClient.getCallbackExecutor());
+    }
+
+    /**
+     * responds a request for a tile of a known layer and records it in the
+     * metrics of the layer - server errors are recorded as error. Requests
+     * answered already, e.g. due to a timeout, are not recorded twice.
+     */
+    private void resume(AsyncResponse asyncResponse, Response response, TileKey tileKey, RequestResult result, long start) {
+        if (resume(asyncResponse, response)) {
+            requestMetrics.record(tileKey.getLayer(), response.getStatus() >= HttpURLConnection.HTTP_INTERNAL_ERROR ? RequestResult.ERROR : result, start);
+        }
+    }
+
+    private boolean resume(AsyncResponse asyncResponse, Response response) {
         response.getHeaders().add("Access-Control-Allow-Origin", "*");
-        return response;
+        return asyncResponse.resume(response);
+    }
+
+    private Throwable unwrap(Throwable th) {
+        Throwable cause = th;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
     }
 
-    private Response respondTileFromDiskCache(Path tilePath, String layer, Long z, Long x, Long y, String ending) {
-        byte[] imageData;
-        BufferedImage image = null;
-        // try to load image from disk 
-        // if fails, image is broken and file needs to be deleted from disk
+    private Response respondTileFromStore(TileStore store, TileKey tileKey) {
+        TileRegion region;
         try {
-            image = ImageIO.read(tilePath.toFile());
+            region = store.open(tileKey);
         } catch (IOException ex) {
-
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Cannot read image from file {}", tilePath.toString());
-                LOGGER.debug("Detailed stacktrace", new Object[]{ex});
-            }
+            return createErrorResponse("error while reading tile from cache", HttpURLConnection.HTTP_INTERNAL_ERROR, ex);
         }
-        if (image == null) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Cannot construct image from file {}, going to delete file", tilePath.toString());
-            }
-            deleteTile(tilePath, "Deleted broken file {}");
-            return createErrorResponse("error while reading tile from cache", HttpURLConnection.HTTP_INTERNAL_ERROR);
-        } else {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(image, "png", baos);
-                imageData = baos.toByteArray();
-            } catch (IOException ex) {
+        if (region == null) {
+            LOGGER.error("tile {} not available in cache", tileKey);
+            return createErrorResponse("tile not available in cache", HttpURLConnection.HTTP_INTERNAL_ERROR);
+        }
+        return respondTileFromStore(tileKey, region);
+    }
+
+    /**
+     * responds a tile opened in the tile store. Tiles stored in files are
+     * streamed to the client without passing the Java heap, the region is
+     * closed once the tile has been written.
+     */
+    private Response respondTileFromStore(TileKey tileKey, TileRegion region) {
+        boolean streamed = false;
+        try {
+            // run a cheap structural check instead of decoding the tile - only its header and trailer are read
+            // if the check fails, the tile is broken and needs to be deleted from the cache
+            if (!PngValidator.isValid(region)) {
                 if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug(ex.toString(), ex);
+                    LOGGER.debug("Tile {} is not a valid image, going to delete it", tileKey);
                 }
+                expirySweeper.delete(tileKey, "broken");
                 return createErrorResponse("error while reading tile from cache", HttpURLConnection.HTTP_INTERNAL_ERROR);
             }
-            LOGGER.debug("served tile {}/{}/{}/{}.{} from cache", layer, z, x, y, ending);
-            return Response.ok(imageData).type(new MediaType("image", "png")).build();
-        }
-    }
+            LOGGER.debug("served tile {} from cache", tileKey);
 
-    private Response respondTileFromUpstreamServer(String userAgent, Path tilePath, String layer, Long z, Long x, Long y, String ending) {
-        // file does not exis, try to get it from upstream server
-        if (!tilePath.toFile().getParentFile().exists()) {
-            tilePath.toFile().getParentFile().mkdirs();
+            // keep a tile read from a file in memory for the next request - if the memory cache is enabled
+            // tiles the store holds in memory already are served from the store, so they are not buffered twice
+            CachedTile cachedTile = tileMemoryCache.put(tileKey, region);
+            if (cachedTile != null) {
+                return respondTile(null, cachedTile);
+            }
+            ResponseBuilder builder = Response.ok(new TileStreamingOutput(region))
+                    .type(new MediaType("image", "png"))
+                    .header(HttpHeaders.CONTENT_LENGTH, region.getSize());
+            streamed = true;
+            return addCacheHeaders(builder, region.getLastModified(), region.getSize()).build();
+        } catch (IOException ex) {
+            return createErrorResponse("error while reading tile from cache", HttpURLConnection.HTTP_INTERNAL_ERROR, ex);
+        } finally {
+            if (!streamed) {
+                closeQuietly(region);
+            }
         }
+    }
 
-        boolean fileDownloaded;
+    private void closeQuietly(TileRegion region) {
         try {
-            fileDownloaded = downloadFromUpStreamServer(userAgent, tilePath, layer, z, x, y, ending);
-        } catch (ConfigurationException ex) {
+            region.close();
+        } catch (IOException ex) {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Detailed stacktrace", new Object[]{ex});
             }
-            return createErrorResponse(ex.getMessage(), HttpURLConnection.HTTP_INTERNAL_ERROR, ex);
         }
-        if (fileDownloaded) {
-            if (tilePath.toFile().exists()) {
-                return respondTileFromDiskCache(tilePath, layer, z, x, y, ending);
-            } else {
-                LOGGER.error("tile {}/{}/{}/{}.{} downloaded, but not available in cache", layer, z, x, y, ending);
-                return createErrorResponse("file downloaded but not available in cache", HttpURLConnection.HTTP_INTERNAL_ERROR);
+    }
+
+    /**
+     * responds a tile held in memory
+     *
+     * @param request the request to evaluate the conditional headers of - can
+     * be null, if the request must not be evaluated.
+     * @param cachedTile the tile to respond.
+     * @return the response
+     */
+    private Response respondTile(Request request, CachedTile cachedTile) {
+        ResponseBuilder builder = evaluatePreconditions(request, cachedTile.getLastModified(), cachedTile.getSize());
+        if (builder == null) {
+            builder = Response.ok(new ByteBufferStreamingOutput(cachedTile.getData()))
+                    .type(new MediaType("image", "png"))
+                    .header(HttpHeaders.CONTENT_LENGTH, cachedTile.getSize());
+        }
+        return addCacheHeaders(builder, cachedTile.getLastModified(), cachedTile.getSize()).build();
+    }
+
+    /**
+     * checks the If-None-Match and If-Modified-Since headers of the request.
+     *
+     * @return a response builder for a 304 response if the client's copy of
+     * the tile is still valid, null otherwise.
+     */
+    private ResponseBuilder evaluatePreconditions(Request request, long lastModified, long size) {
+        if (request == null) {
+            return null;
+        }
+        return request.evaluatePreconditions(toHttpDate(lastModified), createEntityTag(lastModified, size));
+    }
+
+    /**
+     * adds the validators and expiry information, so browsers and CDNs can
+     * cache the tile as long as the proxy does.
+     */
+    private ResponseBuilder addCacheHeaders(ResponseBuilder builder, long lastModified, long size) {
+        long maxAge = getMaxAge(lastModified);
+        return builder
+                .tag(createEntityTag(lastModified, size))
+                .lastModified(toHttpDate(lastModified))
+                .header(HttpHeaders.CACHE_CONTROL, createCacheControl(maxAge))
+                .expires(new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxAge)));
+    }
+
+    /**
+     * creates the Cache-Control header, the stale windows of the proxy are
+     * passed on so downstream caches behave the same way (RFC 5861)
+     */
+    private String createCacheControl(long maxAge) {
+        StringBuilder cacheControl = new StringBuilder("public, max-age=").append(maxAge);
+        try {
+            int staleWhileRevalidate = configurationBean.getStaleWhileRevalidate();
+            if (staleWhileRevalidate > 0) {
+                cacheControl.append(", stale-while-revalidate=").append(TimeUnit.DAYS.toSeconds(staleWhileRevalidate));
+            }
+            int staleIfError = configurationBean.getStaleIfError();
+            if (staleIfError > 0) {
+                cacheControl.append(", stale-if-error=").append(TimeUnit.DAYS.toSeconds(staleIfError));
+            }
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+        }
+        return cacheControl.toString();
+    }
+
+    private EntityTag createEntityTag(long lastModified, long size) {
+        return new EntityTag(Long.toHexString(lastModified) + "-" + Long.toHexString(size));
+    }
+
+    /**
+     * HTTP dates have a resolution of seconds, so the milliseconds need to
+     * be dropped to compare them with If-Modified-Since
+     */
+    private Date toHttpDate(long time) {
+        return new Date(time - (time % 1000));
+    }
+
+    /**
+     * returns the number of seconds until the tile is refreshed by the proxy
+     */
+    private long getMaxAge(long lastModified) {
+        try {
+            int retentionTime = configurationBean.getRetentionTime();
+            if (retentionTime == 0) {
+                return DEFAULT_MAX_AGE;
             }
+            long expires = lastModified + TimeUnit.DAYS.toMillis(retentionTime);
+            return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(expires - System.currentTimeMillis()));
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * responds a tile opened in the tile store, conditional requests are
+     * answered without reading the tile
+     */
+    private Response respondCachedTile(Request request, TileKey tileKey, TileRegion region) {
+        long lastModified = region.getLastModified();
+        long size = region.getSize();
+        ResponseBuilder notModified = evaluatePreconditions(request, lastModified, size);
+        if (notModified == null) {
+            return respondTileFromStore(tileKey, region);
         } else {
-            LOGGER.debug("tile {}/{}/{}/{}.{} not downloaded", layer, z, x, y, ending);
-            return createErrorResponse("tile not available", HttpURLConnection.HTTP_NOT_FOUND);
+            closeQuietly(region);
+            LOGGER.debug("tile {} not modified", tileKey);
+            return addCacheHeaders(notModified, lastModified, size).build();
         }
     }
 
-    private boolean downloadFromUpStreamServer(String userAgent, Path tilePath, String layer, long z, long x, long y, String ending) throws ConfigurationException {
-        List<Server> upstreamServer = configurationBean.getUpstreamServer(layer);
-        Iterator<Server> it = upstreamServer.iterator();
-        while (it.hasNext()) {
-            Server currentServer = it.next();
-            String urlString = currentServer.getUrl();
-            urlString = urlString.replace("{layer}", layer);
-            urlString = urlString.replace("{z}", Long.toString(z));
-            urlString = urlString.replace("{x}", Long.toString(x));
-            urlString = urlString.replace("{y}", Long.toString(y));
-            urlString = urlString.replace("{ending}", ending);
-            try {
-                connectionManager.executeDownload(currentServer, userAgent, urlString, tilePath);
-                return true;
-            } catch (URISyntaxException | IOException ex) {
-                LOGGER.error("cannot construct URL for upstream server. ", urlString);
+    /**
+     * downloads the tile from the upstream server and responds it.
+     *
+     * @param lastModified the last modification time of the outdated tile in
+     * the cache or -1, if the tile is not cached.
+     */
+    private CompletableFuture<Response> respondTileFromUpstreamServer(String userAgent, TileStore store, TileKey tileKey, long lastModified) {
+        // file does not exis (or is outdated), try to get it from upstream server
+        // outdated tiles are kept until replaced, they are revalidated using the validators stored with the tile
+        // if the upstream server fails, outdated tiles within the stale if error window are served instead of the error
+        boolean outdated = lastModified >= 0;
+        return tileDownloader.download(tileKey, userAgent, outdated, DownloadPriority.INTERACTIVE).handle((downloadResult, th) -> {
+            if (th != null) {
+                Throwable cause = unwrap(th);
                 if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Detailed stacktrace", new Object[]{ex});
+                    LOGGER.debug("Detailed stacktrace", new Object[]{cause});
+                }
+                if (cause instanceof ConfigurationException) {
+                    return createErrorResponse(cause.getMessage(), HttpURLConnection.HTTP_INTERNAL_ERROR, cause);
+                }
+                LOGGER.error("cannot download tile {}. Reason: {}", tileKey, cause.toString());
+                if (outdated && isInStaleIfErrorTime(lastModified)) {
+                    TileRegion region = openTile(store, tileKey);
+                    if (region != null) {
+                        LOGGER.warn("upstream server not available, serving outdated tile {}", tileKey);
+                        return respondTileFromStore(tileKey, region);
+                    }
+                }
+                if (cause instanceof UpstreamBusyException) {
+                    // fail fast instead of queueing the request - the client should try again later
+                    Response response = createErrorResponse("upstream server busy", HttpURLConnection.HTTP_UNAVAILABLE);
+                    response.getHeaders().add(HttpHeaders.RETRY_AFTER, ((UpstreamBusyException) cause).getRetryAfter());
+                    return response;
                 }
-                throw new WebApplicationException(
-                        Response.status(HttpURLConnection.HTTP_INTERNAL_ERROR)
-                                .entity("upstream server url is not valid")
-                                .build()
-                );
+                return createErrorResponse("upstream server not available", HttpURLConnection.HTTP_BAD_GATEWAY);
             }
-        }
+            return respondDownloadedTile(downloadResult, store, tileKey);
+        });
+    }
 
-        return false;
+    private Response respondDownloadedTile(DownloadResult downloadResult, TileStore store, TileKey tileKey) {
+        if (downloadResult.isCached()) {
+            // a downloaded tile is read from memory until the store has written it in the background
+            return respondTileFromStore(store, tileKey);
+        } else {
+            LOGGER.debug("tile {} not downloaded", tileKey);
+            // clients may remember the missing tile as long as the proxy does
+            Response response = createErrorResponse("tile not available", HttpURLConnection.HTTP_NOT_FOUND);
+            response.getHeaders().add(HttpHeaders.CACHE_CONTROL, "public, max-age=" + missingTileCache.getTtl());
+            return response;
+        }
     }
 
     private Response createErrorResponse(String message, int status) {
         return createErrorResponse(message, status, null);
     }
 
-    private Response createErrorResponse(String message, int status, Exception ex) {
+    private Response createErrorResponse(String message, int status, Throwable ex) {
         LOGGER.error("request error: " + message);
         if (ex != null) {
             if (LOGGER.isDebugEnabled()) {
@@ -245,25 +548,57 @@ public class ProxyResource implements Serializable {
                 .build();
     }
 
-    private void deleteTile(Path tilePath, String deleteReason) {
-        if (tilePath.toFile().exists()) {
-            try {
-                Files.delete(tilePath);
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug(deleteReason, tilePath.toString());
-                }
-            } catch (IOException ex) {
-                LOGGER.error("error during " + deleteReason, tilePath.toString());
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Detailed stacktrace", new Object[]{ex});
-                }
-            }
-        } else if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Tile {} does not exist, skipping deletion", tilePath.toFile().toString());
+
+    /**
+     * opens the tile in the store
+     *
+     * @param store the store of the layer.
+     * @param tileKey the tile to open.
+     * @return the tile, which must be closed, or null if the tile does not
+     * exist
+     */
+    private TileRegion openTile(TileStore store, TileKey tileKey) {
+        try {
+            return store.open(tileKey);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot open tile {}: {}", tileKey, ex.toString());
+            return null;
         }
     }
 
-    private boolean isInRetentionTime(Path tile) {
+    private boolean isInRetentionTime(long lastModified) {
+        return isInRetentionTime(lastModified, 0);
+    }
+
+    /**
+     * checks whether an outdated tile can be served while it is refreshed in
+     * the background
+     */
+    private boolean isInStaleWhileRevalidateTime(long lastModified) {
+        try {
+            int staleWhileRevalidate = configurationBean.getStaleWhileRevalidate();
+            return (staleWhileRevalidate > 0) && isInRetentionTime(lastModified, staleWhileRevalidate);
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * checks whether an outdated tile can be served if the upstream server is
+     * not available
+     */
+    private boolean isInStaleIfErrorTime(long lastModified) {
+        try {
+            int staleIfError = configurationBean.getStaleIfError();
+            return (staleIfError > 0) && isInRetentionTime(lastModified, staleIfError);
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+            return false;
+        }
+    }
+
+    private boolean isInRetentionTime(long lastModified, int additionalDays) {
         try {
             int retentionTime = configurationBean.getRetentionTime();
 
@@ -271,12 +606,9 @@ public class ProxyResource implements Serializable {
             if (retentionTime == 0) {
                 return true;
             }
-            LocalDateTime minFileDate = LocalDateTime.now().minusDays(retentionTime);
-            BasicFileAttributes attr = Files.readAttributes(tile, BasicFileAttributes.class
-            );
-            LocalDateTime lastModifiedDate = LocalDateTime.ofInstant(attr.lastModifiedTime().toInstant(), ZoneId.systemDefault());
-            return lastModifiedDate.isAfter(minFileDate);
-        } catch (ConfigurationException | IOException ex) {
+            // checked for every served tile - compare the plain timestamps, outdated tiles are expired by the ExpirySweeper
+            return lastModified > System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionTime + additionalDays);
+        } catch (ConfigurationException ex) {
             // if an error occurs we cannot say whether the file is 
             // in retention time or not - so we asume yes to keep the file in the cache
             LOGGER.error(ex.getMessage());
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.boundary;
+
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Streams a tile opened in the tile store to the client as is. The region is
+ * opened by the caller (so a concurrent delete or replace of the tile does not
+ * affect the response) and closed once the tile has been written.
+ *
+ * @author joern.muehlencord
+ */
+public class TileStreamingOutput implements StreamingOutput {
+
+    private final TileRegion region;
+
+    public TileStreamingOutput(TileRegion region) {
+        this.region = region;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (TileRegion in = region) {
+            in.transferTo(Channels.newChannel(output));
+            output.flush();
+        }
+    }
+}
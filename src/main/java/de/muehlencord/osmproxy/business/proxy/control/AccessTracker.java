@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of how often and how recently tiles are requested, without
+ * relying on the access time of the file system. Both are estimated in fixed
+ * size tables - a frequency sketch and a table of the last access minute by
+ * hash - so tracking costs the same for any number of tiles. Hash collisions
+ * make a tile look more valuable than it is, never less.
+ * <p>
+ * Requests are recorded without a lock shared by all request threads: each
+ * thread adds the tile to one of several small buffers, which are drained
+ * into the sketch by whichever thread gets its lock first. If a buffer is
+ * full, the request is not counted - losing a few requests of a busy tile
+ * does not change its rating.
+ *
+ * @author joern.muehlencord
+ */
+class AccessTracker {
+
+    /**
+     * value of a single recent request in minutes - a tile requested 10 times
+     * recently is kept over a tile requested once up to 40 hours later
+     */
+    static final long FREQUENCY_WEIGHT = 240;
+
+    /**
+     * number of buffers, the buffer of a thread is chosen by its id
+     */
+    private static final int BUFFERS = 16;
+
+    /**
+     * number of requests a buffer holds
+     */
+    private static final int BUFFER_SIZE = 64;
+
+    /**
+     * spacing of the counters of the buffers, so counters of different
+     * buffers do not share a cache line
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * estimates the frequency of the tiles, guarded by the sketch lock
+     */
+    private final FrequencySketch sketch;
+    private final ReentrantLock sketchLock = new ReentrantLock();
+
+    /**
+     * the hash codes of the recorded tiles not yet added to the sketch, 0 for
+     * an empty slot
+     */
+    private final AtomicIntegerArray buffers = new AtomicIntegerArray(BUFFERS * BUFFER_SIZE);
+
+    /**
+     * number of requests written to and read from each buffer
+     */
+    private final AtomicLongArray writes = new AtomicLongArray(BUFFERS * PADDING);
+    private final AtomicLongArray reads = new AtomicLongArray(BUFFERS * PADDING);
+
+    /**
+     * minute of the last access by hash, 0 if unknown. Updated without
+     * locking, a lost update only makes a tile look a bit older.
+     */
+    private final int[] lastAccess;
+    private final int mask;
+
+    /**
+     * creates a new tracker.
+     *
+     * @param expectedTiles the number of tiles expected to be requested.
+     */
+    AccessTracker(int expectedTiles) {
+        this.sketch = new FrequencySketch(expectedTiles);
+        int tableSize = Integer.highestOneBit(Math.max(64, Math.min(expectedTiles, 1 << 24)) - 1) << 1;
+        this.lastAccess = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * records a request of the given tile.
+     *
+     * @param tileKey the requested tile.
+     */
+    void record(TileKey tileKey) {
+        lastAccess[indexOf(tileKey)] = (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+        int buffer = (int) Thread.currentThread().getId() & (BUFFERS - 1);
+        long write = writes.get(buffer * PADDING);
+        long pending = write - reads.get(buffer * PADDING);
+        if (pending < BUFFER_SIZE && writes.compareAndSet(buffer * PADDING, write, write + 1)) {
+            int hash = tileKey.hashCode();
+            buffers.set(buffer * BUFFER_SIZE + (int) (write & (BUFFER_SIZE - 1)), hash == 0 ? 1 : hash);
+            pending++;
+        }
+        if (pending >= BUFFER_SIZE / 2 && sketchLock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                sketchLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * adds the recorded requests to the sketch. The caller holds the sketch
+     * lock.
+     */
+    private void drain() {
+        for (int buffer = 0; buffer < BUFFERS; buffer++) {
+            long read = reads.get(buffer * PADDING);
+            long write = writes.get(buffer * PADDING);
+            for (; read < write; read++) {
+                int slot = buffer * BUFFER_SIZE + (int) (read & (BUFFER_SIZE - 1));
+                int hash = buffers.get(slot);
+                if (hash == 0) {
+                    // claimed, but not written yet - read next time
+                    break;
+                }
+                buffers.set(slot, 0);
+                sketch.increment(hash);
+            }
+            reads.set(buffer * PADDING, read);
+        }
+    }
+
+    /**
+     * returns the value of keeping the given tile, the tile with the lowest
+     * value should be evicted first. Tiles not requested since the start are
+     * rated by their modification time.
+     *
+     * @param tileKey the tile to rate.
+     * @param tileInfo the attributes of the tile.
+     * @return the value of the tile - the minute of its last access plus a
+     * bonus for each recent request.
+     */
+    long getPriority(TileKey tileKey, TileInfo tileInfo) {
+        long lastUsed = Math.max(lastAccess[indexOf(tileKey)], TimeUnit.MILLISECONDS.toMinutes(tileInfo.getLastModified()));
+        int frequency;
+        sketchLock.lock();
+        try {
+            drain();
+            frequency = sketch.frequency(tileKey);
+        } finally {
+            sketchLock.unlock();
+        }
+        return lastUsed + FREQUENCY_WEIGHT * frequency;
+    }
+
+    private int indexOf(TileKey tileKey) {
+        int hash = tileKey.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.entity.AbstractBinAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AbstractAsyncResponseConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.util.ByteArrayBuffer;
+
+/**
+ * Buffers the response of an upstream server like the default consumer of
+ * the http client, but fails the request once the body exceeds the given
+ * size. A misbehaving server cannot make the proxy buffer an endless
+ * response in memory.
+ *
+ * @author joern.muehlencord
+ */
+final class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<SimpleHttpResponse, byte[]> {
+
+    /**
+     * creates a new consumer.
+     *
+     * @param uri the requested uri, used in the error message.
+     * @param maxSize the maximum size of the body in bytes.
+     */
+    BoundedResponseConsumer(URI uri, int maxSize) {
+        super(new BoundedEntityConsumer(uri, maxSize));
+    }
+
+    @Override
+    public void informationResponse(HttpResponse response, HttpContext context) {
+        // 1xx responses carry no tile
+    }
+
+    @Override
+    protected SimpleHttpResponse buildResult(HttpResponse response, byte[] entity, ContentType contentType) {
+        SimpleHttpResponse result = SimpleHttpResponse.copy(response);
+        if (entity != null) {
+            result.setBody(entity, contentType);
+        }
+        return result;
+    }
+
+    private static final class BoundedEntityConsumer extends AbstractBinAsyncEntityConsumer<byte[]> {
+
+        private final URI uri;
+        private final int maxSize;
+        private final ByteArrayBuffer buffer = new ByteArrayBuffer(1024);
+
+        BoundedEntityConsumer(URI uri, int maxSize) {
+            this.uri = uri;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected void streamStart(ContentType contentType) {
+            buffer.clear();
+        }
+
+        @Override
+        protected int capacityIncrement() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+            if (src == null) {
+                return;
+            }
+            if (src.remaining() > maxSize - buffer.length()) {
+                throw new IOException(uri + " returned more than the maximum tile size of " + maxSize + " bytes");
+            }
+            buffer.append(src);
+        }
+
+        @Override
+        protected byte[] generateContent() {
+            return buffer.toByteArray();
+        }
+
+        @Override
+        public void releaseResources() {
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.store.control.BundleTileStore;
+import de.muehlencord.osmproxy.business.store.control.IndexedTileStore;
+import de.muehlencord.osmproxy.business.store.control.MemoryTileStore;
+import de.muehlencord.osmproxy.business.store.control.TieredTileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStoreManager;
+import de.muehlencord.osmproxy.business.store.control.TileVisitor;
+import de.muehlencord.osmproxy.business.store.control.WriteBehindTileStore;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the cache below the maximum size of each layer and of the whole
+ * cache. The requests of all tiles are tracked in memory, a background task
+ * checks the size of the layers tracked by their stores periodically and
+ * evicts the tiles requested least often and least recently until the cache
+ * is below 90% of its maximum size again. Tiles up to the protected zoom
+ * level are never evicted. The stores are walked zoom level by zoom level
+ * and throttled, to keep the disk available for clients.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class CacheEvictor implements Serializable {
+
+    private static final long serialVersionUID = -5382039172934476630L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheEvictor.class);
+
+    /**
+     * minutes between two checks of the cache size
+     */
+    private static final long INTERVAL = 5;
+
+    /**
+     * number of tiles expected to be requested, used to size the access
+     * tracker
+     */
+    private static final int EXPECTED_TILES = 1 << 20;
+
+    /**
+     * percentage of the maximum size the cache is reduced to, so the next
+     * eviction is not needed after a few new tiles
+     */
+    private static final int LOW_WATER_MARK = 90;
+
+    /**
+     * the highest zoom level a tile can be stored for
+     */
+    private static final int MAX_ZOOM = 19;
+
+    /**
+     * number of tiles visited per second while searching tiles to evict
+     */
+    private static final int TILES_PER_SECOND = 10000;
+
+    /**
+     * maximum number of tiles collected by a single walk through the stores -
+     * if more tiles need to be evicted, the stores are walked again
+     */
+    private static final int MAX_CANDIDATES = 100000;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    @Inject
+    private TileStoreManager tileStoreManager;
+
+    @Inject
+    private TileMemoryCache tileMemoryCache;
+
+    private final transient AccessTracker accessTracker = new AccessTracker(EXPECTED_TILES);
+    private final transient Map<String, Long> layerSizes = new ConcurrentHashMap<>();
+    private final transient LongAdder evictedTiles = new LongAdder();
+    private final transient LongAdder evictedBytes = new LongAdder();
+    private final transient LongAdder evictionRuns = new LongAdder();
+    private transient ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::run, 1, INTERVAL, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * records a request of the given tile, so it is kept over tiles requested
+     * less often.
+     *
+     * @param tileKey the requested tile.
+     */
+    public void recordAccess(TileKey tileKey) {
+        accessTracker.record(tileKey);
+    }
+
+    /**
+     * checks the size of all layers and evicts tiles if a maximum size is
+     * exceeded.
+     */
+    void run() {
+        try {
+            long maxCacheSize = configurationBean.getMaxCacheSize();
+            int protectedZoom = configurationBean.getProtectedZoom();
+            Map<String, Long> maxLayerSizes = new HashMap<>();
+            for (String layerName : configurationBean.getAllLayers()) {
+                long maxLayerSize = configurationBean.getMaxLayerSize(layerName);
+                if (maxLayerSize > 0 || maxCacheSize > 0) {
+                    maxLayerSizes.put(layerName, maxLayerSize);
+                }
+            }
+            layerSizes.keySet().retainAll(maxLayerSizes.keySet());
+            if (maxLayerSizes.isEmpty()) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            long evictedBefore = evictedTiles.sum();
+            Throttle throttle = new Throttle(TILES_PER_SECOND);
+            List<TileStore> stores = new ArrayList<>();
+            long cacheSize = 0;
+            boolean complete = true;
+            for (Map.Entry<String, Long> entry : maxLayerSizes.entrySet()) {
+                TileStore store = tileStoreManager.getStore(entry.getKey());
+                long layerSize = getSize(store, throttle);
+                if (layerSize < 0) {
+                    LOGGER.debug("Size of layer {} not known yet, checking it next time", entry.getKey());
+                    complete = false;
+                    continue;
+                }
+                stores.add(store);
+                long maxLayerSize = entry.getValue();
+                if (maxLayerSize > 0 && layerSize > maxLayerSize) {
+                    layerSize -= evict(Collections.singletonList(store), layerSize - getLowWaterMark(maxLayerSize), protectedZoom,
+                            accessTracker, MAX_CANDIDATES, throttle, this::evicted);
+                }
+                layerSizes.put(entry.getKey(), layerSize);
+                cacheSize += layerSize;
+            }
+            if (complete && maxCacheSize > 0 && cacheSize > maxCacheSize) {
+                evict(stores, cacheSize - getLowWaterMark(maxCacheSize), protectedZoom, accessTracker, MAX_CANDIDATES, throttle, this::evicted);
+            }
+            if (evictedTiles.sum() > evictedBefore) {
+                for (TileStore store : stores) {
+                    compact(store);
+                }
+            }
+            evictionRuns.increment();
+            long evicted = evictedTiles.sum() - evictedBefore;
+            if (evicted > 0) {
+                LOGGER.info("Evicted {} tiles in {} ms, cache size {} MB", evicted, System.currentTimeMillis() - start,
+                        getCacheSize() / (1024 * 1024));
+            }
+        } catch (ConfigurationException ex) {
+            LOGGER.error("Cannot evict tiles. Reason: {}", ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException ex) {
+            // keep the task scheduled
+            LOGGER.error("Cannot evict tiles. Reason: {}", ex.toString(), ex);
+        }
+    }
+
+    private boolean evicted(TileKey tileKey, TileInfo tileInfo) {
+        tileMemoryCache.invalidate(tileKey);
+        layerSizes.computeIfPresent(tileKey.getLayer(), (layerName, size) -> size - tileInfo.getSize());
+        evictedTiles.increment();
+        evictedBytes.add(tileInfo.getSize());
+        return true;
+    }
+
+    private static long getLowWaterMark(long maxSize) {
+        return maxSize / 100 * LOW_WATER_MARK;
+    }
+
+    /**
+     * returns the size of all tiles of the given store. The size is tracked
+     * by indexed and memory stores, other stores are walked.
+     *
+     * @param store the store to measure.
+     * @param throttle limits the tiles visited per second, if the store needs
+     * to be walked.
+     * @return the size of all tiles in bytes or -1, if the size is not known
+     * yet - e.g. while the index of the store is built.
+     * @throws IOException if the store cannot be read.
+     * @throws InterruptedException if the thread is interrupted while
+     * walking the store.
+     */
+    static long getSize(TileStore store, Throttle throttle) throws IOException, InterruptedException {
+        if (store instanceof IndexedTileStore) {
+            return ((IndexedTileStore) store).getSize();
+        }
+        if (store instanceof TieredTileStore) {
+            // the lower store holds all tiles
+            return getSize(((TieredTileStore) store).getLower(), throttle);
+        }
+        if (store instanceof MemoryTileStore) {
+            return ((MemoryTileStore) store).getSize();
+        }
+        long[] size = {0};
+        walk(store, 0, throttle, (tileKey, tileInfo) -> {
+            size[0] += tileInfo.getSize();
+            return true;
+        });
+        return size[0];
+    }
+
+    /**
+     * frees the disk space of the tiles evicted from the given store. Bundle
+     * stores only mark deleted tiles, their bundles need to be compacted.
+     *
+     * @param store the store tiles were evicted from.
+     * @throws IOException if a bundle cannot be compacted.
+     */
+    static void compact(TileStore store) throws IOException {
+        if (store instanceof BundleTileStore) {
+            long freed = ((BundleTileStore) store).compact();
+            LOGGER.debug("Compacted bundles of {}, freed {} bytes", ((BundleTileStore) store).getLayerFolder().toString(), freed);
+        } else if (store instanceof IndexedTileStore) {
+            compact(((IndexedTileStore) store).getStore());
+        } else if (store instanceof TieredTileStore) {
+            compact(((TieredTileStore) store).getLower());
+        } else if (store instanceof WriteBehindTileStore) {
+            compact(((WriteBehindTileStore) store).getStore());
+        }
+    }
+
+    /**
+     * evicts the least valuable tiles of the given stores. The stores are
+     * walked zoom level by zoom level, collecting the least valuable tiles
+     * needed to free the requested space - up to the given number of tiles
+     * per walk. Tiles changed since they were visited are kept.
+     *
+     * @param stores the stores to evict the tiles from.
+     * @param bytesToFree the number of bytes to free.
+     * @param protectedZoom tiles up to this zoom level are never evicted.
+     * @param accessTracker the tracker rating the tiles.
+     * @param maxCandidates the maximum number of tiles collected by a walk,
+     * the stores are walked again if more tiles need to be evicted.
+     * @param throttle limits the tiles visited per second.
+     * @param listener informed about each evicted tile.
+     * @return the number of bytes freed.
+     * @throws IOException if a store cannot be read or a tile cannot be
+     * deleted.
+     * @throws InterruptedException if the thread is interrupted while
+     * walking the stores.
+     */
+    static long evict(List<TileStore> stores, long bytesToFree, int protectedZoom, AccessTracker accessTracker, int maxCandidates,
+            Throttle throttle, TileVisitor listener) throws IOException, InterruptedException {
+        long freed = 0;
+        while (freed < bytesToFree) {
+            long freedByWalk = evictOnce(stores, bytesToFree - freed, protectedZoom, accessTracker, maxCandidates, throttle, listener);
+            if (freedByWalk == 0) {
+                break;
+            }
+            freed += freedByWalk;
+        }
+        return freed;
+    }
+
+    private static long evictOnce(List<TileStore> stores, long bytesToFree, int protectedZoom, AccessTracker accessTracker, int maxCandidates,
+            Throttle throttle, TileVisitor listener) throws IOException, InterruptedException {
+        // the most valuable candidate comes first, so it can be dropped once enough space is found
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.comparingLong((Candidate candidate) -> candidate.priority).reversed());
+        long[] candidateSize = {0};
+        for (TileStore store : stores) {
+            walk(store, protectedZoom + 1, throttle, (tileKey, tileInfo) -> {
+                candidates.add(new Candidate(store, tileKey, tileInfo, accessTracker.getPriority(tileKey, tileInfo)));
+                candidateSize[0] += tileInfo.getSize();
+                while (candidateSize[0] - candidates.peek().tileInfo.getSize() >= bytesToFree || candidates.size() > maxCandidates) {
+                    candidateSize[0] -= candidates.poll().tileInfo.getSize();
+                }
+                return true;
+            });
+        }
+
+        long freed = 0;
+        for (Candidate candidate : candidates) {
+            TileInfo current = candidate.store.stat(candidate.tileKey);
+            if (current == null || current.getLastModified() != candidate.tileInfo.getLastModified()) {
+                continue;
+            }
+            if (candidate.store.delete(candidate.tileKey)) {
+                freed += current.getSize();
+                listener.visit(candidate.tileKey, current);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * walks the zoom levels of the store from the given zoom level on, one
+     * permit of the throttle per tile.
+     */
+    private static void walk(TileStore store, int minZoom, Throttle throttle, TileVisitor visitor) throws IOException, InterruptedException {
+        for (int z = MAX_ZOOM; z >= Math.max(0, minZoom); z--) {
+            store.iterate(z, (tileKey, tileInfo) -> {
+                try {
+                    throttle.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return visitor.visit(tileKey, tileInfo);
+            });
+            if (Thread.interrupted()) {
+                throw new InterruptedException("eviction stopped");
+            }
+        }
+    }
+
+    public long getCacheSize() {
+        return layerSizes.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public long getEvictedTiles() {
+        return evictedTiles.sum();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.sum();
+    }
+
+    public long getEvictionRuns() {
+        return evictionRuns.sum();
+    }
+
+    /**
+     * a tile which may be evicted
+     */
+    private static class Candidate {
+
+        private final TileStore store;
+        private final TileKey tileKey;
+        private final TileInfo tileInfo;
+        private final long priority;
+
+        Candidate(TileStore store, TileKey tileKey, TileInfo tileInfo, long priority) {
+            this.store = store;
+            this.tileKey = tileKey;
+            this.tileInfo = tileInfo;
+            this.priority = priority;
+        }
+    }
+}
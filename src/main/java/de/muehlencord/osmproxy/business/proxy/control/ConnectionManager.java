@@ -15,18 +15,33 @@
  */
 package de.muehlencord.osmproxy.business.proxy.control;
 
+import de.muehlencord.osmproxy.business.config.entity.ConnectionSettings;
+import de.muehlencord.osmproxy.business.config.entity.RateLimit;
 import de.muehlencord.osmproxy.business.config.entity.Server;
-import java.io.FileOutputStream;
+import de.muehlencord.osmproxy.business.metrics.control.UpstreamMetrics;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.proxy.entity.UpstreamException;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Serializable;
-import java.net.MalformedURLException;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.file.Path;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -36,19 +51,35 @@ import javax.ejb.LockType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.validation.constraints.NotNull;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.DefaultSchemePortResolver;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.routing.DefaultRoutePlanner;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Downloads tiles from the upstream servers. Each upstream server has its own
+ * long-lived http client and connection pool, configured by the connection
+ * settings of the server.
  *
  * @author joern.muehlencord
  */
@@ -59,53 +90,185 @@ public class ConnectionManager implements Serializable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionManager.class);
 
-    private PoolingHttpClientConnectionManager connectionManager;
-    private final Map<String, RequestConfig> requestConfigMap = new ConcurrentHashMap<>();
+    /**
+     * number of threads writing downloaded tiles to disk
+     */
+    private static final int WRITER_THREADS = 4;
+
+    private ExecutorService writerExecutor;
+    private final Map<String, Optional<HttpHost>> proxyMap = new ConcurrentHashMap<>();
+
+    /**
+     * the clients of the upstream servers by server name
+     */
+    private final Map<String, UpstreamClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * the rate limits of the upstream servers by server name
+     */
+    private final Map<String, UpstreamLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * the metrics of the upstream servers by server name
+     */
+    private final Map<String, UpstreamMetrics> upstreamMetrics = new ConcurrentHashMap<>();
 
     @PostConstruct
     public void init() {
-        connectionManager = new PoolingHttpClientConnectionManager();
-        connectionManager.setMaxTotal(20);
-        connectionManager.setDefaultMaxPerRoute(2);
+        AtomicInteger threadCount = new AtomicInteger();
+        writerExecutor = Executors.newFixedThreadPool(WRITER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-writer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @PreDestroy
     public void shutdown() {
-        connectionManager.shutdown();
+        clients.values().forEach(client -> client.close());
+        clients.clear();
+        writerExecutor.shutdown();
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Connection manager shutdown");
         }
 
     }
 
+    /**
+     * returns the statistics of the connection pools.
+     *
+     * @return the pool statistics by server name.
+     */
     @Lock(LockType.READ)
-    public HttpClientConnectionManager getConnectionManager() {
-        return connectionManager;
+    public Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> poolStats = new TreeMap<>();
+        clients.forEach((name, client) -> poolStats.put(name, client.connectionManager.getTotalStats()));
+        return poolStats;
     }
 
+    /**
+     * returns the rate limiters of the upstream servers.
+     *
+     * @return the limiters by server name.
+     */
     @Lock(LockType.READ)
-    public RequestConfig getRequestConfig(URL url) {
-        String urlHostString = url.getProtocol() + "://" + url.getHost();
-        if (requestConfigMap.containsKey(urlHostString)) {
-            return requestConfigMap.get(urlHostString);
-        } else {
-            RequestConfig requestConfig = createRequestConfig(url);
-            requestConfigMap.put(urlHostString, requestConfig);
-            return requestConfig;
+    public Map<String, UpstreamLimiter> getLimiters() {
+        return new TreeMap<>(limiters);
+    }
+
+    /**
+     * returns the metrics of the upstream servers.
+     *
+     * @return the metrics by server name.
+     */
+    @Lock(LockType.READ)
+    public Map<String, UpstreamMetrics> getUpstreamMetrics() {
+        return new TreeMap<>(upstreamMetrics);
+    }
+
+    /**
+     * returns the limiter of the given server. The limiter is replaced if the
+     * rate limit of the server changes, requests already waiting are kept by
+     * the old one.
+     */
+    private UpstreamLimiter getLimiter(Server server) {
+        RateLimit rateLimit = server.getRateLimit();
+        UpstreamLimiter limiter = limiters.get(server.getName());
+        if (limiter != null && limiter.getRateLimit().equals(rateLimit)) {
+            return limiter;
+        }
+        return limiters.compute(server.getName(), (name, current) -> {
+            if (current != null && current.getRateLimit().equals(rateLimit)) {
+                return current;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Creating rate limiter for {} ({})", name, rateLimit);
+            }
+            return new UpstreamLimiter(name, rateLimit);
+        });
+    }
+
+    /**
+     * returns the client of the given server. The client is created on first
+     * use and replaced if the connection settings of the server change.
+     */
+    private UpstreamClient getClient(Server server) {
+        ConnectionSettings settings = server.getConnection();
+        UpstreamClient client = clients.get(server.getName());
+        if (client != null && client.settings.equals(settings)) {
+            return client;
+        }
+        return clients.compute(server.getName(), (name, current) -> {
+            if (current != null) {
+                if (current.settings.equals(settings)) {
+                    return current;
+                }
+                LOGGER.info("Connection settings of {} changed, replacing http client", name);
+                current.close();
+            }
+            return createClient(name, settings);
+        });
+    }
+
+    private UpstreamClient createClient(String serverName, ConnectionSettings settings) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Creating http client for {} ({})", serverName, settings);
         }
+        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(settings.getMaxConnections())
+                .setMaxConnPerRoute(settings.getMaxConnectionsPerRoute())
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(settings.getConnectTimeout(), TimeUnit.SECONDS)
+                        .setSocketTimeout(settings.getResponseTimeout(), TimeUnit.SECONDS)
+                        .build())
+                // HTTP/2 is negotiated using ALPN, plain http connections keep using HTTP/1.1
+                .setDefaultTlsConfig(TlsConfig.custom()
+                        .setVersionPolicy(settings.isHttp2() ? HttpVersionPolicy.NEGOTIATE : HttpVersionPolicy.FORCE_HTTP_1)
+                        .build())
+                .build();
+        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(settings.getConnectionRequestTimeout(), TimeUnit.SECONDS)
+                        .setResponseTimeout(settings.getResponseTimeout(), TimeUnit.SECONDS)
+                        .setDefaultKeepAlive(settings.getKeepAlive(), TimeUnit.SECONDS)
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(settings.getKeepAlive()))
+                .setRoutePlanner(new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE) {
+                    @Override
+                    protected HttpHost determineProxy(HttpHost target, HttpContext context) {
+                        return getProxy(target);
+                    }
+                })
+                .build();
+        httpClient.start();
+        return new UpstreamClient(settings, connectionManager, httpClient);
     }
 
-    private RequestConfig createRequestConfig(URL url) {
+    /**
+     * returns the proxy to use to connect to the given host.
+     *
+     * @param target the host to connect to.
+     * @return the proxy or null, if the host is connected directly.
+     */
+    @Lock(LockType.READ)
+    public HttpHost getProxy(HttpHost target) {
+        String urlHostString = target.getSchemeName() + "://" + target.getHostName();
+        return proxyMap.computeIfAbsent(urlHostString, key -> Optional.ofNullable(determineProxy(target))).orElse(null);
+    }
+
+    private HttpHost determineProxy(HttpHost target) {
         String httpProxyHost;
         String httpProxyPortString;
         Integer httpProxyPort = null;
-        String urlHostString = url.getProtocol() + "://" + url.getHost();
+        String urlHostString = target.getSchemeName() + "://" + target.getHostName();
         String nonProxyHosts = System.getProperty("http.nonProxyHosts");
 
         HttpHost httpProxy = null;
         if (matchesNonProxyHosts(nonProxyHosts, urlHostString)) {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Using no proxy, as {} matches nonProxyHosts {}", url.toString(), nonProxyHosts);
+                LOGGER.debug("Using no proxy, as {} matches nonProxyHosts {}", urlHostString, nonProxyHosts);
             }
 
         } else {
@@ -113,7 +276,7 @@ public class ConnectionManager implements Serializable {
                 LOGGER.debug("Checking proxy settings");
             }
             String prefix;
-            if (url.getProtocol().toLowerCase(Locale.US).contains("https")) {
+            if (target.getSchemeName().toLowerCase(Locale.US).contains("https")) {
                 prefix = "https";
             } else {
                 prefix = "http";
@@ -138,22 +301,18 @@ public class ConnectionManager implements Serializable {
             }
 
             if (httpProxyHost != null && httpProxyPort != null && !httpProxyPort.equals(0)) {
-                httpProxy = new HttpHost(httpProxyHost, httpProxyPort, "http");
+                httpProxy = new HttpHost("http", httpProxyHost, httpProxyPort);
                 if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Using proxy {}:{} to connect to {}", httpProxyHost, httpProxyPort, url.toString());
+                    LOGGER.debug("Using proxy {}:{} to connect to {}", httpProxyHost, httpProxyPort, urlHostString);
                 }
             } else {
                 if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Using no proxy to connect to {}", url.toString());
+                    LOGGER.debug("Using no proxy to connect to {}", urlHostString);
                 }
             }
         }
 
-        RequestConfig config = RequestConfig.custom()
-                .setProxy(httpProxy)
-                .build();
-
-        return config;
+        return httpProxy;
     }
 
     private boolean matchesNonProxyHosts(String nonProxyHostString, String hostString) {
@@ -179,43 +338,206 @@ public class ConnectionManager implements Serializable {
         return false;
     }
 
+    /**
+     * downloads the tile from the given url and stores it in the tile store.
+     * The download is executed asynchronously, the calling thread is not
+     * blocked. The request waits for the rate limit of the server in the
+     * order of its priority, if too many requests are waiting already, the
+     * download fails with an UpstreamBusyException.
+     *
+     * @param currentServer the server to download the tile from.
+     * @param userAgent the user agent to send if the server does not define
+     * its own one.
+     * @param uri the url of the tile.
+     * @param store the store to save the tile in.
+     * @param tileKey the tile to download.
+     * @param validators the validators of the cached tile to revalidate or
+     * null, to download the tile unconditionally.
+     * @param ticket the ticket defining the priority of the download.
+     * @return a future completed with the result of the download.
+     */
     @Lock(LockType.READ)
-    public void executeDownload(Server currentServer, @NotNull String userAgent, String urlString, Path tilePath) throws MalformedURLException, URISyntaxException, IOException {
+    public CompletableFuture<DownloadResult> executeDownload(Server currentServer, @NotNull String userAgent, URI uri, TileStore store, TileKey tileKey, TileMetadata validators, DownloadTicket ticket) {
+        UpstreamLimiter limiter = getLimiter(currentServer);
+        CompletableFuture<DownloadPriority> permit = limiter.acquire(ticket);
+        CompletableFuture<DownloadResult> result = new CompletableFuture<>();
+        permit.whenComplete((priority, th) -> {
+            if (th != null) {
+                result.completeExceptionally(th);
+                return;
+            }
+            if (result.isDone()) {
+                // cancelled while waiting for the permit
+                limiter.release(priority);
+                return;
+            }
+            CompletableFuture<DownloadResult> download = download(currentServer, userAgent, uri, store, tileKey, validators);
+            download.whenComplete((downloadResult, downloadFailure) -> {
+                limiter.release(priority);
+                if (downloadFailure == null) {
+                    result.complete(downloadResult);
+                } else {
+                    result.completeExceptionally(downloadFailure);
+                }
+            });
+            result.whenComplete((downloadResult, resultFailure) -> {
+                if (result.isCancelled()) {
+                    download.cancel(false);
+                }
+            });
+        });
+        // cancelling a waiting download removes it from the queue
+        result.whenComplete((downloadResult, th) -> {
+            if (result.isCancelled()) {
+                permit.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<DownloadResult> download(Server currentServer, String userAgent, URI uri, TileStore store, TileKey tileKey, TileMetadata validators) {
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Trying to download tile from upstream server {}", urlString);
+            LOGGER.debug("Trying to download tile from upstream server {}", uri);
         }
-        URL url = new URL(urlString);
-        RequestConfig config = getRequestConfig(url);
-        HttpGet httpget = new HttpGet(url.toURI());
-        httpget.setConfig(config);
+        SimpleRequestBuilder requestBuilder = SimpleRequestBuilder.get(uri);
 
         // check if userAgent is set for server (in config file)
         // if not, use the given userAgent. this is either the original user request (e.g. from the browser) or the default application one                
         if (currentServer.getUserAgent() != null) {
-            httpget.setHeader("User-Agent", currentServer.getUserAgent());
+            requestBuilder.setHeader("User-Agent", currentServer.getUserAgent());
         } else {
-            httpget.setHeader("User-Agent", userAgent);
-        } 
-        httpget.setHeader("Accept-Encoding", "gzip,deflate");
-        httpget.setHeader("Accept-Language", "en-US");
-
-        CloseableHttpClient httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
-        HttpResponse response = httpClient.execute(httpget);
-        HttpEntity entity = response.getEntity();
-        if (entity != null) {
-            saveFile(entity, tilePath);
+            requestBuilder.setHeader("User-Agent", userAgent);
+        }
+        // no Accept-Encoding - the async client does not decompress responses and tiles are compressed already
+        requestBuilder.setHeader("Accept-Language", "en-US");
+
+        // revalidate the cached tile instead of downloading it again
+        if (validators != null) {
+            if (validators.getETag() != null) {
+                requestBuilder.setHeader(HttpHeaders.IF_NONE_MATCH, validators.getETag());
+            }
+            if (validators.getLastModified() != null) {
+                requestBuilder.setHeader(HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified());
+            }
+        }
+
+        UpstreamMetrics metrics = upstreamMetrics.computeIfAbsent(currentServer.getName(), name -> new UpstreamMetrics());
+        long start = System.nanoTime();
+        CompletableFuture<SimpleHttpResponse> responseFuture = new CompletableFuture<>();
+        // the body is buffered to validate the tile before it is stored - up to the maximum tile size
+        BoundedResponseConsumer responseConsumer = new BoundedResponseConsumer(uri, currentServer.getConnection().getMaxTileSize() * 1024);
+        SimpleRequestProducer requestProducer = SimpleRequestProducer.create(requestBuilder.build());
+        Future<SimpleHttpResponse> exchange = getClient(currentServer).httpClient.execute(requestProducer, responseConsumer, new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                byte[] body = response.getBodyBytes();
+                metrics.recordResponse(System.nanoTime() - start, response.getCode(), body == null ? 0 : body.length);
+                responseFuture.complete(response);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                metrics.recordFailure(System.nanoTime() - start);
+                responseFuture.completeExceptionally(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                responseFuture.cancel(false);
+            }
+        });
+
+        // do not block the I/O threads of the http client - the store writes new tiles in the background,
+        // but writes them right away if too many tiles are waiting
+        CompletableFuture<DownloadResult> downloadFuture = responseFuture.thenApplyAsync(response -> {
+            TileMetadata metadata = new TileMetadata(getHeader(response, HttpHeaders.ETAG), getHeader(response, HttpHeaders.LAST_MODIFIED));
+            try {
+                if (validators != null && response.getCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    store.touch(tileKey, System.currentTimeMillis(), metadata);
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("{} not modified, refreshed {}", uri, tileKey);
+                    }
+                    return DownloadResult.NOT_MODIFIED;
+                }
+                if (response.getCode() == HttpStatus.SC_NOT_FOUND || response.getCode() == HttpStatus.SC_GONE) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("{} not available upstream", uri);
+                    }
+                    return DownloadResult.NOT_AVAILABLE;
+                }
+                // never store error pages as tile
+                byte[] body = checkResponse(uri, response, tileKey);
+                store.put(tileKey, ByteBuffer.wrap(body), System.currentTimeMillis(), metadata);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("stored {} as {}", urlString, tilePath.toString());
+                LOGGER.debug("stored {} as {}", uri, tileKey);
+            }
+            return DownloadResult.DOWNLOADED;
+        }, writerExecutor);
+
+        // cancelling the download aborts the request - e.g. if a hedged request was faster
+        downloadFuture.whenComplete((downloadResult, th) -> {
+            if (downloadFuture.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        return downloadFuture;
+    }
+
+    /**
+     * checks the status, content type and content of the upstream response.
+     *
+     * @return the body of the response.
+     * @throws CompletionException wrapping an UpstreamException if the
+     * response is not a tile.
+     */
+    private byte[] checkResponse(URI uri, SimpleHttpResponse response, TileKey tileKey) {
+        int status = response.getCode();
+        if (status != HttpStatus.SC_OK) {
+            throw new CompletionException(new UpstreamException(uri + " returned status " + status, status));
+        }
+        byte[] body = response.getBodyBytes();
+        if (body == null || body.length == 0) {
+            throw new CompletionException(new UpstreamException(uri + " returned no content", status));
+        }
+        String contentType = getHeader(response, HttpHeaders.CONTENT_TYPE);
+        if (contentType != null) {
+            String mimeType = contentType.toLowerCase(Locale.US);
+            if (mimeType.startsWith("text/") || mimeType.contains("html") || mimeType.contains("json") || mimeType.contains("xml")) {
+                throw new CompletionException(new UpstreamException(uri + " returned " + contentType + " instead of a tile", status));
             }
         }
+        if ("png".equals(tileKey.getEnding()) && !PngValidator.isValid(body)) {
+            throw new CompletionException(new UpstreamException(uri + " returned an invalid png", status));
+        }
+        return body;
+    }
+
+    private String getHeader(SimpleHttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
     }
 
-    private void saveFile(HttpEntity entity, Path tilePath) throws IOException {
-        InputStream is = entity.getContent();
-        FileOutputStream fos = new FileOutputStream(tilePath.toFile());
-        int inByte;
-        while ((inByte = is.read()) != -1) {
-            fos.write(inByte);
+
+    /**
+     * http client and connection pool of an upstream server
+     */
+    private static class UpstreamClient {
+
+        private final ConnectionSettings settings;
+        private final PoolingAsyncClientConnectionManager connectionManager;
+        private final CloseableHttpAsyncClient httpClient;
+
+        UpstreamClient(ConnectionSettings settings, PoolingAsyncClientConnectionManager connectionManager, CloseableHttpAsyncClient httpClient) {
+            this.settings = settings;
+            this.connectionManager = connectionManager;
+            this.httpClient = httpClient;
+        }
+
+        void close() {
+            httpClient.close(CloseMode.GRACEFUL);
         }
     }
 
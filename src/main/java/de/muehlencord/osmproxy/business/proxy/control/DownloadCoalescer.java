@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+
+/**
+ * Makes sure only one download per tile is running at the same time. Requests
+ * for a tile which is currently downloaded wait for the running download
+ * instead of starting their own one. If the running download has a lower
+ * priority than the request, the download is promoted.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class DownloadCoalescer implements Serializable {
+
+    private static final long serialVersionUID = 4503786012384957101L;
+
+    /**
+     * maximum time in seconds a request waits for a download started by
+     * another request
+     */
+    public static final long WAIT_TIMEOUT = 30;
+
+    private final transient SingleFlight<TileKey, DownloadResult> downloads = new SingleFlight<>();
+    private final transient Map<TileKey, DownloadTicket> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * starts the given download unless the tile is already downloaded.
+     *
+     * @param tileKey the tile to download.
+     * @param priority the priority of the request.
+     * @param download the download to execute, called with the ticket
+     * defining the priority of the download.
+     * @return a future completed once the (running) download is finished.
+     */
+    public CompletableFuture<DownloadResult> download(TileKey tileKey, DownloadPriority priority, Function<DownloadTicket, CompletableFuture<DownloadResult>> download) {
+        boolean[] started = {false};
+        CompletableFuture<DownloadResult> result = downloads.execute(tileKey, () -> {
+            // the ticket belongs to the download started here, a ticket of a finished download is never reused
+            started[0] = true;
+            DownloadTicket ticket = new DownloadTicket(priority);
+            tickets.put(tileKey, ticket);
+            CompletableFuture<DownloadResult> downloadResult;
+            try {
+                downloadResult = download.apply(ticket);
+            } catch (RuntimeException ex) {
+                tickets.remove(tileKey, ticket);
+                throw ex;
+            }
+            // remove the ticket before the download is released, so the next download gets a new one
+            return downloadResult.whenComplete((value, th) -> tickets.remove(tileKey, ticket));
+        });
+        if (!started[0]) {
+            // joined a running download - promote it if this request is more urgent
+            DownloadTicket ticket = tickets.get(tileKey);
+            if (ticket != null) {
+                ticket.promote(priority);
+            }
+        }
+        return result;
+    }
+
+    public int getInFlightCount() {
+        return downloads.getInFlightCount();
+    }
+
+    public long getCoalescedCount() {
+        return downloads.getCoalescedCount();
+    }
+}
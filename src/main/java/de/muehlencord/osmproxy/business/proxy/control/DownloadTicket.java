@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The priority of a running download. If a client waits for a tile which is
+ * downloaded in the background, the download is promoted, so the client does
+ * not wait behind background downloads.
+ *
+ * @author joern.muehlencord
+ */
+public class DownloadTicket {
+
+    private volatile DownloadPriority priority;
+    private final List<Runnable> promotionListeners = new CopyOnWriteArrayList<>();
+
+    public DownloadTicket(DownloadPriority priority) {
+        this.priority = priority;
+    }
+
+    public DownloadPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * raises the priority of the download, lower priorities are ignored.
+     *
+     * @param newPriority the priority requested.
+     */
+    public void promote(DownloadPriority newPriority) {
+        boolean promoted = false;
+        synchronized (this) {
+            if (newPriority.isHigherThan(priority)) {
+                priority = newPriority;
+                promoted = true;
+            }
+        }
+        if (promoted) {
+            promotionListeners.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * registers a listener called if the download is promoted.
+     *
+     * @param listener the listener to call.
+     */
+    void onPromotion(Runnable listener) {
+        promotionListeners.add(listener);
+    }
+}
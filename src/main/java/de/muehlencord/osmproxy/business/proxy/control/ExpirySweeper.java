@@ -0,0 +1,270 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.Expiry;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStoreManager;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expires outdated tiles in the background, so requests only need to compare
+ * the modification time of a tile. The cache is walked periodically, one zoom
+ * level of a layer at a time, several zoom levels in parallel. The walk is
+ * throttled to keep the disk available for clients. Outdated tiles are
+ * revalidated with the lowest priority, tiles outdated beyond the stale
+ * windows are deleted - both as configured. Broken tiles found by requests
+ * are deleted here as well, instead of on the request thread.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class ExpirySweeper implements Serializable {
+
+    private static final long serialVersionUID = 2967361059872349150L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    /**
+     * minutes between two checks whether a walk is due
+     */
+    private static final long CHECK_INTERVAL = 10;
+
+    /**
+     * the highest zoom level which can be requested
+     */
+    private static final int MAX_ZOOM = 19;
+
+    /**
+     * milliseconds to wait if the refresh queue is full
+     */
+    private static final long REFRESH_BACKOFF = 100;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    @Inject
+    private TileStoreManager tileStoreManager;
+
+    @Inject
+    private TileDownloader tileDownloader;
+
+    @Inject
+    private TileMemoryCache tileMemoryCache;
+
+    private final transient LongAdder checkedTiles = new LongAdder();
+    private final transient LongAdder revalidatedTiles = new LongAdder();
+    private final transient LongAdder deletedTiles = new LongAdder();
+    private transient ScheduledExecutorService scheduler;
+    private transient volatile ExecutorService walkers;
+    private transient volatile long lastStart;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::startWalk, 1, CHECK_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        ExecutorService running = walkers;
+        if (running != null) {
+            running.shutdownNow();
+        }
+    }
+
+    /**
+     * deletes the given tile in the background, e.g. because it is broken.
+     * The tile is removed from memory immediately.
+     *
+     * @param tileKey the tile to delete.
+     * @param reason the reason logged with the tile.
+     */
+    public void delete(TileKey tileKey, String reason) {
+        tileMemoryCache.invalidate(tileKey);
+        scheduler.execute(() -> {
+            try {
+                if (tileStoreManager.getStore(tileKey.getLayer()).delete(tileKey)) {
+                    LOGGER.info("Deleted {} tile {}", reason, tileKey);
+                }
+            } catch (ConfigurationException | IOException ex) {
+                LOGGER.error("Cannot delete {} tile {}. Reason: {}", reason, tileKey, ex.toString());
+            }
+        });
+    }
+
+    /**
+     * starts a walk through the cache if the background expiry is enabled,
+     * no walk is running and the interval since the last walk has passed.
+     */
+    private void startWalk() {
+        Walk walk;
+        List<String> layerNames;
+        try {
+            Expiry expiry = configurationBean.getExpiry();
+            int retentionTime = configurationBean.getRetentionTime();
+            if (expiry == null || retentionTime == 0 || (!expiry.isRevalidate() && !expiry.isDelete())) {
+                return;
+            }
+            if (walkers != null || System.currentTimeMillis() - lastStart < TimeUnit.HOURS.toMillis(expiry.getInterval())) {
+                return;
+            }
+            int staleWindow = Math.max(configurationBean.getStaleWhileRevalidate(), configurationBean.getStaleIfError());
+            walk = new Walk(expiry, retentionTime, staleWindow, "OSMProxy " + configurationBean.getVersion());
+            layerNames = configurationBean.getAllLayers();
+        } catch (ConfigurationException ex) {
+            LOGGER.error("Cannot expire tiles. Reason: {}", ex.getMessage());
+            return;
+        }
+
+        lastStart = System.currentTimeMillis();
+        long checkedBefore = checkedTiles.sum();
+        AtomicInteger walkerCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(walk.expiry.getThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-expiry-walker-" + walkerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        walkers = pool;
+        List<CompletableFuture<Void>> steps = new ArrayList<>();
+        // the highest zoom levels hold most tiles, start them first to spread the work evenly
+        for (int z = MAX_ZOOM; z >= 0; z--) {
+            for (String layerName : layerNames) {
+                long zoom = z;
+                steps.add(CompletableFuture.runAsync(() -> walk(layerName, zoom, walk), pool));
+            }
+        }
+        LOGGER.info("Started expiry of outdated tiles");
+        CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0])).whenComplete((result, th) -> {
+            pool.shutdown();
+            walkers = null;
+            LOGGER.info("Finished expiry of outdated tiles in {} s, checked {} tiles",
+                    TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - lastStart), checkedTiles.sum() - checkedBefore);
+        });
+    }
+
+    /**
+     * walks through the tiles of one zoom level of a layer.
+     */
+    private void walk(String layerName, long z, Walk walk) {
+        try {
+            TileStore store = tileStoreManager.getStore(layerName);
+            store.iterate(z, (tileKey, tileInfo) -> check(store, tileKey, tileInfo, walk));
+        } catch (ConfigurationException | IOException ex) {
+            LOGGER.error("Cannot expire tiles of zoom level {} of layer {}. Reason: {}", z, layerName, ex.toString());
+        }
+    }
+
+    /**
+     * revalidates or deletes the tile, if it is outdated.
+     *
+     * @return false to stop the walk, if the thread is interrupted.
+     */
+    private boolean check(TileStore store, TileKey tileKey, TileInfo tileInfo, Walk walk) throws IOException {
+        try {
+            walk.throttle.acquire();
+            checkedTiles.increment();
+            if (tileInfo.getLastModified() > walk.expiredBefore) {
+                return true;
+            }
+            if (walk.expiry.isDelete() && tileInfo.getLastModified() <= walk.deleteBefore) {
+                TileInfo current = store.stat(tileKey);
+                // the tile may have been refreshed in the meantime
+                if (current != null && current.getLastModified() == tileInfo.getLastModified() && store.delete(tileKey)) {
+                    tileMemoryCache.invalidate(tileKey);
+                    deletedTiles.increment();
+                }
+            } else if (walk.expiry.isRevalidate()) {
+                // wait for the running refreshes instead of dropping tiles
+                while (!tileDownloader.refresh(tileKey, walk.userAgent)) {
+                    Thread.sleep(REFRESH_BACKOFF);
+                }
+                revalidatedTiles.increment();
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public long getCheckedTiles() {
+        return checkedTiles.sum();
+    }
+
+    public long getRevalidatedTiles() {
+        return revalidatedTiles.sum();
+    }
+
+    public long getDeletedTiles() {
+        return deletedTiles.sum();
+    }
+
+    public boolean isRunning() {
+        return walkers != null;
+    }
+
+    /**
+     * the settings of a walk through the cache, fixed when the walk starts
+     */
+    private static class Walk {
+
+        private final Expiry expiry;
+        private final long expiredBefore;
+        private final long deleteBefore;
+        private final String userAgent;
+        private final Throttle throttle;
+
+        Walk(Expiry expiry, int retentionTime, int staleWindow, String userAgent) {
+            long now = System.currentTimeMillis();
+            this.expiry = expiry;
+            this.expiredBefore = now - TimeUnit.DAYS.toMillis(retentionTime);
+            this.deleteBefore = now - TimeUnit.DAYS.toMillis(retentionTime + staleWindow);
+            this.userAgent = userAgent;
+            this.throttle = new Throttle(expiry.getTilesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+/**
+ * Count-Min sketch with 4 bit counters used to estimate how often a key has
+ * been requested recently. Once the number of recorded accesses reaches the
+ * sample size, all counters are halved so old popularity fades out. Not thread
+ * safe, callers need to synchronize.
+ *
+ * @author joern.muehlencord
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * each long holds 16 counters of 4 bit
+     */
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * creates a new sketch.
+     *
+     * @param expectedEntries the number of entries expected to be hold by the
+     * cache using this sketch.
+     */
+    FrequencySketch(int expectedEntries) {
+        int tableSize = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 26)) - 1) << 1;
+        this.table = new long[tableSize];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+
+    /**
+     * returns the estimated number of accesses of the given key (0-15).
+     */
+    int frequency(Object key) {
+        return frequency(key.hashCode());
+    }
+
+    /**
+     * returns the estimated number of accesses of the key with the given
+     * hash code (0-15).
+     */
+    int frequency(int keyHash) {
+        int hash = spread(keyHash);
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, counter(hash, i));
+        }
+        return frequency;
+    }
+
+    /**
+     * records an access of the given key.
+     */
+    void increment(Object key) {
+        increment(key.hashCode());
+    }
+
+    /**
+     * records an access of the key with the given hash code.
+     */
+    void increment(int keyHash) {
+        int hash = spread(keyHash);
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementCounter(hash, i);
+        }
+        if (added && (++size >= sampleSize)) {
+            reset();
+        }
+    }
+
+    private int counter(int hash, int i) {
+        int index = indexOf(hash, i);
+        int offset = counterOffset(hash, i);
+        return (int) ((table[index] >>> offset) & 0xFL);
+    }
+
+    private boolean incrementCounter(int hash, int i) {
+        int index = indexOf(hash, i);
+        int offset = counterOffset(hash, i);
+        long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = size / 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private int counterOffset(int hash, int i) {
+        // each hash function uses its own nibble of the 16 counters of a slot
+        return (((hash >>> (i << 3)) & 3) << 2) + (i << 4);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
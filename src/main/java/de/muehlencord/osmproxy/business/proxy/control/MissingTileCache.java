@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Negative cache of tiles the upstream server reported as missing, so clients
+ * requesting non-existent tiles do not cause an upstream request each time.
+ * Entries expire after the configured missingTileTtl.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class MissingTileCache implements Serializable {
+
+    private static final long serialVersionUID = 4923870916257019238L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MissingTileCache.class);
+
+    /**
+     * maximum number of missing tiles remembered
+     */
+    private static final int MAX_ENTRIES = 100_000;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    /**
+     * expiry time by tile - the admission policy keeps scans of a crawler from
+     * evicting frequently requested missing tiles
+     */
+    private final transient WTinyLfuCache<TileKey, Long> cache = new WTinyLfuCache<>(MAX_ENTRIES, MAX_ENTRIES, expiry -> 1);
+
+    /**
+     * checks whether the upstream server recently reported the tile as
+     * missing.
+     *
+     * @param tileKey the tile to check.
+     * @return true, if the tile is known to be missing.
+     */
+    public boolean isMissing(TileKey tileKey) {
+        Long expiry = cache.get(tileKey);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry < System.currentTimeMillis()) {
+            cache.invalidate(tileKey);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * remembers the tile as missing.
+     *
+     * @param tileKey the missing tile.
+     */
+    public void put(TileKey tileKey) {
+        int ttl = getTtl();
+        if (ttl > 0) {
+            cache.put(tileKey, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl));
+        }
+    }
+
+    /**
+     * returns the number of seconds a missing tile is remembered.
+     *
+     * @return the time to live in seconds, 0 if the cache is disabled.
+     */
+    public int getTtl() {
+        try {
+            return configurationBean.getMissingTileTtl();
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+            return 0;
+        }
+    }
+
+    public int size() {
+        return cache.size();
+    }
+}
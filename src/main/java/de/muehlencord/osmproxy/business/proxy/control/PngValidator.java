@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Cheap structural check of PNG files. Instead of decoding the whole image,
+ * only the signature, the IHDR chunk (including its CRC) and the IEND trailer
+ * are verified. This detects truncated and garbage files (e.g. error pages
+ * stored by mistake) without touching the image data.
+ *
+ * @author joern.muehlencord
+ */
+public final class PngValidator {
+
+    /**
+     * the 8 byte PNG file signature
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * the IEND chunk - length 0, type IEND and its (constant) CRC
+     */
+    private static final byte[] IEND = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+
+    /**
+     * signature + IHDR chunk (4 length, 4 type, 13 data, 4 crc)
+     */
+    private static final int HEADER_LENGTH = 8 + 4 + 4 + 13 + 4;
+
+    /**
+     * smallest possible PNG - header, an empty IDAT chunk and IEND
+     */
+    private static final int MIN_LENGTH = HEADER_LENGTH + 12 + IEND.length;
+
+    private PngValidator() {
+        // hide constructor
+    }
+
+    /**
+     * checks the structure of the PNG file the given channel is opened for.
+     * The position of the channel is not changed.
+     *
+     * @param channel the channel to check.
+     * @return true, if the file looks like a complete PNG file, false
+     * otherwise.
+     * @throws IOException if the channel cannot be read.
+     */
+    public static boolean isValid(FileChannel channel) throws IOException {
+        return isValid(channel, 0, channel.size());
+    }
+
+    /**
+     * checks the structure of the tile opened in a tile store. Tiles stored
+     * in files are checked without reading the image data.
+     *
+     * @param region the tile to check.
+     * @return true, if the tile looks like a complete PNG file, false
+     * otherwise.
+     * @throws IOException if the tile cannot be read.
+     */
+    public static boolean isValid(TileRegion region) throws IOException {
+        if (region.getChannel() == null) {
+            return isValid(region.getData());
+        }
+        return isValid(region.getChannel(), region.getPosition(), region.getSize());
+    }
+
+    private static boolean isValid(FileChannel channel, long position, long size) throws IOException {
+        if (size < MIN_LENGTH) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header, position);
+        ByteBuffer trailer = ByteBuffer.allocate(IEND.length);
+        readFully(channel, trailer, position + size - IEND.length);
+        return isValid(header.array(), trailer.array());
+    }
+
+    /**
+     * checks the structure of the given PNG data.
+     *
+     * @param data the complete PNG data.
+     * @return true, if the data looks like a complete PNG file, false
+     * otherwise.
+     */
+    public static boolean isValid(byte[] data) {
+        if (data == null || data.length < MIN_LENGTH) {
+            return false;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(data, 0, header, 0, HEADER_LENGTH);
+        byte[] trailer = new byte[IEND.length];
+        System.arraycopy(data, data.length - IEND.length, trailer, 0, IEND.length);
+        return isValid(header, trailer);
+    }
+
+    /**
+     * checks the structure of the given PNG data. The position of the buffer
+     * is not changed.
+     *
+     * @param data the complete PNG data, from the position to the limit of
+     * the buffer.
+     * @return true, if the data looks like a complete PNG file, false
+     * otherwise.
+     */
+    public static boolean isValid(ByteBuffer data) {
+        if (data == null || data.remaining() < MIN_LENGTH) {
+            return false;
+        }
+        ByteBuffer source = data.duplicate();
+        byte[] header = new byte[HEADER_LENGTH];
+        source.get(header);
+        byte[] trailer = new byte[IEND.length];
+        source.position(data.limit() - IEND.length);
+        source.get(trailer);
+        return isValid(header, trailer);
+    }
+
+    private static boolean isValid(byte[] header, byte[] trailer) {
+
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (header[i] != SIGNATURE[i]) {
+                return false;
+            }
+        }
+        // IHDR must be the first chunk with a data length of 13
+        if (header[8] != 0 || header[9] != 0 || header[10] != 0 || header[11] != 13
+                || header[12] != 'I' || header[13] != 'H' || header[14] != 'D' || header[15] != 'R') {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header, 12, 4 + 13);
+        long expectedCrc = ((header[29] & 0xFFL) << 24) | ((header[30] & 0xFFL) << 16) | ((header[31] & 0xFFL) << 8) | (header[32] & 0xFFL);
+        if (crc.getValue() != expectedCrc) {
+            return false;
+        }
+        for (int i = 0; i < IEND.length; i++) {
+            if (trailer[i] != IEND[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long currentPosition = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, currentPosition);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            currentPosition += read;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.cluster.control.PeerClient;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.PeerRing;
+import de.muehlencord.osmproxy.business.config.entity.Prefetch;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStoreManager;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads the tiles a client is likely to ask for next - the neighbours of
+ * a missing tile and its children on the next zoom level - so the next pan or
+ * zoom is served from the cache. Prefetches are sent with the lowest
+ * priority, tiles already cached, missing upstream or pending are skipped.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class Prefetcher implements Serializable {
+
+    private static final long serialVersionUID = -1820476385521930744L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Prefetcher.class);
+
+    /**
+     * number of prefetches pending, further prefetches are dropped until the
+     * running ones are done
+     */
+    private static final int MAX_PENDING = 1000;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    @Inject
+    private TileDownloader tileDownloader;
+
+    @Inject
+    private MissingTileCache missingTileCache;
+
+    @Inject
+    private TileStoreManager tileStoreManager;
+
+    @Inject
+    private PeerClient peerClient;
+
+    private final transient Set<TileKey> pendingPrefetches = ConcurrentHashMap.newKeySet();
+    private final transient LongAdder prefetchCount = new LongAdder();
+
+    /**
+     * prefetches the tiles around the given tile, if prefetching is enabled
+     * for its layer.
+     *
+     * @param tileKey the tile a client asked for.
+     * @param userAgent the user agent to send to the upstream server.
+     */
+    public void prefetch(TileKey tileKey, String userAgent) {
+        Prefetch prefetch;
+        TileStore store;
+        try {
+            prefetch = configurationBean.getPrefetch(tileKey.getLayer());
+            if (prefetch == null) {
+                return;
+            }
+            store = tileStoreManager.getStore(tileKey.getLayer());
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+            return;
+        }
+
+        // in a cluster each peer prefetches the tiles it owns only
+        PeerRing peerRing = peerClient.getPeerRing();
+        for (TileKey candidate : getCandidates(tileKey, prefetch)) {
+            if (peerRing != null && !peerRing.isSelf(peerRing.getOwner(candidate.toString()))) {
+                continue;
+            }
+            if (pendingPrefetches.size() >= MAX_PENDING) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("prefetch queue full, skipping prefetch around tile {}", tileKey);
+                }
+                return;
+            }
+            if (missingTileCache.isMissing(candidate) || isStored(store, candidate) || !pendingPrefetches.add(candidate)) {
+                continue;
+            }
+            prefetchCount.increment();
+            tileDownloader.download(candidate, userAgent, false, DownloadPriority.PREFETCH).whenComplete((downloadResult, th) -> {
+                pendingPrefetches.remove(candidate);
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("prefetched tile {}: {}", candidate, th == null ? downloadResult : th.toString());
+                }
+            });
+        }
+    }
+
+    private boolean isStored(TileStore store, TileKey tileKey) {
+        try {
+            return store.stat(tileKey) != null;
+        } catch (IOException ex) {
+            // do not download tiles which cannot be stored anyway
+            LOGGER.error("Cannot read tile {}: {}", tileKey, ex.toString());
+            return true;
+        }
+    }
+
+    /**
+     * returns the tiles to prefetch for the given tile, the nearest tiles
+     * first. The map wraps around horizontally, so the neighbours of the
+     * tiles at the date line are taken from the other side.
+     *
+     * @param tileKey the tile a client asked for.
+     * @param prefetch the prefetch settings of the layer.
+     * @return the tiles to prefetch, without the tile itself.
+     */
+    static List<TileKey> getCandidates(TileKey tileKey, Prefetch prefetch) {
+        Set<TileKey> candidates = new LinkedHashSet<>();
+        long z = tileKey.getZ();
+        if (z <= prefetch.getMaxZoom()) {
+            long tilesPerAxis = 1L << z;
+            for (int ring = 1; ring <= prefetch.getRing(); ring++) {
+                for (int dy = -ring; dy <= ring; dy++) {
+                    long y = tileKey.getY() + dy;
+                    if (y < 0 || y >= tilesPerAxis) {
+                        continue;
+                    }
+                    // inner cells of the ring are part of the previous rings
+                    int step = (Math.abs(dy) == ring) ? 1 : 2 * ring;
+                    for (int dx = -ring; dx <= ring; dx += step) {
+                        long x = Math.floorMod(tileKey.getX() + dx, tilesPerAxis);
+                        candidates.add(new TileKey(tileKey.getLayer(), z, x, y, tileKey.getEnding()));
+                    }
+                }
+            }
+        }
+        if (prefetch.isChildren() && z + 1 <= prefetch.getMaxZoom()) {
+            for (long dy = 0; dy < 2; dy++) {
+                for (long dx = 0; dx < 2; dx++) {
+                    candidates.add(new TileKey(tileKey.getLayer(), z + 1, 2 * tileKey.getX() + dx, 2 * tileKey.getY() + dy, tileKey.getEnding()));
+                }
+            }
+        }
+        candidates.remove(tileKey);
+        return new ArrayList<>(candidates);
+    }
+
+    public int getPendingCount() {
+        return pendingPrefetches.size();
+    }
+
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+}
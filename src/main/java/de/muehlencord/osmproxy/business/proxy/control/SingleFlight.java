@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent executions of the same operation. The first caller for
+ * a key starts the operation, all callers asking for the same key while the
+ * operation is running get the same result - regardless whether the operation
+ * succeeds or fails. Once the operation is completed, the next call starts a
+ * new operation.
+ *
+ * @author joern.muehlencord
+ * @param <K> the type of the key identifying the operation
+ * @param <V> the type of the result of the operation
+ */
+public class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executionCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    /**
+     * executes the given operation unless an operation for the given key is
+     * already running.
+     *
+     * @param key the key identifying the operation.
+     * @param operation the operation to execute. It is executed on the calling
+     * thread and might either return a completed future (synchronous
+     * operation) or complete the future later on.
+     * @return a future completed with the result of the (running) operation.
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> operation) {
+        CompletableFuture<V> promise = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, promise);
+        if (running != null) {
+            coalescedCount.increment();
+            return running;
+        }
+
+        executionCount.increment();
+        CompletableFuture<V> result;
+        try {
+            result = operation.get();
+        } catch (RuntimeException ex) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(ex);
+        }
+        result.whenComplete((value, th) -> {
+            // remove first, so callers released by the promise start a new operation
+            inFlight.remove(key, promise);
+            if (th == null) {
+                promise.complete(value);
+            } else {
+                promise.completeExceptionally(th);
+            }
+        });
+        return promise;
+    }
+
+    /* *** statistics *** */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getExecutionCount() {
+        return executionCount.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+}
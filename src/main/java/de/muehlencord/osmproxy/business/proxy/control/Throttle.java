@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads work evenly over time by handing out a limited number of permits
+ * per second. Permits not used while idle are not saved up, so there are no
+ * bursts. Thread safe.
+ *
+ * @author joern.muehlencord
+ */
+class Throttle {
+
+    /**
+     * nanoseconds between two permits
+     */
+    private final long interval;
+
+    /**
+     * time the next permit is available at
+     */
+    private long next;
+
+    /**
+     * creates a new throttle.
+     *
+     * @param permitsPerSecond the number of permits handed out per second.
+     */
+    Throttle(int permitsPerSecond) {
+        this.interval = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.next = System.nanoTime();
+    }
+
+    /**
+     * waits until the next permit is available.
+     *
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting.
+     */
+    void acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            next = Math.max(next, now);
+            wait = next - now;
+            next += interval;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.UpstreamServer;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStoreManager;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads tiles from the upstream servers of a layer into its tile store,
+ * either on behalf of a waiting client or as background refresh of an
+ * outdated tile. Background refreshes are sent with a lower priority, so they
+ * never delay clients waiting for a tile.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class TileDownloader implements Serializable {
+
+    private static final long serialVersionUID = -6203412951893456278L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileDownloader.class);
+
+    /**
+     * number of background refreshes pending, further refreshes are dropped
+     * until the running ones are done
+     */
+    private static final int REFRESH_QUEUE_SIZE = 1000;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    @Inject
+    private ConnectionManager connectionManager;
+
+    @Inject
+    private DownloadCoalescer downloadCoalescer;
+
+    @Inject
+    private TileMemoryCache tileMemoryCache;
+
+    @Inject
+    private UpstreamSelector upstreamSelector;
+
+    @Inject
+    private MissingTileCache missingTileCache;
+
+    @Inject
+    private TileStoreManager tileStoreManager;
+
+    private final transient Set<TileKey> pendingRefreshes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * downloads the tile from the upstream servers. If the tile is already
+     * downloaded by another request, the running download is used. Tiles the
+     * upstream server recently reported as missing are not requested again.
+     *
+     * @param tileKey the tile to download.
+     * @param userAgent the user agent to send to the upstream server.
+     * @param revalidate true to revalidate the cached tile using the
+     * validators stored with the tile, false to download the tile
+     * unconditionally.
+     * @param priority the priority of the download.
+     * @return a future completed with the result of the download.
+     */
+    public CompletableFuture<DownloadResult> download(TileKey tileKey, String userAgent, boolean revalidate, DownloadPriority priority) {
+        if (missingTileCache.isMissing(tileKey)) {
+            LOGGER.debug("tile {} is known to be missing upstream", tileKey);
+            return CompletableFuture.completedFuture(DownloadResult.NOT_AVAILABLE);
+        }
+        return downloadCoalescer.download(tileKey, priority, ticket -> {
+            try {
+                TileStore store = tileStoreManager.getStore(tileKey.getLayer());
+                TileMetadata validators = revalidate ? readValidators(store, tileKey) : null;
+                return downloadFromUpStreamServer(userAgent, store, tileKey, validators, ticket)
+                        .whenComplete((downloadResult, th) -> {
+                            // the stored tile has changed - make sure the memory does not keep the old one
+                            if (downloadResult != null && downloadResult.isCached()) {
+                                tileMemoryCache.invalidate(tileKey);
+                            } else if (downloadResult == DownloadResult.NOT_AVAILABLE) {
+                                missingTileCache.put(tileKey);
+                            }
+                        });
+            } catch (ConfigurationException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        });
+    }
+
+    /**
+     * starts a background refresh of an outdated tile. Refreshes of tiles
+     * which are already pending are ignored.
+     *
+     * @param tileKey the tile to refresh.
+     * @param userAgent the user agent to send to the upstream server.
+     * @return true, if the refresh is started, false if too many refreshes
+     * are pending.
+     */
+    public boolean refresh(TileKey tileKey, String userAgent) {
+        if (pendingRefreshes.size() >= REFRESH_QUEUE_SIZE) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("refresh queue full, skipping refresh of tile {}", tileKey);
+            }
+            return false;
+        }
+        if (!pendingRefreshes.add(tileKey)) {
+            return true;
+        }
+        download(tileKey, userAgent, true, DownloadPriority.REFRESH).whenComplete((downloadResult, th) -> {
+            pendingRefreshes.remove(tileKey);
+            if (th != null) {
+                LOGGER.error("cannot refresh tile {}. Reason: {}", tileKey, th.toString());
+            } else if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("refreshed tile {} in background: {}", tileKey, downloadResult);
+            }
+        });
+        return true;
+    }
+
+    public int getRefreshQueueSize() {
+        return pendingRefreshes.size();
+    }
+
+    /**
+     * reads the validators of the stored tile, the tile is downloaded
+     * unconditionally if they cannot be read.
+     */
+    private TileMetadata readValidators(TileStore store, TileKey tileKey) {
+        try {
+            return store.getMetadata(tileKey);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot read validators of tile {}: {}", tileKey, ex.toString());
+            return null;
+        }
+    }
+
+    private CompletableFuture<DownloadResult> downloadFromUpStreamServer(String userAgent, TileStore store, TileKey tileKey, TileMetadata validators, DownloadTicket ticket) throws ConfigurationException {
+        List<UpstreamServer> upstreamServer = configurationBean.getUpstreamServer(tileKey.getLayer());
+        if (upstreamServer.isEmpty()) {
+            return CompletableFuture.completedFuture(DownloadResult.NOT_AVAILABLE);
+        }
+
+        // the fastest healthy server is asked first, the others are used as fallback
+        List<UpstreamServer> candidates = upstreamSelector.select(upstreamServer);
+        UpstreamRequest upstreamRequest = new UpstreamRequest(tileKey.toString(), candidates, upstreamSelector,
+                currentServer -> downloadFromUpStreamServer(currentServer, userAgent, store, tileKey, validators, ticket));
+        return upstreamRequest.start(configurationBean.isHedging(tileKey.getLayer()));
+    }
+
+    private CompletableFuture<DownloadResult> downloadFromUpStreamServer(UpstreamServer currentServer, String userAgent, TileStore store, TileKey tileKey, TileMetadata validators, DownloadTicket ticket) {
+        String urlString = currentServer.getUrlTemplate().render(tileKey.getLayer(), tileKey.getZ(), tileKey.getX(), tileKey.getY(), tileKey.getEnding());
+        URI uri;
+        try {
+            uri = URI.create(urlString);
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("cannot construct URL for upstream server. ", urlString);
+            return CompletableFuture.failedFuture(new ConfigurationException("upstream server url " + urlString + " is not valid", ex));
+        }
+        return connectionManager.executeDownload(currentServer.getServer(), userAgent, uri, store, tileKey, validators, ticket);
+    }
+}
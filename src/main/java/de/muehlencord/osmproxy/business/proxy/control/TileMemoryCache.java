@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.MemoryCache;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import javax.annotation.PostConstruct;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory cache of frequently requested tiles, consulted before the disk
+ * cache. The tiles are stored in direct buffers outside of the heap so a large
+ * cache does not increase the garbage collection effort. Note that the size of
+ * the cache is limited by -XX:MaxDirectMemorySize as well.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class TileMemoryCache implements Serializable {
+
+    private static final long serialVersionUID = -2873498624389262339L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileMemoryCache.class);
+
+    /**
+     * average size of an OpenStreetMap tile, used to size the frequency sketch
+     */
+    private static final int AVERAGE_TILE_SIZE = 16 * 1024;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    /**
+     * the cache - null if the memory cache is disabled
+     */
+    private transient WTinyLfuCache<TileKey, CachedTile> cache;
+
+    private long maxTileSize;
+
+    @PostConstruct
+    public void init() {
+        MemoryCache memoryCache;
+        try {
+            memoryCache = configurationBean.getMemoryCache();
+        } catch (ConfigurationException ex) {
+            LOGGER.error("Cannot read memory cache configuration, memory cache disabled. Reason: {}", ex.getMessage());
+            memoryCache = null;
+        }
+
+        if (memoryCache == null || memoryCache.getMaxSize() == null || memoryCache.getMaxSize() <= 0) {
+            LOGGER.info("Memory cache disabled");
+            return;
+        }
+        long maxSize = memoryCache.getMaxSize() * 1024L * 1024L;
+        maxTileSize = memoryCache.getMaxTileSize() == null ? Long.MAX_VALUE : memoryCache.getMaxTileSize() * 1024L;
+        cache = new WTinyLfuCache<>(maxSize, (int) Math.min(Integer.MAX_VALUE, maxSize / AVERAGE_TILE_SIZE), CachedTile::getSize);
+        LOGGER.info("Memory cache enabled, max size {} MB", memoryCache.getMaxSize());
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * returns the tile from memory.
+     *
+     * @param tileKey the tile to search for.
+     * @return the tile or null, if it is not in memory.
+     */
+    public CachedTile get(TileKey tileKey) {
+        if (cache == null) {
+            return null;
+        }
+        return cache.get(tileKey);
+    }
+
+    /**
+     * copies the tile opened in the tile store to memory, tiles stored in
+     * files are read directly into the memory of the cache. Tiles the store
+     * holds in memory already - in a memory store, waiting to be written or in
+     * a memory mapped bundle - are not copied, so a tile is not buffered
+     * twice. They are served from the store instead. Once the cache is full,
+     * a tile is only copied if it has been requested more often than the
+     * tile it would replace, so tiles requested once are streamed from the
+     * store without allocating a buffer.
+     *
+     * @param tileKey the tile to store.
+     * @param region the tile opened in the tile store.
+     * @return the tile stored in memory or null, if the memory cache is
+     * disabled, the tile is too large, held in memory by the store or not
+     * requested often enough to be kept.
+     * @throws IOException if the tile cannot be read.
+     */
+    public CachedTile put(TileKey tileKey, TileRegion region) throws IOException {
+        if (cache == null) {
+            return null;
+        }
+        if (region.getSize() > maxTileSize || region.getChannel() == null || !cache.isAdmissible(tileKey, (int) region.getSize())) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) region.getSize());
+        region.read(buffer);
+        buffer.flip();
+        CachedTile cachedTile = new CachedTile(buffer, region.getLastModified());
+
+        cache.put(tileKey, cachedTile);
+        return cachedTile;
+    }
+
+    /**
+     * @return the size of the tiles in memory in bytes.
+     */
+    public long getSize() {
+        return cache == null ? 0 : cache.getWeight();
+    }
+
+    public long getHitCount() {
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    /**
+     * removes the tile from memory.
+     *
+     * @param tileKey the tile to remove.
+     */
+    public void invalidate(TileKey tileKey) {
+        if (cache != null) {
+            cache.invalidate(tileKey);
+        }
+    }
+}
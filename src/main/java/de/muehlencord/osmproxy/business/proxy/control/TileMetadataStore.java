@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the upstream validators of a tile as user defined attributes of the
+ * tile file (extended attributes on Linux). This way no additional file is
+ * needed per tile and the validators are moved together with the tile. On
+ * file systems without support for user defined attributes no validators are
+ * stored, outdated tiles are downloaded again completely then.
+ *
+ * @author joern.muehlencord
+ */
+public final class TileMetadataStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileMetadataStore.class);
+
+    private static final String ETAG = "osmproxy.etag";
+    private static final String LAST_MODIFIED = "osmproxy.last-modified";
+
+    private TileMetadataStore() {
+        // hide constructor
+    }
+
+    /**
+     * reads the validators stored for the given tile.
+     *
+     * @param tilePath the tile to read the validators of.
+     * @return the validators or null, if no validators are stored.
+     */
+    public static TileMetadata read(Path tilePath) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(tilePath, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+        try {
+            List<String> names = view.list();
+            String eTag = names.contains(ETAG) ? readAttribute(view, ETAG) : null;
+            String lastModified = names.contains(LAST_MODIFIED) ? readAttribute(view, LAST_MODIFIED) : null;
+            TileMetadata metadata = new TileMetadata(eTag, lastModified);
+            return metadata.isEmpty() ? null : metadata;
+        } catch (IOException | UnsupportedOperationException ex) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Cannot read validators of {}: {}", tilePath.toString(), ex.toString());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * stores the validators for the given tile.
+     *
+     * @param tilePath the tile to store the validators for.
+     * @param metadata the validators to store - can be null.
+     */
+    public static void write(Path tilePath, TileMetadata metadata) {
+        if (metadata == null || metadata.isEmpty()) {
+            return;
+        }
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(tilePath, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        try {
+            if (metadata.getETag() != null) {
+                view.write(ETAG, StandardCharsets.UTF_8.encode(metadata.getETag()));
+            }
+            if (metadata.getLastModified() != null) {
+                view.write(LAST_MODIFIED, StandardCharsets.UTF_8.encode(metadata.getLastModified()));
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Cannot store validators of {}: {}", tilePath.toString(), ex.toString());
+            }
+        }
+    }
+
+    private static String readAttribute(UserDefinedFileAttributeView view, String name) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(view.size(name));
+        view.read(name, buffer);
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
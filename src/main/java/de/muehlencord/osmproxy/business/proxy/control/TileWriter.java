@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes tiles to the disk cache. The tile is written to a temporary file in
+ * the target directory first and moved to its final location afterwards, so
+ * concurrent readers either see the old tile, no tile or the complete new
+ * tile - but never a partially written one.
+ *
+ * @author joern.muehlencord
+ */
+public final class TileWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileWriter.class);
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private TileWriter() {
+        // hide constructor
+    }
+
+    /**
+     * writes the given stream to the tile path. The stream is closed
+     * afterwards.
+     *
+     * @param in the stream to read the tile from.
+     * @param tilePath the final location of the tile.
+     * @param syncPolicy whether to sync the data to the storage device.
+     * @return the number of bytes written.
+     * @throws IOException if the tile cannot be written. In this case the
+     * target file is not touched.
+     */
+    public static long write(InputStream in, Path tilePath, SyncPolicy syncPolicy) throws IOException {
+        return write(in, tilePath, syncPolicy, null);
+    }
+
+    /**
+     * writes the given stream to the tile path and stores the upstream
+     * validators together with the tile. The stream is closed afterwards.
+     *
+     * @param in the stream to read the tile from.
+     * @param tilePath the final location of the tile.
+     * @param syncPolicy whether to sync the data to the storage device.
+     * @param metadata the upstream validators to store - can be null.
+     * @return the number of bytes written.
+     * @throws IOException if the tile cannot be written. In this case the
+     * target file is not touched.
+     */
+    public static long write(InputStream in, Path tilePath, SyncPolicy syncPolicy, TileMetadata metadata) throws IOException {
+        Path directory = tilePath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, "." + tilePath.getFileName().toString(), ".tmp");
+        long size = 0;
+        try {
+            try (ReadableByteChannel source = Channels.newChannel(in);
+                    FileChannel target = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (source.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        size += target.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                if (syncPolicy != SyncPolicy.NONE) {
+                    target.force(true);
+                }
+            }
+            TileMetadataStore.write(tempFile, metadata);
+            move(tempFile, tilePath);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        }
+        if (syncPolicy == SyncPolicy.FULL) {
+            syncDirectory(directory);
+        }
+        return size;
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("atomic move not supported for {}, falling back to regular move", target.toString());
+            }
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        // not supported on all platforms (e.g. Windows) - the tile is written anyway, so just log it
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Cannot sync directory {}: {}", directory.toString(), ex.toString());
+            }
+        }
+    }
+}
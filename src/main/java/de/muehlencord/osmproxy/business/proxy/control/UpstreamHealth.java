@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks latency and error rate of an upstream server and acts as circuit
+ * breaker. After a number of consecutive failures the circuit opens and the
+ * server is skipped. Once the open time is over, a single trial request is
+ * let through; if it succeeds the circuit closes again, otherwise it stays
+ * open for twice the time. Only the caller holding the trial permit ends the
+ * trial, results of requests sent before the circuit opened do not.
+ *
+ * @author joern.muehlencord
+ */
+public class UpstreamHealth {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * the result of {@link #tryAcquire(long)}
+     */
+    public enum Permit {
+        /**
+         * the request must not be sent
+         */
+        DENIED,
+        /**
+         * the request may be sent, the circuit is closed
+         */
+        GRANTED,
+        /**
+         * the request is the trial request of a half open circuit
+         */
+        TRIAL;
+
+        public boolean isGranted() {
+            return this != DENIED;
+        }
+    }
+
+    /**
+     * consecutive failures which open the circuit
+     */
+    static final int FAILURE_THRESHOLD = 5;
+
+    static final long MIN_OPEN_TIME = TimeUnit.SECONDS.toMillis(30);
+    static final long MAX_OPEN_TIME = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * weight of a new sample in the moving averages
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * number of latency samples kept to calculate percentiles
+     */
+    private static final int SAMPLE_SIZE = 128;
+
+    private final String name;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openTime = MIN_OPEN_TIME;
+    private long openUntil;
+    private boolean trialRunning;
+
+    private double averageLatency;
+    private double errorRate;
+    private long successCount;
+    private long failureCount;
+
+    private final long[] latencies = new long[SAMPLE_SIZE];
+    private int latencyCount;
+    private int latencyIndex;
+
+    public UpstreamHealth(String name) {
+        this.name = name;
+    }
+
+    /**
+     * checks whether a request may be sent to the server. If the open time of
+     * the circuit is over, the first caller gets the trial request.
+     *
+     * @param now the current time in milliseconds.
+     * @return the permit, to be passed with the result of the request.
+     */
+    public synchronized Permit tryAcquire(long now) {
+        switch (state) {
+            case CLOSED:
+                return Permit.GRANTED;
+            case OPEN:
+                if (now < openUntil) {
+                    return Permit.DENIED;
+                }
+                state = State.HALF_OPEN;
+                trialRunning = true;
+                return Permit.TRIAL;
+            case HALF_OPEN:
+                if (trialRunning) {
+                    return Permit.DENIED;
+                }
+                trialRunning = true;
+                return Permit.TRIAL;
+            default:
+                return Permit.DENIED;
+        }
+    }
+
+    /**
+     * checks whether the server is available without acquiring the trial
+     * request.
+     */
+    public synchronized boolean isAvailable(long now) {
+        return state == State.CLOSED || (state == State.OPEN && now >= openUntil) || (state == State.HALF_OPEN && !trialRunning);
+    }
+
+    public synchronized void recordSuccess(long latency) {
+        successCount++;
+        consecutiveFailures = 0;
+        errorRate = errorRate * (1 - ALPHA);
+        averageLatency = successCount == 1 ? latency : averageLatency * (1 - ALPHA) + latency * ALPHA;
+        latencies[latencyIndex] = latency;
+        latencyIndex = (latencyIndex + 1) % SAMPLE_SIZE;
+        latencyCount = Math.min(latencyCount + 1, SAMPLE_SIZE);
+
+        state = State.CLOSED;
+        trialRunning = false;
+        openTime = MIN_OPEN_TIME;
+    }
+
+    /**
+     * records a failed request.
+     *
+     * @param now the current time in milliseconds.
+     * @param permit the permit of the request, only a failed trial request
+     * opens a half open circuit again.
+     */
+    public synchronized void recordFailure(long now, Permit permit) {
+        failureCount++;
+        consecutiveFailures++;
+        errorRate = errorRate * (1 - ALPHA) + ALPHA;
+
+        if (state == State.HALF_OPEN && permit == Permit.TRIAL) {
+            openTime = Math.min(openTime * 2, MAX_OPEN_TIME);
+            open(now);
+        } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open(now);
+        }
+    }
+
+    /**
+     * releases the permit of a request without a result, e.g. if the request
+     * was cancelled. If it was the trial request of a half open circuit, the
+     * next caller gets the trial.
+     *
+     * @param permit the permit returned by {@link #tryAcquire(long)}.
+     */
+    public synchronized void release(Permit permit) {
+        if (permit == Permit.TRIAL && state == State.HALF_OPEN) {
+            trialRunning = false;
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        trialRunning = false;
+        openUntil = now + openTime;
+    }
+
+    /**
+     * returns the score used to order the servers, lower is better. The
+     * average latency is penalized by the error rate. Servers without samples
+     * score best, so they get measured.
+     */
+    public synchronized double getScore() {
+        return (averageLatency + 10) * (1 + 10 * errorRate);
+    }
+
+    /**
+     * returns the given percentile of the recent latencies.
+     *
+     * @param percentile the percentile, e.g. 0.95.
+     * @param minSamples the minimum number of samples required.
+     * @return the latency in milliseconds or -1, if there are not enough
+     * samples.
+     */
+    public synchronized long getLatencyPercentile(double percentile, int minSamples) {
+        if (latencyCount < Math.max(1, minSamples)) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * latencyCount) - 1;
+        return sorted[Math.max(0, Math.min(index, latencyCount - 1))];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized double getAverageLatency() {
+        return averageLatency;
+    }
+
+    public synchronized double getErrorRate() {
+        return errorRate;
+    }
+
+    public synchronized long getSuccessCount() {
+        return successCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+}
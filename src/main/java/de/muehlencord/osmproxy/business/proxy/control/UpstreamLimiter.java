@@ -0,0 +1,312 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.RateLimit;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.UpstreamBusyException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the requests sent to an upstream server. The request rate is
+ * limited by a token bucket, the number of requests in parallel by a cap.
+ * Requests exceeding the limits wait until they can be sent - interactive
+ * requests first, background requests limited to the share of their priority
+ * class and all together to one request less than the cap, so a slot is kept
+ * free for interactive requests. Interactive requests wait in a bounded
+ * queue, if the queue is full the request is rejected immediately.
+ * Background requests are bounded by their producers.
+ *
+ * @author joern.muehlencord
+ */
+public class UpstreamLimiter {
+
+    private final String serverName;
+    private final RateLimit rateLimit;
+
+    /**
+     * the waiting requests in arrival order
+     */
+    private final List<Waiter> waiting = new LinkedList<>();
+    private final Map<DownloadPriority, ClassStatistics> statistics = new EnumMap<>(DownloadPriority.class);
+    private double tokens;
+    private long lastRefill;
+    private int running;
+    /**
+     * the running requests of all background classes
+     */
+    private int backgroundRunning;
+    private boolean dispatchScheduled;
+    private long rejected;
+
+    public UpstreamLimiter(String serverName, RateLimit rateLimit) {
+        this.serverName = serverName;
+        this.rateLimit = rateLimit;
+        this.tokens = rateLimit.getBurst();
+        this.lastRefill = System.nanoTime();
+        for (DownloadPriority priority : DownloadPriority.values()) {
+            statistics.put(priority, new ClassStatistics());
+        }
+    }
+
+    /**
+     * acquires a permit to send a request to the server. The permit must be
+     * given back by calling {@link #release(DownloadPriority)} once the
+     * request is done. Cancelling the returned future removes the request
+     * from the queue.
+     *
+     * @param ticket the ticket of the download, defining its priority.
+     * @return a future completed with the priority class the request is
+     * accounted to once the request may be sent or failed with an
+     * {@link UpstreamBusyException}, if the queue is full.
+     */
+    public CompletableFuture<DownloadPriority> acquire(DownloadTicket ticket) {
+        Waiter waiter;
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            DownloadPriority priority = ticket.getPriority();
+            if (!hasWaiting(priority) && tryStart(priority, now, now)) {
+                return CompletableFuture.completedFuture(priority);
+            }
+            if (priority == DownloadPriority.INTERACTIVE && statistics.get(priority).waiting >= rateLimit.getMaxQueuedRequests()) {
+                rejected++;
+                return CompletableFuture.failedFuture(new UpstreamBusyException("too many requests waiting for upstream server " + serverName, getRetryAfter()));
+            }
+            waiter = new Waiter(ticket, now);
+            waiting.add(waiter);
+            statistics.get(priority).waiting++;
+        }
+        ticket.onPromotion(this::dispatch);
+        // the requests waiting might have been cancelled meanwhile
+        dispatch();
+        return waiter.permit;
+    }
+
+    /**
+     * gives back a permit acquired by {@link #acquire(DownloadTicket)}.
+     *
+     * @param priority the priority class the permit was accounted to.
+     */
+    public void release(DownloadPriority priority) {
+        synchronized (this) {
+            running--;
+            if (priority.isBackground()) {
+                backgroundRunning--;
+            }
+            statistics.get(priority).running--;
+        }
+        dispatch();
+    }
+
+    /**
+     * hands out permits to the waiting requests as far as the limits allow,
+     * the highest priority first. The waiting requests are completed outside
+     * of the lock, as they start the download in the completing thread.
+     */
+    private void dispatch() {
+        List<Waiter> started = new ArrayList<>();
+        synchronized (this) {
+            dispatchScheduled = false;
+            long now = System.nanoTime();
+            refill(now);
+            updateWaiting();
+            for (DownloadPriority priority : DownloadPriority.values()) {
+                Iterator<Waiter> iterator = waiting.iterator();
+                while (iterator.hasNext()) {
+                    Waiter waiter = iterator.next();
+                    if (waiter.priority != priority) {
+                        continue;
+                    }
+                    if (waiter.permit.isDone()) {
+                        // cancelled while waiting
+                        iterator.remove();
+                        statistics.get(priority).waiting--;
+                    } else if (tryStart(priority, waiter.enqueued, now)) {
+                        iterator.remove();
+                        statistics.get(priority).waiting--;
+                        started.add(waiter);
+                    } else {
+                        break;
+                    }
+                }
+            }
+            scheduleDispatch();
+        }
+        for (Waiter waiter : started) {
+            if (!waiter.permit.complete(waiter.priority)) {
+                release(waiter.priority);
+            }
+        }
+    }
+
+    /**
+     * moves promoted requests to their new priority class
+     */
+    private void updateWaiting() {
+        for (Waiter waiter : waiting) {
+            DownloadPriority priority = waiter.ticket.getPriority();
+            if (priority != waiter.priority) {
+                statistics.get(waiter.priority).waiting--;
+                statistics.get(priority).waiting++;
+                waiter.priority = priority;
+            }
+        }
+    }
+
+    private boolean hasWaiting(DownloadPriority priority) {
+        for (DownloadPriority other : DownloadPriority.values()) {
+            if (!other.isHigherThan(priority) && other != priority) {
+                return false;
+            }
+            if (statistics.get(other).waiting > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * schedules the next dispatch if requests are waiting for a token only -
+     * requests waiting for a running request are dispatched by its release
+     */
+    private void scheduleDispatch() {
+        double rate = rateLimit.getRequestsPerSecond();
+        if (dispatchScheduled || rate <= 0 || waiting.isEmpty() || running >= rateLimit.getMaxConcurrentRequests()) {
+            return;
+        }
+        long delay = (long) Math.ceil((1 - tokens) * 1000 / rate);
+        dispatchScheduled = true;
+        CompletableFuture.delayedExecutor(Math.max(1, delay), TimeUnit.MILLISECONDS).execute(this::dispatch);
+    }
+
+    private boolean tryStart(DownloadPriority priority, long enqueued, long now) {
+        int maxConcurrentRequests = rateLimit.getMaxConcurrentRequests();
+        ClassStatistics classStatistics = statistics.get(priority);
+        if (running >= maxConcurrentRequests || classStatistics.running >= priority.getMaxConcurrentRequests(maxConcurrentRequests)) {
+            return false;
+        }
+        if (priority.isBackground() && backgroundRunning >= DownloadPriority.getMaxBackgroundRequests(maxConcurrentRequests)) {
+            return false;
+        }
+        if (rateLimit.getRequestsPerSecond() > 0) {
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+        }
+        running++;
+        if (priority.isBackground()) {
+            backgroundRunning++;
+        }
+        classStatistics.running++;
+        classStatistics.started++;
+        classStatistics.waitTime += now - enqueued;
+        return true;
+    }
+
+    private void refill(long now) {
+        double rate = rateLimit.getRequestsPerSecond();
+        if (rate > 0) {
+            tokens = Math.min(rateLimit.getBurst(), tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+    }
+
+    /**
+     * estimates the number of seconds until the waiting interactive requests
+     * are sent
+     */
+    private long getRetryAfter() {
+        double rate = rateLimit.getRequestsPerSecond();
+        if (rate <= 0) {
+            return 1;
+        }
+        return Math.max(1, (long) Math.ceil(statistics.get(DownloadPriority.INTERACTIVE).waiting / rate));
+    }
+
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    public synchronized int getWaiting(DownloadPriority priority) {
+        return statistics.get(priority).waiting;
+    }
+
+    /**
+     * @param priority the priority class.
+     * @return the number of requests of the class sent so far.
+     */
+    public synchronized long getStarted(DownloadPriority priority) {
+        return statistics.get(priority).started;
+    }
+
+    /**
+     * @param priority the priority class.
+     * @return the total time in milliseconds the requests of the class sent
+     * so far waited for the limits.
+     */
+    public synchronized long getWaitTime(DownloadPriority priority) {
+        return TimeUnit.NANOSECONDS.toMillis(statistics.get(priority).waitTime);
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * a request waiting for a permit
+     */
+    private static class Waiter {
+
+        private final DownloadTicket ticket;
+        private final long enqueued;
+        private final CompletableFuture<DownloadPriority> permit = new CompletableFuture<>();
+        private DownloadPriority priority;
+
+        Waiter(DownloadTicket ticket, long enqueued) {
+            this.ticket = ticket;
+            this.enqueued = enqueued;
+            this.priority = ticket.getPriority();
+        }
+    }
+
+    /**
+     * the counters of a priority class
+     */
+    private static class ClassStatistics {
+
+        private int running;
+        private int waiting;
+        private long started;
+        private long waitTime;
+    }
+}
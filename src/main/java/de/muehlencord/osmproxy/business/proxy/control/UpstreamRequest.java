@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.UpstreamServer;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.UpstreamBusyException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a tile from a list of upstream servers. If a server fails, the
+ * next server is tried. Optionally a hedged request is sent to the next
+ * server if the first one does not answer in time - the first answer wins,
+ * the other request is cancelled. A server rejecting the request due to its
+ * rate limit is skipped, without counting it as failure.
+ *
+ * @author joern.muehlencord
+ */
+class UpstreamRequest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamRequest.class);
+
+    private final String tileName;
+    private final List<UpstreamServer> candidates;
+    private final UpstreamSelector upstreamSelector;
+    private final Function<UpstreamServer, CompletableFuture<DownloadResult>> download;
+
+    private final CompletableFuture<DownloadResult> result = new CompletableFuture<>();
+    private final List<CompletableFuture<DownloadResult>> attempts = new ArrayList<>();
+    private int next;
+    private int running;
+    private Throwable lastFailure;
+
+    /**
+     * creates a new request.
+     *
+     * @param tileName the name of the tile, used for logging.
+     * @param candidates the servers to try, in this order.
+     * @param upstreamSelector the selector keeping the health of the servers.
+     * @param download the function downloading the tile from a server.
+     */
+    UpstreamRequest(String tileName, List<UpstreamServer> candidates, UpstreamSelector upstreamSelector,
+            Function<UpstreamServer, CompletableFuture<DownloadResult>> download) {
+        this.tileName = tileName;
+        this.candidates = candidates;
+        this.upstreamSelector = upstreamSelector;
+        this.download = download;
+    }
+
+    /**
+     * starts the download.
+     *
+     * @param hedge true to send a hedged request to the next server if the
+     * first server does not answer in time.
+     * @return a future completed with the first successful result or the
+     * last failure, if all servers failed.
+     */
+    CompletableFuture<DownloadResult> start(boolean hedge) {
+        synchronized (this) {
+            if (!launch()) {
+                fail();
+                return result;
+            }
+        }
+        if (hedge && (candidates.size() > 1) && !result.isDone()) {
+            long delay = upstreamSelector.getHedgeDelay(candidates.get(0));
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(this::hedge);
+        }
+        return result;
+    }
+
+    private synchronized void hedge() {
+        if (!result.isDone() && launch() && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("sent hedged request for tile {}", tileName);
+        }
+    }
+
+    /**
+     * sends the request to the next available server.
+     *
+     * @return true, if a request was sent, false if there is no server left.
+     */
+    private synchronized boolean launch() {
+        while (next < candidates.size()) {
+            UpstreamServer server = candidates.get(next++);
+            UpstreamHealth health = upstreamSelector.getHealth(server.getName());
+            UpstreamHealth.Permit permit = health.tryAcquire(System.currentTimeMillis());
+            if (!permit.isGranted()) {
+                continue;
+            }
+            running++;
+            long start = System.nanoTime();
+            CompletableFuture<DownloadResult> attempt;
+            try {
+                attempt = download.apply(server);
+            } catch (RuntimeException ex) {
+                attempt = CompletableFuture.failedFuture(ex);
+            }
+            attempts.add(attempt);
+            attempt.whenComplete((downloadResult, th) -> complete(server, health, permit, start, downloadResult, th));
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void complete(UpstreamServer server, UpstreamHealth health, UpstreamHealth.Permit permit, long start, DownloadResult downloadResult, Throwable th) {
+        running--;
+        if (th == null) {
+            health.recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (!result.isDone()) {
+                // the first answer wins
+                attempts.forEach(attempt -> attempt.cancel(false));
+                result.complete(downloadResult);
+            }
+            return;
+        }
+
+        Throwable cause = th;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof CancellationException) {
+            health.release(permit);
+            return;
+        }
+        if (cause instanceof ConfigurationException) {
+            // not a failure of the server
+            health.release(permit);
+            result.completeExceptionally(cause);
+            return;
+        }
+
+        if (cause instanceof UpstreamBusyException) {
+            // the server is not asked at all - try the next one
+            health.release(permit);
+        } else {
+            health.recordFailure(System.currentTimeMillis(), permit);
+        }
+        lastFailure = cause;
+        if (result.isDone()) {
+            return;
+        }
+        LOGGER.warn("cannot download tile {} from {}. Reason: {}", tileName, server.getName(), cause.toString());
+        if (!launch() && running == 0) {
+            fail();
+        }
+    }
+
+    private void fail() {
+        if (lastFailure == null) {
+            result.completeExceptionally(new IOException("no upstream server available for tile " + tileName));
+        } else {
+            result.completeExceptionally(lastFailure);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.UpstreamServer;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+
+/**
+ * Keeps the health of all upstream servers and orders the servers of a layer
+ * by their expected latency. Servers with an open circuit are skipped.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Lock(LockType.READ)
+public class UpstreamSelector implements Serializable {
+
+    private static final long serialVersionUID = 2785693409364165321L;
+
+    /**
+     * delay before a hedged request is sent if the latency of the server is
+     * not known yet
+     */
+    static final long DEFAULT_HEDGE_DELAY = 1000;
+    static final long MIN_HEDGE_DELAY = 50;
+    static final long MAX_HEDGE_DELAY = 5000;
+
+    /**
+     * latency percentile after which a hedged request is sent
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int HEDGE_MIN_SAMPLES = 10;
+
+    private final Map<String, UpstreamHealth> healthMap = new ConcurrentHashMap<>();
+
+    /**
+     * returns the available servers ordered by their score, the best server
+     * first. Servers with the same score keep their configured order.
+     *
+     * @param servers the servers of the layer.
+     * @return the available servers, empty if all circuits are open.
+     */
+    public List<UpstreamServer> select(List<UpstreamServer> servers) {
+        long now = System.currentTimeMillis();
+        List<UpstreamServer> available = new ArrayList<>(servers.size());
+        for (UpstreamServer server : servers) {
+            if (getHealth(server.getName()).isAvailable(now)) {
+                available.add(server);
+            }
+        }
+        if (available.size() > 1) {
+            available.sort(Comparator.comparingDouble(server -> getHealth(server.getName()).getScore()));
+        }
+        return available;
+    }
+
+    /**
+     * returns the time to wait for the given server before a hedged request
+     * is sent to the next server.
+     *
+     * @param server the server the first request is sent to.
+     * @return the delay in milliseconds.
+     */
+    public long getHedgeDelay(UpstreamServer server) {
+        long delay = getHealth(server.getName()).getLatencyPercentile(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+        if (delay < 0) {
+            return DEFAULT_HEDGE_DELAY;
+        }
+        return Math.max(MIN_HEDGE_DELAY, Math.min(delay, MAX_HEDGE_DELAY));
+    }
+
+    public UpstreamHealth getHealth(String serverName) {
+        return healthMap.computeIfAbsent(serverName, UpstreamHealth::new);
+    }
+
+    public Collection<UpstreamHealth> getAllHealth() {
+        return Collections.unmodifiableCollection(healthMap.values());
+    }
+}
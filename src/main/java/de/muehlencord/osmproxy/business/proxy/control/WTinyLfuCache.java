@@ -0,0 +1,359 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Size bounded cache using the W-TinyLFU eviction policy. New entries enter a
+ * small LRU window (1% of the capacity). Entries leaving the window only make
+ * it into the main area (a segmented LRU) if they have been requested more
+ * often than the entry they would replace. This way a scan over many tiles
+ * which are requested only once does not flush the popular tiles from the
+ * cache.
+ *
+ * Reads are lock free. The bookkeeping of reads is skipped if another thread
+ * currently holds the lock, which only makes the policy slightly less precise.
+ *
+ * @author joern.muehlencord
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class WTinyLfuCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final Map<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final ToIntFunction<V> weigher;
+
+    // the queues are kept in LRU order, the first entry is the least recently used one
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Node<K, V>> protectedQueue = new LinkedHashMap<>();
+
+    private final long maxWeight;
+    private final long maxWindowWeight;
+    private final long maxProtectedWeight;
+    private long windowWeight;
+    private long protectedWeight;
+    private long totalWeight;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * creates a new cache
+     *
+     * @param maxWeight the maximum total weight of all entries (e.g. bytes).
+     * @param expectedEntries the number of entries expected to fit into the
+     * cache, used to size the frequency sketch.
+     * @param weigher function to calculate the weight of an entry.
+     */
+    public WTinyLfuCache(long maxWeight, int expectedEntries, ToIntFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.maxWindowWeight = Math.max(1, maxWeight / 100);
+        this.maxProtectedWeight = (long) ((maxWeight - maxWindowWeight) * 0.8);
+        this.sketch = new FrequencySketch(expectedEntries);
+        this.weigher = weigher;
+    }
+
+    /**
+     * returns the value stored for the given key.
+     *
+     * @param key the key to search for.
+     * @return the value or null, if the key is not cached.
+     */
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                if (node != null && data.get(key) == node) {
+                    onHit(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * adds or replaces the value for the given key. Values heavier than the
+     * whole cache are not stored.
+     *
+     * @param key the key to store the value for.
+     * @param value the value to store.
+     */
+    public void put(K key, V value) {
+        int weight = weigher.applyAsInt(value);
+        lock.lock();
+        try {
+            Node<K, V> old = data.remove(key);
+            if (old != null) {
+                unlink(old);
+            }
+            if (weight > maxWeight) {
+                return;
+            }
+            Node<K, V> node = new Node<>(key, value, weight);
+            data.put(key, node);
+            node.queue = WINDOW;
+            window.put(key, node);
+            windowWeight += weight;
+            totalWeight += weight;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * checks whether a value for the given key is likely to stay in the
+     * cache, so callers can skip creating values which would be evicted
+     * right away. This is the case while the cache has room for the value or
+     * if the key has been requested more often than the entry it would
+     * replace. If another thread holds the lock, the value is considered
+     * not worth adding.
+     *
+     * @param key the key to add.
+     * @param weight the weight of the value.
+     * @return true, if the value is likely to stay in the cache.
+     */
+    public boolean isAdmissible(K key, int weight) {
+        if (weight > maxWeight || !lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (totalWeight + weight <= maxWeight) {
+                return true;
+            }
+            Node<K, V> victim = firstOf(probation);
+            if (victim == null) {
+                victim = firstOf(protectedQueue);
+            }
+            return victim == null || sketch.frequency(key) > sketch.frequency(victim.key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * removes the value for the given key from the cache.
+     *
+     * @param key the key to remove.
+     */
+    public void invalidate(K key) {
+        lock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * removes all entries from the cache.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+            windowWeight = 0;
+            protectedWeight = 0;
+            totalWeight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* *** statistics *** */
+    public int size() {
+        return data.size();
+    }
+
+    public long getWeight() {
+        lock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /* *** policy *** */
+    private void onHit(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                moveToMru(window, node);
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                node.queue = PROTECTED;
+                protectedQueue.put(node.key, node);
+                protectedWeight += node.weight;
+                demoteProtected();
+                break;
+            default:
+                moveToMru(protectedQueue, node);
+                break;
+        }
+    }
+
+    /**
+     * moves entries from the protected segment to probation until the
+     * protected segment fits its limit.
+     */
+    private void demoteProtected() {
+        Iterator<Node<K, V>> it = protectedQueue.values().iterator();
+        while (protectedWeight > maxProtectedWeight && it.hasNext()) {
+            Node<K, V> demoted = it.next();
+            it.remove();
+            protectedWeight -= demoted.weight;
+            demoted.queue = PROBATION;
+            probation.put(demoted.key, demoted);
+        }
+    }
+
+    private void evict() {
+        // entries leaving the window become candidates for the main area
+        Iterator<Node<K, V>> windowIt = window.values().iterator();
+        while (windowWeight > maxWindowWeight && windowIt.hasNext()) {
+            Node<K, V> candidate = windowIt.next();
+            windowIt.remove();
+            windowWeight -= candidate.weight;
+            candidate.queue = PROBATION;
+            probation.put(candidate.key, candidate);
+            if (totalWeight > maxWeight) {
+                admit(candidate);
+            }
+        }
+        // the window itself might still be too large if single entries are heavy
+        while (totalWeight > maxWeight) {
+            Node<K, V> victim = firstOf(probation);
+            if (victim == null) {
+                victim = firstOf(protectedQueue);
+            }
+            if (victim == null) {
+                victim = firstOf(window);
+            }
+            remove(victim);
+        }
+    }
+
+    /**
+     * either keeps the candidate and evicts the least recently used entries of
+     * the main area, or evicts the candidate if it is less popular.
+     */
+    private void admit(Node<K, V> candidate) {
+        while (totalWeight > maxWeight && data.get(candidate.key) == candidate) {
+            Node<K, V> victim = firstOf(probation);
+            if (victim == candidate || victim == null) {
+                victim = firstOf(protectedQueue);
+            }
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                remove(candidate);
+            } else {
+                remove(victim);
+            }
+        }
+    }
+
+    private void remove(Node<K, V> node) {
+        data.remove(node.key);
+        unlink(node);
+        evictionCount.increment();
+    }
+
+    private void unlink(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node.key);
+                windowWeight -= node.weight;
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                break;
+            default:
+                protectedQueue.remove(node.key);
+                protectedWeight -= node.weight;
+                break;
+        }
+        totalWeight -= node.weight;
+    }
+
+    private static <K, V> void moveToMru(LinkedHashMap<K, Node<K, V>> queue, Node<K, V> node) {
+        queue.remove(node.key);
+        queue.put(node.key, node);
+    }
+
+    private static <K, V> Node<K, V> firstOf(LinkedHashMap<K, Node<K, V>> queue) {
+        Iterator<Node<K, V>> it = queue.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static class Node<K, V> {
+
+        private final K key;
+        private final V value;
+        private final int weight;
+        private int queue;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
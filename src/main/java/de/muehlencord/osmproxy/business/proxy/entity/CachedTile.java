@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.entity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A tile read from the cache. The image data is stored in a read only
+ * (usually direct or memory mapped) buffer, so it can be shared between
+ * concurrent requests.
+ *
+ * @author joern.muehlencord
+ */
+public class CachedTile {
+
+    private final ByteBuffer data;
+    private final long lastModified;
+
+    /**
+     * creates a new cached tile
+     *
+     * @param data the image data, the buffer is not copied.
+     * @param lastModified the last modification time of the tile in the disk
+     * cache in milliseconds since epoch.
+     */
+    public CachedTile(ByteBuffer data, long lastModified) {
+        this.data = data.asReadOnlyBuffer();
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * returns a new view on the image data, positioned at the start.
+     *
+     * @return the image data.
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    public int getSize() {
+        return data.remaining();
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.entity;
+
+/**
+ * The priority class of a tile download. Waiting downloads are sent to the
+ * upstream server in the order of their class, each class may use its share
+ * of the parallel requests allowed for the server only. Together the
+ * background classes always leave one request to the interactive class.
+ *
+ * @author joern.muehlencord
+ */
+public enum DownloadPriority {
+
+    /**
+     * a client is waiting for the tile
+     */
+    INTERACTIVE(1.0),
+    /**
+     * an outdated tile is refreshed in the background
+     */
+    REFRESH(0.5),
+    /**
+     * a tile is downloaded before any client asked for it
+     */
+    PREFETCH(0.25),
+    /**
+     * a tile of a seed job is downloaded
+     */
+    SEED(0.25);
+
+    private final double share;
+
+    private DownloadPriority(double share) {
+        this.share = share;
+    }
+
+    /**
+     * returns the number of requests this class may send in parallel.
+     *
+     * @param maxConcurrentRequests the number of parallel requests allowed
+     * for the server.
+     * @return the share of this class, at least 1.
+     */
+    public int getMaxConcurrentRequests(int maxConcurrentRequests) {
+        return Math.max(1, (int) (share * maxConcurrentRequests));
+    }
+
+    /**
+     * returns the number of requests all background classes together may
+     * send in parallel. One request is always kept free for interactive
+     * requests, unless the server allows a single request only.
+     *
+     * @param maxConcurrentRequests the number of parallel requests allowed
+     * for the server.
+     * @return the number of parallel background requests, at least 1.
+     */
+    public static int getMaxBackgroundRequests(int maxConcurrentRequests) {
+        return Math.max(1, maxConcurrentRequests - 1);
+    }
+
+    /**
+     * @return true, if no client is waiting for downloads of this class.
+     */
+    public boolean isBackground() {
+        return this != INTERACTIVE;
+    }
+
+    /**
+     * @param other the priority to compare with.
+     * @return true, if this priority is more urgent than the given one.
+     */
+    public boolean isHigherThan(DownloadPriority other) {
+        return ordinal() < other.ordinal();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.entity;
+
+/**
+ * The result of a tile download from an upstream server.
+ *
+ * @author joern.muehlencord
+ */
+public enum DownloadResult {
+
+    /**
+     * the tile has been downloaded and stored in the cache
+     */
+    DOWNLOADED,
+    /**
+     * the cached tile has not been changed upstream, only its timestamp has
+     * been refreshed
+     */
+    NOT_MODIFIED,
+    /**
+     * the upstream server did not deliver the tile
+     */
+    NOT_AVAILABLE;
+
+    /**
+     * @return true, if the tile is available in the cache after the download.
+     */
+    public boolean isCached() {
+        return this != NOT_AVAILABLE;
+    }
+}
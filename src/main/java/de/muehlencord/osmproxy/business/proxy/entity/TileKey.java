@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.entity;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Identifies a single tile of a layer.
+ *
+ * @author joern.muehlencord
+ */
+public class TileKey {
+
+    private final String layer;
+    private final long z;
+    private final long x;
+    private final long y;
+    private final String ending;
+
+    public TileKey(String layer, long z, long x, long y, String ending) {
+        this.layer = layer;
+        this.z = z;
+        this.x = x;
+        this.y = y;
+        this.ending = ending;
+    }
+
+    /* *** getter *** */
+    public String getLayer() {
+        return layer;
+    }
+
+    public long getZ() {
+        return z;
+    }
+
+    public long getX() {
+        return x;
+    }
+
+    public long getY() {
+        return y;
+    }
+
+    public String getEnding() {
+        return ending;
+    }
+
+    /**
+     * returns the path of the tile in the cache folder of its layer.
+     *
+     * @param layerCacheFolder the cache folder of the layer.
+     * @return the path of the tile - &lt;z&gt;/&lt;x&gt;/&lt;y&gt;.&lt;ending&gt;
+     */
+    public Path resolve(Path layerCacheFolder) {
+        return layerCacheFolder
+                .resolve(Long.toString(z))
+                .resolve(Long.toString(x))
+                .resolve(y + "." + ending);
+    }
+
+    /* equals / hashCode */
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 31 * hash + Objects.hashCode(this.layer);
+        hash = 31 * hash + Long.hashCode(this.z);
+        hash = 31 * hash + Long.hashCode(this.x);
+        hash = 31 * hash + Long.hashCode(this.y);
+        hash = 31 * hash + Objects.hashCode(this.ending);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final TileKey other = (TileKey) obj;
+        if (this.z != other.z || this.x != other.x || this.y != other.y) {
+            return false;
+        }
+        if (!Objects.equals(this.layer, other.layer)) {
+            return false;
+        }
+        return Objects.equals(this.ending, other.ending);
+    }
+
+    @Override
+    public String toString() {
+        return layer + "/" + z + "/" + x + "/" + y + "." + ending;
+    }
+}
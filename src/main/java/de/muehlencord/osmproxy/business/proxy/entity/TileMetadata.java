@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.entity;
+
+/**
+ * The validators the upstream server sent together with a tile. They are used
+ * to revalidate the tile with a conditional request once it is outdated.
+ *
+ * @author joern.muehlencord
+ */
+public class TileMetadata {
+
+    private final String eTag;
+    private final String lastModified;
+
+    /**
+     * @param eTag the ETag header as sent by the upstream server - can be
+     * null.
+     * @param lastModified the Last-Modified header as sent by the upstream
+     * server - can be null.
+     */
+    public TileMetadata(String eTag, String lastModified) {
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return true, if neither an ETag nor a Last-Modified header is
+     * available.
+     */
+    public boolean isEmpty() {
+        return eTag == null && lastModified == null;
+    }
+}
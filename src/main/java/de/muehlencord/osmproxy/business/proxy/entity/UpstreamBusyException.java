@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.entity;
+
+import java.io.IOException;
+
+/**
+ * Signals that a request is not sent to an upstream server because the rate
+ * limit of the server is exhausted and too many requests are waiting already.
+ *
+ * @author joern.muehlencord
+ */
+public class UpstreamBusyException extends IOException {
+
+    private static final long serialVersionUID = 6417330596021834571L;
+
+    private final long retryAfter;
+
+    /**
+     * Constructs an instance of <code>UpstreamBusyException</code> with the specified detail message.
+     * @param msg the detail message.
+     * @param retryAfter the number of seconds after which the request should be retried.
+     */
+    public UpstreamBusyException(String msg, long retryAfter) {
+        super(msg);
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
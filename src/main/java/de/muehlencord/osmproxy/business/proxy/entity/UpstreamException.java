@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.entity;
+
+import java.io.IOException;
+
+/**
+ * Signals an unusable answer of an upstream server, e.g. an error status or a
+ * response which is not a tile.
+ *
+ * @author joern.muehlencord
+ */
+public class UpstreamException extends IOException {
+
+    private static final long serialVersionUID = -3019475838921065318L;
+
+    private final int status;
+
+    /**
+     * Constructs an instance of <code>UpstreamException</code> with the specified detail message.
+     * @param msg the detail message.
+     * @param status the http status returned by the upstream server.
+     */
+    public UpstreamException(String msg, int status) {
+        super(msg);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.seed.boundary;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.Seed;
+import de.muehlencord.osmproxy.business.seed.control.Seeder;
+import de.muehlencord.osmproxy.business.seed.entity.SeedJob;
+import de.muehlencord.osmproxy.business.seed.entity.SeedRequest;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts, cancels and reports seed jobs. A job is started by posting a seed
+ * request, e.g.
+ * <pre>
+ * {"layer": "tiles", "minLon": 8.5, "minLat": 49.8, "maxLon": 9.0, "maxLat": 50.2, "minZoom": 0, "maxZoom": 16}
+ * </pre>
+ * Jobs can only be started and cancelled if seeding is enabled in the
+ * configuration and the client sends the configured token, if any.
+ *
+ * @author joern.muehlencord
+ */
+@Stateless
+@javax.ws.rs.Path("seed")
+public class SeedResource implements Serializable {
+
+    private static final long serialVersionUID = -2471058023694510383L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeedResource.class);
+
+    private static final Gson GSON = new GsonBuilder()
+            .setPrettyPrinting()
+            .excludeFieldsWithoutExposeAnnotation()
+            .create();
+
+    @Inject
+    Seeder seeder;
+
+    @Inject
+    ConfigurationBean configurationBean;
+
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    public Response startJob(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization, String body) {
+        Response denied = checkAccess(authorization);
+        if (denied != null) {
+            return denied;
+        }
+        SeedRequest request;
+        try {
+            request = GSON.fromJson(body, SeedRequest.class);
+        } catch (JsonParseException ex) {
+            return createErrorResponse("cannot parse seed request: " + ex.getMessage(), HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+        try {
+            SeedJob job = seeder.start(request);
+            return Response.status(HttpURLConnection.HTTP_ACCEPTED)
+                    .entity(GSON.toJson(toJson(job)))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        } catch (ConfigurationException ex) {
+            return createErrorResponse(ex.getMessage(), HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJobs() {
+        JsonArray jobs = new JsonArray();
+        seeder.getJobs().forEach(job -> jobs.add(toJson(job)));
+        return Response.ok(GSON.toJson(jobs), MediaType.APPLICATION_JSON).build();
+    }
+
+    @GET
+    @javax.ws.rs.Path("{id}")
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    public Response getJob(@PathParam("id") String id) {
+        return respondJob(seeder.getJob(id), id);
+    }
+
+    @DELETE
+    @javax.ws.rs.Path("{id}")
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    public Response cancelJob(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization, @PathParam("id") String id) {
+        Response denied = checkAccess(authorization);
+        if (denied != null) {
+            return denied;
+        }
+        return respondJob(seeder.cancel(id), id);
+    }
+
+    /**
+     * checks whether seeding is enabled and the client sent the configured
+     * token.
+     *
+     * @return the error response or null, if the client may start and cancel
+     * jobs.
+     */
+    private Response checkAccess(String authorization) {
+        Seed seed;
+        try {
+            seed = configurationBean.getSeed();
+        } catch (ConfigurationException ex) {
+            return createErrorResponse(ex.getMessage(), HttpURLConnection.HTTP_INTERNAL_ERROR);
+        }
+        if (seed == null) {
+            return createErrorResponse("seeding is disabled", HttpURLConnection.HTTP_FORBIDDEN);
+        }
+        if (seed.getToken() == null) {
+            return null;
+        }
+        byte[] expected = ("Bearer " + seed.getToken()).getBytes(StandardCharsets.UTF_8);
+        byte[] actual = authorization == null ? new byte[0] : authorization.getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            Response response = createErrorResponse("seed token missing or not valid", HttpURLConnection.HTTP_UNAUTHORIZED);
+            return Response.fromResponse(response).header(HttpHeaders.WWW_AUTHENTICATE, "Bearer").build();
+        }
+        return null;
+    }
+
+    private Response respondJob(SeedJob job, String id) {
+        if (job == null) {
+            return createErrorResponse("seed job " + id + " not found", HttpURLConnection.HTTP_NOT_FOUND);
+        }
+        return Response.ok(GSON.toJson(toJson(job)), MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * adds the progress to the persisted state of the job
+     */
+    private JsonObject toJson(SeedJob job) {
+        JsonObject json;
+        synchronized (job) {
+            json = GSON.toJsonTree(job).getAsJsonObject();
+        }
+        json.addProperty("processed", job.getProcessed());
+        json.addProperty("tilesPerSecond", Math.round(job.getTilesPerSecond() * 10) / 10d);
+        json.addProperty("etaSeconds", job.getEta());
+        return json;
+    }
+
+    private Response createErrorResponse(String message, int status) {
+        LOGGER.error("request error: " + message);
+        return Response.status(status)
+                .entity(message)
+                .encoding("UTF-8")
+                .type(MediaType.TEXT_PLAIN)
+                .build();
+    }
+}
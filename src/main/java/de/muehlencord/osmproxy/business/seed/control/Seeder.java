@@ -0,0 +1,391 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.seed.control;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.Seed;
+import de.muehlencord.osmproxy.business.proxy.control.MissingTileCache;
+import de.muehlencord.osmproxy.business.proxy.control.TileDownloader;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.seed.entity.SeedJob;
+import de.muehlencord.osmproxy.business.seed.entity.SeedRequest;
+import de.muehlencord.osmproxy.business.seed.entity.SeedStatus;
+import de.muehlencord.osmproxy.business.store.control.TileStore;
+import de.muehlencord.osmproxy.business.store.control.TileStoreManager;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads all tiles of a bounding box in a range of zoom levels into the
+ * cache. Tiles already fresh in the cache are skipped, the others are
+ * downloaded with the lowest priority, so the rate limit of the upstream
+ * servers is kept and clients are not delayed. Jobs are executed one after
+ * another and are persisted, so they are resumed after a restart. Seeding is
+ * only available if the configuration contains a seed section, which also
+ * limits the number of tiles of a job.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class Seeder implements Serializable {
+
+    private static final long serialVersionUID = 7303954820749167612L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Seeder.class);
+
+    private static final Gson GSON = new GsonBuilder()
+            .setPrettyPrinting()
+            .excludeFieldsWithoutExposeAnnotation()
+            .create();
+
+    /**
+     * the highest zoom level which can be requested
+     */
+    public static final int MAX_ZOOM = 19;
+
+    /**
+     * number of tiles of a job downloaded in parallel
+     */
+    private static final int MAX_IN_FLIGHT = 8;
+
+    /**
+     * milliseconds between two saves of the progress of a running job
+     */
+    private static final long SAVE_INTERVAL = 5000;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    @Inject
+    private TileDownloader tileDownloader;
+
+    @Inject
+    private MissingTileCache missingTileCache;
+
+    @Inject
+    private TileStoreManager tileStoreManager;
+
+    /**
+     * the folder the jobs are persisted in - $home/.osmproxy/seed
+     */
+    private final Path jobFolder = Paths.get(System.getProperty("user.home"), ".osmproxy", "seed");
+
+    private final transient Map<String, SeedJob> jobs = new ConcurrentHashMap<>();
+    private transient ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-seeder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<SeedJob> activeJobs = new ArrayList<>();
+        for (SeedJob job : loadJobs()) {
+            jobs.put(job.getId(), job);
+            if (job.getStatus().isActive()) {
+                activeJobs.add(job);
+            }
+        }
+        activeJobs.sort(Comparator.comparingLong(SeedJob::getCreated));
+        for (SeedJob job : activeJobs) {
+            LOGGER.info("Resuming seed job {} at tile {} of {}", job.getId(), job.getNext(), job.getTotal());
+            executor.execute(() -> run(job));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // the running job saves its progress when interrupted
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * starts a new seed job. The job is queued, if another job is running.
+     *
+     * @param request the tiles to seed.
+     * @return the new job.
+     * @throws ConfigurationException if the request is not valid, the layer
+     * is not defined or the job exceeds the maximum number of tiles.
+     */
+    public SeedJob start(SeedRequest request) throws ConfigurationException {
+        long total = validate(request);
+        SeedJob job = new SeedJob(UUID.randomUUID().toString(), request, total);
+        save(job);
+        jobs.put(job.getId(), job);
+        LOGGER.info("Starting seed job {} for {} ({} tiles)", job.getId(), request, job.getTotal());
+        executor.execute(() -> run(job));
+        return job;
+    }
+
+    /**
+     * cancels the given job. Downloads already started are finished.
+     *
+     * @param id the id of the job.
+     * @return the job or null, if there is no job with the given id.
+     */
+    public SeedJob cancel(String id) {
+        SeedJob job = jobs.get(id);
+        if (job != null && job.getStatus().isActive()) {
+            job.finish(SeedStatus.CANCELLED, null);
+            save(job);
+            LOGGER.info("Cancelled seed job {}", id);
+        }
+        return job;
+    }
+
+    public SeedJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return all jobs, the latest job first.
+     */
+    public List<SeedJob> getJobs() {
+        List<SeedJob> result = new ArrayList<>(jobs.values());
+        result.sort(Comparator.comparingLong(SeedJob::getCreated).reversed());
+        return result;
+    }
+
+    /**
+     * checks the request and its number of tiles.
+     *
+     * @return the number of tiles of the request.
+     */
+    private long validate(SeedRequest request) throws ConfigurationException {
+        if (request == null || request.getLayer() == null) {
+            throw new ConfigurationException("layer is mandatory");
+        }
+        // throws an exception if the layer is not defined
+        configurationBean.getCacheDirectory(request.getLayer());
+        if (request.getMinZoom() < 0 || request.getMaxZoom() > MAX_ZOOM || request.getMinZoom() > request.getMaxZoom()) {
+            throw new ConfigurationException("minZoom and maxZoom must be between 0 and " + MAX_ZOOM);
+        }
+        if (request.getMinLon() < -180 || request.getMaxLon() > 180 || request.getMinLon() > request.getMaxLon()) {
+            throw new ConfigurationException("minLon and maxLon must be between -180 and 180");
+        }
+        if (request.getMinLat() < -90 || request.getMaxLat() > 90 || request.getMinLat() > request.getMaxLat()) {
+            throw new ConfigurationException("minLat and maxLat must be between -90 and 90");
+        }
+        long total = new TileRange(request, "png").size();
+        checkSize(total);
+        return total;
+    }
+
+    /**
+     * checks the number of tiles against the configured maximum, so a single
+     * request cannot bulk download large parts of the world.
+     */
+    private void checkSize(long total) throws ConfigurationException {
+        Seed seed = configurationBean.getSeed();
+        if (seed == null) {
+            throw new ConfigurationException("seeding is disabled");
+        }
+        if (total > seed.getMaxTiles()) {
+            throw new ConfigurationException("seed job has " + total + " tiles, at most " + seed.getMaxTiles() + " are allowed");
+        }
+    }
+
+    /**
+     * processes the tiles of the job, starting with the first tile not
+     * processed yet.
+     */
+    private void run(SeedJob job) {
+        if (!job.getStatus().isActive()) {
+            return;
+        }
+        TileRange tileRange = new TileRange(job.getRequest(), "png");
+        TileStore store;
+        try {
+            // jobs resumed after a restart must still be allowed by the current configuration
+            checkSize(tileRange.size());
+            store = tileStoreManager.getStore(job.getRequest().getLayer());
+        } catch (ConfigurationException ex) {
+            LOGGER.error("Cannot execute seed job {}. Reason: {}", job.getId(), ex.getMessage());
+            job.finish(SeedStatus.FAILED, ex.getMessage());
+            save(job);
+            return;
+        }
+
+        job.start();
+        Semaphore slots = new Semaphore(MAX_IN_FLIGHT);
+        NavigableSet<Long> inFlight = new ConcurrentSkipListSet<>();
+        long lastSave = System.currentTimeMillis();
+        long index = job.getNext();
+        try {
+            while (index < tileRange.size() && job.getStatus() == SeedStatus.RUNNING) {
+                TileKey tileKey = tileRange.get(index);
+                boolean missing = missingTileCache.isMissing(tileKey);
+                TileInfo tileInfo = missing ? null : stat(store, tileKey);
+                if (missing) {
+                    job.addMissing();
+                } else if (isFresh(tileInfo)) {
+                    job.addSkipped();
+                } else {
+                    slots.acquire();
+                    long tileIndex = index;
+                    inFlight.add(tileIndex);
+                    // outdated tiles are revalidated, so unchanged tiles are not downloaded again
+                    tileDownloader.download(tileKey, "OSMProxy " + configurationBean.getVersion(), tileInfo != null, DownloadPriority.SEED)
+                            .whenComplete((downloadResult, th) -> {
+                                if (th != null) {
+                                    LOGGER.warn("Cannot seed tile {}. Reason: {}", tileKey, th.toString());
+                                    job.addFailed();
+                                } else if (downloadResult == DownloadResult.NOT_AVAILABLE) {
+                                    job.addMissing();
+                                } else {
+                                    job.addDownloaded();
+                                }
+                                inFlight.remove(tileIndex);
+                                slots.release();
+                            });
+                }
+                index++;
+                // tiles still downloading are processed again after a restart
+                Long firstInFlight = inFlight.ceiling(Long.MIN_VALUE);
+                job.setNext(firstInFlight == null ? index : firstInFlight);
+                if (System.currentTimeMillis() - lastSave > SAVE_INTERVAL) {
+                    save(job);
+                    lastSave = System.currentTimeMillis();
+                }
+            }
+            slots.acquire(MAX_IN_FLIGHT);
+            if (job.getStatus() == SeedStatus.RUNNING) {
+                job.setNext(index);
+                job.finish(SeedStatus.FINISHED, null);
+                LOGGER.info("Finished seed job {}: {} downloaded, {} skipped, {} missing, {} failed", job.getId(),
+                        job.getDownloaded(), job.getSkipped(), job.getMissing(), job.getFailed());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.info("Stopped seed job {} at tile {} of {}", job.getId(), job.getNext(), job.getTotal());
+        }
+        save(job);
+    }
+
+    /**
+     * reads the modification time of the tile
+     *
+     * @return the tile or null, if the tile is not cached or cannot be read.
+     */
+    private TileInfo stat(TileStore store, TileKey tileKey) {
+        try {
+            return store.stat(tileKey);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot read last modification time of {}: {}", tileKey, ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * checks whether the tile is cached and within the retention time
+     */
+    private boolean isFresh(TileInfo tileInfo) {
+        if (tileInfo == null) {
+            return false;
+        }
+        try {
+            int retentionTime = configurationBean.getRetentionTime();
+            return retentionTime == 0 || tileInfo.getLastModified() > System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionTime);
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * writes the job to the job folder. The file is replaced atomically, so
+     * a crash never leaves a partially written job behind.
+     */
+    private void save(SeedJob job) {
+        String json;
+        synchronized (job) {
+            json = GSON.toJson(job);
+        }
+        try {
+            Files.createDirectories(jobFolder);
+            Path jobFile = jobFolder.resolve(job.getId() + ".json");
+            Path tempFile = jobFolder.resolve(job.getId() + ".tmp");
+            Files.write(tempFile, json.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, jobFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot save seed job {}. Reason: {}", job.getId(), ex.toString());
+        }
+    }
+
+    private List<SeedJob> loadJobs() {
+        List<SeedJob> result = new ArrayList<>();
+        if (!Files.isDirectory(jobFolder)) {
+            return result;
+        }
+        try (DirectoryStream<Path> jobFiles = Files.newDirectoryStream(jobFolder, "*.json")) {
+            for (Path jobFile : jobFiles) {
+                try {
+                    SeedJob job = GSON.fromJson(new String(Files.readAllBytes(jobFile), StandardCharsets.UTF_8), SeedJob.class);
+                    if (job != null && job.getId() != null) {
+                        result.add(job);
+                    }
+                } catch (IOException | JsonParseException ex) {
+                    LOGGER.error("Cannot read seed job {}. Reason: {}", jobFile.toString(), ex.toString());
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Cannot read seed jobs from {}. Reason: {}", jobFolder.toString(), ex.toString());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.seed.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.seed.entity.SeedRequest;
+
+/**
+ * The tiles covering a bounding box in a range of zoom levels. The tiles are
+ * numbered zoom level by zoom level, column by column, so a tile can be looked
+ * up by its index without enumerating the tiles before.
+ *
+ * @author joern.muehlencord
+ */
+public class TileRange {
+
+    /**
+     * the latitude limit of the web mercator projection
+     */
+    private static final double MAX_LATITUDE = 85.0511287798;
+
+    private final String layer;
+    private final String ending;
+    private final int minZoom;
+    private final long[] minX;
+    private final long[] minY;
+    private final long[] height;
+    private final long[] offset;
+
+    public TileRange(SeedRequest request, String ending) {
+        this.layer = request.getLayer();
+        this.ending = ending;
+        this.minZoom = request.getMinZoom();
+        int zoomLevels = request.getMaxZoom() - request.getMinZoom() + 1;
+        minX = new long[zoomLevels];
+        minY = new long[zoomLevels];
+        height = new long[zoomLevels];
+        offset = new long[zoomLevels + 1];
+        for (int i = 0; i < zoomLevels; i++) {
+            int z = minZoom + i;
+            minX[i] = lonToTileX(request.getMinLon(), z);
+            long maxX = lonToTileX(request.getMaxLon(), z);
+            // the north border has the lower tile number
+            minY[i] = latToTileY(request.getMaxLat(), z);
+            long maxY = latToTileY(request.getMinLat(), z);
+            height[i] = maxY - minY[i] + 1;
+            offset[i + 1] = offset[i] + (maxX - minX[i] + 1) * height[i];
+        }
+    }
+
+    /**
+     * @return the number of tiles in the range.
+     */
+    public long size() {
+        return offset[offset.length - 1];
+    }
+
+    /**
+     * returns the tile with the given index.
+     *
+     * @param index the index of the tile, 0 &lt;= index &lt; size().
+     * @return the tile.
+     */
+    public TileKey get(long index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + " is not within 0 and " + size());
+        }
+        int i = 0;
+        while (index >= offset[i + 1]) {
+            i++;
+        }
+        long position = index - offset[i];
+        return new TileKey(layer, minZoom + i, minX[i] + position / height[i], minY[i] + position % height[i], ending);
+    }
+
+    /**
+     * returns the column of the tile containing the given longitude.
+     *
+     * @param lon the longitude in degrees.
+     * @param z the zoom level.
+     * @return the x coordinate of the tile.
+     */
+    public static long lonToTileX(double lon, int z) {
+        long tilesPerAxis = 1L << z;
+        long x = (long) Math.floor((lon + 180) / 360 * tilesPerAxis);
+        return Math.max(0, Math.min(tilesPerAxis - 1, x));
+    }
+
+    /**
+     * returns the row of the tile containing the given latitude.
+     *
+     * @param lat the latitude in degrees.
+     * @param z the zoom level.
+     * @return the y coordinate of the tile.
+     */
+    public static long latToTileY(double lat, int z) {
+        long tilesPerAxis = 1L << z;
+        double latRad = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        long y = (long) Math.floor((1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * tilesPerAxis);
+        return Math.max(0, Math.min(tilesPerAxis - 1, y));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.seed.entity;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * A seed job and its progress. The job is persisted, so it can be resumed
+ * after a restart - tiles are processed in a fixed order, the job continues
+ * with the first tile not processed yet.
+ *
+ * @author joern.muehlencord
+ */
+public class SeedJob {
+
+    @Expose
+    private String id;
+
+    @Expose
+    private SeedRequest request;
+
+    @Expose
+    private SeedStatus status;
+
+    @Expose
+    private String message;
+
+    @Expose
+    private long created;
+
+    /**
+     * number of tiles of the job
+     */
+    @Expose
+    private long total;
+
+    /**
+     * index of the first tile not processed yet
+     */
+    @Expose
+    private long next;
+
+    /**
+     * tiles already fresh in the cache
+     */
+    @Expose
+    private long skipped;
+
+    @Expose
+    private long downloaded;
+
+    /**
+     * tiles the upstream server does not provide
+     */
+    @Expose
+    private long missing;
+
+    @Expose
+    private long failed;
+
+    /**
+     * start of the current execution, used to calculate the rate
+     */
+    private transient long sessionStart;
+    private transient long sessionProcessed;
+
+    public SeedJob(String id, SeedRequest request, long total) {
+        this.id = id;
+        this.request = request;
+        this.total = total;
+        this.status = SeedStatus.QUEUED;
+        this.created = System.currentTimeMillis();
+    }
+
+    /**
+     * marks the job as running and resets the rate calculation.
+     */
+    public synchronized void start() {
+        status = SeedStatus.RUNNING;
+        sessionStart = System.currentTimeMillis();
+        sessionProcessed = getProcessed();
+    }
+
+    public synchronized void finish(SeedStatus finalStatus, String finalMessage) {
+        this.status = finalStatus;
+        this.message = finalMessage;
+    }
+
+    public synchronized void addSkipped() {
+        skipped++;
+    }
+
+    public synchronized void addDownloaded() {
+        downloaded++;
+    }
+
+    public synchronized void addMissing() {
+        missing++;
+    }
+
+    public synchronized void addFailed() {
+        failed++;
+    }
+
+    /* *** getter / setter *** */
+    public String getId() {
+        return id;
+    }
+
+    public SeedRequest getRequest() {
+        return request;
+    }
+
+    public synchronized SeedStatus getStatus() {
+        return status;
+    }
+
+    public synchronized String getMessage() {
+        return message;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public synchronized long getNext() {
+        return next;
+    }
+
+    public synchronized void setNext(long next) {
+        this.next = next;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getDownloaded() {
+        return downloaded;
+    }
+
+    public synchronized long getMissing() {
+        return missing;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public synchronized long getProcessed() {
+        return skipped + downloaded + missing + failed;
+    }
+
+    /**
+     * @return the number of tiles processed per second since the job has been
+     * (re)started.
+     */
+    public synchronized double getTilesPerSecond() {
+        long elapsed = System.currentTimeMillis() - sessionStart;
+        if (status != SeedStatus.RUNNING || elapsed <= 0) {
+            return 0;
+        }
+        return (getProcessed() - sessionProcessed) * 1000d / elapsed;
+    }
+
+    /**
+     * @return the estimated number of seconds until the job is finished or -1,
+     * if unknown.
+     */
+    public synchronized long getEta() {
+        double tilesPerSecond = getTilesPerSecond();
+        if (tilesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, total - getProcessed()) / tilesPerSecond);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.seed.entity;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * Defines the tiles to seed - a bounding box of a layer in a range of zoom
+ * levels.
+ *
+ * @author joern.muehlencord
+ */
+public class SeedRequest {
+
+    @Expose
+    private String layer;
+
+    /**
+     * the west border of the bounding box in degrees
+     */
+    @Expose
+    private double minLon;
+
+    /**
+     * the south border of the bounding box in degrees
+     */
+    @Expose
+    private double minLat;
+
+    /**
+     * the east border of the bounding box in degrees
+     */
+    @Expose
+    private double maxLon;
+
+    /**
+     * the north border of the bounding box in degrees
+     */
+    @Expose
+    private double maxLat;
+
+    @Expose
+    private int minZoom;
+
+    @Expose
+    private int maxZoom;
+
+    /* *** getter / setter *** */
+    public String getLayer() {
+        return layer;
+    }
+
+    public SeedRequest setLayer(String layer) {
+        this.layer = layer;
+        return this;
+    }
+
+    public double getMinLon() {
+        return minLon;
+    }
+
+    public SeedRequest setMinLon(double minLon) {
+        this.minLon = minLon;
+        return this;
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public SeedRequest setMinLat(double minLat) {
+        this.minLat = minLat;
+        return this;
+    }
+
+    public double getMaxLon() {
+        return maxLon;
+    }
+
+    public SeedRequest setMaxLon(double maxLon) {
+        this.maxLon = maxLon;
+        return this;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    public SeedRequest setMaxLat(double maxLat) {
+        this.maxLat = maxLat;
+        return this;
+    }
+
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    public SeedRequest setMinZoom(int minZoom) {
+        this.minZoom = minZoom;
+        return this;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public SeedRequest setMaxZoom(int maxZoom) {
+        this.maxZoom = maxZoom;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return layer + " [" + minLon + ", " + minLat + ", " + maxLon + ", " + maxLat + "] zoom " + minZoom + "-" + maxZoom;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.seed.entity;
+
+/**
+ * The state of a seed job.
+ *
+ * @author joern.muehlencord
+ */
+public enum SeedStatus {
+
+    /**
+     * the job waits for the jobs started before
+     */
+    QUEUED,
+    /**
+     * the tiles of the job are downloaded
+     */
+    RUNNING,
+    /**
+     * all tiles of the job are processed
+     */
+    FINISHED,
+    /**
+     * the job has been cancelled
+     */
+    CANCELLED,
+    /**
+     * the job cannot be executed, e.g. because its layer has been removed
+     */
+    FAILED;
+
+    /**
+     * @return true, if the job is not done yet and is resumed after a
+     * restart.
+     */
+    public boolean isActive() {
+        return this == QUEUED || this == RUNNING;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Moves the tiles of a layer from the z/x/y directory structure of the disk
+ * cache into bundles. The modification time and upstream validators of the
+ * tiles are kept. The application should be stopped while a layer is
+ * migrated.
+ *
+ * Usage: BundleMigrator &lt;layer cache folder&gt; [--delete]
+ *
+ * @author joern.muehlencord
+ */
+public final class BundleMigrator {
+
+    private BundleMigrator() {
+        // hide constructor
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !"--delete".equals(args[1]))) {
+            System.err.println("usage: BundleMigrator <layer cache folder> [--delete]");
+            System.exit(1);
+        }
+        Path layerFolder = Paths.get(args[0]);
+        long count = migrate(layerFolder, SyncPolicy.NONE, args.length == 2);
+        System.out.println("migrated " + count + " tiles of " + layerFolder.toString());
+    }
+
+    /**
+     * moves all tiles of the layer into bundles.
+     *
+     * @param layerFolder the cache folder of the layer.
+     * @param syncPolicy whether to sync the bundles to the storage device.
+     * @param deleteFiles true to delete the tile files and empty directories
+     * after they are migrated.
+     * @return the number of tiles migrated.
+     * @throws IOException if the tiles cannot be read or the bundles cannot
+     * be written.
+     */
+    public static long migrate(Path layerFolder, SyncPolicy syncPolicy, boolean deleteFiles) throws IOException {
+        String layer = layerFolder.getFileName().toString();
+        AtomicLong count = new AtomicLong();
+        try (FileTileStore source = new FileTileStore(layer, layerFolder, syncPolicy);
+                BundleTileStore target = new BundleTileStore(layer, layerFolder, syncPolicy)) {
+            source.iterate((tileKey, tileInfo) -> {
+                CachedTile tile = source.get(tileKey);
+                if (tile != null) {
+                    target.put(tileKey, tile.getData(), tile.getLastModified(), source.getMetadata(tileKey));
+                    if (deleteFiles) {
+                        source.delete(tileKey);
+                    }
+                    count.incrementAndGet();
+                }
+                return true;
+            });
+        }
+        if (deleteFiles) {
+            deleteEmptyDirectories(layerFolder);
+        }
+        return count.get();
+    }
+
+    private static void deleteEmptyDirectories(Path layerFolder) throws IOException {
+        List<Path> directories;
+        try (Stream<Path> paths = Files.walk(layerFolder, 2)) {
+            directories = paths.filter(path -> !path.equals(layerFolder) && Files.isDirectory(path))
+                    .sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList());
+        }
+        for (Path directory : directories) {
+            try {
+                Files.delete(directory);
+            } catch (DirectoryNotEmptyException ex) {
+                // contains bundles
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the tiles of a layer in bundle files of up to 128x128 tiles of a
+ * zoom level instead of a file per tile. This keeps the number of files (and
+ * inodes) low and saves the directory lookups and open calls per request.
+ * The bundles are read through memory mapped files, the most recently used
+ * ones are kept open. Bundles are opened and closed without a lock shared by
+ * all bundles, so requests for open bundles never wait for another bundle
+ * being opened.
+ *
+ * @author joern.muehlencord
+ */
+public class BundleTileStore implements TileStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleTileStore.class);
+
+    /**
+     * number of bundles kept open
+     */
+    private static final int MAX_OPEN_BUNDLES = 128;
+
+    /**
+     * number of attempts to write to a bundle which is closed concurrently
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * path of a bundle relative to the layer folder - z/column/row.ending.bundle
+     */
+    private static final Pattern BUNDLE_PATTERN = Pattern.compile("(\\d+)/(\\d+)/(\\d+)\\.(\\w+)\\.bundle");
+
+    private final String layer;
+    private final Path layerFolder;
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * the open bundles by path, including the bundles being opened
+     */
+    private final Map<Path, OpenBundle> bundles = new ConcurrentHashMap<>();
+
+    /**
+     * the zoom level of the bundles tiles have been deleted from since the
+     * last call of {@link #compact()} by path
+     */
+    private final Map<Path, Long> deletedFrom = new ConcurrentHashMap<>();
+
+    /**
+     * creates a new store.
+     *
+     * @param layer the name of the layer.
+     * @param layerFolder the cache folder of the layer.
+     * @param syncPolicy whether to sync written tiles to the storage device.
+     */
+    public BundleTileStore(String layer, Path layerFolder, SyncPolicy syncPolicy) {
+        this.layer = layer;
+        this.layerFolder = layerFolder;
+        this.syncPolicy = syncPolicy;
+    }
+
+    @Override
+    public TileInfo stat(TileKey tileKey) throws IOException {
+        TileBundle bundle = getBundle(tileKey, false);
+        return bundle == null ? null : bundle.stat(TileBundle.getIndex(tileKey));
+    }
+
+    @Override
+    public CachedTile get(TileKey tileKey) throws IOException {
+        TileBundle bundle = getBundle(tileKey, false);
+        return bundle == null ? null : bundle.get(TileBundle.getIndex(tileKey));
+    }
+
+    /**
+     * returns a slice of the memory mapped bundle, the tile is not copied.
+     */
+    @Override
+    public TileRegion open(TileKey tileKey) throws IOException {
+        CachedTile tile = get(tileKey);
+        return tile == null ? null : new TileRegion(tile);
+    }
+
+    @Override
+    public TileMetadata getMetadata(TileKey tileKey) throws IOException {
+        TileBundle bundle = getBundle(tileKey, false);
+        return bundle == null ? null : bundle.getMetadata(TileBundle.getIndex(tileKey));
+    }
+
+    @Override
+    public void put(TileKey tileKey, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                getBundle(tileKey, true).put(TileBundle.getIndex(tileKey), data, lastModified, metadata);
+                return;
+            } catch (ClosedChannelException ex) {
+                // the bundle was closed to open another one - open it again
+                if (attempt == MAX_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void touch(TileKey tileKey, long lastModified, TileMetadata metadata) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            TileBundle bundle = getBundle(tileKey, false);
+            if (bundle == null) {
+                throw new NoSuchFileException(TileBundle.resolve(layerFolder, tileKey).toString());
+            }
+            try {
+                bundle.touch(TileBundle.getIndex(tileKey), lastModified, metadata);
+                return;
+            } catch (ClosedChannelException ex) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(TileKey tileKey) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            TileBundle bundle = getBundle(tileKey, false);
+            if (bundle == null) {
+                return false;
+            }
+            try {
+                boolean deleted = bundle.delete(TileBundle.getIndex(tileKey));
+                if (deleted) {
+                    deletedFrom.put(bundle.getPath(), tileKey.getZ());
+                }
+                return deleted;
+            } catch (ClosedChannelException ex) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * removes the data of deleted tiles from the bundles. Deleting a tile
+     * only marks it as deleted, the space is freed once the bundle is
+     * compacted - which happens automatically only if most of a bundle is
+     * garbage. Call this after deleting many tiles, e.g. when evicting tiles,
+     * to free the disk space they used.
+     *
+     * @return the number of bytes freed.
+     * @throws IOException if a bundle cannot be compacted.
+     */
+    public long compact() throws IOException {
+        long freed = 0;
+        for (Path path : new ArrayList<>(deletedFrom.keySet())) {
+            Long z = deletedFrom.remove(path);
+            if (z != null) {
+                freed += compact(path, z);
+            }
+        }
+        return freed;
+    }
+
+    private long compact(Path path, long z) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            TileBundle bundle = getBundle(path, z, false);
+            if (bundle == null) {
+                return 0;
+            }
+            try {
+                return bundle.removeGarbage();
+            } catch (ClosedChannelException ex) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void iterate(TileVisitor visitor) throws IOException {
+        walk(layerFolder, 3, visitor);
+    }
+
+    @Override
+    public void iterate(long z, TileVisitor visitor) throws IOException {
+        walk(layerFolder.resolve(Long.toString(z)), 2, visitor);
+    }
+
+    private void walk(Path start, int depth, TileVisitor visitor) throws IOException {
+        if (!Files.isDirectory(start)) {
+            return;
+        }
+        List<Path> bundleFiles;
+        try (Stream<Path> files = Files.walk(start, depth)) {
+            bundleFiles = files.filter(file -> file.getFileName().toString().endsWith(".bundle")).collect(Collectors.toList());
+        }
+        for (Path bundleFile : bundleFiles) {
+            Matcher matcher = BUNDLE_PATTERN.matcher(layerFolder.relativize(bundleFile).toString().replace('\\', '/'));
+            if (!matcher.matches()) {
+                continue;
+            }
+            long z = Long.parseLong(matcher.group(1));
+            int size = TileBundle.getSize(z);
+            long firstX = Long.parseLong(matcher.group(2)) * size;
+            long firstY = Long.parseLong(matcher.group(3)) * size;
+            // bundles not open are listed without opening them in the store, so walks do not close the bundles used by requests
+            OpenBundle openBundle = bundles.get(bundleFile);
+            TileBundle bundle = openBundle == null ? null : openBundle.getNow();
+            Map<Integer, TileInfo> tiles = bundle == null ? TileBundle.list(bundleFile, z) : bundle.list();
+            // the bundle is not locked while the visitor is called, so the visitor may modify it
+            for (Map.Entry<Integer, TileInfo> entry : tiles.entrySet()) {
+                TileKey tileKey = new TileKey(layer, z, firstX + entry.getKey() / size, firstY + entry.getKey() % size, matcher.group(4));
+                if (!visitor.visit(tileKey, entry.getValue())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * closes all open bundles.
+     *
+     * @throws IOException if a bundle cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        List<OpenBundle> openBundles = new ArrayList<>(bundles.values());
+        bundles.clear();
+        IOException failure = null;
+        for (OpenBundle openBundle : openBundles) {
+            TileBundle bundle = openBundle.getNow();
+            if (bundle == null) {
+                continue;
+            }
+            try {
+                bundle.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public Path getLayerFolder() {
+        return layerFolder;
+    }
+
+    /**
+     * returns the open bundle of the tile.
+     *
+     * @param create true to create the bundle if it does not exist.
+     * @return the bundle or null, if the bundle does not exist and should not
+     * be created.
+     */
+    private TileBundle getBundle(TileKey tileKey, boolean create) throws IOException {
+        return getBundle(TileBundle.resolve(layerFolder, tileKey), tileKey.getZ(), create);
+    }
+
+    private TileBundle getBundle(Path path, long z, boolean create) throws IOException {
+        for (;;) {
+            OpenBundle openBundle = bundles.get(path);
+            if (openBundle == null) {
+                if (!create && !Files.exists(path)) {
+                    return null;
+                }
+                OpenBundle newBundle = new OpenBundle();
+                openBundle = bundles.putIfAbsent(path, newBundle);
+                if (openBundle == null) {
+                    // opened by this thread, other threads asking for the bundle wait for it
+                    openBundle = newBundle;
+                    open(path, z, newBundle);
+                    evictIfNeeded();
+                }
+            }
+            TileBundle bundle = openBundle.await();
+            if (!bundle.isClosed()) {
+                openBundle.lastAccess = System.nanoTime();
+                return bundle;
+            }
+            // closed by an eviction - open it again
+            bundles.remove(path, openBundle);
+        }
+    }
+
+    private void open(Path path, long z, OpenBundle openBundle) throws IOException {
+        try {
+            openBundle.future.complete(TileBundle.open(path, z, syncPolicy));
+        } catch (IOException | RuntimeException ex) {
+            bundles.remove(path, openBundle);
+            openBundle.future.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * closes the least recently used bundles, until at most
+     * {@link #MAX_OPEN_BUNDLES} are open. The bundles are not truncated, as
+     * they are likely opened again. A bundle is removed once it is closed, so
+     * it is never open twice.
+     */
+    private void evictIfNeeded() {
+        while (bundles.size() > MAX_OPEN_BUNDLES) {
+            Map.Entry<Path, OpenBundle> eldest = null;
+            for (Map.Entry<Path, OpenBundle> entry : bundles.entrySet()) {
+                if (entry.getValue().getNow() != null && (eldest == null || entry.getValue().lastAccess - eldest.getValue().lastAccess < 0)) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            TileBundle bundle = eldest.getValue().getNow();
+            try {
+                bundle.close(false);
+            } catch (IOException ex) {
+                LOGGER.error("Cannot close {}: {}", bundle.getPath().toString(), ex.toString());
+            }
+            bundles.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * a bundle kept open by the store
+     */
+    private static final class OpenBundle {
+
+        private final CompletableFuture<TileBundle> future = new CompletableFuture<>();
+        private volatile long lastAccess = System.nanoTime();
+
+        /**
+         * waits until the bundle is opened.
+         */
+        TileBundle await() throws IOException {
+            try {
+                return future.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+        }
+
+        /**
+         * @return the bundle or null, if it is not opened yet or cannot be
+         * opened.
+         */
+        TileBundle getNow() {
+            return future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+        }
+    }
+}
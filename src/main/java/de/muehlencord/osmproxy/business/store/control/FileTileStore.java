@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.control.TileMetadataStore;
+import de.muehlencord.osmproxy.business.proxy.control.TileWriter;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.EnumSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores each tile in its own file in a z/x/y directory structure below the
+ * cache folder of the layer. The modification time of the file is the time
+ * the tile was downloaded, the upstream validators are stored as user defined
+ * attributes of the file.
+ *
+ * @author joern.muehlencord
+ */
+public class FileTileStore implements TileStore {
+
+    /**
+     * path of a tile relative to the layer folder - z/x/y.ending
+     */
+    private static final Pattern TILE_PATTERN = Pattern.compile("(\\d+)/(\\d+)/(\\d+)\\.(\\w+)");
+
+    private final String layer;
+    private final Path layerFolder;
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * creates a new store.
+     *
+     * @param layer the name of the layer.
+     * @param layerFolder the cache folder of the layer.
+     * @param syncPolicy whether to sync written tiles to the storage device.
+     */
+    public FileTileStore(String layer, Path layerFolder, SyncPolicy syncPolicy) {
+        this.layer = layer;
+        this.layerFolder = layerFolder;
+        this.syncPolicy = syncPolicy;
+    }
+
+    @Override
+    public TileInfo stat(TileKey tileKey) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(tileKey.resolve(layerFolder), BasicFileAttributes.class);
+            return new TileInfo(attributes.lastModifiedTime().toMillis(), attributes.size());
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public CachedTile get(TileKey tileKey) throws IOException {
+        Path tilePath = tileKey.resolve(layerFolder);
+        try {
+            long lastModified = Files.getLastModifiedTime(tilePath).toMillis();
+            return read(tilePath, lastModified);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private CachedTile read(Path tilePath, long lastModified) throws IOException {
+        try (FileChannel channel = FileChannel.open(tilePath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("tile " + tilePath.toString() + " is too large");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            long position = 0;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+                position += read;
+            }
+            buffer.flip();
+            return new CachedTile(buffer, lastModified);
+        }
+    }
+
+    /**
+     * opens the file of the tile. Tiles are replaced by moving a new file in
+     * place, so the open channel keeps the content it was opened for. Java
+     * cannot read the modification time of an open file, therefore the time
+     * is read before the file is opened: if the tile is replaced in between,
+     * the time is older than the content and clients revalidate too early,
+     * but never keep an outdated tile.
+     */
+    @Override
+    public TileRegion open(TileKey tileKey) throws IOException {
+        Path tilePath = tileKey.resolve(layerFolder);
+        FileChannel channel = null;
+        try {
+            long lastModified = Files.getLastModifiedTime(tilePath).toMillis();
+            channel = FileChannel.open(tilePath, StandardOpenOption.READ);
+            return new TileRegion(channel, 0, channel.size(), lastModified);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public TileMetadata getMetadata(TileKey tileKey) {
+        return TileMetadataStore.read(tileKey.resolve(layerFolder));
+    }
+
+    @Override
+    public void put(TileKey tileKey, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException {
+        ByteArrayInputStream in;
+        if (data.hasArray()) {
+            in = new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            in = new ByteArrayInputStream(bytes);
+        }
+        Path tilePath = tileKey.resolve(layerFolder);
+        TileWriter.write(in, tilePath, syncPolicy, metadata);
+        Files.setLastModifiedTime(tilePath, FileTime.fromMillis(lastModified));
+    }
+
+    @Override
+    public void touch(TileKey tileKey, long lastModified, TileMetadata metadata) throws IOException {
+        Path tilePath = tileKey.resolve(layerFolder);
+        Files.setLastModifiedTime(tilePath, FileTime.fromMillis(lastModified));
+        TileMetadataStore.write(tilePath, metadata);
+    }
+
+    @Override
+    public boolean delete(TileKey tileKey) throws IOException {
+        return Files.deleteIfExists(tileKey.resolve(layerFolder));
+    }
+
+    @Override
+    public void iterate(TileVisitor visitor) throws IOException {
+        walk(layerFolder, 3, visitor);
+    }
+
+    @Override
+    public void iterate(long z, TileVisitor visitor) throws IOException {
+        walk(layerFolder.resolve(Long.toString(z)), 2, visitor);
+    }
+
+    private void walk(Path start, int depth, TileVisitor visitor) throws IOException {
+        if (!Files.isDirectory(start)) {
+            return;
+        }
+        Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Matcher matcher = TILE_PATTERN.matcher(layerFolder.relativize(file).toString().replace('\\', '/'));
+                if (!matcher.matches() || !attributes.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                TileKey tileKey = new TileKey(layer, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)),
+                        Long.parseLong(matcher.group(3)), matcher.group(4));
+                TileInfo tileInfo = new TileInfo(attributes.lastModifiedTime().toMillis(), attributes.size());
+                return visitor.visit(tileKey, tileInfo) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException {
+                if (ex instanceof NoSuchFileException) {
+                    // removed during the iteration
+                    return FileVisitResult.CONTINUE;
+                }
+                throw ex;
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        // files are not kept open
+    }
+
+    public Path getLayerFolder() {
+        return layerFolder;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers requests for tiles not in the cache from a {@link TileIndex}
+ * instead of searching the store. The index is loaded from the layer folder
+ * if it was saved on the last shutdown, otherwise it is built by scanning
+ * the zoom levels of the store in parallel. Until a zoom level is indexed,
+ * its tiles are looked up in the store. A zoom level whose Bloom filter is
+ * full is indexed again in the background. The index tracks the size of the
+ * stored tiles as well.
+ *
+ * @author joern.muehlencord
+ */
+public class IndexedTileStore implements TileStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexedTileStore.class);
+
+    /**
+     * name of the file the index is saved to in the layer folder
+     */
+    public static final String INDEX_FILE = ".index";
+
+    private final String layer;
+    private final TileStore store;
+    private final Path indexFile;
+    private final TileIndex index;
+    private final Executor executor;
+    private final LongAdder skippedLookups = new LongAdder();
+    private volatile boolean closed;
+
+    private IndexedTileStore(String layer, TileStore store, Path indexFile, TileIndex index, Executor executor) {
+        this.layer = layer;
+        this.store = store;
+        this.indexFile = indexFile;
+        this.index = index;
+        this.executor = executor;
+    }
+
+    /**
+     * creates a new store, loading the saved index or building it in the
+     * background.
+     *
+     * @param layer the name of the layer, used for logging.
+     * @param store the store to index.
+     * @param layerFolder the folder the index is saved in.
+     * @param signature the type of the store, a saved index of another store
+     * type is not used.
+     * @param executor the executor scanning the zoom levels - also used to
+     * index zoom levels again whose Bloom filter is full.
+     * @return the new store.
+     */
+    public static IndexedTileStore open(String layer, TileStore store, Path layerFolder, String signature, Executor executor) {
+        Path indexFile = layerFolder.resolve(INDEX_FILE);
+        TileIndex index = null;
+        try {
+            index = TileIndex.load(indexFile, signature);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot load tile index of layer {}, rebuilding it. Reason: {}", layer, ex.toString());
+        }
+        if (index != null) {
+            LOGGER.info("Loaded tile index of layer {}", layer);
+        } else {
+            index = new TileIndex(signature);
+        }
+        IndexedTileStore indexedStore = new IndexedTileStore(layer, store, indexFile, index, executor);
+        indexedStore.build();
+        return indexedStore;
+    }
+
+    /**
+     * indexes the zoom levels not yet indexed - all zoom levels, if the index
+     * was not loaded.
+     */
+    private void build() {
+        long start = System.currentTimeMillis();
+        List<Long> missingZooms = new ArrayList<>();
+        // the deep zoom levels take longest, start them first
+        for (long z = TileIndex.MAX_ZOOM; z >= 0; z--) {
+            if (!index.isIndexed(z)) {
+                missingZooms.add(z);
+            }
+        }
+        AtomicInteger remaining = new AtomicInteger(missingZooms.size());
+        for (long zoom : missingZooms) {
+            executor.execute(() -> {
+                try {
+                    if (!index.build(store, zoom, () -> closed)) {
+                        return;
+                    }
+                } catch (IOException ex) {
+                    LOGGER.error("Cannot index zoom level {} of layer {}. Reason: {}", zoom, layer, ex.toString());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    LOGGER.info("Indexed tiles of layer {} in {} ms", layer, System.currentTimeMillis() - start);
+                }
+            });
+        }
+    }
+
+    /**
+     * indexes a zoom level again, whose Bloom filter holds more tiles than
+     * it was sized for. Its tiles are looked up in the store meanwhile.
+     */
+    private void rebuild(long zoom) {
+        LOGGER.info("Tile index of zoom level {} of layer {} is full, rebuilding it", zoom, layer);
+        try {
+            executor.execute(() -> {
+                try {
+                    if (index.build(store, zoom, () -> closed)) {
+                        LOGGER.info("Rebuilt tile index of zoom level {} of layer {}", zoom, layer);
+                    }
+                } catch (IOException ex) {
+                    LOGGER.error("Cannot index zoom level {} of layer {}. Reason: {}", zoom, layer, ex.toString());
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            LOGGER.warn("Cannot rebuild tile index of zoom level {} of layer {}. Reason: {}", zoom, layer, ex.toString());
+        }
+    }
+
+    @Override
+    public TileInfo stat(TileKey tileKey) throws IOException {
+        return isSkipped(tileKey) ? null : store.stat(tileKey);
+    }
+
+    @Override
+    public CachedTile get(TileKey tileKey) throws IOException {
+        return isSkipped(tileKey) ? null : store.get(tileKey);
+    }
+
+    @Override
+    public TileRegion open(TileKey tileKey) throws IOException {
+        return isSkipped(tileKey) ? null : store.open(tileKey);
+    }
+
+    @Override
+    public TileMetadata getMetadata(TileKey tileKey) throws IOException {
+        return isSkipped(tileKey) ? null : store.getMetadata(tileKey);
+    }
+
+    private boolean isSkipped(TileKey tileKey) {
+        if (index.mightContain(tileKey)) {
+            return false;
+        }
+        skippedLookups.increment();
+        return true;
+    }
+
+    @Override
+    public void put(TileKey tileKey, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException {
+        long size = data.remaining();
+        TileInfo replaced = index.mightContain(tileKey) ? store.stat(tileKey) : null;
+        // added first - the index may report a tile which is not stored, but not the other way round
+        boolean full = index.add(tileKey);
+        store.put(tileKey, data, lastModified, metadata);
+        if (full) {
+            rebuild(tileKey.getZ());
+        }
+        index.resize(tileKey, replaced == null ? size : size - replaced.getSize());
+    }
+
+    @Override
+    public void touch(TileKey tileKey, long lastModified, TileMetadata metadata) throws IOException {
+        store.touch(tileKey, lastModified, metadata);
+    }
+
+    @Override
+    public boolean delete(TileKey tileKey) throws IOException {
+        TileInfo removed = index.mightContain(tileKey) ? store.stat(tileKey) : null;
+        boolean deleted = store.delete(tileKey);
+        index.remove(tileKey);
+        if (deleted && removed != null) {
+            index.resize(tileKey, -removed.getSize());
+        }
+        return deleted;
+    }
+
+    @Override
+    public void iterate(TileVisitor visitor) throws IOException {
+        store.iterate(visitor);
+    }
+
+    @Override
+    public void iterate(long z, TileVisitor visitor) throws IOException {
+        store.iterate(z, visitor);
+    }
+
+    /**
+     * returns the number of lookups answered by the index without asking the
+     * store.
+     *
+     * @return the number of skipped lookups.
+     */
+    public long getSkippedLookups() {
+        return skippedLookups.sum();
+    }
+
+    /**
+     * returns the size of the stored tiles, tracked by the index while tiles
+     * are stored and removed.
+     *
+     * @return the size in bytes or -1, if the index is not built yet.
+     */
+    public long getSize() {
+        return index.getSize();
+    }
+
+    public TileStore getStore() {
+        return store;
+    }
+
+    /**
+     * stops building the index, saves the indexed zoom levels and closes the
+     * store.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            index.save(indexFile);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot save tile index of layer {}. Reason: {}", layer, ex.toString());
+        } finally {
+            store.close();
+        }
+    }
+}
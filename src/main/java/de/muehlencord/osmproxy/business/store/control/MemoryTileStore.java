@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the tiles of a layer in memory, outside of the Java heap. The store
+ * is limited to a maximum size, the least recently used tiles are dropped if
+ * it is exceeded. The tiles are lost on restart, so the store is meant to be
+ * used on top of a persistent store or for tests.
+ *
+ * @author joern.muehlencord
+ */
+public class MemoryTileStore implements TileStore {
+
+    private final long maxSize;
+
+    /**
+     * the tiles in access order
+     */
+    private final LinkedHashMap<TileKey, MemoryTile> tiles = new LinkedHashMap<>(16, 0.75F, true);
+    private long size;
+
+    /**
+     * creates a new store.
+     *
+     * @param maxSize the maximum size of all tiles in bytes.
+     */
+    public MemoryTileStore(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public synchronized TileInfo stat(TileKey tileKey) {
+        MemoryTile memoryTile = tiles.get(tileKey);
+        return memoryTile == null ? null : new TileInfo(memoryTile.tile.getLastModified(), memoryTile.tile.getSize());
+    }
+
+    @Override
+    public synchronized CachedTile get(TileKey tileKey) {
+        MemoryTile memoryTile = tiles.get(tileKey);
+        return memoryTile == null ? null : memoryTile.tile;
+    }
+
+    @Override
+    public TileRegion open(TileKey tileKey) {
+        CachedTile tile = get(tileKey);
+        return tile == null ? null : new TileRegion(tile);
+    }
+
+    @Override
+    public synchronized TileMetadata getMetadata(TileKey tileKey) {
+        MemoryTile memoryTile = tiles.get(tileKey);
+        return memoryTile == null ? null : memoryTile.metadata;
+    }
+
+    @Override
+    public void put(TileKey tileKey, ByteBuffer data, long lastModified, TileMetadata metadata) {
+        if (data.remaining() > maxSize) {
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        synchronized (this) {
+            replace(tileKey, new MemoryTile(new CachedTile(copy, lastModified), metadata));
+            Iterator<MemoryTile> eldest = tiles.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                size -= eldest.next().tile.getSize();
+                eldest.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void touch(TileKey tileKey, long lastModified, TileMetadata metadata) throws IOException {
+        MemoryTile memoryTile = tiles.get(tileKey);
+        if (memoryTile == null) {
+            throw new NoSuchFileException(tileKey.toString());
+        }
+        replace(tileKey, new MemoryTile(new CachedTile(memoryTile.tile.getData(), lastModified),
+                metadata == null ? memoryTile.metadata : metadata));
+    }
+
+    @Override
+    public synchronized boolean delete(TileKey tileKey) {
+        MemoryTile memoryTile = tiles.remove(tileKey);
+        if (memoryTile == null) {
+            return false;
+        }
+        size -= memoryTile.tile.getSize();
+        return true;
+    }
+
+    @Override
+    public void iterate(TileVisitor visitor) throws IOException {
+        iterate(tileKey -> true, visitor);
+    }
+
+    @Override
+    public void iterate(long z, TileVisitor visitor) throws IOException {
+        iterate(tileKey -> tileKey.getZ() == z, visitor);
+    }
+
+    private void iterate(Predicate<TileKey> filter, TileVisitor visitor) throws IOException {
+        List<Map.Entry<TileKey, TileInfo>> entries = new ArrayList<>();
+        synchronized (this) {
+            tiles.forEach((tileKey, memoryTile) -> {
+                if (filter.test(tileKey)) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(tileKey,
+                            new TileInfo(memoryTile.tile.getLastModified(), memoryTile.tile.getSize())));
+                }
+            });
+        }
+        for (Map.Entry<TileKey, TileInfo> entry : entries) {
+            if (!visitor.visit(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        tiles.clear();
+        size = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    private void replace(TileKey tileKey, MemoryTile memoryTile) {
+        MemoryTile previous = tiles.put(tileKey, memoryTile);
+        if (previous != null) {
+            size -= previous.tile.getSize();
+        }
+        size += memoryTile.tile.getSize();
+    }
+
+    /**
+     * a tile together with its upstream validators
+     */
+    private static class MemoryTile {
+
+        private final CachedTile tile;
+        private final TileMetadata metadata;
+
+        MemoryTile(CachedTile tile, TileMetadata metadata) {
+            this.tile = tile;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Layers a fast store on top of a slower one, e.g. a memory store on top of
+ * the disk. Tiles are read from the upper store first and copied to it when
+ * read from the lower store. Changes are written to both stores, the lower
+ * store first - so the lower store always holds all tiles and failures of the
+ * upper store do not lose any tile.
+ *
+ * @author joern.muehlencord
+ */
+public class TieredTileStore implements TileStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredTileStore.class);
+
+    private final TileStore upper;
+    private final TileStore lower;
+
+    /**
+     * creates a new store.
+     *
+     * @param upper the store to consult first.
+     * @param lower the store holding all tiles.
+     */
+    public TieredTileStore(TileStore upper, TileStore lower) {
+        this.upper = upper;
+        this.lower = lower;
+    }
+
+    @Override
+    public TileInfo stat(TileKey tileKey) throws IOException {
+        TileInfo tileInfo = statUpper(tileKey);
+        return tileInfo == null ? lower.stat(tileKey) : tileInfo;
+    }
+
+    @Override
+    public CachedTile get(TileKey tileKey) throws IOException {
+        CachedTile tile = getUpper(tileKey);
+        if (tile != null) {
+            return tile;
+        }
+        tile = lower.get(tileKey);
+        if (tile != null) {
+            try {
+                upper.put(tileKey, tile.getData(), tile.getLastModified(), lower.getMetadata(tileKey));
+            } catch (IOException ex) {
+                LOGGER.warn("Cannot copy tile {} to upper store: {}", tileKey, ex.toString());
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * opens the tile in the upper store. Tiles found in the lower store only
+     * are read to copy them to the upper store.
+     */
+    @Override
+    public TileRegion open(TileKey tileKey) throws IOException {
+        TileRegion region = openUpper(tileKey);
+        if (region != null) {
+            return region;
+        }
+        CachedTile tile = get(tileKey);
+        return tile == null ? null : new TileRegion(tile);
+    }
+
+    @Override
+    public TileMetadata getMetadata(TileKey tileKey) throws IOException {
+        if (statUpper(tileKey) != null) {
+            return upper.getMetadata(tileKey);
+        }
+        return lower.getMetadata(tileKey);
+    }
+
+    @Override
+    public void put(TileKey tileKey, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException {
+        lower.put(tileKey, data, lastModified, metadata);
+        try {
+            upper.put(tileKey, data, lastModified, metadata);
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot store tile {} in upper store: {}", tileKey, ex.toString());
+            deleteUpper(tileKey);
+        }
+    }
+
+    @Override
+    public void touch(TileKey tileKey, long lastModified, TileMetadata metadata) throws IOException {
+        lower.touch(tileKey, lastModified, metadata);
+        try {
+            if (upper.stat(tileKey) != null) {
+                upper.touch(tileKey, lastModified, metadata);
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot update tile {} in upper store: {}", tileKey, ex.toString());
+            deleteUpper(tileKey);
+        }
+    }
+
+    @Override
+    public boolean delete(TileKey tileKey) throws IOException {
+        boolean deleted = upper.delete(tileKey);
+        return lower.delete(tileKey) || deleted;
+    }
+
+    /**
+     * iterates the lower store, which holds all tiles.
+     */
+    @Override
+    public void iterate(TileVisitor visitor) throws IOException {
+        lower.iterate(visitor);
+    }
+
+    @Override
+    public void iterate(long z, TileVisitor visitor) throws IOException {
+        lower.iterate(z, visitor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            upper.close();
+        } finally {
+            lower.close();
+        }
+    }
+
+    public TileStore getUpper() {
+        return upper;
+    }
+
+    public TileStore getLower() {
+        return lower;
+    }
+
+    /**
+     * reads the tile attributes from the upper store, failures of the upper
+     * store are ignored - the lower store is asked then.
+     */
+    private TileInfo statUpper(TileKey tileKey) {
+        try {
+            return upper.stat(tileKey);
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot read tile {} from upper store: {}", tileKey, ex.toString());
+            return null;
+        }
+    }
+
+    private CachedTile getUpper(TileKey tileKey) {
+        try {
+            return upper.get(tileKey);
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot read tile {} from upper store: {}", tileKey, ex.toString());
+            return null;
+        }
+    }
+
+    private TileRegion openUpper(TileKey tileKey) {
+        try {
+            return upper.open(tileKey);
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot read tile {} from upper store: {}", tileKey, ex.toString());
+            return null;
+        }
+    }
+
+    private void deleteUpper(TileKey tileKey) {
+        try {
+            upper.delete(tileKey);
+        } catch (IOException ex) {
+            // the upper store may keep an outdated tile until it is replaced
+            LOGGER.error("Cannot remove tile {} from upper store: {}", tileKey, ex.toString());
+        }
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file holding up to 128x128 tiles of one zoom level, read and written
+ * through a memory mapped buffer. The file starts with a header and an index
+ * with a fixed size entry per tile, followed by the tile records:
+ * <pre>
+ * header: magic "OSMB" (int), version (short), tiles per axis (short), end of data (long)
+ * index:  offset (long), length (int), last modified (long) per tile, by column and row
+ * record: etag length (short), etag, last-modified length (short), last-modified, image data
+ * </pre> Records are only appended, so tiles returned to readers never
+ * change. Replaced and deleted tiles leave garbage behind, which is removed
+ * by rewriting the bundle once it exceeds the size of the live tiles.
+ *
+ * @author joern.muehlencord
+ */
+class TileBundle implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileBundle.class);
+
+    /**
+     * maximum number of tiles per axis
+     */
+    static final int MAX_SIZE = 128;
+
+    private static final int MAGIC = 0x4F534D42;
+    private static final short VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int ENTRY_LENGTH = 20;
+
+    /**
+     * minimum number of bytes the file grows by, to avoid remapping it on
+     * each write
+     */
+    private static final int GROWTH = 1024 * 1024;
+
+    /**
+     * minimum number of garbage bytes before the bundle is compacted
+     */
+    private static final long COMPACT_THRESHOLD = 4L * 1024 * 1024;
+
+    private final Path path;
+    private final int size;
+    private final int dataStart;
+    private final SyncPolicy syncPolicy;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int end;
+    private long liveBytes;
+    private volatile boolean closed;
+
+    private TileBundle(Path path, int size, SyncPolicy syncPolicy, FileChannel channel, boolean readOnly) throws IOException {
+        this.path = path;
+        this.size = size;
+        this.dataStart = HEADER_LENGTH + size * size * ENTRY_LENGTH;
+        this.syncPolicy = syncPolicy;
+        this.channel = channel;
+        if (channel.size() < dataStart && !readOnly) {
+            // new bundle or creation was interrupted before the index was written
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart + GROWTH);
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, VERSION);
+            buffer.putShort(6, (short) size);
+            setEnd(dataStart);
+            force();
+        } else {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path.toString() + " is too large");
+            }
+            buffer = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.capacity() < dataStart || buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION || buffer.getShort(6) != size) {
+                throw new IOException(path.toString() + " is not a tile bundle");
+            }
+            long storedEnd = buffer.getLong(8);
+            if (storedEnd < dataStart || storedEnd > buffer.capacity()) {
+                throw new IOException(path.toString() + " is corrupt");
+            }
+            end = (int) storedEnd;
+            for (int i = 0; i < size * size; i++) {
+                if (isValid(i)) {
+                    liveBytes += getLength(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * opens the bundle at the given path, the bundle is created if it does
+     * not exist.
+     *
+     * @param path the bundle file.
+     * @param z the zoom level of the tiles in the bundle.
+     * @param syncPolicy whether to sync written tiles to the storage device.
+     * @return the opened bundle.
+     * @throws IOException if the bundle cannot be opened.
+     */
+    static TileBundle open(Path path, long z, SyncPolicy syncPolicy) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            return new TileBundle(path, getSize(z), syncPolicy, channel, false);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * lists the tiles of the bundle at the given path without keeping it
+     * open, e.g. to walk all bundles of a layer. The bundle is not modified.
+     *
+     * @param path the bundle file.
+     * @param z the zoom level of the tiles in the bundle.
+     * @return the attributes of the tiles by position in the index, empty if
+     * the bundle does not exist or is being created.
+     * @throws IOException if the bundle cannot be read.
+     */
+    static Map<Integer, TileInfo> list(Path path, long z) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH + getSize(z) * getSize(z) * ENTRY_LENGTH) {
+                return Collections.emptyMap();
+            }
+            return new TileBundle(path, getSize(z), SyncPolicy.NONE, channel, true).list();
+        } catch (NoSuchFileException ex) {
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * returns the path of the bundle containing the given tile.
+     *
+     * @param layerFolder the cache folder of the layer.
+     * @param tileKey the tile to get the bundle of.
+     * @return the path of the bundle, e.g. 12/16/10.png.bundle for tile
+     * 12/2050/1300.png.
+     */
+    static Path resolve(Path layerFolder, TileKey tileKey) {
+        int size = getSize(tileKey.getZ());
+        return layerFolder.resolve(Long.toString(tileKey.getZ()))
+                .resolve(Long.toString(tileKey.getX() / size))
+                .resolve((tileKey.getY() / size) + "." + tileKey.getEnding() + ".bundle");
+    }
+
+    /**
+     * returns the number of tiles per axis of the bundles of the given zoom
+     * level - zoom levels below 7 have less than 128 tiles per axis.
+     */
+    static int getSize(long z) {
+        return (int) Math.min(MAX_SIZE, 1L << z);
+    }
+
+    /**
+     * returns the position of the tile in the index of its bundle.
+     */
+    static int getIndex(TileKey tileKey) {
+        int size = getSize(tileKey.getZ());
+        return (int) ((tileKey.getX() % size) * size + (tileKey.getY() % size));
+    }
+
+    TileInfo stat(int index) {
+        lock.readLock().lock();
+        try {
+            if (!isValid(index)) {
+                return null;
+            }
+            return new TileInfo(getLastModified(index), getDataLength(getOffset(index), getLength(index)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * returns the tile. The data is a read only view on the mapped file, it
+     * stays valid after the tile is replaced or the bundle is closed.
+     */
+    CachedTile get(int index) {
+        lock.readLock().lock();
+        try {
+            if (!isValid(index)) {
+                return null;
+            }
+            return new CachedTile(getData(getOffset(index), getLength(index)), getLastModified(index));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    TileMetadata getMetadata(int index) {
+        lock.readLock().lock();
+        try {
+            if (!isValid(index)) {
+                return null;
+            }
+            TileMetadata metadata = readMetadata(getOffset(index));
+            return metadata.isEmpty() ? null : metadata;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void put(int index, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            append(index, data, lastModified, metadata);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void touch(int index, long lastModified, TileMetadata metadata) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (!isValid(index)) {
+                throw new NoSuchFileException(path.toString(), null, "tile " + index + " not stored");
+            }
+            long offset = getOffset(index);
+            TileMetadata current = readMetadata(offset);
+            if (metadata == null || metadata.isEmpty() || (Objects.equals(metadata.getETag(), current.getETag())
+                    && Objects.equals(metadata.getLastModified(), current.getLastModified()))) {
+                buffer.putLong(getEntryPosition(index) + 12, lastModified);
+                force();
+            } else {
+                // validators are part of the record - store a copy of the tile with the new ones
+                append(index, getData(offset, getLength(index)), lastModified, metadata);
+                compactIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean delete(int index) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (!isValid(index)) {
+                return false;
+            }
+            liveBytes -= getLength(index);
+            writeEntry(index, 0, 0, 0);
+            force();
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * rewrites the bundle without the data of replaced and deleted tiles,
+     * even if there is less garbage than compacted automatically.
+     *
+     * @return the number of bytes freed.
+     * @throws IOException if the bundle cannot be rewritten.
+     */
+    long removeGarbage() throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            long garbage = end - dataStart - liveBytes;
+            if (garbage > 0) {
+                compact();
+            }
+            return garbage;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * returns the attributes of all tiles stored in the bundle.
+     *
+     * @return the attributes by position in the index.
+     */
+    Map<Integer, TileInfo> list() {
+        lock.readLock().lock();
+        try {
+            Map<Integer, TileInfo> tiles = new LinkedHashMap<>();
+            for (int i = 0; i < size * size; i++) {
+                if (isValid(i)) {
+                    tiles.put(i, new TileInfo(getLastModified(i), getDataLength(getOffset(i), getLength(i))));
+                }
+            }
+            return tiles;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * returns the number of bytes used by replaced and deleted tiles.
+     */
+    long getGarbage() {
+        lock.readLock().lock();
+        try {
+            return end - dataStart - liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * closes the bundle and drops the space reserved for further tiles.
+     *
+     * @see #close(boolean)
+     */
+    @Override
+    public void close() throws IOException {
+        close(true);
+    }
+
+    /**
+     * closes the bundle, tiles already returned stay readable. Writes to a
+     * closed bundle fail with a ClosedChannelException. Running writes are
+     * finished first, so the bundle can be opened again once this method
+     * returns.
+     *
+     * @param truncate true to drop the space reserved for further tiles,
+     * false if the bundle is likely opened again soon.
+     * @throws IOException if the bundle cannot be closed.
+     */
+    void close(boolean truncate) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (truncate) {
+                try {
+                    channel.truncate(end);
+                } catch (IOException ex) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Cannot truncate {}: {}", path.toString(), ex.toString());
+                    }
+                }
+            }
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * appends the record and points the index entry to it. The end of the
+     * data is updated before the index, so an interrupted write leaves
+     * garbage, but never an index entry pointing to unwritten data.
+     */
+    private void append(int index, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException {
+        byte[] eTag = encode(metadata == null ? null : metadata.getETag());
+        byte[] upstreamLastModified = encode(metadata == null ? null : metadata.getLastModified());
+        long recordLength = 4L + eTag.length + upstreamLastModified.length + data.remaining();
+        if (end + recordLength > Integer.MAX_VALUE) {
+            throw new IOException(path.toString() + " is full");
+        }
+        int offset = end;
+        ensureCapacity(offset + recordLength);
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.putShort((short) eTag.length).put(eTag)
+                .putShort((short) upstreamLastModified.length).put(upstreamLastModified)
+                .put(data.duplicate());
+        setEnd(offset + (int) recordLength);
+        force();
+        if (isValid(index)) {
+            liveBytes -= getLength(index);
+        }
+        writeEntry(index, offset, (int) recordLength, lastModified);
+        liveBytes += recordLength;
+        force();
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        int capacity = buffer.capacity();
+        if (required <= capacity) {
+            return;
+        }
+        long newCapacity = Math.min(Integer.MAX_VALUE, Math.max(required, capacity + Math.max(capacity / 4, GROWTH)));
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+    }
+
+    private void compactIfNeeded() throws IOException {
+        long garbage = end - dataStart - liveBytes;
+        if (garbage > COMPACT_THRESHOLD && garbage > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * rewrites the bundle without garbage. The new bundle is written to a
+     * temporary file and moved over the current one, readers of the old
+     * mapping keep reading the old file.
+     */
+    private void compact() throws IOException {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Compacting {}, {} of {} bytes used", path.toString(), liveBytes, end - dataStart);
+        }
+        Path tempFile = Files.createTempFile(path.toAbsolutePath().getParent(), "." + path.getFileName().toString(), ".tmp");
+        int newEnd = dataStart;
+        try {
+            try (FileChannel target = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ByteBuffer index = ByteBuffer.allocate(dataStart);
+                index.putInt(0, MAGIC);
+                index.putShort(4, VERSION);
+                index.putShort(6, (short) size);
+                for (int i = 0; i < size * size; i++) {
+                    if (isValid(i)) {
+                        int length = getLength(i);
+                        ByteBuffer record = buffer.duplicate();
+                        record.position((int) getOffset(i)).limit((int) getOffset(i) + length);
+                        writeFully(target, record, newEnd);
+                        index.putLong(HEADER_LENGTH + i * ENTRY_LENGTH, newEnd);
+                        index.putInt(HEADER_LENGTH + i * ENTRY_LENGTH + 8, length);
+                        index.putLong(HEADER_LENGTH + i * ENTRY_LENGTH + 12, getLastModified(i));
+                        newEnd += length;
+                    }
+                }
+                index.putLong(8, newEnd);
+                writeFully(target, index, 0);
+                if (syncPolicy != SyncPolicy.NONE) {
+                    target.force(true);
+                }
+            }
+            try {
+                Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        }
+        FileChannel oldChannel = channel;
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        oldChannel.close();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        end = newEnd;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        long currentPosition = position;
+        while (data.hasRemaining()) {
+            currentPosition += channel.write(data, currentPosition);
+        }
+    }
+
+    private void force() {
+        if (syncPolicy != SyncPolicy.NONE) {
+            buffer.force();
+        }
+    }
+
+    private void setEnd(int newEnd) {
+        buffer.putLong(8, newEnd);
+        end = newEnd;
+    }
+
+    private int getEntryPosition(int index) {
+        return HEADER_LENGTH + index * ENTRY_LENGTH;
+    }
+
+    private void writeEntry(int index, long offset, int length, long lastModified) {
+        int position = getEntryPosition(index);
+        buffer.putLong(position, offset);
+        buffer.putInt(position + 8, length);
+        buffer.putLong(position + 12, lastModified);
+    }
+
+    private long getOffset(int index) {
+        return buffer.getLong(getEntryPosition(index));
+    }
+
+    private int getLength(int index) {
+        return buffer.getInt(getEntryPosition(index) + 8);
+    }
+
+    private long getLastModified(int index) {
+        return buffer.getLong(getEntryPosition(index) + 12);
+    }
+
+    /**
+     * checks whether the index entry points to a record within the data
+     * written completely.
+     */
+    private boolean isValid(int index) {
+        long offset = getOffset(index);
+        int length = getLength(index);
+        return length > 0 && offset >= dataStart && offset + length <= end;
+    }
+
+    private TileMetadata readMetadata(long offset) {
+        int position = (int) offset;
+        String eTag = decode(position);
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        String upstreamLastModified = decode(position);
+        return new TileMetadata(eTag, upstreamLastModified);
+    }
+
+    private int getDataLength(long offset, int length) {
+        return length - getDataPosition(offset) + (int) offset;
+    }
+
+    private int getDataPosition(long offset) {
+        int position = (int) offset;
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        return position;
+    }
+
+    private ByteBuffer getData(long offset, int length) {
+        int dataPosition = getDataPosition(offset);
+        ByteBuffer data = buffer.duplicate();
+        data.position(dataPosition).limit((int) offset + length);
+        return data.slice();
+    }
+
+    private String decode(int position) {
+        int length = buffer.getShort(position) & 0xFFFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + 2);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // validators longer than that are not sent by any sane server - revalidation is skipped then
+        return bytes.length > 0xFFFF ? new byte[0] : bytes;
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In memory index of the tiles stored in a layer, so requests for tiles not
+ * in the cache do not need to search the disk. Zoom levels up to
+ * {@link #MAX_EXACT_ZOOM} are held as bitset with one bit per tile, the
+ * deeper zoom levels - which may have billions of tiles - as Bloom filter.
+ * The index may report tiles as present which are not stored, but never the
+ * other way round. A zoom level not yet indexed reports all tiles as present.
+ * A Bloom filter holding more tiles than it was sized for is dropped, so the
+ * zoom level can be indexed again with a larger filter.
+ * The index also keeps the size of the tiles of each indexed zoom level, so
+ * the size of the layer is known without walking the store. Thread safe.
+ *
+ * @author joern.muehlencord
+ */
+class TileIndex {
+
+    /**
+     * the highest zoom level which is indexed
+     */
+    static final int MAX_ZOOM = 19;
+
+    /**
+     * the highest zoom level held as bitset - 2 MB for zoom level 12
+     */
+    static final int MAX_EXACT_ZOOM = 12;
+
+    private static final int MAGIC = 0x4F534D49;
+    private static final short VERSION = 3;
+
+    /**
+     * minimum bits of a Bloom filter per tile - gives 0.25% false positives
+     * with 4 hash functions. A filter is sized for at least twice the tiles
+     * found by the scan and dropped once the tiles fall below this ratio.
+     */
+    private static final int BITS_PER_TILE = 16;
+    private static final int BLOOM_HASHES = 4;
+    private static final long MIN_BLOOM_SIZE = 1L << 20;
+    private static final long MAX_BLOOM_SIZE = 1L << 31;
+
+    /**
+     * the type of the store the index was built for, a saved index is not
+     * used for another store type
+     */
+    private final String signature;
+
+    /**
+     * the indexed zoom levels, null if not yet indexed
+     */
+    private final AtomicReferenceArray<ZoomIndex> zooms = new AtomicReferenceArray<>(MAX_ZOOM + 1);
+
+    /**
+     * the size of the tiles of the indexed zoom levels in bytes
+     */
+    private final AtomicLongArray sizes = new AtomicLongArray(MAX_ZOOM + 1);
+
+    /**
+     * changes of the zoom levels currently scanned - true for an added tile,
+     * false for a removed one. Guarded by the lock of the zoom level.
+     */
+    private final Map<Long, Map<Long, Boolean>> pending = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[MAX_ZOOM + 1];
+
+    TileIndex(String signature) {
+        this.signature = signature;
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            locks[z] = new Object();
+        }
+    }
+
+    /**
+     * checks whether the tile may be stored.
+     *
+     * @param tileKey the tile to check.
+     * @return false, if the tile is not stored for sure - true, if the tile
+     * is stored or its zoom level is not indexed.
+     */
+    boolean mightContain(TileKey tileKey) {
+        ZoomIndex zoom = getZoom(tileKey);
+        return zoom == null || zoom.mightContain(tileKey.getX(), tileKey.getY());
+    }
+
+    /**
+     * records a stored tile.
+     *
+     * @param tileKey the tile stored.
+     * @return true, if the Bloom filter of the zoom level is full. The zoom
+     * level is not indexed anymore then and needs to be built again, changes
+     * until then are recorded.
+     */
+    boolean add(TileKey tileKey) {
+        update(tileKey, true);
+        ZoomIndex zoom = getZoom(tileKey);
+        return zoom != null && zoom.isFull() && drop(tileKey, zoom);
+    }
+
+    /**
+     * removes the full index of the zoom level of the given tile, so it is
+     * looked up in the store until it is built again. The tile is recorded
+     * as change for the next build.
+     *
+     * @return true, if the zoom level was dropped by this call.
+     */
+    private boolean drop(TileKey tileKey, ZoomIndex zoom) {
+        int z = (int) tileKey.getZ();
+        synchronized (locks[z]) {
+            if (zooms.get(z) != zoom) {
+                return false;
+            }
+            Map<Long, Boolean> changes = new HashMap<>();
+            changes.put(toLong(tileKey.getX(), tileKey.getY()), true);
+            pending.put(tileKey.getZ(), changes);
+            zooms.set(z, null);
+            return true;
+        }
+    }
+
+    /**
+     * records a removed tile. Bloom filters cannot forget a tile, removed
+     * tiles of deep zoom levels are still reported as present.
+     *
+     * @param tileKey the tile removed.
+     */
+    void remove(TileKey tileKey) {
+        update(tileKey, false);
+    }
+
+    private void update(TileKey tileKey, boolean added) {
+        if (!isValid(tileKey)) {
+            return;
+        }
+        ZoomIndex zoom = getZoom(tileKey);
+        if (zoom == null) {
+            int z = (int) tileKey.getZ();
+            synchronized (locks[z]) {
+                zoom = zooms.get(z);
+                Map<Long, Boolean> changes = pending.get(tileKey.getZ());
+                if (zoom == null && changes != null) {
+                    // applied once the scan is finished
+                    changes.put(toLong(tileKey.getX(), tileKey.getY()), added);
+                }
+            }
+        }
+        if (zoom != null) {
+            if (added) {
+                zoom.add(tileKey.getX(), tileKey.getY());
+            } else {
+                zoom.remove(tileKey.getX(), tileKey.getY());
+            }
+        }
+    }
+
+    /**
+     * records a changed size of the tiles stored in the zoom level of the
+     * given tile. Changes of zoom levels not yet indexed are ignored, they
+     * are counted by the scan. The size is approximate, concurrent changes of
+     * the same tile may be counted twice until the index is rebuilt.
+     *
+     * @param tileKey the tile stored, replaced or removed.
+     * @param delta the number of bytes added - negative for removed bytes.
+     */
+    void resize(TileKey tileKey, long delta) {
+        if (getZoom(tileKey) != null) {
+            sizes.addAndGet((int) tileKey.getZ(), delta);
+        }
+    }
+
+    /**
+     * @return the size of all indexed tiles in bytes or -1, if not all zoom
+     * levels are indexed yet.
+     */
+    long getSize() {
+        long size = 0;
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            if (zooms.get(z) == null) {
+                return -1;
+            }
+            size += sizes.get(z);
+        }
+        return size;
+    }
+
+    private ZoomIndex getZoom(TileKey tileKey) {
+        return isValid(tileKey) ? zooms.get((int) tileKey.getZ()) : null;
+    }
+
+    private static boolean isValid(TileKey tileKey) {
+        long z = tileKey.getZ();
+        return z >= 0 && z <= MAX_ZOOM
+                && tileKey.getX() >= 0 && tileKey.getX() < (1L << z)
+                && tileKey.getY() >= 0 && tileKey.getY() < (1L << z);
+    }
+
+    boolean isIndexed(long z) {
+        return zooms.get((int) z) != null;
+    }
+
+    /**
+     * indexes a zoom level by visiting all its tiles in the store. Changes
+     * during the scan are recorded and applied afterwards.
+     *
+     * @param store the store to scan.
+     * @param z the zoom level to index.
+     * @param cancelled stops the scan if it returns true, the zoom level is
+     * not indexed then.
+     * @return true, if the zoom level is indexed.
+     * @throws IOException if the store cannot be read.
+     */
+    boolean build(TileStore store, long z, BooleanSupplier cancelled) throws IOException {
+        synchronized (locks[(int) z]) {
+            // keeps the changes recorded since the zoom level was dropped
+            pending.computeIfAbsent(z, key -> new HashMap<>());
+        }
+        try {
+            ZoomIndex zoom;
+            long[] size = {0};
+            if (z <= MAX_EXACT_ZOOM) {
+                ZoomIndex exact = ZoomIndex.exact(z);
+                store.iterate(z, (tileKey, tileInfo) -> {
+                    if (isValid(tileKey)) {
+                        exact.add(tileKey.getX(), tileKey.getY());
+                        size[0] += tileInfo.getSize();
+                    }
+                    return !cancelled.getAsBoolean();
+                });
+                zoom = exact;
+            } else {
+                // the size of the filter depends on the number of tiles
+                LongList tiles = new LongList();
+                store.iterate(z, (tileKey, tileInfo) -> {
+                    if (isValid(tileKey)) {
+                        tiles.add(toLong(tileKey.getX(), tileKey.getY()));
+                        size[0] += tileInfo.getSize();
+                    }
+                    return !cancelled.getAsBoolean();
+                });
+                zoom = ZoomIndex.bloom(z, tiles.size());
+                for (int i = 0; i < tiles.size(); i++) {
+                    zoom.add(tiles.get(i) >>> 32, tiles.get(i) & 0xFFFFFFFFL);
+                }
+            }
+            if (cancelled.getAsBoolean()) {
+                return false;
+            }
+            synchronized (locks[(int) z]) {
+                if (zoom.isFull()) {
+                    // more tiles than the largest filter can hold, the store is asked instead
+                    return false;
+                }
+                for (Map.Entry<Long, Boolean> change : pending.get(z).entrySet()) {
+                    long x = change.getKey() >>> 32;
+                    long y = change.getKey() & 0xFFFFFFFFL;
+                    if (change.getValue()) {
+                        zoom.add(x, y);
+                    } else {
+                        zoom.remove(x, y);
+                    }
+                }
+                sizes.set((int) z, size[0]);
+                zooms.set((int) z, zoom);
+            }
+            return true;
+        } finally {
+            synchronized (locks[(int) z]) {
+                pending.remove(z);
+            }
+        }
+    }
+
+    /**
+     * saves the indexed zoom levels to the given file.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    void save(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempFile))))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(signature);
+            for (int z = 0; z <= MAX_ZOOM; z++) {
+                ZoomIndex zoom = zooms.get(z);
+                if (zoom == null) {
+                    out.writeByte(0);
+                    continue;
+                }
+                out.writeByte(1);
+                out.writeLong(sizes.get(z));
+                out.writeByte(zoom.hashes);
+                out.writeLong(zoom.size);
+                out.writeLong(zoom.inserts.get());
+                for (long word : zoom.bits.toArray()) {
+                    out.writeLong(word);
+                }
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * loads an index saved by {@link #save(Path)}. The file is deleted, so an
+     * outdated index is not loaded again if the application is not stopped
+     * properly - the index is saved again on shutdown.
+     *
+     * @param file the file to read.
+     * @param signature the type of the store the index is needed for.
+     * @return the index or null, if no index was saved or it was saved for
+     * another store type.
+     * @throws IOException if the file cannot be read.
+     */
+    static TileIndex load(Path file, String signature) throws IOException {
+        TileIndex index = new TileIndex(signature);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION || !signature.equals(in.readUTF())) {
+                return null;
+            }
+            for (int z = 0; z <= MAX_ZOOM; z++) {
+                if (in.readByte() == 0) {
+                    continue;
+                }
+                index.sizes.set(z, in.readLong());
+                int hashes = in.readByte();
+                long size = in.readLong();
+                long inserts = in.readLong();
+                long[] words = new long[(int) ((size + 63) >>> 6)];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                index.zooms.set(z, new ZoomIndex(z, hashes, size, new BitArray(words), inserts));
+            }
+        } catch (NoSuchFileException ex) {
+            return null;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        return index;
+    }
+
+    private static long toLong(long x, long y) {
+        return (x << 32) | y;
+    }
+
+    /**
+     * the index of a single zoom level
+     */
+    private static final class ZoomIndex {
+
+        private final long z;
+
+        /**
+         * number of hash functions of the Bloom filter, 0 for a bitset
+         */
+        private final int hashes;
+        private final long size;
+        private final BitArray bits;
+
+        /**
+         * number of tiles added to the Bloom filter. Tiles which did not set
+         * a new bit are not counted, so replaced tiles are counted once.
+         */
+        private final AtomicLong inserts;
+
+        private ZoomIndex(long z, int hashes, long size, BitArray bits, long inserts) {
+            this.z = z;
+            this.hashes = hashes;
+            this.size = size;
+            this.bits = bits;
+            this.inserts = new AtomicLong(inserts);
+        }
+
+        static ZoomIndex exact(long z) {
+            long size = 1L << (2 * z);
+            return new ZoomIndex(z, 0, size, new BitArray(size), 0);
+        }
+
+        static ZoomIndex bloom(long z, long tiles) {
+            long size = Long.highestOneBit(Math.min(MAX_BLOOM_SIZE, Math.max(MIN_BLOOM_SIZE, tiles * BITS_PER_TILE * 2 - 1)));
+            return new ZoomIndex(z, BLOOM_HASHES, size, new BitArray(size), 0);
+        }
+
+        void add(long x, long y) {
+            if (hashes == 0) {
+                bits.set((x << z) | y);
+                return;
+            }
+            long hash = mix(toLong(x, y));
+            boolean added = false;
+            for (int i = 0; i < hashes; i++) {
+                added |= bits.set(index(hash, i));
+            }
+            if (added) {
+                inserts.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return true, if the Bloom filter holds more tiles than it was sized
+         * for.
+         */
+        boolean isFull() {
+            return hashes != 0 && inserts.get() > size / BITS_PER_TILE;
+        }
+
+        void remove(long x, long y) {
+            if (hashes == 0) {
+                bits.clear((x << z) | y);
+            }
+        }
+
+        boolean mightContain(long x, long y) {
+            if (hashes == 0) {
+                return bits.get((x << z) | y);
+            }
+            long hash = mix(toLong(x, y));
+            for (int i = 0; i < hashes; i++) {
+                if (!bits.get(index(hash, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * derives the i-th hash from the two halves of the hash
+         */
+        private long index(long hash, int i) {
+            return ((hash >>> 32) + i * (hash & 0xFFFFFFFFL)) & (size - 1);
+        }
+
+        private static long mix(long value) {
+            long z = value + 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * array of bits which can be changed by several threads
+     */
+    private static final class BitArray {
+
+        private final AtomicLongArray words;
+
+        BitArray(long size) {
+            this.words = new AtomicLongArray((int) ((size + 63) >>> 6));
+        }
+
+        BitArray(long[] words) {
+            this.words = new AtomicLongArray(words);
+        }
+
+        /**
+         * @return true, if the bit was not set before.
+         */
+        boolean set(long index) {
+            long mask = 1L << index;
+            return (words.getAndAccumulate((int) (index >>> 6), mask, (word, bit) -> word | bit) & mask) == 0;
+        }
+
+        void clear(long index) {
+            words.getAndAccumulate((int) (index >>> 6), 1L << index, (word, mask) -> word & ~mask);
+        }
+
+        boolean get(long index) {
+            return (words.get((int) (index >>> 6)) & (1L << index)) != 0;
+        }
+
+        long[] toArray() {
+            long[] result = new long[words.length()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = words.get(i);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * growable list of primitive longs
+     */
+    private static final class LongList {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
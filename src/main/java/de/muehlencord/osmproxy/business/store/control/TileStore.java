@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage backend of the tiles of a layer. Implementations must be thread
+ * safe, the tiles returned must not change if the tile is replaced
+ * concurrently. The backend is selected by the name of the cache, stores can
+ * be layered using a {@link TieredTileStore}.
+ *
+ * @author joern.muehlencord
+ */
+public interface TileStore extends Closeable {
+
+    /**
+     * returns the attributes of the tile.
+     *
+     * @param tileKey the tile to get the attributes of.
+     * @return the attributes or null, if the tile is not stored.
+     * @throws IOException if the store cannot be read.
+     */
+    TileInfo stat(TileKey tileKey) throws IOException;
+
+    /**
+     * reads the tile.
+     *
+     * @param tileKey the tile to read.
+     * @return the tile or null, if the tile is not stored.
+     * @throws IOException if the store cannot be read.
+     */
+    CachedTile get(TileKey tileKey) throws IOException;
+
+    /**
+     * opens the tile for streaming it without copying it to the Java heap,
+     * e.g. a region of a file. The modification time of the region belongs to
+     * the content of the region, even if the tile is replaced concurrently.
+     *
+     * @param tileKey the tile to open.
+     * @return the tile, which must be closed by the caller, or null if the
+     * tile is not stored.
+     * @throws IOException if the store cannot be read.
+     */
+    TileRegion open(TileKey tileKey) throws IOException;
+
+    /**
+     * returns the upstream validators stored with the tile.
+     *
+     * @param tileKey the tile to get the validators of.
+     * @return the validators or null, if the tile is not stored or no
+     * validators are known.
+     * @throws IOException if the store cannot be read.
+     */
+    TileMetadata getMetadata(TileKey tileKey) throws IOException;
+
+    /**
+     * stores the tile, replacing the current one. Concurrent readers either
+     * get the old or the new tile, but never a partially written one.
+     *
+     * @param tileKey the tile to store.
+     * @param data the image data, read from its position to its limit.
+     * @param lastModified the modification time to store in milliseconds
+     * since epoch.
+     * @param metadata the upstream validators to store - can be null.
+     * @throws IOException if the tile cannot be stored.
+     */
+    void put(TileKey tileKey, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException;
+
+    /**
+     * updates the modification time and validators of a tile the upstream
+     * server reported as not modified.
+     *
+     * @param tileKey the tile to update.
+     * @param lastModified the new modification time in milliseconds since
+     * epoch.
+     * @param metadata the upstream validators to store - can be null to keep
+     * the current ones.
+     * @throws IOException if the tile is not stored or cannot be updated.
+     */
+    void touch(TileKey tileKey, long lastModified, TileMetadata metadata) throws IOException;
+
+    /**
+     * removes the tile.
+     *
+     * @param tileKey the tile to remove.
+     * @return true, if the tile was removed, false if it was not stored.
+     * @throws IOException if the tile cannot be removed.
+     */
+    boolean delete(TileKey tileKey) throws IOException;
+
+    /**
+     * calls the visitor for each stored tile, in no particular order. Tiles
+     * stored or removed during the iteration may or may not be visited.
+     *
+     * @param visitor the visitor to call.
+     * @throws IOException if the store cannot be read or the visitor fails.
+     */
+    void iterate(TileVisitor visitor) throws IOException;
+
+    /**
+     * calls the visitor for each stored tile of the given zoom level, in no
+     * particular order. Allows to walk the store in smaller steps, or several
+     * zoom levels in parallel.
+     *
+     * @param z the zoom level to visit.
+     * @param visitor the visitor to call.
+     * @throws IOException if the store cannot be read or the visitor fails.
+     */
+    void iterate(long z, TileVisitor visitor) throws IOException;
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.ConfigurationBean;
+import de.muehlencord.osmproxy.business.config.entity.CacheType;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.MemoryCache;
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the tile store of each layer, as defined by the name of the cache.
+ * If several stores are named, they are layered - the first one is consulted
+ * first. Persistent stores are indexed, so requests for tiles not in the cache
+ * are answered from memory, and new tiles are written to them in the
+ * background. The stores of all layers are created on startup, so the index
+ * is built right away. A store is replaced if the cache name, the cache
+ * folder of the layer or the sync policy changes.
+ *
+ * @author joern.muehlencord
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class TileStoreManager implements Serializable {
+
+    private static final long serialVersionUID = 7310245863319702483L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileStoreManager.class);
+
+    /**
+     * size of a memory store in MB if no memory cache size is configured
+     */
+    private static final int DEFAULT_MEMORY_SIZE = 256;
+
+    /**
+     * number of zoom levels indexed in parallel
+     */
+    private static final int INDEX_THREADS = 4;
+
+    /**
+     * number of threads writing new tiles to the persistent stores
+     */
+    private static final int WRITE_THREADS = 2;
+
+    @Inject
+    private ConfigurationBean configurationBean;
+
+    /**
+     * the stores by layer name
+     */
+    private final transient Map<String, LayerStore> stores = new ConcurrentHashMap<>();
+
+    private transient ExecutorService indexExecutor;
+    private transient ExecutorService writeExecutor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        indexExecutor = Executors.newFixedThreadPool(INDEX_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-index-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger writeThreadCount = new AtomicInteger();
+        writeExecutor = Executors.newFixedThreadPool(WRITE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "osmproxy-write-behind-" + writeThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (String layerName : configurationBean.getAllLayers()) {
+                getStore(layerName);
+            }
+        } catch (ConfigurationException ex) {
+            LOGGER.error("Cannot create tile stores on startup. Reason: {}", ex.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // closing the stores writes the pending tiles, stops building the index and saves it
+        stores.values().forEach(layerStore -> closeQuietly(layerStore.store));
+        stores.clear();
+        indexExecutor.shutdownNow();
+        writeExecutor.shutdown();
+    }
+
+    /**
+     * returns the store of the given layer.
+     *
+     * @param layerName the name of the layer - e.g. tiles.
+     * @return the store of the layer.
+     * @throws ConfigurationException if the configuration is not loaded or
+     * the layer is not defined.
+     */
+    public TileStore getStore(String layerName) throws ConfigurationException {
+        List<CacheType> cacheTypes = configurationBean.getCacheTypes();
+        Path layerFolder = configurationBean.getCacheDirectory(layerName);
+        SyncPolicy syncPolicy = configurationBean.getSyncPolicy();
+        LayerStore layerStore = stores.get(layerName);
+        if (layerStore != null && layerStore.matches(cacheTypes, layerFolder, syncPolicy)) {
+            return layerStore.store;
+        }
+        return stores.compute(layerName, (name, current) -> {
+            if (current != null) {
+                if (current.matches(cacheTypes, layerFolder, syncPolicy)) {
+                    return current;
+                }
+                LOGGER.info("Cache settings of layer {} changed, replacing tile store", name);
+                closeQuietly(current.store);
+            }
+            CacheType lowest = cacheTypes.get(cacheTypes.size() - 1);
+            TileStore store = createStore(lowest, name, layerFolder, syncPolicy);
+            // only the persistent store is written in the background, memory stores above it get new tiles right away
+            if (lowest != CacheType.MEMORY) {
+                store = new WriteBehindTileStore(name, store, writeExecutor);
+            }
+            for (int i = cacheTypes.size() - 2; i >= 0; i--) {
+                store = new TieredTileStore(createStore(cacheTypes.get(i), name, layerFolder, syncPolicy), store);
+            }
+            if (lowest != CacheType.MEMORY) {
+                store = IndexedTileStore.open(name, store, layerFolder, lowest.getName(), indexExecutor);
+            }
+            return new LayerStore(cacheTypes, layerFolder, syncPolicy, store);
+        }).store;
+    }
+
+    /**
+     * returns the stores created so far.
+     *
+     * @return the stores by layer name.
+     */
+    public Map<String, TileStore> getStores() {
+        Map<String, TileStore> result = new TreeMap<>();
+        stores.forEach((layerName, layerStore) -> result.put(layerName, layerStore.store));
+        return result;
+    }
+
+    private TileStore createStore(CacheType cacheType, String layerName, Path layerFolder, SyncPolicy syncPolicy) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Creating {} tile store for layer {}", cacheType.getName(), layerName);
+        }
+        switch (cacheType) {
+            case MEMORY:
+                return new MemoryTileStore(getMemorySize() * 1024L * 1024L);
+            case BUNDLE:
+                return new BundleTileStore(layerName, layerFolder, syncPolicy);
+            case DISK:
+            default:
+                return new FileTileStore(layerName, layerFolder, syncPolicy);
+        }
+    }
+
+    /**
+     * returns the size of a memory store in MB - the size of the memory
+     * cache, if configured.
+     */
+    private int getMemorySize() {
+        try {
+            MemoryCache memoryCache = configurationBean.getMemoryCache();
+            if (memoryCache != null && memoryCache.getMaxSize() != null && memoryCache.getMaxSize() > 0) {
+                return memoryCache.getMaxSize();
+            }
+        } catch (ConfigurationException ex) {
+            LOGGER.error(ex.getMessage());
+        }
+        return DEFAULT_MEMORY_SIZE;
+    }
+
+    private void closeQuietly(TileStore store) {
+        try {
+            store.close();
+        } catch (IOException ex) {
+            LOGGER.error("Cannot close tile store: {}", ex.toString());
+        }
+    }
+
+    /**
+     * a store together with the settings it was created for
+     */
+    private static class LayerStore {
+
+        private final List<CacheType> cacheTypes;
+        private final Path layerFolder;
+        private final SyncPolicy syncPolicy;
+        private final TileStore store;
+
+        LayerStore(List<CacheType> cacheTypes, Path layerFolder, SyncPolicy syncPolicy, TileStore store) {
+            this.cacheTypes = cacheTypes;
+            this.layerFolder = layerFolder;
+            this.syncPolicy = syncPolicy;
+            this.store = store;
+        }
+
+        boolean matches(List<CacheType> otherCacheTypes, Path otherLayerFolder, SyncPolicy otherSyncPolicy) {
+            return cacheTypes.equals(otherCacheTypes) && layerFolder.equals(otherLayerFolder) && syncPolicy == otherSyncPolicy;
+        }
+    }
+}
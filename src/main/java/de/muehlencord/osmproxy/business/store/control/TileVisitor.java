@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import java.io.IOException;
+
+/**
+ * Callback receiving the tiles of a store during an iteration.
+ *
+ * @author joern.muehlencord
+ */
+@FunctionalInterface
+public interface TileVisitor {
+
+    /**
+     * called for each tile of the store. The store may be modified by the
+     * visitor, e.g. to delete the visited tile.
+     *
+     * @param tileKey the tile.
+     * @param tileInfo the attributes of the tile.
+     * @return true to continue the iteration, false to stop it.
+     * @throws IOException to abort the iteration.
+     */
+    boolean visit(TileKey tileKey, TileInfo tileInfo) throws IOException;
+}
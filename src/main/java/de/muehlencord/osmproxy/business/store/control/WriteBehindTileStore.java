@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes new tiles to the store in the background, so a downloaded tile can
+ * be served to the waiting clients without waiting for the disk. Until a tile
+ * is written it is answered from memory. Tiles are written in batches by a
+ * single task at a time; if too many tiles are waiting, the calling thread
+ * writes the tile itself, which slows down the downloads to the speed of the
+ * disk.
+ * <p>
+ * Only the persistent store at the bottom of a layer is wrapped, memory
+ * stores layered above it receive new tiles right away. A pending tile is
+ * held twice until it is written - by this store and by the memory store
+ * above it, if any - but never copied to the memory cache, which only keeps
+ * tiles read from files.
+ *
+ * @author joern.muehlencord
+ */
+public class WriteBehindTileStore implements TileStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindTileStore.class);
+
+    /**
+     * default number of tiles waiting to be written
+     */
+    static final int MAX_PENDING = 1000;
+
+    /**
+     * number of tiles written in one go
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * number of locks serializing writes and updates of the same tile
+     */
+    private static final int LOCK_COUNT = 64;
+
+    private final String layer;
+    private final TileStore store;
+    private final Executor executor;
+
+    /**
+     * the tiles not yet written - the latest version of each tile
+     */
+    private final Map<TileKey, PendingTile> pendingTiles = new ConcurrentHashMap<>();
+    private final BlockingQueue<PendingTile> queue;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Object[] locks = new Object[LOCK_COUNT];
+    private volatile boolean closed;
+
+    private final LongAdder writtenTiles = new LongAdder();
+    private final LongAdder directWrites = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+
+    /**
+     * creates a new store.
+     *
+     * @param layer the name of the layer, used for logging.
+     * @param store the store to write the tiles to.
+     * @param executor the executor writing the tiles.
+     */
+    public WriteBehindTileStore(String layer, TileStore store, Executor executor) {
+        this(layer, store, executor, MAX_PENDING);
+    }
+
+    WriteBehindTileStore(String layer, TileStore store, Executor executor, int maxPending) {
+        this.layer = layer;
+        this.store = store;
+        this.executor = executor;
+        this.queue = new ArrayBlockingQueue<>(maxPending);
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public TileInfo stat(TileKey tileKey) throws IOException {
+        PendingTile pendingTile = pendingTiles.get(tileKey);
+        if (pendingTile != null) {
+            return new TileInfo(pendingTile.tile.getLastModified(), pendingTile.tile.getSize());
+        }
+        return store.stat(tileKey);
+    }
+
+    @Override
+    public CachedTile get(TileKey tileKey) throws IOException {
+        PendingTile pendingTile = pendingTiles.get(tileKey);
+        return pendingTile == null ? store.get(tileKey) : pendingTile.tile;
+    }
+
+    @Override
+    public TileRegion open(TileKey tileKey) throws IOException {
+        PendingTile pendingTile = pendingTiles.get(tileKey);
+        return pendingTile == null ? store.open(tileKey) : new TileRegion(pendingTile.tile);
+    }
+
+    @Override
+    public TileMetadata getMetadata(TileKey tileKey) throws IOException {
+        PendingTile pendingTile = pendingTiles.get(tileKey);
+        return pendingTile == null ? store.getMetadata(tileKey) : pendingTile.metadata;
+    }
+
+    /**
+     * queues the tile to be written. The tile is written by the calling thread
+     * if the store is closed or too many tiles are waiting.
+     */
+    @Override
+    public void put(TileKey tileKey, ByteBuffer data, long lastModified, TileMetadata metadata) throws IOException {
+        if (closed) {
+            store.put(tileKey, data, lastModified, metadata);
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        PendingTile pendingTile = new PendingTile(tileKey, new CachedTile(copy, lastModified), metadata);
+        // an older version still queued is skipped by the writer
+        pendingTiles.put(tileKey, pendingTile);
+        if (queue.offer(pendingTile)) {
+            scheduleDrain();
+        } else {
+            directWrites.increment();
+            if (!write(pendingTile)) {
+                throw new IOException("cannot write tile " + tileKey);
+            }
+        }
+    }
+
+    @Override
+    public void touch(TileKey tileKey, long lastModified, TileMetadata metadata) throws IOException {
+        synchronized (getLock(tileKey)) {
+            PendingTile pendingTile = pendingTiles.get(tileKey);
+            if (pendingTile != null) {
+                // the tile needs to be written before it can be updated
+                write(pendingTile);
+            }
+            store.touch(tileKey, lastModified, metadata);
+        }
+    }
+
+    @Override
+    public boolean delete(TileKey tileKey) throws IOException {
+        synchronized (getLock(tileKey)) {
+            boolean pending = pendingTiles.remove(tileKey) != null;
+            return store.delete(tileKey) || pending;
+        }
+    }
+
+    /**
+     * tiles not yet written are not visited
+     */
+    @Override
+    public void iterate(TileVisitor visitor) throws IOException {
+        store.iterate(visitor);
+    }
+
+    @Override
+    public void iterate(long z, TileVisitor visitor) throws IOException {
+        store.iterate(z, visitor);
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            // shutting down - write the tiles right away
+            drain();
+        }
+    }
+
+    /**
+     * writes the queued tiles in batches until the queue is empty.
+     */
+    private void drain() {
+        List<PendingTile> batch = new ArrayList<>(BATCH_SIZE);
+        do {
+            synchronized (queue) {
+                while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                    batch.forEach(this::write);
+                    batch.clear();
+                }
+            }
+            draining.set(false);
+            // tiles queued after the last batch but before the flag was reset are written as well
+        } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * writes the tile, unless it has been replaced or deleted in the
+     * meantime.
+     *
+     * @return false, if the tile could not be written.
+     */
+    private boolean write(PendingTile pendingTile) {
+        TileKey tileKey = pendingTile.tileKey;
+        synchronized (getLock(tileKey)) {
+            if (pendingTiles.get(tileKey) != pendingTile) {
+                return true;
+            }
+            try {
+                store.put(tileKey, pendingTile.tile.getData(), pendingTile.tile.getLastModified(), pendingTile.metadata);
+                writtenTiles.increment();
+                return true;
+            } catch (IOException | RuntimeException ex) {
+                // the tile is downloaded again on the next request
+                failedWrites.increment();
+                LOGGER.error("Cannot write tile {} of layer {}. Reason: {}", tileKey, layer, ex.toString());
+                return false;
+            } finally {
+                pendingTiles.remove(tileKey, pendingTile);
+            }
+        }
+    }
+
+    private Object getLock(TileKey tileKey) {
+        return locks[Math.floorMod(tileKey.hashCode(), LOCK_COUNT)];
+    }
+
+    /**
+     * returns the number of tiles waiting to be written.
+     *
+     * @return the number of pending tiles.
+     */
+    public int getPendingTiles() {
+        return pendingTiles.size();
+    }
+
+    public long getWrittenTiles() {
+        return writtenTiles.sum();
+    }
+
+    /**
+     * returns the number of tiles written by the calling thread, because the
+     * queue was full.
+     *
+     * @return the number of direct writes.
+     */
+    public long getDirectWrites() {
+        return directWrites.sum();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.sum();
+    }
+
+    public TileStore getStore() {
+        return store;
+    }
+
+    /**
+     * writes the pending tiles and closes the store.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (queue) {
+            PendingTile pendingTile;
+            while ((pendingTile = queue.poll()) != null) {
+                write(pendingTile);
+            }
+        }
+        store.close();
+    }
+
+    /**
+     * a tile waiting to be written
+     */
+    private static class PendingTile {
+
+        private final TileKey tileKey;
+        private final CachedTile tile;
+        private final TileMetadata metadata;
+
+        PendingTile(TileKey tileKey, CachedTile tile, TileMetadata metadata) {
+            this.tileKey = tileKey;
+            this.tile = tile;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.entity;
+
+/**
+ * The attributes of a stored tile, available without reading the tile itself.
+ *
+ * @author joern.muehlencord
+ */
+public class TileInfo {
+
+    private final long lastModified;
+    private final long size;
+
+    /**
+     * creates new tile attributes
+     *
+     * @param lastModified the time the tile was stored or revalidated in
+     * milliseconds since epoch.
+     * @param size the size of the tile in bytes.
+     */
+    public TileInfo(long lastModified, long size) {
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
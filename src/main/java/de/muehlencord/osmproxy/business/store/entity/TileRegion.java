@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.entity;
+
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A tile opened for reading without copying it to the Java heap - either a
+ * region of an open file or a buffer held in memory (e.g. a memory mapped
+ * bundle). The region keeps its content if the tile is replaced or removed
+ * concurrently and must be closed after use.
+ *
+ * @author joern.muehlencord
+ */
+public class TileRegion implements Closeable {
+
+    private final FileChannel channel;
+    private final long position;
+    private final ByteBuffer data;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * creates a region of an open file. The channel is closed with the
+     * region.
+     *
+     * @param channel the file the tile is stored in.
+     * @param position the offset of the tile in the file.
+     * @param size the size of the tile in bytes.
+     * @param lastModified the time the tile was stored or revalidated in
+     * milliseconds since epoch.
+     */
+    public TileRegion(FileChannel channel, long position, long size, long lastModified) {
+        this.channel = channel;
+        this.position = position;
+        this.data = null;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * creates a region of a tile held in memory, the data is not copied.
+     *
+     * @param tile the tile.
+     */
+    public TileRegion(CachedTile tile) {
+        this.channel = null;
+        this.position = 0;
+        this.data = tile.getData();
+        this.size = tile.getSize();
+        this.lastModified = tile.getLastModified();
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the file the tile is stored in or null, if the tile is held in
+     * memory.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the offset of the tile in its file.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return a new view on the tile held in memory, positioned at its start -
+     * or null, if the tile is stored in a file.
+     */
+    public ByteBuffer getData() {
+        return data == null ? null : data.duplicate();
+    }
+
+    /**
+     * copies the tile to the given buffer.
+     *
+     * @param target the buffer to copy to, must have at least
+     * {@link #getSize()} bytes remaining.
+     * @throws IOException if the tile cannot be read.
+     */
+    public void read(ByteBuffer target) throws IOException {
+        if (data != null) {
+            target.put(data.duplicate());
+            return;
+        }
+        ByteBuffer region = target.duplicate();
+        region.limit(region.position() + (int) size);
+        long current = position;
+        while (region.hasRemaining()) {
+            int read = channel.read(region, current);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            current += read;
+        }
+        target.position(region.position());
+    }
+
+    /**
+     * writes the tile to the given channel. Tiles stored in files are
+     * transferred by the operating system without passing the Java heap.
+     *
+     * @param target the channel to write to.
+     * @throws IOException if the tile cannot be read or written.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        if (data != null) {
+            ByteBuffer buffer = data.duplicate();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return;
+        }
+        long transferredTotal = 0;
+        while (transferredTotal < size) {
+            long transferred = channel.transferTo(position + transferredTotal, size - transferredTotal, target);
+            if (transferred <= 0) {
+                throw new IOException("unexpected end of file");
+            }
+            transferredTotal += transferred;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy;
+
+import de.muehlencord.osmproxy.business.config.boundary.ConfigurationBuilder;
+import de.muehlencord.osmproxy.business.config.entity.Cache;
+import de.muehlencord.osmproxy.business.config.entity.Configuration;
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.Layer;
+import de.muehlencord.osmproxy.business.config.entity.Server;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class ConfigurationBeanTest {
+
+    @TempDir
+    Path configFolder;
+
+    @Test
+    public void testResolvedConfiguration() throws Exception {
+        Path configFile = writeConfiguration(180);
+        ConfigurationBean configurationBean = new ConfigurationBean(configFile);
+
+        assertEquals(180, configurationBean.getRetentionTime());
+        assertEquals(configFolder.resolve("cache").resolve("tiles"), configurationBean.getCacheDirectory("tiles"));
+        assertEquals(1, configurationBean.getUpstreamServer("tiles").size());
+        assertNull(configurationBean.getSeed());
+        assertThrows(ConfigurationException.class, () -> configurationBean.getCacheDirectory("unknown"));
+        assertThrows(UnsupportedOperationException.class, () -> configurationBean.getUpstreamServer("tiles").clear());
+    }
+
+    @Test
+    public void testInvalidReloadKeepsConfiguration() throws Exception {
+        Path configFile = writeConfiguration(180);
+        ConfigurationBean configurationBean = new ConfigurationBean(configFile);
+        assertEquals(180, configurationBean.getRetentionTime());
+
+        Files.write(configFile, "{\"layerMap\": {}}".getBytes(StandardCharsets.UTF_8));
+        assertFalse(configurationBean.reload());
+        assertEquals(180, configurationBean.getRetentionTime());
+    }
+
+    @Test
+    public void testReloadOnChange() throws Exception {
+        Path configFile = writeConfiguration(180);
+        ConfigurationBean configurationBean = new ConfigurationBean(configFile);
+        configurationBean.init();
+        try {
+            assertEquals(180, configurationBean.getRetentionTime());
+            writeConfiguration(90);
+
+            long timeout = System.currentTimeMillis() + 20_000;
+            while (configurationBean.getRetentionTime() != 90 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+            }
+            assertEquals(90, configurationBean.getRetentionTime());
+        } finally {
+            configurationBean.shutdown();
+        }
+    }
+
+    private Path writeConfiguration(int retentionTime) throws IOException {
+        Configuration config = new Configuration();
+        config.setCache(new Cache("disk", configFolder.resolve("cache").toString(), retentionTime));
+        config.addLayer(new Layer("tiles")
+                .addUpstreamServer(new Server("openstreetmap", "http://a.tile.openstreetmap.org/{z}/{x}/{y}.png"))
+                .setCacheFolder("tiles"));
+        Path configFile = configFolder.resolve("osmproxy.cfg");
+        Files.write(configFile, ConfigurationBuilder.toJson(config).getBytes(StandardCharsets.UTF_8));
+        return configFile;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.cluster.control;
+
+import com.sun.net.httpserver.HttpServer;
+import de.muehlencord.osmproxy.business.config.entity.Cluster;
+import de.muehlencord.osmproxy.business.config.entity.PeerRing;
+import de.muehlencord.osmproxy.business.proxy.control.PngValidatorTest;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class PeerClientTest {
+
+    private HttpServer owner;
+    private PeerClient peerClient;
+    private PeerRing peerRing;
+    private String ownerUrl;
+    private byte[] tile;
+    private final AtomicReference<String> peerHeader = new AtomicReference<>();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        tile = PngValidatorTest.createPng();
+        owner = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        owner.createContext("/osmproxy/rest/", exchange -> {
+            peerHeader.set(exchange.getRequestHeaders().getFirst(PeerClient.PEER_HEADER));
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/osmproxy/rest/tiles/1/")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else if (path.startsWith("/osmproxy/rest/tiles/2/")) {
+                exchange.sendResponseHeaders(502, -1);
+            } else {
+                exchange.getResponseHeaders().add("Content-Type", "image/png");
+                exchange.getResponseHeaders().add("Last-Modified", "Tue, 15 Oct 2019 08:00:00 GMT");
+                exchange.sendResponseHeaders(200, tile.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(tile);
+                }
+            }
+            exchange.close();
+        });
+        owner.start();
+        ownerUrl = "http://127.0.0.1:" + owner.getAddress().getPort() + "/osmproxy";
+
+        peerRing = PeerRing.of(new Cluster()
+                .setSelf("http://127.0.0.1:1/osmproxy")
+                .addPeer("http://127.0.0.1:1/osmproxy")
+                .addPeer(ownerUrl)
+                .setTimeout(2));
+        peerClient = new PeerClient();
+        peerClient.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        peerClient.shutdown();
+        owner.stop(0);
+    }
+
+    @Test
+    public void testFetchTile() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 0, 0, 0, "png");
+        assertNull(peerClient.getHotTile(tileKey));
+
+        CachedTile fetchedTile = peerClient.fetch(peerRing, ownerUrl, tileKey, "test").get(10, TimeUnit.SECONDS);
+        assertEquals(ByteBuffer.wrap(tile), fetchedTile.getData());
+        assertEquals(1571126400000L, fetchedTile.getLastModified());
+        assertEquals("http://127.0.0.1:1/osmproxy", peerHeader.get());
+
+        // the next request is served from the hot cache
+        assertEquals(ByteBuffer.wrap(tile), peerClient.getHotTile(tileKey).getData());
+        assertEquals(1, peerClient.getHotCacheHits());
+        assertEquals(tile.length, peerClient.getHotCacheSize());
+        peerClient.invalidate(tileKey);
+        assertNull(peerClient.getHotTile(tileKey));
+    }
+
+    @Test
+    public void testFetchFailures() throws Exception {
+        assertNull(peerClient.fetch(peerRing, ownerUrl, new TileKey("tiles", 1, 0, 0, "png"), "test").get(10, TimeUnit.SECONDS));
+        assertEquals(1, peerClient.getMissingTiles());
+
+        ExecutionException ex = assertThrows(ExecutionException.class,
+                () -> peerClient.fetch(peerRing, ownerUrl, new TileKey("tiles", 2, 0, 0, "png"), "test").get(10, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof IOException, ex.getCause().toString());
+
+        owner.stop(0);
+        ex = assertThrows(ExecutionException.class,
+                () -> peerClient.fetch(peerRing, ownerUrl, new TileKey("tiles", 0, 0, 0, "png"), "test").get(10, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof IOException, ex.getCause().toString());
+        assertEquals(2, peerClient.getFailedFetches());
+        assertEquals(0, peerClient.getFetchedTiles());
+    }
+
+    @Test
+    public void testFailingPeerIsSkipped() throws Exception {
+        TileKey failingTile = new TileKey("tiles", 2, 0, 0, "png");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(peerClient.isAvailable(ownerUrl));
+            assertThrows(ExecutionException.class, () -> peerClient.fetch(peerRing, ownerUrl, failingTile, "test").get(10, TimeUnit.SECONDS));
+        }
+        assertFalse(peerClient.isAvailable(ownerUrl));
+
+        // the peer is not asked while it is skipped
+        peerHeader.set(null);
+        ExecutionException ex = assertThrows(ExecutionException.class,
+                () -> peerClient.fetch(peerRing, ownerUrl, new TileKey("tiles", 0, 0, 0, "png"), "test").get(10, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof IOException, ex.getCause().toString());
+        assertNull(peerHeader.get());
+        assertEquals(0, peerClient.getFetchedTiles());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class PeerRingTest {
+
+    private static final int TILES = 30_000;
+
+    @Test
+    public void testOwners() throws ConfigurationException {
+        PeerRing peerRing = PeerRing.of(createCluster(3).setSelf("http://localhost:8081/osmproxy/"));
+        assertEquals("http://localhost:8081/osmproxy", peerRing.getSelf());
+        assertTrue(peerRing.isSelf("http://localhost:8081/osmproxy"));
+        assertFalse(peerRing.isSelf("http://localhost:8082/osmproxy"));
+
+        Map<String, Integer> tilesByOwner = new HashMap<>();
+        for (int i = 0; i < TILES; i++) {
+            tilesByOwner.merge(peerRing.getOwner(getTileName(i)), 1, Integer::sum);
+        }
+        assertEquals(3, tilesByOwner.size());
+        // the virtual nodes spread the tiles evenly
+        tilesByOwner.values().forEach(count -> assertTrue(count > TILES / 4 && count < TILES / 2, "unbalanced ring " + tilesByOwner));
+
+        // all peers agree on the owner
+        PeerRing otherPeerRing = PeerRing.of(createCluster(3).setSelf("http://localhost:8082/osmproxy"));
+        assertEquals(peerRing.getOwner("tiles/12/2200/1343.png"), otherPeerRing.getOwner("tiles/12/2200/1343.png"));
+    }
+
+    @Test
+    public void testAddPeer() throws ConfigurationException {
+        PeerRing peerRing = PeerRing.of(createCluster(3));
+        PeerRing grownPeerRing = PeerRing.of(createCluster(4));
+
+        int moved = 0;
+        for (int i = 0; i < TILES; i++) {
+            String owner = peerRing.getOwner(getTileName(i));
+            String newOwner = grownPeerRing.getOwner(getTileName(i));
+            if (!owner.equals(newOwner)) {
+                // tiles only move to the new peer
+                assertEquals("http://localhost:8084/osmproxy", newOwner);
+                moved++;
+            }
+        }
+        assertTrue(moved > TILES / 8 && moved < TILES * 3 / 8, moved + " tiles moved");
+    }
+
+    @Test
+    public void testInvalidCluster() {
+        assertThrows(ConfigurationException.class, () -> PeerRing.of(new Cluster().setSelf("http://localhost:8081/osmproxy")));
+        assertThrows(ConfigurationException.class, () -> PeerRing.of(createCluster(2).setSelf(null)));
+        assertThrows(ConfigurationException.class, () -> PeerRing.of(createCluster(2).addPeer("localhost:8083/osmproxy")));
+        assertThrows(ConfigurationException.class, () -> PeerRing.of(createCluster(2).addPeer("http://localhost:8081/osmproxy/")));
+    }
+
+    private Cluster createCluster(int peers) {
+        Cluster cluster = new Cluster().setSelf("http://localhost:8081/osmproxy");
+        for (int i = 1; i <= peers; i++) {
+            cluster.addPeer("http://localhost:808" + i + "/osmproxy");
+        }
+        return cluster;
+    }
+
+    private String getTileName(int i) {
+        return "tiles/14/" + (i % 200) + "/" + (i / 200) + ".png";
+    }
+}
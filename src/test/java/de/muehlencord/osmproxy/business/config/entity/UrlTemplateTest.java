@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.config.entity;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class UrlTemplateTest {
+
+    @Test
+    public void testRender() throws ConfigurationException {
+        UrlTemplate template = UrlTemplate.compile("http://tile.openstreetmap.org/{layer}/{z}/{x}/{y}.{ending}?key=1", null);
+        assertEquals("http://tile.openstreetmap.org/tiles/12/2200/1343.png?key=1", template.render("tiles", 12, 2200, 1343, "png"));
+    }
+
+    @Test
+    public void testSubdomains() throws ConfigurationException {
+        UrlTemplate template = UrlTemplate.compile("https://{s}.tile.openstreetmap.org/{z}/{x}/{y}.png", null);
+        Set<String> urls = new HashSet<>();
+        for (int x = 0; x < 3; x++) {
+            urls.add(template.render("tiles", 2, x, 0, "png"));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(
+                "https://a.tile.openstreetmap.org/2/0/0.png",
+                "https://b.tile.openstreetmap.org/2/1/0.png",
+                "https://c.tile.openstreetmap.org/2/2/0.png")), urls);
+        // the same tile is always requested from the same host
+        assertEquals(template.render("tiles", 12, 2200, 1343, "png"), template.render("tiles", 12, 2200, 1343, "png"));
+
+        UrlTemplate custom = UrlTemplate.compile("https://tile{s}.example.org/{z}/{x}/{y}.png", Arrays.asList("1", "2"));
+        assertEquals("https://tile2.example.org/1/1/0.png", custom.render("tiles", 1, 1, 0, "png"));
+    }
+
+    @Test
+    public void testInvalidTemplates() {
+        assertThrows(ConfigurationException.class, () -> UrlTemplate.compile(null, null));
+        assertThrows(ConfigurationException.class, () -> UrlTemplate.compile("ftp://tile.openstreetmap.org/{z}/{x}/{y}.png", null));
+        assertThrows(ConfigurationException.class, () -> UrlTemplate.compile("http://tile.openstreetmap.org/{zoom}/{x}/{y}.png", null));
+        assertThrows(ConfigurationException.class, () -> UrlTemplate.compile("http://tile.openstreetmap.org/{z/{x}/{y.png", null));
+    }
+}
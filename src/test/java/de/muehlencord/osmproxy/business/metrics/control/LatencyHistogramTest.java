@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.control;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        // every value falls into a bucket reporting it with an error of at most 1/16
+        for (long value = 0; value < 1_000_000; value += 7) {
+            long highestValue = LatencyHistogram.getHighestValue(LatencyHistogram.getIndex(value));
+            assertTrue(highestValue >= value && highestValue <= value + value / 16, value + " reported as " + highestValue);
+        }
+        // buckets are contiguous
+        for (int index = 1; index < LatencyHistogram.BUCKET_COUNT; index++) {
+            assertEquals(index, LatencyHistogram.getIndex(LatencyHistogram.getHighestValue(index - 1) + 1));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getSnapshot().getValueAtQuantile(0.99));
+
+        // 1 to 1000 ms
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500_000, snapshot.getSum());
+        assertWithinError(500_000, snapshot.getValueAtQuantile(0.5));
+        assertWithinError(990_000, snapshot.getValueAtQuantile(0.99));
+        assertWithinError(1_000_000, snapshot.getValueAtQuantile(1));
+        assertEquals(0, snapshot.getCountAtOrBelow(999));
+        long countAtOrBelow = snapshot.getCountAtOrBelow(500_000);
+        assertTrue(countAtOrBelow <= 500 && countAtOrBelow >= 500 - 500 / 16, "count " + countAtOrBelow);
+        assertEquals(1000, snapshot.getCountAtOrBelow(Long.MAX_VALUE));
+    }
+
+    private void assertWithinError(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 16, "expected " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.metrics.control;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class PrometheusWriterTest {
+
+    @Test
+    public void testTextFormat() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(2));
+
+        String text = new PrometheusWriter()
+                .counter("osmproxy_tile_requests_total", "Tile requests", 3, "layer", "tiles", "result", "hit")
+                .counter("osmproxy_tile_requests_total", "Tile requests", 1, "layer", "my \"tiles\"", "result", "miss")
+                .gauge("osmproxy_missing_tiles", "Missing tiles", 0.5)
+                .histogram("osmproxy_tile_request_seconds", "Request time", histogram.getSnapshot(), "layer", "tiles")
+                .toString();
+
+        assertEquals("# HELP osmproxy_tile_requests_total Tile requests\n"
+                + "# TYPE osmproxy_tile_requests_total counter\n"
+                + "osmproxy_tile_requests_total{layer=\"tiles\",result=\"hit\"} 3\n"
+                + "osmproxy_tile_requests_total{layer=\"my \\\"tiles\\\"\",result=\"miss\"} 1\n"
+                + "# HELP osmproxy_missing_tiles Missing tiles\n"
+                + "# TYPE osmproxy_missing_tiles gauge\n"
+                + "osmproxy_missing_tiles 0.5\n"
+                + "# HELP osmproxy_tile_request_seconds Request time\n"
+                + "# TYPE osmproxy_tile_request_seconds histogram\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.001\"} 0\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.0025\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.005\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.01\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.025\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.05\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.1\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.25\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"0.5\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"1.0\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"2.5\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"5.0\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"10.0\"} 1\n"
+                + "osmproxy_tile_request_seconds_bucket{layer=\"tiles\",le=\"+Inf\"} 1\n"
+                + "osmproxy_tile_request_seconds_sum{layer=\"tiles\"} 0.002\n"
+                + "osmproxy_tile_request_seconds_count{layer=\"tiles\"} 1\n", text);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.store.control.MemoryTileStore;
+import de.muehlencord.osmproxy.business.store.entity.TileInfo;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class CacheEvictorTest {
+
+    private static final long YESTERDAY = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+
+    @Test
+    public void testAccessTracker() {
+        AccessTracker accessTracker = new AccessTracker(1024);
+        TileKey requested = tile(10, 1, 1);
+        TileKey notRequested = tile(10, 2, 2);
+        TileInfo tileInfo = new TileInfo(YESTERDAY, 100);
+        long unknown = accessTracker.getPriority(notRequested, tileInfo);
+        assertEquals(TimeUnit.MILLISECONDS.toMinutes(YESTERDAY), unknown);
+
+        accessTracker.record(requested);
+        long once = accessTracker.getPriority(requested, tileInfo);
+        assertTrue(once > unknown);
+        accessTracker.record(requested);
+        assertTrue(accessTracker.getPriority(requested, tileInfo) >= once + AccessTracker.FREQUENCY_WEIGHT);
+    }
+
+    @Test
+    public void testEvictColdestTiles() throws Exception {
+        MemoryTileStore store = new MemoryTileStore(1024 * 1024);
+        AccessTracker accessTracker = new AccessTracker(1024);
+        for (int x = 0; x < 10; x++) {
+            // older tiles are less valuable
+            store.put(tile(10, x, 0), ByteBuffer.allocate(1000), YESTERDAY + TimeUnit.MINUTES.toMillis(x), null);
+        }
+        store.put(tile(2, 0, 0), ByteBuffer.allocate(1000), 0, null);
+        accessTracker.record(tile(10, 0, 0));
+        Throttle throttle = new Throttle(100000);
+        assertEquals(11000, CacheEvictor.getSize(store, throttle));
+
+        List<TileKey> evicted = new ArrayList<>();
+        long freed = CacheEvictor.evict(Collections.singletonList(store), 2500, 6, accessTracker, 100, throttle,
+                (tileKey, tileInfo) -> evicted.add(tileKey));
+        assertEquals(3000, freed);
+        assertEquals(3, evicted.size());
+        assertNull(store.stat(tile(10, 1, 0)));
+        assertNull(store.stat(tile(10, 2, 0)));
+        assertNull(store.stat(tile(10, 3, 0)));
+        // the oldest tile was requested, tiles of low zoom levels are protected
+        assertNotNull(store.stat(tile(10, 0, 0)));
+        assertNotNull(store.stat(tile(10, 4, 0)));
+        assertNotNull(store.stat(tile(2, 0, 0)));
+        assertEquals(8000, CacheEvictor.getSize(store, throttle));
+    }
+
+    @Test
+    public void testCandidatesAreBounded() throws Exception {
+        MemoryTileStore store = new MemoryTileStore(1024 * 1024);
+        for (int x = 0; x < 10; x++) {
+            store.put(tile(10, x, 0), ByteBuffer.allocate(1000), YESTERDAY + TimeUnit.MINUTES.toMillis(x), null);
+        }
+        List<TileKey> evicted = new ArrayList<>();
+        // two tiles per walk, the store is walked three times
+        long freed = CacheEvictor.evict(Collections.singletonList(store), 5000, 6, new AccessTracker(1024), 2, new Throttle(100000),
+                (tileKey, tileInfo) -> evicted.add(tileKey));
+        assertEquals(5000, freed);
+        assertEquals(5, evicted.size());
+        for (int x = 0; x < 5; x++) {
+            assertNull(store.stat(tile(10, x, 0)));
+        }
+        assertNotNull(store.stat(tile(10, 5, 0)));
+    }
+
+    private TileKey tile(long z, long x, long y) {
+        return new TileKey("tiles", z, x, y, "png");
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import com.sun.net.httpserver.HttpServer;
+import de.muehlencord.osmproxy.business.config.entity.ConnectionSettings;
+import de.muehlencord.osmproxy.business.config.entity.Server;
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.metrics.control.UpstreamMetrics;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.UpstreamException;
+import de.muehlencord.osmproxy.business.store.control.FileTileStore;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hc.core5.pool.PoolStats;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class ConnectionManagerTest {
+
+    @TempDir
+    Path cacheFolder;
+
+    private HttpServer upstream;
+    private ConnectionManager connectionManager;
+    private FileTileStore store;
+    private byte[] tile;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tile = PngValidatorTest.createPng();
+        upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/missing")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else if (path.startsWith("/error")) {
+                exchange.sendResponseHeaders(503, -1);
+            } else if (path.startsWith("/html")) {
+                byte[] page = "<html><body>blocked</body></html>".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/html");
+                exchange.sendResponseHeaders(200, page.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(page);
+                }
+            } else if (path.startsWith("/large")) {
+                byte[] large = new byte[2 * 1024 * 1024];
+                exchange.getResponseHeaders().add("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, large.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(large);
+                } catch (IOException ex) {
+                    // aborted by the client
+                }
+            } else if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.getResponseHeaders().add("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, tile.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(tile);
+                }
+            }
+            exchange.close();
+        });
+        upstream.start();
+
+        connectionManager = new ConnectionManager();
+        connectionManager.init();
+        store = new FileTileStore("tiles", cacheFolder, SyncPolicy.NONE);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        connectionManager.shutdown();
+        upstream.stop(0);
+    }
+
+    @Test
+    public void testErrorResponsesAreNotStored() throws Exception {
+        Server server = new Server("local", "http://127.0.0.1/{z}/{x}/{y}.png");
+        TileKey tileKey = new TileKey("tiles", 0, 0, 0, "png");
+
+        assertEquals(DownloadResult.NOT_AVAILABLE, connectionManager.executeDownload(server, "test", createUri("/missing/0.png"), store, tileKey, null, new DownloadTicket(DownloadPriority.INTERACTIVE)).get(10, TimeUnit.SECONDS));
+        for (String path : new String[]{"/error/0.png", "/html/0.png"}) {
+            ExecutionException ex = assertThrows(ExecutionException.class,
+                    () -> connectionManager.executeDownload(server, "test", createUri(path), store, tileKey, null, new DownloadTicket(DownloadPriority.INTERACTIVE)).get(10, TimeUnit.SECONDS));
+            assertTrue(ex.getCause() instanceof UpstreamException, ex.getCause().toString());
+        }
+        assertNull(store.stat(tileKey));
+
+        // the responses are recorded by status code
+        UpstreamMetrics metrics = connectionManager.getUpstreamMetrics().get("local");
+        assertEquals(Map.of("200", 1L, "404", 1L, "503", 1L), metrics.getResponses());
+        assertEquals(3, metrics.getLatency().getSnapshot().getCount());
+    }
+
+    private URI createUri(String path) {
+        return URI.create("http://127.0.0.1:" + upstream.getAddress().getPort() + path);
+    }
+
+    @Test
+    public void testLargeResponsesAreAborted() throws Exception {
+        Server server = new Server("local", "http://127.0.0.1/{z}/{x}/{y}.png")
+                .setConnection(new ConnectionSettings().setMaxTileSize(64));
+        TileKey tileKey = new TileKey("tiles", 0, 0, 0, "png");
+
+        ExecutionException ex = assertThrows(ExecutionException.class,
+                () -> connectionManager.executeDownload(server, "test", createUri("/large/0.png"), store, tileKey, null, new DownloadTicket(DownloadPriority.INTERACTIVE)).get(10, TimeUnit.SECONDS));
+        assertTrue(ex.getCause().getMessage().contains("maximum tile size"), ex.getCause().toString());
+        assertNull(store.stat(tileKey));
+        assertEquals(1, connectionManager.getUpstreamMetrics().get("local").getLatency().getSnapshot().getCount());
+    }
+
+    @Test
+    public void testDownloadAndRevalidate() throws Exception {
+        Server server = new Server("local", "http://127.0.0.1/{z}/{x}/{y}.png")
+                .setConnection(new ConnectionSettings().setMaxConnectionsPerRoute(1).setResponseTimeout(5));
+        URI uri = URI.create("http://127.0.0.1:" + upstream.getAddress().getPort() + "/1/0/0.png");
+        TileKey tileKey = new TileKey("tiles", 1, 0, 0, "png");
+        Path tilePath = tileKey.resolve(cacheFolder);
+
+        DownloadResult result = connectionManager.executeDownload(server, "test", uri, store, tileKey, null, new DownloadTicket(DownloadPriority.INTERACTIVE)).get(10, TimeUnit.SECONDS);
+        assertEquals(DownloadResult.DOWNLOADED, result);
+        assertArrayEquals(tile, Files.readAllBytes(tilePath));
+
+        result = connectionManager.executeDownload(server, "test", uri, store, tileKey, store.getMetadata(tileKey), new DownloadTicket(DownloadPriority.INTERACTIVE)).get(10, TimeUnit.SECONDS);
+        if (TileMetadataStore.read(tilePath).getETag() != null) {
+            // file system supports user defined attributes - the tile is revalidated
+            assertEquals(DownloadResult.NOT_MODIFIED, result);
+        }
+        assertEquals(2, requests.get());
+
+        // one pool per server, reused for all downloads
+        Map<String, PoolStats> poolStats = connectionManager.getPoolStats();
+        assertEquals(1, poolStats.size());
+        assertTrue(poolStats.get("local").getAvailable() + poolStats.get("local").getLeased() <= 1);
+    }
+}
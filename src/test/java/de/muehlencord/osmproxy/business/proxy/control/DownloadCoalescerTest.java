@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class DownloadCoalescerTest {
+
+    @Test
+    public void testRunningDownloadIsPromoted() throws Exception {
+        DownloadCoalescer coalescer = new DownloadCoalescer();
+        TileKey tileKey = new TileKey("tiles", 10, 1, 2, "png");
+        List<DownloadTicket> tickets = new ArrayList<>();
+        CompletableFuture<DownloadResult> running = new CompletableFuture<>();
+
+        CompletableFuture<DownloadResult> prefetch = coalescer.download(tileKey, DownloadPriority.PREFETCH, ticket -> {
+            tickets.add(ticket);
+            return running;
+        });
+        CompletableFuture<DownloadResult> request = coalescer.download(tileKey, DownloadPriority.INTERACTIVE, ticket -> {
+            throw new IllegalStateException("second download started");
+        });
+        assertEquals(1, tickets.size());
+        assertEquals(DownloadPriority.INTERACTIVE, tickets.get(0).getPriority());
+
+        running.complete(DownloadResult.DOWNLOADED);
+        assertSame(DownloadResult.DOWNLOADED, prefetch.get());
+        assertSame(DownloadResult.DOWNLOADED, request.get());
+
+        // the next download gets a new ticket with its own priority
+        coalescer.download(tileKey, DownloadPriority.SEED, ticket -> {
+            tickets.add(ticket);
+            return CompletableFuture.completedFuture(DownloadResult.DOWNLOADED);
+        }).get();
+        assertEquals(2, tickets.size());
+        assertEquals(DownloadPriority.SEED, tickets.get(1).getPriority());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+}
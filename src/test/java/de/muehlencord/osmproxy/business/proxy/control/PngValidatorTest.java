@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class PngValidatorTest {
+
+    /**
+     * creates a png image the same size as an OpenStreetMap tile
+     */
+    public static byte[] createPng() throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 256; i++) {
+            image.setRGB(i, i, 0xFF0000);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testValidPng() throws IOException {
+        byte[] png = createPng();
+        assertTrue(PngValidator.isValid(png));
+
+        Path file = Files.createTempFile("osmproxy", ".png");
+        try {
+            Files.write(file, png);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                assertTrue(PngValidator.isValid(channel));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testTruncatedPng() throws IOException {
+        byte[] png = createPng();
+        assertFalse(PngValidator.isValid(Arrays.copyOf(png, png.length - 1)));
+        assertFalse(PngValidator.isValid(Arrays.copyOf(png, png.length / 2)));
+    }
+
+    @Test
+    public void testCorruptHeader() throws IOException {
+        byte[] png = createPng();
+        png[20]++; // IHDR data, breaks the CRC
+        assertFalse(PngValidator.isValid(png));
+    }
+
+    @Test
+    public void testNoPng() {
+        byte[] errorPage = "<html><body>Tile not found - please try again later</body></html>".getBytes(StandardCharsets.UTF_8);
+        assertFalse(PngValidator.isValid(errorPage));
+        assertFalse(PngValidator.isValid(new byte[0]));
+        assertFalse(PngValidator.isValid((byte[]) null));
+    }
+}
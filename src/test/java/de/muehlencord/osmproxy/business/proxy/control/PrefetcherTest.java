@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.Prefetch;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class PrefetcherTest {
+
+    @Test
+    public void testNeighboursAndChildren() {
+        List<TileKey> candidates = Prefetcher.getCandidates(tile(10, 100, 200), new Prefetch());
+        assertEquals(8 + 4, candidates.size());
+        assertTrue(candidates.contains(tile(10, 99, 199)));
+        assertTrue(candidates.contains(tile(10, 101, 201)));
+        assertTrue(candidates.contains(tile(11, 201, 401)));
+        assertFalse(candidates.contains(tile(10, 100, 200)));
+
+        // the second ring adds the 16 tiles around the first one
+        candidates = Prefetcher.getCandidates(tile(10, 100, 200), new Prefetch().setRing(2).setChildren(false));
+        assertEquals(8 + 16, candidates.size());
+        assertEquals(tile(10, 99, 199), candidates.get(0));
+    }
+
+    @Test
+    public void testBorders() {
+        // the map wraps around horizontally, but not vertically
+        List<TileKey> candidates = Prefetcher.getCandidates(tile(2, 0, 0), new Prefetch().setChildren(false));
+        assertEquals(5, candidates.size());
+        assertTrue(candidates.contains(tile(2, 3, 0)));
+        assertTrue(candidates.contains(tile(2, 3, 1)));
+
+        // zoom level 0 has a single tile only
+        assertEquals(4, Prefetcher.getCandidates(tile(0, 0, 0), new Prefetch()).size());
+        assertTrue(Prefetcher.getCandidates(tile(19, 0, 0), new Prefetch().setRing(0)).isEmpty());
+    }
+
+    private TileKey tile(long z, long x, long y) {
+        return new TileKey("tiles", z, x, y, "png");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallersShareExecution() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> singleFlight.execute("tiles/1/1/1.png", () -> {
+                    executions.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return CompletableFuture.completedFuture(42);
+                }).get(5, TimeUnit.SECONDS)));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // give the other callers the chance to join the running execution
+            while (singleFlight.getCoalescedCount() < 7) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(42, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, executions.get());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    public void testFailureIsShared() {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        CompletableFuture<Integer> pending = new CompletableFuture<>();
+        CompletableFuture<Integer> first = singleFlight.execute("key", () -> pending);
+        CompletableFuture<Integer> second = singleFlight.execute("key", () -> CompletableFuture.completedFuture(1));
+        assertSame(first, second);
+
+        IOException failure = new IOException("upstream not available");
+        pending.completeExceptionally(failure);
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> second.get());
+        assertSame(failure, ex.getCause());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    public void testNewExecutionAfterCompletion() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        assertEquals(1, singleFlight.execute("key", () -> CompletableFuture.completedFuture(1)).get());
+        assertEquals(2, singleFlight.execute("key", () -> CompletableFuture.completedFuture(2)).get());
+        assertEquals(2, singleFlight.getExecutionCount());
+
+        CompletableFuture<Integer> failed = singleFlight.execute("key", () -> {
+            throw new IllegalStateException("failed");
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class ThrottleTest {
+
+    @Test
+    public void testRate() throws Exception {
+        Throttle throttle = new Throttle(500);
+        long start = System.nanoTime();
+        for (int i = 0; i <= 50; i++) {
+            throttle.acquire();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 95, "elapsed " + elapsed + " ms");
+
+        // permits are not saved up while idle
+        Thread.sleep(100);
+        start = System.nanoTime();
+        for (int i = 0; i <= 10; i++) {
+            throttle.acquire();
+        }
+        elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 15, "elapsed " + elapsed + " ms");
+    }
+}
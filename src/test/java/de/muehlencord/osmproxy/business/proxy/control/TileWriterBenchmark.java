@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compares the throughput of the former byte by byte tile write with the
+ * buffered write of the TileWriter for typical tile sizes. Not executed during
+ * the regular build, run it with
+ * <pre>
+ * mvn test -Dtest=TileWriterBenchmark -Dbenchmark=true
+ * </pre>
+ *
+ * @author joern.muehlencord
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class TileWriterBenchmark {
+
+    private static final int[] TILE_SIZES = {10 * 1024, 25 * 1024, 50 * 1024};
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+
+    @TempDir
+    Path cacheFolder;
+
+    @Test
+    public void benchmark() throws IOException {
+        Random random = new Random(42);
+        for (int tileSize : TILE_SIZES) {
+            byte[] tile = new byte[tileSize];
+            random.nextBytes(tile);
+
+            Path tilePath = cacheFolder.resolve(tileSize + ".png");
+            run("byte by byte", tile, tilePath, WARMUP, SyncPolicy.NONE, true);
+            double legacy = run("byte by byte", tile, tilePath, ITERATIONS, SyncPolicy.NONE, true);
+            run("TileWriter", tile, tilePath, WARMUP, SyncPolicy.NONE, false);
+            double buffered = run("TileWriter", tile, tilePath, ITERATIONS, SyncPolicy.NONE, false);
+            double synced = run("TileWriter (sync data)", tile, tilePath, ITERATIONS / 10, SyncPolicy.DATA, false);
+
+            System.out.println(String.format("%3d KB tiles: byte by byte %8.0f tiles/s, TileWriter %8.0f tiles/s (%.1fx), TileWriter with sync %8.0f tiles/s",
+                    tileSize / 1024, legacy, buffered, buffered / legacy, synced));
+        }
+    }
+
+    private double run(String name, byte[] tile, Path tilePath, int iterations, SyncPolicy syncPolicy, boolean legacy) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = new ByteArrayInputStream(tile);
+            if (legacy) {
+                writeByteByByte(in, tilePath);
+            } else {
+                TileWriter.write(in, tilePath, syncPolicy);
+            }
+        }
+        long duration = System.nanoTime() - start;
+        return iterations / (duration / 1_000_000_000D);
+    }
+
+    /**
+     * the way tiles have been stored before
+     */
+    private void writeByteByByte(InputStream is, Path tilePath) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(tilePath.toFile())) {
+            int inByte;
+            while ((inByte = is.read()) != -1) {
+                fos.write(inByte);
+            }
+        }
+    }
+}
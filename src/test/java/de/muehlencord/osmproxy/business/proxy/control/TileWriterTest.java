@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class TileWriterTest {
+
+    @TempDir
+    Path cacheFolder;
+
+    @Test
+    public void testWriteCreatesDirectories() throws IOException {
+        byte[] tile = PngValidatorTest.createPng();
+        Path tilePath = cacheFolder.resolve("tiles").resolve("12").resolve("2200").resolve("1343.png");
+        for (SyncPolicy syncPolicy : SyncPolicy.values()) {
+            assertEquals(tile.length, TileWriter.write(new ByteArrayInputStream(tile), tilePath, syncPolicy));
+            assertArrayEquals(tile, Files.readAllBytes(tilePath));
+        }
+        assertEquals(1, countFiles(tilePath.getParent()));
+    }
+
+    @Test
+    public void testFailedWriteKeepsOldTile() throws IOException {
+        byte[] tile = PngValidatorTest.createPng();
+        Path tilePath = cacheFolder.resolve("1343.png");
+        TileWriter.write(new ByteArrayInputStream(tile), tilePath, SyncPolicy.NONE);
+
+        InputStream brokenStream = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ > 1000) {
+                    throw new IOException("connection reset");
+                }
+                return 0;
+            }
+        };
+        assertThrows(IOException.class, () -> TileWriter.write(brokenStream, tilePath, SyncPolicy.NONE));
+        assertArrayEquals(tile, Files.readAllBytes(tilePath));
+        assertEquals(1, countFiles(cacheFolder));
+    }
+
+    @Test
+    public void testWriteStoresValidators() throws IOException {
+        Path tilePath = cacheFolder.resolve("1343.png");
+        TileMetadata metadata = new TileMetadata("\"d8a7f0f5e2a3c1b0\"", "Tue, 15 Oct 2019 12:45:26 GMT");
+        TileWriter.write(new ByteArrayInputStream(PngValidatorTest.createPng()), tilePath, SyncPolicy.NONE, metadata);
+
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(tilePath, UserDefinedFileAttributeView.class);
+        assumeTrue(view != null && !view.list().isEmpty(), "file system does not support user defined attributes");
+
+        TileMetadata storedMetadata = TileMetadataStore.read(tilePath);
+        assertEquals(metadata.getETag(), storedMetadata.getETag());
+        assertEquals(metadata.getLastModified(), storedMetadata.getLastModified());
+    }
+
+    private long countFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
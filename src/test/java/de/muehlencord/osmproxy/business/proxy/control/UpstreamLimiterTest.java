@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.RateLimit;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadPriority;
+import de.muehlencord.osmproxy.business.proxy.entity.UpstreamBusyException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class UpstreamLimiterTest {
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("a", new RateLimit().setMaxConcurrentRequests(2).setMaxQueuedRequests(1));
+        assertTrue(limiter.acquire(interactive()).isDone());
+        assertTrue(limiter.acquire(interactive()).isDone());
+        CompletableFuture<DownloadPriority> queued = limiter.acquire(interactive());
+        assertFalse(queued.isDone());
+
+        // the queue is full
+        CompletableFuture<DownloadPriority> rejected = limiter.acquire(interactive());
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> rejected.get(1, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof UpstreamBusyException);
+        assertEquals(1, limiter.getRejected());
+
+        limiter.release(DownloadPriority.INTERACTIVE);
+        assertEquals(DownloadPriority.INTERACTIVE, queued.get(1, TimeUnit.SECONDS));
+        assertEquals(2, limiter.getRunning());
+        assertEquals(0, limiter.getWaiting());
+    }
+
+    @Test
+    public void testCancelledRequestLeavesQueue() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("a", new RateLimit().setMaxConcurrentRequests(1));
+        limiter.acquire(interactive()).get(1, TimeUnit.SECONDS);
+        CompletableFuture<DownloadPriority> cancelled = limiter.acquire(interactive());
+        CompletableFuture<DownloadPriority> queued = limiter.acquire(interactive());
+        cancelled.cancel(false);
+
+        limiter.release(DownloadPriority.INTERACTIVE);
+        queued.get(1, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getRunning());
+        assertEquals(0, limiter.getWaiting());
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("a", new RateLimit().setMaxConcurrentRequests(10).setRequestsPerSecond(20.0).setBurst(2));
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            limiter.acquire(interactive()).get(5, TimeUnit.SECONDS);
+        }
+        // the burst is sent at once, the remaining 4 requests need 50 ms each
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 180);
+        assertEquals(6, limiter.getRunning());
+        assertEquals(6, limiter.getStarted(DownloadPriority.INTERACTIVE));
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("a", new RateLimit().setMaxConcurrentRequests(4));
+        // background requests may use their share only
+        assertTrue(limiter.acquire(new DownloadTicket(DownloadPriority.PREFETCH)).isDone());
+        CompletableFuture<DownloadPriority> prefetch = limiter.acquire(new DownloadTicket(DownloadPriority.PREFETCH));
+        assertFalse(prefetch.isDone());
+        assertTrue(limiter.acquire(new DownloadTicket(DownloadPriority.REFRESH)).isDone());
+        assertTrue(limiter.acquire(new DownloadTicket(DownloadPriority.REFRESH)).isDone());
+        CompletableFuture<DownloadPriority> refresh = limiter.acquire(new DownloadTicket(DownloadPriority.REFRESH));
+        assertTrue(limiter.acquire(interactive()).isDone());
+        CompletableFuture<DownloadPriority> first = limiter.acquire(interactive());
+        assertEquals(1, limiter.getWaiting(DownloadPriority.INTERACTIVE));
+
+        // interactive requests are served first, regardless of their arrival
+        limiter.release(DownloadPriority.PREFETCH);
+        assertEquals(DownloadPriority.INTERACTIVE, first.get(1, TimeUnit.SECONDS));
+        assertFalse(prefetch.isDone());
+        assertFalse(refresh.isDone());
+
+        limiter.release(DownloadPriority.REFRESH);
+        assertEquals(DownloadPriority.REFRESH, refresh.get(1, TimeUnit.SECONDS));
+        assertFalse(prefetch.isDone());
+    }
+
+    @Test
+    public void testInteractiveSlotIsReserved() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("a", new RateLimit().setMaxConcurrentRequests(3));
+        assertTrue(limiter.acquire(new DownloadTicket(DownloadPriority.REFRESH)).isDone());
+        assertTrue(limiter.acquire(new DownloadTicket(DownloadPriority.PREFETCH)).isDone());
+        // each background class is below its share, but the last slot is kept for clients
+        CompletableFuture<DownloadPriority> seed = limiter.acquire(new DownloadTicket(DownloadPriority.SEED));
+        assertFalse(seed.isDone());
+
+        assertEquals(DownloadPriority.INTERACTIVE, limiter.acquire(interactive()).get(1, TimeUnit.SECONDS));
+        assertEquals(3, limiter.getRunning());
+
+        limiter.release(DownloadPriority.INTERACTIVE);
+        assertFalse(seed.isDone());
+        limiter.release(DownloadPriority.REFRESH);
+        assertEquals(DownloadPriority.SEED, seed.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInteractiveSlotIsReservedWithDefaultLimit() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("a", new RateLimit());
+        assertTrue(limiter.acquire(new DownloadTicket(DownloadPriority.REFRESH)).isDone());
+        CompletableFuture<DownloadPriority> prefetch = limiter.acquire(new DownloadTicket(DownloadPriority.PREFETCH));
+        assertFalse(prefetch.isDone());
+
+        assertEquals(DownloadPriority.INTERACTIVE, limiter.acquire(interactive()).get(1, TimeUnit.SECONDS));
+        assertEquals(2, limiter.getRunning());
+    }
+
+    @Test
+    public void testPromotion() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("a", new RateLimit().setMaxConcurrentRequests(4));
+        limiter.acquire(new DownloadTicket(DownloadPriority.PREFETCH)).get(1, TimeUnit.SECONDS);
+        DownloadTicket ticket = new DownloadTicket(DownloadPriority.PREFETCH);
+        CompletableFuture<DownloadPriority> prefetch = limiter.acquire(ticket);
+        assertFalse(prefetch.isDone());
+
+        // a client asks for the prefetched tile
+        ticket.promote(DownloadPriority.INTERACTIVE);
+        assertEquals(DownloadPriority.INTERACTIVE, prefetch.get(1, TimeUnit.SECONDS));
+        ticket.promote(DownloadPriority.REFRESH);
+        assertEquals(DownloadPriority.INTERACTIVE, ticket.getPriority());
+    }
+
+    private DownloadTicket interactive() {
+        return new DownloadTicket(DownloadPriority.INTERACTIVE);
+    }
+}
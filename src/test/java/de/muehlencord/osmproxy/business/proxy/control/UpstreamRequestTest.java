@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import de.muehlencord.osmproxy.business.config.entity.ConfigurationException;
+import de.muehlencord.osmproxy.business.config.entity.Server;
+import de.muehlencord.osmproxy.business.config.entity.UpstreamServer;
+import de.muehlencord.osmproxy.business.proxy.entity.DownloadResult;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class UpstreamRequestTest {
+
+    @Test
+    public void testFailover() throws Exception {
+        UpstreamSelector upstreamSelector = new UpstreamSelector();
+        List<UpstreamServer> servers = createServers("a", "b");
+        List<String> asked = new ArrayList<>();
+
+        DownloadResult result = new UpstreamRequest("tiles/1/0/0.png", servers, upstreamSelector, server -> {
+            asked.add(server.getName());
+            if (server.getName().equals("a")) {
+                return CompletableFuture.failedFuture(new IOException("connection refused"));
+            }
+            return CompletableFuture.completedFuture(DownloadResult.DOWNLOADED);
+        }).start(false).get(5, TimeUnit.SECONDS);
+
+        assertEquals(DownloadResult.DOWNLOADED, result);
+        assertEquals(Arrays.asList("a", "b"), asked);
+        assertEquals(1, upstreamSelector.getHealth("a").getFailureCount());
+        assertEquals(1, upstreamSelector.getHealth("b").getSuccessCount());
+        // the healthy server is asked first next time
+        assertEquals("b", upstreamSelector.select(servers).get(0).getName());
+    }
+
+    @Test
+    public void testAllServersFail() {
+        UpstreamSelector upstreamSelector = new UpstreamSelector();
+        IOException failure = new IOException("timeout");
+        CompletableFuture<DownloadResult> result = new UpstreamRequest("tiles/1/0/0.png", createServers("a", "b"), upstreamSelector,
+                server -> CompletableFuture.failedFuture(failure)).start(false);
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertEquals(failure, ex.getCause());
+
+        CompletableFuture<DownloadResult> noServer = new UpstreamRequest("tiles/1/0/0.png", new ArrayList<>(), upstreamSelector,
+                server -> CompletableFuture.completedFuture(DownloadResult.DOWNLOADED)).start(false);
+        ex = assertThrows(ExecutionException.class, () -> noServer.get(5, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof IOException);
+    }
+
+    @Test
+    public void testConfigurationErrorIsNoServerFailure() {
+        UpstreamSelector upstreamSelector = new UpstreamSelector();
+        CompletableFuture<DownloadResult> result = new UpstreamRequest("tiles/1/0/0.png", createServers("a", "b"), upstreamSelector,
+                server -> CompletableFuture.failedFuture(new ConfigurationException("invalid url"))).start(false);
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof ConfigurationException);
+        assertEquals(0, upstreamSelector.getHealth("a").getFailureCount());
+    }
+
+    @Test
+    public void testHedgedRequest() throws Exception {
+        UpstreamSelector upstreamSelector = new UpstreamSelector();
+        // server a is known to answer within 10 ms
+        for (int i = 0; i < 20; i++) {
+            upstreamSelector.getHealth("a").recordSuccess(10);
+        }
+        CompletableFuture<DownloadResult> slowRequest = new CompletableFuture<>();
+        DownloadResult result = new UpstreamRequest("tiles/1/0/0.png", createServers("a", "b"), upstreamSelector, server -> {
+            if (server.getName().equals("a")) {
+                return slowRequest;
+            }
+            return CompletableFuture.completedFuture(DownloadResult.NOT_MODIFIED);
+        }).start(true).get(5, TimeUnit.SECONDS);
+
+        assertEquals(DownloadResult.NOT_MODIFIED, result);
+        // the slow request is cancelled and not counted as failure
+        assertTrue(slowRequest.isCancelled());
+        assertEquals(0, upstreamSelector.getHealth("a").getFailureCount());
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        UpstreamHealth health = new UpstreamHealth("a");
+        long now = 1_000_000;
+        UpstreamHealth.Permit late = health.tryAcquire(now);
+        for (int i = 0; i < UpstreamHealth.FAILURE_THRESHOLD; i++) {
+            UpstreamHealth.Permit permit = health.tryAcquire(now);
+            assertEquals(UpstreamHealth.Permit.GRANTED, permit);
+            health.recordFailure(now, permit);
+        }
+        assertEquals(UpstreamHealth.State.OPEN, health.getState());
+        assertFalse(health.tryAcquire(now + 1).isGranted());
+
+        // a single trial request after the open time
+        now += UpstreamHealth.MIN_OPEN_TIME;
+        UpstreamHealth.Permit trial = health.tryAcquire(now);
+        assertEquals(UpstreamHealth.Permit.TRIAL, trial);
+        assertFalse(health.tryAcquire(now).isGranted());
+        // requests sent before the circuit opened do not end the trial
+        health.release(late);
+        health.recordFailure(now, late);
+        assertEquals(UpstreamHealth.State.HALF_OPEN, health.getState());
+        assertFalse(health.tryAcquire(now).isGranted());
+        health.recordFailure(now, trial);
+        assertFalse(health.tryAcquire(now + UpstreamHealth.MIN_OPEN_TIME).isGranted());
+
+        // open time is doubled, a cancelled trial lets the next caller try
+        now += 2 * UpstreamHealth.MIN_OPEN_TIME;
+        health.release(health.tryAcquire(now));
+        assertEquals(UpstreamHealth.Permit.TRIAL, health.tryAcquire(now));
+
+        // a successful trial closes the circuit
+        health.recordSuccess(100);
+        assertEquals(UpstreamHealth.State.CLOSED, health.getState());
+        assertEquals(UpstreamHealth.Permit.GRANTED, health.tryAcquire(now));
+    }
+
+    private List<UpstreamServer> createServers(String... names) {
+        List<UpstreamServer> servers = new ArrayList<>();
+        for (String name : names) {
+            try {
+                servers.add(UpstreamServer.of(new Server(name, "http://" + name + ".example.org/{z}/{x}/{y}.png")));
+            } catch (ConfigurationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return servers;
+    }
+}
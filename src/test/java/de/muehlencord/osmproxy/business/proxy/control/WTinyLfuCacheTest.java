@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.proxy.control;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class WTinyLfuCacheTest {
+
+    @Test
+    public void testWeightLimit() {
+        WTinyLfuCache<Integer, byte[]> cache = new WTinyLfuCache<>(100_000, 100, v -> v.length);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, new byte[1000]);
+            assertTrue(cache.getWeight() <= 100_000);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900, cache.getEvictionCount());
+
+        // values heavier than the cache are not stored
+        cache.put(-1, new byte[100_001]);
+        assertNull(cache.get(-1));
+    }
+
+    @Test
+    public void testGetPutInvalidate() {
+        WTinyLfuCache<String, byte[]> cache = new WTinyLfuCache<>(10_000, 10, v -> v.length);
+        byte[] value = new byte[10];
+        assertNull(cache.get("tiles/0/0/0.png"));
+        cache.put("tiles/0/0/0.png", value);
+        assertEquals(value, cache.get("tiles/0/0/0.png"));
+        cache.invalidate("tiles/0/0/0.png");
+        assertNull(cache.get("tiles/0/0/0.png"));
+        assertEquals(0, cache.getWeight());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testAdmission() {
+        WTinyLfuCache<Integer, byte[]> cache = new WTinyLfuCache<>(10_000, 10, v -> v.length);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.isAdmissible(i, 1000));
+            cache.get(i);
+            cache.put(i, new byte[1000]);
+        }
+        assertFalse(cache.isAdmissible(-1, 10_001));
+
+        // a full cache only takes keys requested more often than the entry they would replace
+        cache.get(100);
+        assertFalse(cache.isAdmissible(100, 1000));
+        cache.get(100);
+        cache.get(100);
+        assertTrue(cache.isAdmissible(100, 1000));
+    }
+
+    @Test
+    public void testScanResistance() {
+        WTinyLfuCache<Integer, byte[]> cache = new WTinyLfuCache<>(100 * 1000, 100, v -> v.length);
+
+        // 50 popular tiles, requested several times
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get(i) == null) {
+                    cache.put(i, new byte[1000]);
+                }
+            }
+        }
+
+        // a crawler requesting 10000 different tiles once
+        for (int i = 1000; i < 11000; i++) {
+            if (cache.get(i) == null) {
+                cache.put(i, new byte[1000]);
+            }
+        }
+
+        int popularHits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(i) != null) {
+                popularHits++;
+            }
+        }
+        assertTrue(popularHits >= 45, "popular tiles evicted by scan, only " + popularHits + " left");
+        assertNotNull(cache.get(0));
+    }
+}
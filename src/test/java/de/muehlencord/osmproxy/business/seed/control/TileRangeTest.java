@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.seed.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.seed.entity.SeedRequest;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class TileRangeTest {
+
+    @Test
+    public void testCoordinates() {
+        assertEquals(0, TileRange.lonToTileX(-180, 0));
+        assertEquals(0, TileRange.lonToTileX(180, 0));
+        // Frankfurt am Main
+        assertEquals(8587, TileRange.lonToTileX(8.682, 14));
+        assertEquals(5548, TileRange.latToTileY(50.110, 14));
+        // the poles are clamped to the projection
+        assertEquals(0, TileRange.latToTileY(90, 3));
+        assertEquals(7, TileRange.latToTileY(-90, 3));
+    }
+
+    @Test
+    public void testWholeWorld() {
+        TileRange range = new TileRange(new SeedRequest().setLayer("tiles").setMinLon(-180).setMaxLon(180).setMinLat(-90).setMaxLat(90).setMinZoom(0).setMaxZoom(3), "png");
+        assertEquals(1 + 4 + 16 + 64, range.size());
+
+        Set<TileKey> tiles = new HashSet<>();
+        for (long i = 0; i < range.size(); i++) {
+            tiles.add(range.get(i));
+        }
+        assertEquals(range.size(), tiles.size());
+        assertEquals(new TileKey("tiles", 0, 0, 0, "png"), range.get(0));
+        assertEquals(new TileKey("tiles", 1, 0, 0, "png"), range.get(1));
+        assertEquals(new TileKey("tiles", 1, 0, 1, "png"), range.get(2));
+        assertTrue(tiles.contains(new TileKey("tiles", 3, 7, 7, "png")));
+        assertThrows(IndexOutOfBoundsException.class, () -> range.get(range.size()));
+    }
+
+    @Test
+    public void testBoundingBox() {
+        TileRange range = new TileRange(new SeedRequest().setLayer("tiles").setMinLon(8.5).setMaxLon(9.0).setMinLat(49.8).setMaxLat(50.2).setMinZoom(10).setMaxZoom(12), "png");
+        long expected = 0;
+        for (int z = 10; z <= 12; z++) {
+            expected += (TileRange.lonToTileX(9.0, z) - TileRange.lonToTileX(8.5, z) + 1)
+                    * (TileRange.latToTileY(49.8, z) - TileRange.latToTileY(50.2, z) + 1);
+        }
+        assertEquals(expected, range.size());
+        TileKey last = range.get(range.size() - 1);
+        assertEquals(12, last.getZ());
+        assertEquals(TileRange.lonToTileX(9.0, 12), last.getX());
+        assertEquals(TileRange.latToTileY(49.8, 12), last.getY());
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.control.TileWriter;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class BundleTileStoreTest {
+
+    @TempDir
+    Path cacheFolder;
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 12, 2050, 1300, "png");
+        TileKey neighbour = new TileKey("tiles", 12, 2050, 1301, "png");
+        try (BundleTileStore store = new BundleTileStore("tiles", cacheFolder, SyncPolicy.NONE)) {
+            assertNull(store.stat(tileKey));
+            assertNull(store.get(tileKey));
+            store.put(tileKey, wrap("tile"), 1000, new TileMetadata("\"v1\"", null));
+            store.put(neighbour, wrap("neighbour"), 2000, null);
+
+            assertEquals(1000, store.stat(tileKey).getLastModified());
+            assertEquals(4, store.stat(tileKey).getSize());
+            assertEquals("tile", read(store.get(tileKey)));
+            assertEquals("\"v1\"", store.getMetadata(tileKey).getETag());
+            assertNull(store.getMetadata(neighbour));
+        }
+        // both tiles are stored in the same bundle
+        assertTrue(Files.exists(cacheFolder.resolve("12").resolve("16").resolve("10.png.bundle")));
+
+        try (BundleTileStore store = new BundleTileStore("tiles", cacheFolder, SyncPolicy.DATA)) {
+            assertEquals("tile", read(store.get(tileKey)));
+            assertEquals("neighbour", read(store.get(neighbour)));
+            assertEquals(2000, store.stat(neighbour).getLastModified());
+        }
+    }
+
+    @Test
+    public void testReplaceTouchAndDelete() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 3, 5, 2, "png");
+        try (BundleTileStore store = new BundleTileStore("tiles", cacheFolder, SyncPolicy.NONE)) {
+            store.put(tileKey, wrap("old"), 1000, new TileMetadata("\"v1\"", null));
+            CachedTile oldTile = store.get(tileKey);
+            store.put(tileKey, wrap("new"), 2000, new TileMetadata("\"v2\"", null));
+            // tiles returned to readers are not changed
+            assertEquals("old", read(oldTile));
+            assertEquals("new", read(store.get(tileKey)));
+
+            store.touch(tileKey, 3000, null);
+            assertEquals(3000, store.stat(tileKey).getLastModified());
+            assertEquals("\"v2\"", store.getMetadata(tileKey).getETag());
+            store.touch(tileKey, 4000, new TileMetadata("\"v3\"", "Tue, 01 Oct 2019 10:00:00 GMT"));
+            assertEquals("\"v3\"", store.getMetadata(tileKey).getETag());
+            assertEquals("Tue, 01 Oct 2019 10:00:00 GMT", store.getMetadata(tileKey).getLastModified());
+            assertEquals("new", read(store.get(tileKey)));
+
+            assertTrue(store.delete(tileKey));
+            assertFalse(store.delete(tileKey));
+            assertNull(store.stat(tileKey));
+            assertFalse(store.delete(new TileKey("tiles", 4, 0, 0, "png")));
+        }
+    }
+
+    @Test
+    public void testIterate() throws Exception {
+        Set<TileKey> tileKeys = new HashSet<>(Arrays.asList(new TileKey("tiles", 0, 0, 0, "png"),
+                new TileKey("tiles", 12, 2050, 1300, "png"), new TileKey("tiles", 12, 2177, 1301, "png")));
+        try (BundleTileStore store = new BundleTileStore("tiles", cacheFolder, SyncPolicy.NONE)) {
+            for (TileKey tileKey : tileKeys) {
+                store.put(tileKey, wrap("tile"), 1000, null);
+            }
+            // a single zoom level can be visited on its own
+            Set<TileKey> visited = new HashSet<>();
+            store.iterate(12, (tileKey, tileInfo) -> visited.add(tileKey));
+            assertEquals(2, visited.size());
+            assertFalse(visited.contains(new TileKey("tiles", 0, 0, 0, "png")));
+
+            visited.clear();
+            store.iterate((tileKey, tileInfo) -> {
+                assertEquals(4, tileInfo.getSize());
+                // the visitor may modify the store
+                store.delete(tileKey);
+                return visited.add(tileKey);
+            });
+            assertEquals(tileKeys, visited);
+            for (TileKey tileKey : tileKeys) {
+                assertNull(store.stat(tileKey));
+            }
+        }
+    }
+
+    @Test
+    public void testManyBundles() throws Exception {
+        // more bundles than kept open, written and read by several threads
+        List<TileKey> tileKeys = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            tileKeys.add(new TileKey("tiles", 12, (i % 30) * 128, (i / 30) * 128, "png"));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (BundleTileStore store = new BundleTileStore("tiles", cacheFolder, SyncPolicy.NONE)) {
+            List<Future<?>> writes = new ArrayList<>();
+            for (TileKey tileKey : tileKeys) {
+                writes.add(executor.submit(() -> {
+                    store.put(tileKey, wrap(tileKey.toString()), 1000, null);
+                    return null;
+                }));
+            }
+            for (Future<?> write : writes) {
+                write.get();
+            }
+            for (TileKey tileKey : tileKeys) {
+                assertEquals(tileKey.toString(), read(store.get(tileKey)));
+            }
+            Set<TileKey> visited = new HashSet<>();
+            store.iterate(12, (tileKey, tileInfo) -> visited.add(tileKey));
+            assertEquals(new HashSet<>(tileKeys), visited);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 15, 100, 200, "png");
+        TileKey other = new TileKey("tiles", 15, 101, 200, "png");
+        byte[] data = new byte[1024 * 1024];
+        try (BundleTileStore store = new BundleTileStore("tiles", cacheFolder, SyncPolicy.NONE)) {
+            store.put(other, wrap("other"), 1000, new TileMetadata("\"v1\"", null));
+            for (int i = 0; i < 8; i++) {
+                Arrays.fill(data, (byte) i);
+                store.put(tileKey, ByteBuffer.wrap(data), 2000 + i, null);
+            }
+            assertEquals("other", read(store.get(other)));
+            assertEquals("\"v1\"", store.getMetadata(other).getETag());
+            assertEquals(2007, store.stat(tileKey).getLastModified());
+            ByteBuffer stored = store.get(tileKey).getData();
+            assertEquals(data.length, stored.remaining());
+            assertEquals(7, stored.get(data.length - 1));
+        }
+        // the replaced tiles are removed from the bundle
+        assertTrue(Files.size(TileBundle.resolve(cacheFolder, tileKey)) < 6L * data.length);
+    }
+
+    @Test
+    public void testCompactAfterDelete() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 15, 100, 200, "png");
+        TileKey other = new TileKey("tiles", 15, 101, 200, "png");
+        byte[] data = new byte[1024 * 1024];
+        try (BundleTileStore store = new BundleTileStore("tiles", cacheFolder, SyncPolicy.NONE)) {
+            store.put(tileKey, ByteBuffer.wrap(data), 1000, null);
+            store.put(other, wrap("other"), 1000, null);
+            assertTrue(store.delete(tileKey));
+            // too little garbage to be compacted automatically
+            assertTrue(store.compact() >= data.length);
+            assertEquals(0, store.compact());
+            assertNull(store.get(tileKey));
+            assertEquals("other", read(store.get(other)));
+        }
+        assertTrue(Files.size(TileBundle.resolve(cacheFolder, tileKey)) < data.length);
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        Path layerFolder = cacheFolder.resolve("tiles");
+        TileKey tileKey = new TileKey("tiles", 1, 1, 0, "png");
+        Path tilePath = tileKey.resolve(layerFolder);
+        TileWriter.write(new ByteArrayInputStream("tile".getBytes(StandardCharsets.UTF_8)), tilePath, SyncPolicy.NONE);
+        Files.setLastModifiedTime(tilePath, FileTime.fromMillis(5000));
+
+        assertEquals(1, BundleMigrator.migrate(layerFolder, SyncPolicy.NONE, true));
+        assertFalse(Files.exists(tilePath));
+        try (BundleTileStore store = new BundleTileStore("tiles", layerFolder, SyncPolicy.NONE)) {
+            assertEquals("tile", read(store.get(tileKey)));
+            assertEquals(5000, store.stat(tileKey).getLastModified());
+        }
+    }
+
+    private ByteBuffer wrap(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(CachedTile tile) {
+        ByteBuffer data = tile.getData();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import de.muehlencord.osmproxy.business.store.entity.TileRegion;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class TieredTileStoreTest {
+
+    @TempDir
+    Path cacheFolder;
+
+    @Test
+    public void testReadThroughAndWriteThrough() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 2, 1, 3, "png");
+        FileTileStore fileStore = new FileTileStore("tiles", cacheFolder, SyncPolicy.NONE);
+        fileStore.put(tileKey, wrap("disk"), 1000, new TileMetadata("\"v1\"", null));
+        MemoryTileStore memoryStore = new MemoryTileStore(1024);
+        try (TieredTileStore store = new TieredTileStore(memoryStore, fileStore)) {
+            assertNull(memoryStore.stat(tileKey));
+            assertEquals("disk", read(store.get(tileKey)));
+            // copied to memory on first read, including the validators
+            assertEquals("disk", read(memoryStore.get(tileKey)));
+            assertEquals(1000, memoryStore.stat(tileKey).getLastModified());
+            assertEquals("\"v1\"", memoryStore.getMetadata(tileKey).getETag());
+
+            store.touch(tileKey, 2000, new TileMetadata("\"v2\"", null));
+            assertEquals(2000, memoryStore.stat(tileKey).getLastModified());
+            assertEquals("\"v2\"", store.getMetadata(tileKey).getETag());
+            assertEquals(2000, fileStore.stat(tileKey).getLastModified());
+
+            TileKey other = new TileKey("tiles", 2, 0, 0, "png");
+            store.put(other, wrap("new"), 3000, null);
+            assertEquals("new", read(fileStore.get(other)));
+            assertEquals("new", read(memoryStore.get(other)));
+
+            assertTrue(store.delete(tileKey));
+            assertNull(memoryStore.stat(tileKey));
+            assertFalse(Files.exists(tileKey.resolve(cacheFolder)));
+
+            // the lower store holds all tiles
+            List<TileKey> visited = new ArrayList<>();
+            store.iterate((visitedKey, tileInfo) -> visited.add(visitedKey));
+            assertEquals(1, visited.size());
+            assertEquals(other, visited.get(0));
+            visited.clear();
+            store.iterate(1, (visitedKey, tileInfo) -> visited.add(visitedKey));
+            assertTrue(visited.isEmpty());
+        }
+    }
+
+    @Test
+    public void testOpenStreamsFileRegion() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 2, 1, 3, "png");
+        FileTileStore fileStore = new FileTileStore("tiles", cacheFolder, SyncPolicy.NONE);
+        fileStore.put(tileKey, wrap("disk"), 1000, null);
+        try (TileRegion region = fileStore.open(tileKey)) {
+            assertNotNull(region.getChannel());
+            // replacing the tile does not change the open region
+            fileStore.put(tileKey, wrap("replaced"), 2000, null);
+            assertEquals(1000, region.getLastModified());
+            assertEquals(4, region.getSize());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            region.transferTo(Channels.newChannel(out));
+            assertEquals("disk", out.toString(StandardCharsets.UTF_8.name()));
+        }
+        assertNull(fileStore.open(new TileKey("tiles", 2, 0, 0, "png")));
+
+        MemoryTileStore memoryStore = new MemoryTileStore(1024);
+        try (TieredTileStore store = new TieredTileStore(memoryStore, fileStore);
+                TileRegion region = store.open(tileKey)) {
+            // tiles held in memory are handed out as buffer
+            assertNull(region.getChannel());
+            ByteBuffer data = ByteBuffer.allocate((int) region.getSize());
+            region.read(data);
+            assertEquals("replaced", new String(data.array(), StandardCharsets.UTF_8));
+            assertNotNull(memoryStore.stat(tileKey));
+        }
+    }
+
+    @Test
+    public void testMemoryStoreLimit() throws Exception {
+        MemoryTileStore store = new MemoryTileStore(10);
+        TileKey first = new TileKey("tiles", 1, 0, 0, "png");
+        TileKey second = new TileKey("tiles", 1, 0, 1, "png");
+        TileKey third = new TileKey("tiles", 1, 1, 0, "png");
+        store.put(first, wrap("1234"), 1000, null);
+        store.put(second, wrap("1234"), 1000, null);
+        assertNotNull(store.get(first));
+        // the least recently used tile is dropped
+        store.put(third, wrap("1234"), 1000, null);
+        assertNull(store.stat(second));
+        assertNotNull(store.stat(first));
+        assertEquals(8, store.getSize());
+        // tiles larger than the store are not kept
+        store.put(second, wrap("12345678901"), 1000, null);
+        assertNull(store.stat(second));
+    }
+
+    private ByteBuffer wrap(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(CachedTile tile) {
+        ByteBuffer data = tile.getData();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.config.entity.SyncPolicy;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class TileIndexTest {
+
+    @TempDir
+    Path cacheFolder;
+
+    @Test
+    public void testLookups() throws Exception {
+        MemoryTileStore store = new MemoryTileStore(1024 * 1024);
+        TileKey shallow = new TileKey("tiles", 10, 500, 300, "png");
+        TileKey deep = new TileKey("tiles", 17, 68000, 44000, "png");
+        store.put(shallow, ByteBuffer.allocate(10), 1000, null);
+        store.put(deep, ByteBuffer.allocate(10), 1000, null);
+
+        TileIndex index = new TileIndex("memory");
+        // zoom levels not yet indexed may contain any tile
+        assertTrue(index.mightContain(new TileKey("tiles", 10, 1, 1, "png")));
+        assertTrue(index.build(store, 10, () -> false));
+        assertTrue(index.build(store, 17, () -> false));
+        assertFalse(index.build(store, 18, () -> true));
+        assertFalse(index.isIndexed(18));
+
+        assertTrue(index.mightContain(shallow));
+        assertTrue(index.mightContain(deep));
+        assertFalse(index.mightContain(new TileKey("tiles", 10, 1, 1, "png")));
+        assertFalse(index.mightContain(new TileKey("tiles", 17, 68000, 44001, "png")));
+        assertTrue(index.mightContain(new TileKey("tiles", 18, 1, 1, "png")));
+
+        TileKey added = new TileKey("tiles", 10, 1, 1, "png");
+        index.add(added);
+        assertTrue(index.mightContain(added));
+        index.remove(added);
+        assertFalse(index.mightContain(added));
+        // a Bloom filter cannot forget a tile
+        index.remove(deep);
+        assertTrue(index.mightContain(deep));
+    }
+
+    @Test
+    public void testFullBloomFilterIsRebuilt() throws Exception {
+        MemoryTileStore store = new MemoryTileStore(64 * 1024 * 1024);
+        TileIndex index = new TileIndex("memory");
+        // an empty zoom level gets the smallest filter
+        assertTrue(index.build(store, 14, () -> false));
+
+        int added = 0;
+        boolean full = false;
+        while (!full) {
+            TileKey tileKey = new TileKey("tiles", 14, added % 16384, added / 16384, "png");
+            store.put(tileKey, ByteBuffer.allocate(1), 1000, null);
+            full = index.add(tileKey);
+            added++;
+        }
+        // the filter is sized for 65536 tiles
+        assertTrue(added > 65536);
+        assertFalse(index.isIndexed(14));
+        assertTrue(index.mightContain(new TileKey("tiles", 14, 5, 16000, "png")));
+
+        // built again for the stored tiles, with room to grow
+        assertTrue(index.build(store, 14, () -> false));
+        for (int i = 0; i < added; i++) {
+            assertTrue(index.mightContain(new TileKey("tiles", 14, i % 16384, i / 16384, "png")));
+        }
+        assertFalse(index.add(new TileKey("tiles", 14, 5, 16000, "png")));
+        assertTrue(index.isIndexed(14));
+    }
+
+    @Test
+    public void testIndexedStore() throws Exception {
+        TileKey stored = new TileKey("tiles", 12, 2050, 1300, "png");
+        TileKey missing = new TileKey("tiles", 12, 2050, 1301, "png");
+        FileTileStore fileStore = new FileTileStore("tiles", cacheFolder, SyncPolicy.NONE);
+        fileStore.put(stored, ByteBuffer.wrap(new byte[]{1, 2, 3}), 1000, null);
+
+        // the index is built by the given executor
+        IndexedTileStore store = IndexedTileStore.open("tiles", fileStore, cacheFolder, "disk", Runnable::run);
+        assertNotNull(store.stat(stored));
+        assertNull(store.stat(missing));
+        assertNull(store.get(missing));
+        assertEquals(2, store.getSkippedLookups());
+
+        // the size is tracked while tiles are stored and removed
+        assertEquals(3, store.getSize());
+        store.put(missing, ByteBuffer.wrap(new byte[]{1}), 1000, null);
+        assertNotNull(store.stat(missing));
+        store.put(missing, ByteBuffer.wrap(new byte[]{1, 2}), 1000, null);
+        assertEquals(5, store.getSize());
+        assertTrue(store.delete(stored));
+        assertNull(store.stat(stored));
+        assertEquals(2, store.getSize());
+        store.close();
+        assertTrue(Files.exists(cacheFolder.resolve(IndexedTileStore.INDEX_FILE)));
+
+        // the saved index is loaded without scanning the store
+        store = IndexedTileStore.open("tiles", fileStore, cacheFolder, "disk", runnable -> {
+            throw new IllegalStateException("index not loaded");
+        });
+        assertFalse(Files.exists(cacheFolder.resolve(IndexedTileStore.INDEX_FILE)));
+        assertNotNull(store.stat(missing));
+        assertNull(store.stat(stored));
+        assertEquals(1, store.getSkippedLookups());
+        assertEquals(2, store.getSize());
+        store.close();
+
+        // an index of another store type is not used
+        store = IndexedTileStore.open("tiles", fileStore, cacheFolder, "bundle", Runnable::run);
+        assertNotNull(store.stat(missing));
+        store.close();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 joern.muehlencord.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muehlencord.osmproxy.business.store.control;
+
+import de.muehlencord.osmproxy.business.proxy.entity.CachedTile;
+import de.muehlencord.osmproxy.business.proxy.entity.TileKey;
+import de.muehlencord.osmproxy.business.proxy.entity.TileMetadata;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author joern.muehlencord
+ */
+public class WriteBehindTileStoreTest {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Test
+    public void testPendingTilesAreServed() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 2, 1, 3, "png");
+        MemoryTileStore memoryStore = new MemoryTileStore(1024);
+        WriteBehindTileStore store = new WriteBehindTileStore("tiles", memoryStore, tasks::add);
+
+        ByteBuffer data = wrap("new");
+        store.put(tileKey, data, 1000, new TileMetadata("\"v1\"", null));
+        // the buffer of the caller is not kept
+        data.put(0, (byte) 'x');
+        assertNull(memoryStore.stat(tileKey));
+        assertEquals("new", read(store.get(tileKey)));
+        assertEquals(1000, store.stat(tileKey).getLastModified());
+        assertEquals(3, store.stat(tileKey).getSize());
+        assertEquals("\"v1\"", store.getMetadata(tileKey).getETag());
+        assertEquals(1, store.getPendingTiles());
+
+        // one task writes all queued tiles
+        store.put(new TileKey("tiles", 2, 0, 0, "png"), wrap("other"), 1000, null);
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals("new", read(memoryStore.get(tileKey)));
+        assertEquals("\"v1\"", memoryStore.getMetadata(tileKey).getETag());
+        assertEquals(0, store.getPendingTiles());
+        assertEquals(2, store.getWrittenTiles());
+
+        // updating a pending tile writes it first
+        store.put(tileKey, wrap("newer"), 2000, null);
+        store.touch(tileKey, 3000, null);
+        assertEquals("newer", read(memoryStore.get(tileKey)));
+        assertEquals(3000, store.stat(tileKey).getLastModified());
+    }
+
+    @Test
+    public void testMemoryStoreAboveIsFilledRightAway() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 2, 1, 3, "png");
+        MemoryTileStore persistentStore = new MemoryTileStore(1024);
+        MemoryTileStore memoryStore = new MemoryTileStore(1024);
+        WriteBehindTileStore writeBehindStore = new WriteBehindTileStore("tiles", persistentStore, tasks::add);
+        TieredTileStore store = new TieredTileStore(memoryStore, writeBehindStore);
+
+        store.put(tileKey, wrap("new"), 1000, null);
+        assertEquals("new", read(memoryStore.get(tileKey)));
+        assertNull(persistentStore.stat(tileKey));
+        assertEquals(1, writeBehindStore.getPendingTiles());
+        runTasks();
+        assertEquals("new", read(persistentStore.get(tileKey)));
+    }
+
+    @Test
+    public void testReplaceAndDelete() throws Exception {
+        TileKey tileKey = new TileKey("tiles", 2, 1, 3, "png");
+        MemoryTileStore memoryStore = new MemoryTileStore(1024);
+        WriteBehindTileStore store = new WriteBehindTileStore("tiles", memoryStore, tasks::add);
+
+        // only the latest version is written
+        store.put(tileKey, wrap("v1"), 1000, null);
+        store.put(tileKey, wrap("v2"), 2000, null);
+        runTasks();
+        assertEquals("v2", read(memoryStore.get(tileKey)));
+        assertEquals(1, store.getWrittenTiles());
+
+        // a deleted tile is not written afterwards
+        store.put(tileKey, wrap("v3"), 3000, null);
+        assertTrue(store.delete(tileKey));
+        assertNull(store.stat(tileKey));
+        runTasks();
+        assertNull(memoryStore.stat(tileKey));
+        assertEquals(1, store.getWrittenTiles());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        MemoryTileStore memoryStore = new MemoryTileStore(1024);
+        WriteBehindTileStore store = new WriteBehindTileStore("tiles", memoryStore, tasks::add, 2);
+        for (int x = 0; x < 3; x++) {
+            store.put(new TileKey("tiles", 2, x, 0, "png"), wrap("tile" + x), 1000, null);
+        }
+        // the queue is full - the third tile is written by the caller
+        assertEquals(2, store.getPendingTiles());
+        assertEquals(1, store.getDirectWrites());
+        assertEquals("tile2", read(memoryStore.get(new TileKey("tiles", 2, 2, 0, "png"))));
+
+        // closing the store writes the pending tiles
+        store.close();
+        assertEquals(0, store.getPendingTiles());
+        assertEquals(3, store.getWrittenTiles());
+    }
+
+    private void runTasks() {
+        List<Runnable> currentTasks = new ArrayList<>(tasks);
+        tasks.clear();
+        currentTasks.forEach(Runnable::run);
+    }
+
+    private ByteBuffer wrap(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(CachedTile tile) {
+        ByteBuffer data = tile.getData();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}